@@ -6,7 +6,10 @@ import com.google.protobuf.ByteString;
 import duckutil.LRUCache;
 import duckutil.TimeRecord;
 import duckutil.TimeRecordAuto;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -23,6 +26,7 @@ import snowblossom.trie.proto.*;
 public class GetUTXOUtil
 {
   public static final long UTXO_ROOT_EXPIRE=500L; 
+  public static final int SCAN_RETRIES=5;
 
   private static final Logger logger = Logger.getLogger("snowblossom.client");
 
@@ -282,7 +286,13 @@ public class GetUTXOUtil
   {
     HashMap<ByteString, TrieNode> node_map = new HashMap<>(10000,0.5f);
 
-    for(TrieNode n : getNodesByPrefix(prefix, stub, true, utxo_root))
+    List<TrieNode> nodes = scanNodesByPrefix(prefix, stub, utxo_root);
+    if (nodes == null)
+    {
+      nodes = getNodesByPrefix(prefix, stub, true, utxo_root);
+    }
+
+    for(TrieNode n : nodes)
     {
       node_map.put(n.getPrefix(), n);
     }
@@ -352,6 +362,61 @@ public class GetUTXOUtil
 
   }
   
+  /**
+   * Gets everything under the prefix with the streaming scan, picking up
+   * after the last node received if the stream breaks.
+   * @return null if the node doesn't have the scan call
+   */
+  private static List<TrieNode> scanNodesByPrefix(ByteString prefix, UserServiceBlockingStub stub, ByteString utxo_root)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra = TimeRecord.openAuto("GetUTXOUtil.scanNodesByPrefix"))
+    {
+      LinkedList<TrieNode> lst = new LinkedList<>();
+      ByteString resume_after = ByteString.EMPTY;
+      int failures = 0;
+
+      while(true)
+      {
+        try
+        {
+          Iterator<GetUTXONodeReply> it = stub.scanUTXONodes( GetUTXONodeRequest.newBuilder()
+            .setPrefix(prefix)
+            .setUtxoRootHash(utxo_root)
+            .setResumeAfter(resume_after)
+            .build());
+          while(it.hasNext())
+          {
+            GetUTXONodeReply reply = it.next();
+            for(TrieNode node : reply.getAnswerList())
+            {
+              if (!HashUtils.validateNodeHash(node)) throw new ValidationException("Validation failure in node: " + HexUtil.getHexString(node.getPrefix()));
+              lst.add(node);
+            }
+            for(TrieNode node : reply.getProofList())
+            {
+              if (!HashUtils.validateNodeHash(node)) throw new ValidationException("Validation failure in node: " + HexUtil.getHexString(node.getPrefix()));
+              lst.add(node);
+            }
+            if (reply.getResumeAfter().size() > 0)
+            {
+              resume_after = reply.getResumeAfter();
+            }
+          }
+          return lst;
+        }
+        catch(StatusRuntimeException e)
+        {
+          if (e.getStatus().getCode() == Status.Code.UNIMPLEMENTED) return null;
+
+          failures++;
+          if (failures > SCAN_RETRIES) throw e;
+          logger.log(Level.FINE, "Resuming UTXO scan after " + HexUtil.getHexString(resume_after) + ": " + e);
+        }
+      }
+    }
+  }
+
   private static List<TrieNode> getNodesByPrefix(ByteString prefix, UserServiceBlockingStub stub, boolean proof, ByteString utxo_root)
     throws ValidationException
   {
@@ -4,23 +4,32 @@ import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
 import duckutil.TimeRecordAuto;
 import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 import org.junit.Assert;
 
 public class DigestUtil
 {
+  private static final Logger logger = Logger.getLogger("snowblossom.blockchain");
+
+  public static final String TRIE_HASH_ALGO="SHA-256";
+
+  public static final long PROVIDER_BENCH_MS=50L;
+
+  // Algorithm name to the provider we picked for it
+  private static final ConcurrentHashMap<String, Provider> provider_map = new ConcurrentHashMap<>();
 
   public static MessageDigest getMD()
   {
     try(TimeRecordAuto tra = TimeRecord.openAuto("MessageDigest.getMD"))
     {
-      MessageDigest md = MessageDigest.getInstance(Globals.BLOCKCHAIN_HASH_ALGO);
-      return md;
-    }
-    catch (java.security.NoSuchAlgorithmException e)
-    {
-      throw new RuntimeException(e);
+      return getInstance(Globals.BLOCKCHAIN_HASH_ALGO);
     }
   }
 
@@ -33,8 +42,19 @@ public class DigestUtil
   {
     try(TimeRecordAuto tra = TimeRecord.openAuto("MessageDigest.getMDAddressSpec"))
     {
-      MessageDigest md = MessageDigest.getInstance(Globals.ADDRESS_SPEC_HASH_ALGO);
-      return md;
+      return getInstance(Globals.ADDRESS_SPEC_HASH_ALGO);
+    }
+  }
+
+  /**
+   * A MessageDigest for algo from the fastest provider we found for it.
+   * Every provider gives the same hash, so this only changes speed.
+   */
+  public static MessageDigest getInstance(String algo)
+  {
+    try
+    {
+      return MessageDigest.getInstance(algo, getProvider(algo));
     }
     catch (java.security.NoSuchAlgorithmException e)
     {
@@ -42,6 +62,104 @@ public class DigestUtil
     }
   }
 
+  public static Provider getProvider(String algo)
+  {
+    return provider_map.computeIfAbsent(algo, DigestUtil::selectProvider);
+  }
+
+  /**
+   * Pick providers for the algorithms we use.  Already selected ones are kept,
+   * so this is cheap to call again.
+   */
+  public static void selectProviders()
+  {
+    getProvider(Globals.BLOCKCHAIN_HASH_ALGO);
+    getProvider(Globals.ADDRESS_SPEC_HASH_ALGO);
+    getProvider(Globals.SNOW_MERKLE_HASH_ALGO);
+    getProvider(TRIE_HASH_ALGO);
+  }
+
+  /**
+   * @return algorithm name to provider name for everything selected so far
+   */
+  public static Map<String, String> getProviderMap()
+  {
+    TreeMap<String, String> m = new TreeMap<>();
+    for(Map.Entry<String, Provider> me : provider_map.entrySet())
+    {
+      m.put(me.getKey(), me.getValue().getName());
+    }
+    return m;
+  }
+
+  /**
+   * If more than one provider has algo, time each on block header sized inputs
+   * and take the fastest.  For example, the SUN SHA-256 is intrinsified on
+   * CPUs with SHA extensions and is much faster than the pure java one in BC.
+   */
+  private static Provider selectProvider(String algo)
+  {
+    Provider[] providers = Security.getProviders("MessageDigest." + algo);
+    if ((providers == null) || (providers.length == 0))
+    {
+      throw new RuntimeException("No provider for " + algo);
+    }
+    if (providers.length == 1) return providers[0];
+
+    Provider best = null;
+    double best_rate = 0.0;
+    StringBuilder report = new StringBuilder();
+    for(Provider p : providers)
+    {
+      try
+      {
+        MessageDigest md = MessageDigest.getInstance(algo, p);
+        benchDigest(md, PROVIDER_BENCH_MS); // warm up
+        double rate = benchDigest(md, PROVIDER_BENCH_MS);
+        report.append(String.format(" %s:%.0f/s", p.getName(), rate));
+        if (rate > best_rate)
+        {
+          best = p;
+          best_rate = rate;
+        }
+      }
+      catch(Exception e)
+      {
+        logger.warning(String.format("Digest provider %s failed for %s: %s", p.getName(), algo, e));
+      }
+    }
+    if (best == null)
+    {
+      throw new RuntimeException("No working provider for " + algo);
+    }
+    logger.info(String.format("Selected %s for %s -%s", best.getName(), algo, report.toString()));
+    return best;
+  }
+
+  private static double benchDigest(MessageDigest md, long run_ms)
+    throws java.security.DigestException
+  {
+    byte[] buff = new byte[256];
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + run_ms * 1000000L;
+    long t;
+    do
+    {
+      for(int i=0; i<100; i++)
+      {
+        buff[0]++;
+        md.update(buff);
+        md.digest(buff, 0, md.getDigestLength());
+      }
+      count+=100;
+      t = System.nanoTime();
+    }
+    while(t < end);
+
+    return count * 1e9 / (t - start);
+  }
+
   public static ChainHash getMerkleRootForTxList(List<ChainHash> tx_list)
   {
     ArrayList<ChainHash> src = new ArrayList<>();
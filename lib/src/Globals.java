@@ -81,6 +81,7 @@ public class Globals
   {
     Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
     crypt_provider_name = "BC";
+    DigestUtil.selectProviders();
   }
 
 }
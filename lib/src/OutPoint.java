@@ -0,0 +1,99 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import snowblossom.proto.TransactionInput;
+
+/**
+ * A reference to a single transaction output, tx id and output index.
+ *
+ * Meant to be used as a map key in places that track a lot of these, like the mempool,
+ * so it holds the tx id as plain longs and computes the hash code once.
+ */
+public final class OutPoint implements Comparable<OutPoint>
+{
+  private final long a;
+  private final long b;
+  private final long c;
+  private final long d;
+  private final int idx;
+  private final int hash;
+
+  public OutPoint(ByteString tx_id, int idx)
+  {
+    Assert.assertEquals(Globals.BLOCKCHAIN_HASH_LEN, tx_id.size());
+    ByteBuffer bb = tx_id.asReadOnlyByteBuffer();
+    this.a = bb.getLong();
+    this.b = bb.getLong();
+    this.c = bb.getLong();
+    this.d = bb.getLong();
+    this.idx = idx;
+
+    // tx ids are hashes, so any of the bits are as good as any other
+    this.hash = (int)(a ^ (a >>> 32)) * 31 + idx;
+  }
+
+  public OutPoint(ChainHash tx_id, int idx)
+  {
+    this(tx_id.getBytes(), idx);
+  }
+
+  public OutPoint(TransactionInput in)
+  {
+    this(in.getSrcTxId(), in.getSrcTxOutIdx());
+  }
+
+  public ChainHash getTxId()
+  {
+    ByteBuffer bb = ByteBuffer.allocate(Globals.BLOCKCHAIN_HASH_LEN);
+    bb.putLong(a);
+    bb.putLong(b);
+    bb.putLong(c);
+    bb.putLong(d);
+    return new ChainHash(bb.array());
+  }
+
+  public int getIdx()
+  {
+    return idx;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (this == o) return true;
+    if (!(o instanceof OutPoint)) return false;
+
+    OutPoint p = (OutPoint)o;
+    return (hash == p.hash) && (idx == p.idx) && (a == p.a) && (b == p.b) && (c == p.c) && (d == p.d);
+  }
+
+  /** Same order as comparing the tx id bytes unsigned, then the index */
+  @Override
+  public int compareTo(OutPoint o)
+  {
+    int r = Long.compareUnsigned(a, o.a);
+    if (r != 0) return r;
+    r = Long.compareUnsigned(b, o.b);
+    if (r != 0) return r;
+    r = Long.compareUnsigned(c, o.c);
+    if (r != 0) return r;
+    r = Long.compareUnsigned(d, o.d);
+    if (r != 0) return r;
+    return Integer.compare(idx, o.idx);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getTxId().toString() + ":" + idx;
+  }
+
+}
@@ -1,5 +1,9 @@
 package snowblossom.lib;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
@@ -59,6 +63,38 @@ import org.apache.commons.math3.random.Well44497b;
       src.nextBytes(b);
     }
 
+    /**
+     * The full generator state, for checkpointing a long run
+     */
+    public byte[] getState()
+    {
+      try
+      {
+        ByteArrayOutputStream b_out = new ByteArrayOutputStream();
+        ObjectOutputStream o_out = new ObjectOutputStream(b_out);
+        o_out.writeObject(src);
+        o_out.flush();
+        return b_out.toByteArray();
+      }
+      catch(java.io.IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void setState(byte[] state)
+    {
+      try
+      {
+        ObjectInputStream o_in = new ObjectInputStream(new ByteArrayInputStream(state));
+        src = (AbstractWell) o_in.readObject();
+      }
+      catch(java.io.IOException | ClassNotFoundException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
     /**
      * Mix in the given bytes into the rng state
      */
@@ -8,7 +8,6 @@ import java.text.DecimalFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.Assert;
-import snowblossom.lib.trie.ByteStringComparator;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.proto.BlockHeader;
 import snowblossom.proto.BlockSummary;
@@ -156,6 +155,54 @@ public class PowUtil
       return md.digest();
   }
 
+  /**
+   * Everything hashHeaderBits hashes after the nonce.  This only depends on the header,
+   * so a miner can build it once per work unit rather than once per nonce.
+   */
+  public static byte[] getHeaderSuffix(BlockHeader header)
+  {
+    return getHeaderBits(header).substring(header.getNonce().size()).toByteArray();
+  }
+
+  /**
+   * Same as hashHeaderBits(header, nonce, md) but with the header bits from getHeaderSuffix()
+   * and without allocating anything.  The nonce is hashed first, so there is no midstate
+   * to save between nonces, but everything after it is just one update.
+   */
+  public static void hashHeaderBits(byte[] header_suffix, byte[] nonce, MessageDigest md, byte[] out)
+  {
+    try
+    {
+      md.update(nonce);
+      md.update(header_suffix);
+      md.digest(out, 0, Globals.BLOCKCHAIN_HASH_LEN);
+    }
+    catch(java.security.DigestException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Holds the header suffix for the last header seen.  Not thread safe, meant for one per
+   * mining thread.
+   */
+  public static class HeaderSuffixCache
+  {
+    private BlockHeader header;
+    private byte[] suffix;
+
+    public byte[] getSuffix(BlockHeader h)
+    {
+      if (h != header)
+      {
+        suffix = getHeaderSuffix(h);
+        header = h;
+      }
+      return suffix;
+    }
+  }
+
   public static TreeSet<Integer> inOrder(Set<Integer> in)
   {
     TreeSet<Integer> sort = new TreeSet<>();
@@ -178,10 +225,13 @@ public class PowUtil
       md.update(context);
       md.digest(tmp_buff,0, Globals.BLOCKCHAIN_HASH_LEN);
 
-      tmp_buff[0] = 0;
-
-      ByteBuffer bb = ByteBuffer.wrap(tmp_buff);
-      long v = bb.getLong();
+      // Big endian long of the first 8 bytes with the top byte zeroed,
+      // so it is never negative
+      long v = 0L;
+      for(int i=1; i<8; i++)
+      {
+        v = (v << 8) | (tmp_buff[i] & 0xffL);
+      }
 
       return v % word_count;
 
@@ -243,8 +293,17 @@ public class PowUtil
       if (found_hash[i] != 0) return false;
     }
     
-    ByteString found = ByteString.copyFrom(found_hash,0, Globals.TARGET_LENGTH);
-    return (ByteStringComparator.compareStatic(found, target) < 0);
+    // Unsigned compare in place, same ordering as ByteStringComparator
+    // but without copying the hash
+    int len = Math.min(Globals.TARGET_LENGTH, target.size());
+    for(int i=0; i<len; i++)
+    {
+      int f = found_hash[i] & 0xff;
+      int t = target.byteAt(i) & 0xff;
+      if (f < t) return true;
+      if (f > t) return false;
+    }
+    return Globals.TARGET_LENGTH < target.size();
   }
 
   public static BigInteger calcNextTarget(BlockSummary prev_summary, NetworkParams params, long clock_time)
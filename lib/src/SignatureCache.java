@@ -0,0 +1,143 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.proto.SignatureEntry;
+import snowblossom.proto.Transaction;
+
+/**
+ * Remembers transactions whose signatures have already been verified,
+ * so that a block full of transactions we already have in the mempool
+ * doesn't have to check them all again.
+ *
+ * Entries are keyed by tx hash, which covers the claims (and so the public keys),
+ * along with a hash of the signature entries, which are not covered by the tx hash.
+ *
+ * Entries leave when the mempool drops the transaction, when they are more than
+ * max_depth blocks old, or when the cache is over max_entries.
+ */
+public class SignatureCache
+{
+  private static int max_entries = 100000;
+  private static int max_depth = 100;
+
+  // Insertion ordered, so the oldest generation is always at the front
+  private static final LinkedHashMap<ChainHash, Entry> cache = new LinkedHashMap<>(1024, 0.75f, false);
+  private static long generation = 0L;
+
+  private static final AtomicLong hits = new AtomicLong(0L);
+  private static final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * @param entries max number of transactions to remember, zero disables the cache
+   * @param depth number of blocks an entry lives for
+   */
+  public static synchronized void configure(int entries, int depth)
+  {
+    max_entries = entries;
+    max_depth = depth;
+    trim();
+  }
+
+  /**
+   * @return true iff every signature on this exact transaction has already been verified
+   */
+  public static boolean isVerified(Transaction tx)
+  {
+    Entry e;
+    synchronized(SignatureCache.class)
+    {
+      e = cache.get(new ChainHash(tx.getTxHash()));
+    }
+    if ((e != null) && (e.sig_hash.equals(getSignatureHash(tx))))
+    {
+      hits.incrementAndGet();
+      return true;
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Only call after all signatures on tx have passed
+   */
+  public static void markVerified(Transaction tx)
+  {
+    ChainHash tx_hash = new ChainHash(tx.getTxHash());
+    ByteString sig_hash = getSignatureHash(tx);
+
+    synchronized(SignatureCache.class)
+    {
+      if (max_entries <= 0) return;
+      cache.remove(tx_hash);
+      cache.put(tx_hash, new Entry(sig_hash, generation));
+      trim();
+    }
+  }
+
+  public static synchronized void forget(ChainHash tx_hash)
+  {
+    cache.remove(tx_hash);
+  }
+
+  /**
+   * Called as new blocks are added, ages out entries past max_depth
+   */
+  public static synchronized void newBlock()
+  {
+    generation++;
+    trim();
+  }
+
+  public static synchronized int size()
+  {
+    return cache.size();
+  }
+
+  public static long getHitCount() { return hits.get(); }
+  public static long getMissCount() { return misses.get(); }
+
+  private static void trim()
+  {
+    Iterator<Entry> it = cache.values().iterator();
+    while(it.hasNext())
+    {
+      Entry e = it.next();
+      if ((cache.size() > max_entries) || (e.generation + max_depth < generation))
+      {
+        it.remove();
+      }
+      else
+      {
+        break;
+      }
+    }
+  }
+
+  private static ByteString getSignatureHash(Transaction tx)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    for(SignatureEntry se : tx.getSignaturesList())
+    {
+      md.update(se.toByteArray());
+    }
+    return ByteString.copyFrom(md.digest());
+  }
+
+  private static class Entry
+  {
+    final ByteString sig_hash;
+    final long generation;
+
+    Entry(ByteString sig_hash, long generation)
+    {
+      this.sig_hash = sig_hash;
+      this.generation = generation;
+    }
+  }
+
+}
@@ -0,0 +1,172 @@
+package snowblossom.lib;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import duckutil.TimeRecordAuto;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import snowblossom.proto.SigSpec;
+
+/**
+ * Checks batches of signatures on a shared bounded pool of threads.
+ *
+ * Validation collects every signature in a transaction or block into a list
+ * of checks and hands them here, so the expensive part (especially for the post quantum
+ * algorithms) is spread across cores instead of running on the peer message thread.
+ * On the first bad signature, the remaining checks are abandoned.
+ */
+public class SignatureVerifier
+{
+  // Below this many signatures, the handoff costs more than it saves
+  public static final int MIN_PARALLEL = 4;
+
+  private static int thread_count = Runtime.getRuntime().availableProcessors();
+  private static ThreadPoolExecutor exec;
+
+  /**
+   * Set the number of verification threads.  Only has effect before the first
+   * parallel verification.  Zero or less means check everything on the calling thread.
+   */
+  public static synchronized void setThreadCount(int threads)
+  {
+    thread_count = threads;
+  }
+
+  private static synchronized ThreadPoolExecutor getExec()
+  {
+    if (thread_count <= 1) return null;
+    if (exec == null)
+    {
+      exec = new ThreadPoolExecutor(
+        thread_count,
+        thread_count,
+        2, TimeUnit.DAYS,
+        new LinkedBlockingQueue<Runnable>(),
+        new DaemonThreadFactory("sig_verify"));
+    }
+    return exec;
+  }
+
+  /**
+   * Check every signature in the list.
+   * @throws ValidationException on the first signature found to be bad
+   */
+  public static void verifyAll(List<SigCheck> checks)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra = TimeRecord.openAuto("SignatureVerifier.verifyAll"))
+    {
+      ThreadPoolExecutor pool = getExec();
+      if ((pool == null) || (checks.size() < MIN_PARALLEL))
+      {
+        for(SigCheck c : checks)
+        {
+          c.verify();
+        }
+        return;
+      }
+
+      AtomicBoolean failed = new AtomicBoolean(false);
+      AtomicInteger next = new AtomicInteger(0);
+
+      // Each worker pulls the next unchecked signature, so slow algorithms
+      // don't leave other workers idle.  The calling thread works too.
+      int workers = Math.min(pool.getMaximumPoolSize(), checks.size() - 1);
+      ArrayList<Future<Void>> futures = new ArrayList<>();
+      for(int i=0; i<workers; i++)
+      {
+        futures.add(pool.submit(() -> { runChecks(checks, next, failed); return null; }));
+      }
+
+      ValidationException first = null;
+      try
+      {
+        runChecks(checks, next, failed);
+      }
+      catch(ValidationException e)
+      {
+        first = e;
+      }
+
+      for(Future<Void> f : futures)
+      {
+        try
+        {
+          f.get();
+        }
+        catch(ExecutionException e)
+        {
+          if (first == null)
+          {
+            if (e.getCause() instanceof ValidationException) first = (ValidationException) e.getCause();
+            else first = new ValidationException(e.getCause());
+          }
+        }
+        catch(InterruptedException e)
+        {
+          failed.set(true);
+          throw new ValidationException(e);
+        }
+      }
+      if (first != null) throw first;
+    }
+  }
+
+  private static void runChecks(List<SigCheck> checks, AtomicInteger next, AtomicBoolean failed)
+    throws ValidationException
+  {
+    while(!failed.get())
+    {
+      int idx = next.getAndIncrement();
+      if (idx >= checks.size()) return;
+
+      try
+      {
+        checks.get(idx).verify();
+      }
+      catch(ValidationException e)
+      {
+        failed.set(true);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * A single deferred signature check
+   */
+  public static class SigCheck
+  {
+    private final SigSpec sig_spec;
+    private final ByteString signed_data;
+    private final ByteString signature;
+
+    public SigCheck(SigSpec sig_spec, ByteString signed_data, ByteString signature)
+    {
+      this.sig_spec = sig_spec;
+      this.signed_data = signed_data;
+      this.signature = signature;
+    }
+
+    public SigSpec getSigSpec() { return sig_spec; }
+    public ByteString getSignedData() { return signed_data; }
+    public ByteString getSignature() { return signature; }
+
+    public void verify()
+      throws ValidationException
+    {
+      if (!SignatureUtil.checkSignature(sig_spec, signed_data, signature))
+      {
+        throw new ValidationException("signature failed " + signed_data);
+      }
+    }
+  }
+
+}
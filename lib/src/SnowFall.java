@@ -1,24 +1,37 @@
 package snowblossom.lib;
 
+import com.google.common.annotations.VisibleForTesting;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
-/** 
+/**
  * Objective - create a deterministic large file.
  *
- * We want it hard to generate without having entire file. 
- * This does does that by multiple PASSES of jumping around and 
+ * We want it hard to generate without having entire file.
+ * This does does that by multiple PASSES of jumping around and
  * using existing data to inform new data and next jump (updating rng state)
  *
  * Hard to parameterize each page with the rng states to make
@@ -26,6 +39,15 @@ import java.util.logging.Logger;
  *
  * Hard to quickly generate for a certain page in memory
  * because you need random access to entire file to build.
+ *
+ * The rng is one sequential stream, so the generation itself stays on one thread.
+ * What we can do is keep the disk busy while it runs: the initial writes go
+ * out from a ring of buffers, and the page writes of one round overlap
+ * the rng work and page reads of the next.
+ *
+ * With checkpointing on, the rng state and snow monster are saved every so often
+ * and the old contents of each page are logged before it is rewritten, so an interrupted
+ * run can roll the file back to the last checkpoint and carry on from there.
  */
 public class SnowFall
 {
@@ -39,8 +61,14 @@ public class SnowFall
   public static final int SNOWMONSTER_PAGESIZE=PAGESIZE/4;
   public static final int SNOWMONSTER_COUNT= 268435456 / SNOWMONSTER_PAGESIZE; //want 256 mb
 
-  // These two can be changed without changing the result
+  // These can be changed without changing the result
   public static final int threads = 128;
+  public static final int INITIAL_WRITE_BUFFERS = 8;
+  public static final long CHECKPOINT_INTERVAL_MS = 15L * 60L * 1000L;
+  public static final long CHECKPOINT_UNDO_BYTES = 1024L * 1048576L;
+
+  private static final String CHECKPOINT_MAGIC = "snowfall-checkpoint-1";
+  private static final int UNDO_RECORD_SIZE = 8 + PAGESIZE;
 
   private static final Logger logger = Logger.getLogger("snowblossom.miner");
 
@@ -54,60 +82,192 @@ public class SnowFall
     String filename = args[0];
     String seed = args[1];
     long size = Long.parseLong(args[2]) * 1048576L;
-    new SnowFall(filename, seed, size);
+    new SnowFall(filename, seed, size, true);
   }
 
+  private final String filename;
+  private final String seed;
+  private final long size;
+  private final boolean checkpoint;
+  private final long checkpoint_every;
+  private final long stop_at;
+
   private FileChannel snow_fc;
   private Queue<ByteBuffer> snow_monster;
+  private PRNGStream rng_stream;
+  private ThreadPoolExecutor exec;
+  private final AtomicReference<Throwable> io_error = new AtomicReference<>();
+
+  private FileChannel undo_fc;
+  private long undo_pos;
+  private long checkpoint_seq;
+  private long last_checkpoint;
 
   public SnowFall(String filename, String seed, long size)
     throws Exception
   {
+    this(filename, seed, size, false);
+  }
+
+  /**
+   * @param checkpoint if true, save progress as we go and resume from any saved progress
+   */
+  public SnowFall(String filename, String seed, long size, boolean checkpoint)
+    throws Exception
+  {
+    this(filename, seed, size, checkpoint, 0L, -1L);
+  }
+
+  /**
+   * @param checkpoint_every if positive, also checkpoint every this many rounds of each pass
+   * @param stop_at if not negative, throw once the main pass gets to this round, as if interrupted
+   */
+  @VisibleForTesting
+  public SnowFall(String filename, String seed, long size, boolean checkpoint, long checkpoint_every, long stop_at)
+    throws Exception
+  {
+    this.filename = filename;
+    this.seed = seed;
+    this.size = size;
+    this.checkpoint = checkpoint;
+    this.checkpoint_every = checkpoint_every;
+    this.stop_at = stop_at;
+
     logger.info(String.format("Starting snowfall on %s with seed '%s' size %d, MULTIPLICITY %d", filename, seed, size, MULTIPLICITY));
     RandomAccessFile snow = new RandomAccessFile(filename, "rw");
 
-    ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, 
-      2, TimeUnit.DAYS, 
+    exec = new ThreadPoolExecutor(threads, threads,
+      2, TimeUnit.DAYS,
       new LinkedBlockingQueue<Runnable>(),
       new DaemonThreadFactory("SnowFall"));
-    Semaphore syncsem = new Semaphore(0);
 
-    snow_monster = new LinkedList<ByteBuffer>();
+    snow_monster = new ArrayDeque<ByteBuffer>(SNOWMONSTER_COUNT);
+    snow_fc = snow.getChannel();
+    rng_stream = new PRNGStream(seed);
 
-    snow.setLength(0);
-    snow.setLength(size);
+    try
+    {
+      int phase = 0;
+      long start = 0L;
 
-    snow_fc = snow.getChannel();
+      if (checkpoint)
+      {
+        undo_fc = new RandomAccessFile(getUndoFile(), "rw").getChannel();
+      }
 
-    PRNGStream rng_stream = new PRNGStream(seed);
-    fillSnowMonster(rng_stream);
-    long page_count = size / (long)PAGESIZE;
-    
-    { // First pass, just write some data to fill in the file
-      // not at all secure here, because someone could save checkpoints of the
-      // PRNG state to quickly regenerate parts of the file
-      snow.seek(0);
-      byte[] w_buff=new byte[1048576];
-      long mb_count = size / 1048576;
-      for(long w=0; w<mb_count; w++)
+      long[] resume = loadCheckpoint();
+      if (resume != null)
       {
-        rng_stream.nextBytes(w_buff);
-        writeFully(w * 1048576L, w_buff);
-        rng_stream.mixBytes(snow_monster.poll().array());
-        fillSnowMonster(rng_stream);
-        if (w % 128 == 0)
+        phase = (int) resume[0];
+        start = resume[1];
+        logger.info(String.format("Resuming snowfall of %s from checkpoint, pass %d round %d", filename, phase, start));
+        if (phase == 1)
         {
-          logger.info(String.format("Initial write of %s - %d mb done", filename, w));
-
+          rollbackUndo();
         }
       }
+      else
+      {
+        snow.setLength(0);
+        snow.setLength(size);
+        fillSnowMonster(rng_stream);
+      }
+      last_checkpoint = System.currentTimeMillis();
+
+      if (phase == 0)
+      {
+        initialPass(start);
+        fillSnowMonster(rng_stream);
+
+        snow_fc.force(true);
+
+        logger.info("Initial write complete");
+        start = 0L;
+
+        // Checkpoint before anything gets rewritten, so we never resume the initial
+        // pass over pages that the main pass has already changed
+        if (checkpoint) writeCheckpoint(1, 0L);
+      }
+
+      mainPass(start);
+
+      snow_fc.force(true);
+    }
+    finally
+    {
+      snow_fc.close();
+      snow.close();
+      if (undo_fc != null) undo_fc.close();
+      exec.shutdown();
     }
-    fillSnowMonster(rng_stream);
 
-    snow_fc.force(true);
+    if (checkpoint)
+    {
+      getCheckpointFile().delete();
+      getUndoFile().delete();
+    }
+  }
+
+  private void initialPass(long start_mb)
+    throws Exception
+  {
+    // First pass, just write some data to fill in the file
+    // not at all secure here, because someone could save checkpoints of the
+    // PRNG state to quickly regenerate parts of the file
+    ArrayBlockingQueue<byte[]> free_buffs = new ArrayBlockingQueue<>(INITIAL_WRITE_BUFFERS);
+    for(int i=0; i<INITIAL_WRITE_BUFFERS; i++)
+    {
+      free_buffs.add(new byte[1048576]);
+    }
+
+    long mb_count = size / 1048576;
+    long start_time = System.currentTimeMillis();
+    for(long w=start_mb; w<mb_count; w++)
+    {
+      if (checkpointDue(w, start_mb))
+      {
+        waitForBuffers(free_buffs);
+        writeCheckpoint(0, w);
+      }
+
+      byte[] w_buff = free_buffs.take();
+      checkIoError();
+      rng_stream.nextBytes(w_buff);
+
+      final long pos = w * 1048576L;
+      exec.execute(new Runnable(){
+        public void run()
+        {
+          try
+          {
+            writeFully(pos, w_buff);
+          }
+          catch(Throwable t)
+          {
+            io_error.compareAndSet(null, t);
+          }
+          finally
+          {
+            free_buffs.add(w_buff);
+          }
+        }
+      });
 
-    logger.info("Initial write complete");
+      rng_stream.mixBytes(snow_monster.poll().array());
+      fillSnowMonster(rng_stream);
+      if (w % 128 == 0)
+      {
+        double sec = Math.max(1L, System.currentTimeMillis() - start_time) / 1000.0;
+        DecimalFormat df = new DecimalFormat("0.0");
+        logger.info(String.format("Initial write of %s - %d mb done (%s MB/s)", filename, w, df.format((w - start_mb) / sec)));
+      }
+    }
+    waitForBuffers(free_buffs);
+  }
 
+  private void mainPass(long start_w)
+    throws Exception
+  {
     // In this section, we:
     //  - use our prng to pick a page
     //  - read that page
@@ -119,7 +279,11 @@ public class SnowFall
     //  - the rng state (~5k)
     //  - the existing page (4k)
 
-    byte[][] w_buff=new byte[MULTIPLICITY][PAGESIZE];
+    long page_count = size / (long)PAGESIZE;
+
+    // Two sets of write buffers, one can be still being written
+    // while the next round is worked on
+    byte[][][] w_buff_sets=new byte[2][MULTIPLICITY][PAGESIZE];
 
     // Passes controls how many writes we do.
     // Each page will be written on average 'PASSES' times
@@ -129,30 +293,59 @@ public class SnowFall
     byte[][] loc_data = new byte[MULTIPLICITY][8];
     byte[][] existing = new byte[MULTIPLICITY][PAGESIZE];
     long seek[] = new long[MULTIPLICITY];
+    ByteBuffer undo_buff = null;
+    if (checkpoint) undo_buff = ByteBuffer.allocate(MULTIPLICITY * UNDO_RECORD_SIZE);
+
+    Semaphore read_sem = new Semaphore(0);
+    Semaphore write_sem = new Semaphore(0);
+
+    // Pages of the previous round that may still be on their way to disk
+    // mapped to their index in prev_buff
+    HashMap<Long, Integer> pending_pages = new HashMap<>(MULTIPLICITY*2+1, 0.8f);
+    byte[][] prev_buff = null;
+    int pending_writes = 0;
 
     long start_time = System.currentTimeMillis();
     long last_report = System.currentTimeMillis();
 
-    for(long w=0; w<writes; w++)
+    for(long w=start_w; w<writes; w++)
     {
       if ((last_report + 10000L < System.currentTimeMillis()) || (w+1 == writes))
       {
-        double delta_w = w * MULTIPLICITY;
-        double ms = System.currentTimeMillis() - start_time;
+        double delta_w = (w - start_w) * MULTIPLICITY;
+        double ms = Math.max(1L, System.currentTimeMillis() - start_time);
         double sec = ms / 1000.0;
         double rate = delta_w / sec;
-        double runtime_estimate = (double)writes * MULTIPLICITY / rate;
+        double mb_rate = rate * PAGESIZE / 1048576.0;
+        double runtime_estimate = (double)(writes - w) * MULTIPLICITY / rate;
         double runtime_est_hours = runtime_estimate/3600.0;
         double per_comp = (double)w / (double)writes;
         DecimalFormat df = new DecimalFormat("0.000");
 
-        logger.info(String.format("Generating snow field at %s writes per second.  Estimated total runtime is %s hours. %s complete.",
+        logger.info(String.format("Generating snow field at %s writes per second (%s MB/s).  Estimated remaining runtime is %s hours. %s complete.",
           df.format(rate),
+          df.format(mb_rate),
           df.format(runtime_est_hours),
           df.format(per_comp)));
         last_report = System.currentTimeMillis();
       }
 
+      if ((w == stop_at) || checkpointDue(w, start_w))
+      {
+        write_sem.acquire(pending_writes);
+        pending_writes = 0;
+        pending_pages.clear();
+        checkIoError();
+
+        if (w == stop_at)
+        {
+          throw new RuntimeException("Snowfall stopped at round " + w);
+        }
+        writeCheckpoint(1, w);
+      }
+
+      byte[][] w_buff = w_buff_sets[(int)(w % 2)];
+
       for(int m=0; m<MULTIPLICITY; m++)
       {
         rng_stream.mixBytes(snow_monster.poll().array());
@@ -164,6 +357,7 @@ public class SnowFall
       HashSet<Long> location_set = new HashSet<Long>(MULTIPLICITY*2+1, 0.8f);
 
       // Select and seek to a page
+      int reads = 0;
       for(int m=0; m<MULTIPLICITY; m++)
       {
         BigInteger loc_big = new BigInteger(1, loc_data[m]);
@@ -179,16 +373,61 @@ public class SnowFall
         final long seek_local = seek[m];
         final byte existing_local[] = existing[m];
 
+        Integer prev_idx = pending_pages.get(seek_local);
+        if (prev_idx != null)
+        {
+          // Written last round, take it from memory rather than race the write
+          System.arraycopy(prev_buff[prev_idx], 0, existing_local, 0, PAGESIZE);
+          continue;
+        }
+
         // read existing page
+        reads++;
         exec.execute(new Runnable(){
           public void run()
           {
-            readFully(seek_local, existing_local);
-            syncsem.release();
+            try
+            {
+              readFully(seek_local, existing_local);
+            }
+            catch(Throwable t)
+            {
+              io_error.compareAndSet(null, t);
+            }
+            finally
+            {
+              read_sem.release();
+            }
           }
         });
       }
-      syncsem.acquire(MULTIPLICITY);
+      read_sem.acquire(reads);
+
+      // Last round's writes have to land before we write any of the same pages again
+      write_sem.acquire(pending_writes);
+      pending_writes = 0;
+      pending_pages.clear();
+      checkIoError();
+
+      if (checkpoint)
+      {
+        // Save the old pages before touching them, for rolling back to the last checkpoint
+        undo_buff.clear();
+        for(int m=0; m<MULTIPLICITY; m++)
+        {
+          undo_buff.putLong(seek[m]);
+          undo_buff.put(existing[m]);
+        }
+        undo_buff.flip();
+        while(undo_buff.remaining() > 0)
+        {
+          undo_pos += undo_fc.write(undo_buff, undo_pos);
+        }
+        // The undo records have to be on disk before any page they cover can be,
+        // or a crash could leave pages changed that the rollback doesn't know about.
+        // One force per round is small next to the round's page writes.
+        undo_fc.force(false);
+      }
 
       // mix page into rng
       for(int m=0; m<MULTIPLICITY; m++)
@@ -200,7 +439,7 @@ public class SnowFall
         {
           w_buff[m][i] ^= existing[m][i];
         }
-        
+
         final long seek_local = seek[m];
         final byte newpage_local[] = w_buff[m];
 
@@ -208,21 +447,206 @@ public class SnowFall
         exec.execute(new Runnable(){
           public void run()
           {
-            writeFully(seek_local, newpage_local);
-            syncsem.release();
+            try
+            {
+              writeFully(seek_local, newpage_local);
+            }
+            catch(Throwable t)
+            {
+              io_error.compareAndSet(null, t);
+            }
+            finally
+            {
+              write_sem.release();
+            }
           }
         });
+        pending_pages.put(seek_local, m);
         rng_stream.mixBytes(newpage_local);
       }
-      syncsem.acquire(MULTIPLICITY);
+      pending_writes = MULTIPLICITY;
+      prev_buff = w_buff;
 
     }
+    write_sem.acquire(pending_writes);
+    checkIoError();
+  }
+
+  private boolean checkpointDue(long n, long start_n)
+  {
+    if (!checkpoint) return false;
+    if (n == start_n) return false;
+    if ((checkpoint_every > 0) && (n % checkpoint_every == 0)) return true;
+    if (undo_pos > CHECKPOINT_UNDO_BYTES) return true;
+    return (last_checkpoint + CHECKPOINT_INTERVAL_MS < System.currentTimeMillis());
+  }
+
+  private File getCheckpointFile()
+  {
+    return new File(filename + ".checkpoint");
+  }
+
+  private File getUndoFile()
+  {
+    return new File(filename + ".undo");
+  }
 
+  /**
+   * Only call with no writes outstanding.  Everything in the snow file so far
+   * is synced before the checkpoint replaces the old one, and the undo log
+   * is started fresh after.
+   */
+  private void writeCheckpoint(int phase, long pos)
+    throws Exception
+  {
     snow_fc.force(true);
-    snow_fc.close();
+    checkpoint_seq++;
+
+    File tmp = new File(filename + ".checkpoint.tmp");
+    FileOutputStream f_out = new FileOutputStream(tmp);
+    DataOutputStream d_out = new DataOutputStream(new BufferedOutputStream(f_out, 1048576));
+
+    d_out.writeUTF(CHECKPOINT_MAGIC);
+    d_out.writeUTF(seed);
+    d_out.writeLong(size);
+    d_out.writeLong(checkpoint_seq);
+    d_out.writeInt(phase);
+    d_out.writeLong(pos);
+
+    byte[] rng_state = rng_stream.getState();
+    d_out.writeInt(rng_state.length);
+    d_out.write(rng_state);
+
+    d_out.writeInt(snow_monster.size());
+    for(ByteBuffer bb : snow_monster)
+    {
+      d_out.write(bb.array());
+    }
+    d_out.flush();
+    f_out.getFD().sync();
+    d_out.close();
+
+    Files.move(tmp.toPath(), getCheckpointFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    resetUndo();
+    last_checkpoint = System.currentTimeMillis();
+    logger.info(String.format("Snowfall checkpoint of %s at pass %d round %d", filename, phase, pos));
+  }
+
+  /**
+   * @return phase and position to resume from, or null to start over.
+   * Loads the rng state and snow monster if there is something to resume.
+   */
+  private long[] loadCheckpoint()
+    throws Exception
+  {
+    if (!checkpoint) return null;
+    File f = getCheckpointFile();
+    if (!f.exists()) return null;
+
+    try(DataInputStream d_in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1048576)))
+    {
+      if (!CHECKPOINT_MAGIC.equals(d_in.readUTF())) return null;
+      if (!seed.equals(d_in.readUTF())) return null;
+      if (size != d_in.readLong()) return null;
+
+      checkpoint_seq = d_in.readLong();
+      int phase = d_in.readInt();
+      long pos = d_in.readLong();
+
+      byte[] rng_state = new byte[d_in.readInt()];
+      d_in.readFully(rng_state);
+      rng_stream.setState(rng_state);
+
+      int count = d_in.readInt();
+      for(int i=0; i<count; i++)
+      {
+        ByteBuffer bb = ByteBuffer.allocate(SNOWMONSTER_PAGESIZE);
+        d_in.readFully(bb.array());
+        snow_monster.add(bb);
+      }
+
+      return new long[]{phase, pos};
+    }
+  }
+
+  private void resetUndo()
+    throws java.io.IOException
+  {
+    undo_fc.truncate(0L);
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putLong(checkpoint_seq);
+    header.flip();
+    undo_pos = 0L;
+    while(header.remaining() > 0)
+    {
+      undo_pos += undo_fc.write(header, undo_pos);
+    }
+    undo_fc.force(true);
+  }
+
+  /**
+   * Put back every page changed since the checkpoint, newest first,
+   * so the snow file matches the checkpoint again.
+   * An undo log from a different checkpoint is from before the one we have,
+   * so nothing after our checkpoint was written.
+   */
+  private void rollbackUndo()
+    throws Exception
+  {
+    long len = undo_fc.size();
+    if (len >= 8)
+    {
+      ByteBuffer header = ByteBuffer.allocate(8);
+      undo_fc.read(header, 0L);
+      header.flip();
+      if (header.getLong() == checkpoint_seq)
+      {
+        // A partial record at the end never had its pages written
+        long records = (len - 8) / UNDO_RECORD_SIZE;
+        logger.info(String.format("Rolling back %d pages of %s", records, filename));
 
-    snow.close();
-    exec.shutdown();
+        ByteBuffer rec = ByteBuffer.allocate(UNDO_RECORD_SIZE);
+        byte[] page = new byte[PAGESIZE];
+        for(long r = records - 1; r >= 0; r--)
+        {
+          rec.clear();
+          long rec_pos = 8 + r * UNDO_RECORD_SIZE;
+          while(rec.remaining() > 0)
+          {
+            int n = undo_fc.read(rec, rec_pos + rec.position());
+            if (n < 0) throw new java.io.EOFException("Short undo log");
+          }
+          rec.flip();
+          long seek = rec.getLong();
+          rec.get(page);
+          writeFully(seek, page);
+        }
+        snow_fc.force(true);
+      }
+    }
+    resetUndo();
+  }
+
+  private void waitForBuffers(ArrayBlockingQueue<byte[]> free_buffs)
+    throws InterruptedException
+  {
+    byte[][] held = new byte[INITIAL_WRITE_BUFFERS][];
+    for(int i=0; i<INITIAL_WRITE_BUFFERS; i++)
+    {
+      held[i] = free_buffs.take();
+    }
+    for(int i=0; i<INITIAL_WRITE_BUFFERS; i++)
+    {
+      free_buffs.add(held[i]);
+    }
+    checkIoError();
+  }
+
+  private void checkIoError()
+  {
+    Throwable t = io_error.get();
+    if (t != null) throw new RuntimeException(t);
   }
 
   private void fillSnowMonster(PRNGStream rng)
@@ -237,15 +661,14 @@ public class SnowFall
 
   private void readFully(long position, byte[] buff)
   {
-    long seek = (position / PAGESIZE);
     try
     {
       ByteBuffer bb = ByteBuffer.wrap(buff);
 
-      int r = 0;
       while(bb.remaining() > 0)
       {
-        r += snow_fc.read(bb, position);
+        int r = snow_fc.read(bb, position + bb.position());
+        if (r < 0) throw new java.io.EOFException("Read past end at " + position);
       }
     }
     catch(java.io.IOException e)
@@ -256,15 +679,13 @@ public class SnowFall
 
   private void writeFully(long position, byte[] buff)
   {
-    long seek = (position / PAGESIZE);
     try
     {
       ByteBuffer bb = ByteBuffer.wrap(buff);
 
-      int r = 0;
       while(bb.remaining() > 0)
       {
-        r += snow_fc.write(bb, position);
+        snow_fc.write(bb, position + bb.position());
       }
     }
     catch(java.io.IOException e)
@@ -2,13 +2,33 @@ package snowblossom.lib;
 
 import com.google.protobuf.ByteString;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.Security;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import snowblossom.lib.trie.HashUtils;
 
+/**
+ * Builds the merkle root of a snow field and optionally the deck files.
+ *
+ * The field is read in order in large segments, and each segment's subtree
+ * is hashed on its own thread.  A deck level entry for distance d at word w
+ * is entry w/d of that deck file, so each segment writes its part of each
+ * deck at a known offset as it finishes.  The few levels above the segments
+ * are done at the end.  Same root and deck files as hashing it all recursively.
+ */
 public class SnowMerkle
 {
   private static final Logger logger = Logger.getLogger("snowblossom.miner");
@@ -21,9 +41,26 @@ public class SnowMerkle
     {
       System.out.println(new SnowMerkle(new File(args[0]), args[1], true).getRootHashStr());
     }
+    else if (args.length == 3)
+    {
+      NetworkParams params = NetworkParams.loadFromName(args[2]);
+      for(Map.Entry<Integer, String> me : params.getFieldSeeds().entrySet())
+      {
+        if (me.getValue().equals(args[1]))
+        {
+          ByteString expected = params.getSnowFieldInfo(me.getKey()).getMerkleRootHash();
+          boolean good = verify(new File(args[0]), args[1], expected);
+          System.out.println(String.format("Field %d %s: %s", me.getKey(), args[1], good ? "ok" : "BAD"));
+          System.exit(good ? 0 : 1);
+        }
+      }
+      System.out.println("No field " + args[1] + " in network " + params.getNetworkName());
+      System.exit(-1);
+    }
     else
     {
       System.out.println("SnowMerkle <path> <base_name>");
+      System.out.println("SnowMerkle <path> <base_name> <network>   - to verify field and decks");
       System.exit(-1);
     }
 
@@ -36,111 +73,264 @@ public class SnowMerkle
    * 1k * 16 = 16k reads needed for PoW Merkle proof generation */
   public static final long DECK_ENTIRES = 1024;
 
+  /** Words hashed by each task, 16MB of field */
+  public static final long SEGMENT_WORDS = 1048576L;
+  public static final int MAX_THREADS = 16;
 
-  private MessageDigest md;
+  private static final int DECK_NONE = 0;
+  private static final int DECK_WRITE = 1;
+  private static final int DECK_VERIFY = 2;
 
-  private DataInputStream buffin;
+  private final int deck_mode;
+  private final long blocks;
   private byte[] root_hash;
 
-  private TreeMap<Long, OutputStream> deck_map;
-  private long blocks;
+  private final TreeMap<Long, FileChannel> deck_map = new TreeMap<>();
+  private final AtomicLong deck_mismatch = new AtomicLong(0L);
+  private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+  private final ThreadLocal<MessageDigest> md_local = ThreadLocal.withInitial(
+    () -> DigestUtil.getInstance(Globals.SNOW_MERKLE_HASH_ALGO));
 
   public SnowMerkle(File path, String base, boolean make_decks)
     throws Exception
   {
-    File input = new File(path, base + ".snow");
+    this(path, base, make_decks ? DECK_WRITE : DECK_NONE);
+  }
 
-    buffin = new DataInputStream(
-      new BufferedInputStream(
-      new FileInputStream(input), 1048576));
+  /**
+   * Checks the field against expected_root and every deck entry
+   * against the field, without writing anything.
+   */
+  public static boolean verify(File path, String base, ByteString expected_root)
+    throws Exception
+  {
+    SnowMerkle merk = new SnowMerkle(path, base, DECK_VERIFY);
+    boolean good = true;
+    if (!merk.getRootHash().equals(expected_root))
+    {
+      logger.warning(String.format("Field %s has root %s, expected %s", base, merk.getRootHashStr(), HashUtils.getHexString(expected_root)));
+      good = false;
+    }
+    if (merk.deck_mismatch.get() > 0)
+    {
+      logger.warning(String.format("Field %s has %d bad deck entries", base, merk.deck_mismatch.get()));
+      good = false;
+    }
+    return good;
+  }
 
-    md = MessageDigest.getInstance(Globals.SNOW_MERKLE_HASH_ALGO);
+  private SnowMerkle(File path, String base, int deck_mode)
+    throws Exception
+  {
+    this.deck_mode = deck_mode;
+    File input = new File(path, base + ".snow");
 
     long total_len = input.length();
     if (total_len % HASH_LEN_LONG != 0) throw new RuntimeException("Impedence mismatch - " + total_len);
 
     blocks = total_len / HASH_LEN_LONG;
+    if ((blocks == 0) || (Long.bitCount(blocks) != 1)) throw new RuntimeException("Field words not a power of two - " + blocks);
 
-
-    deck_map = new TreeMap<>();
-    if (make_decks)
+    try(RandomAccessFile in = new RandomAccessFile(input, "r"))
     {
-      int deck_count = getNumberOfDecks(blocks);
-      long h = 1;
-
-      for(int i = 0; i<deck_count; i++)
+      openDecks(path, base);
+      try
       {
-        h = h * DECK_ENTIRES;
-        
-        char letter = (char) ('a' + i);
-        OutputStream out = 
-            new BufferedOutputStream(
-            new FileOutputStream(new File(path, base +".deck." + letter), false), 1048576);
-
-        deck_map.put(h, out);
+        root_hash = buildTree(in.getChannel());
+      }
+      finally
+      {
+        for(FileChannel fc : deck_map.values())
+        {
+          fc.close();
+        }
       }
     }
+  }
 
-    root_hash = findTreeHash(0, blocks);
-
+  private void openDecks(File path, String base)
+    throws Exception
+  {
+    if (deck_mode == DECK_NONE) return;
 
-    buffin.close();
+    int deck_count = getNumberOfDecks(blocks);
+    long h = 1;
 
-    for(OutputStream out : deck_map.values())
+    for(int i = 0; i<deck_count; i++)
     {
-      out.flush();
-      out.close();
-    }
-  }
-
-  public ByteString getRootHash()
-  {
-    return ByteString.copyFrom(root_hash);
-  }
-  public String getRootHashStr()
-  {
-    return HashUtils.getHexString(root_hash);
+      h = h * DECK_ENTIRES;
 
+      char letter = (char) ('a' + i);
+      File f = new File(path, base +".deck." + letter);
+      if (deck_mode == DECK_WRITE)
+      {
+        RandomAccessFile out = new RandomAccessFile(f, "rw");
+        out.setLength(0L);
+        deck_map.put(h, out.getChannel());
+      }
+      else
+      {
+        long expected_len = blocks / h * HASH_LEN_LONG;
+        if ((!f.exists()) || (f.length() != expected_len))
+        {
+          logger.warning(String.format("Deck file %s missing or wrong length", f.getName()));
+          deck_mismatch.addAndGet(blocks / h);
+          continue;
+        }
+        deck_map.put(h, new RandomAccessFile(f, "r").getChannel());
+      }
+    }
   }
 
-  private byte[] findTreeHash(long start, long end)
+  private byte[] buildTree(FileChannel in_fc)
     throws Exception
   {
-    long dist = end - start;
+    long seg_words = Math.min(blocks, SEGMENT_WORDS);
+    int seg_count = (int)(blocks / seg_words);
+    int threads = Math.max(1, Math.min(MAX_THREADS, Math.min(seg_count, Runtime.getRuntime().availableProcessors())));
+
+    ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads,
+      2, TimeUnit.DAYS,
+      new LinkedBlockingQueue<Runnable>(),
+      new DaemonThreadFactory("SnowMerkle"));
+
+    // One buffer per worker, plus one being read into
+    ArrayBlockingQueue<byte[]> free_buffs = new ArrayBlockingQueue<>(threads + 1);
+    for(int i=0; i<threads+1; i++)
+    {
+      free_buffs.add(new byte[(int)(seg_words * HASH_LEN_LONG)]);
+    }
 
-    if (dist == 0) throw new RuntimeException("lol no");
+    byte[] top = new byte[seg_count * HASH_LEN];
+    Semaphore done_sem = new Semaphore(0);
+    DecimalFormat df = new DecimalFormat("0.000");
 
-    if (dist == 1)
+    try
+    {
+      for(int s=0; s<seg_count; s++)
+      {
+        byte[] buff = free_buffs.take();
+        checkError();
+        readFully(in_fc, s * seg_words * HASH_LEN_LONG, buff);
+
+        final int seg = s;
+        exec.execute(new Runnable(){
+          public void run()
+          {
+            try
+            {
+              hashLevels(buff, seg_words, 1L, seg * seg_words);
+              System.arraycopy(buff, 0, top, seg * HASH_LEN, HASH_LEN);
+            }
+            catch(Throwable t)
+            {
+              error.compareAndSet(null, t);
+            }
+            finally
+            {
+              free_buffs.add(buff);
+              done_sem.release();
+            }
+          }
+        });
+
+        if ((s + 1) % 16 == 0)
+        {
+          double percent = (double) (s + 1) / (double) seg_count;
+          logger.info(String.format("SnowMerkle computation %s complete %d/%d", df.format(percent), (s + 1) * seg_words, blocks));
+        }
+      }
+      done_sem.acquire(seg_count);
+      checkError();
+    }
+    finally
     {
-      byte[] buff = new byte[HASH_LEN];
-      buffin.readFully(buff);
-      return buff;
+      exec.shutdown();
     }
-    if (dist % 2 != 0) throw new RuntimeException("lolwut");
-
 
-    long mid = (start + end ) / 2;
+    // Levels above the segments
+    hashLevels(top, seg_count, seg_words, 0L);
+    return Arrays.copyOf(top, HASH_LEN);
+  }
 
-    byte[] left = findTreeHash(start, mid);
-    byte[] right = findTreeHash(mid, end);
+  /**
+   * Hash count nodes of the given distance in place, pairwise, until one is left in the
+   * first HASH_LEN bytes of buff.  The node at index i is word start_word + i * dist.
+   */
+  private void hashLevels(byte[] buff, long count, long dist, long start_word)
+    throws Exception
+  {
+    MessageDigest md = md_local.get();
+    while(count > 1)
+    {
+      count = count / 2;
+      dist = dist * 2;
+      for(int i=0; i<count; i++)
+      {
+        // Reading 2i and 2i+1, writing i, so safe going upwards
+        md.update(buff, 2 * i * HASH_LEN, 2 * HASH_LEN);
+        md.digest(buff, i * HASH_LEN, HASH_LEN);
+      }
+      deckLevel(dist, start_word / dist, buff, count);
+    }
+  }
 
-    md.update(left);
-    md.update(right);
+  private void deckLevel(long dist, long index, byte[] buff, long count)
+    throws Exception
+  {
+    FileChannel fc = deck_map.get(dist);
+    if (fc == null) return;
 
-    byte[] hash = md.digest();
+    long pos = index * HASH_LEN_LONG;
+    int len = (int)(count * HASH_LEN_LONG);
 
-    if (deck_map.containsKey(dist))
+    if (deck_mode == DECK_WRITE)
     {
-      deck_map.get(dist).write(hash);
-      if (dist == DECK_ENTIRES * DECK_ENTIRES)
+      ByteBuffer bb = ByteBuffer.wrap(buff, 0, len);
+      while(bb.remaining() > 0)
       {
-        double percent = (double) end / (double) blocks;
-        DecimalFormat df = new DecimalFormat("0.000");
-        logger.info(String.format("SnowMerkle computation %s complete %d/%d", df.format(percent), end, blocks));
+        fc.write(bb, pos + bb.position());
       }
     }
+    else
+    {
+      byte[] found = new byte[len];
+      readFully(fc, pos, found);
+      for(int i=0; i<count; i++)
+      {
+        if (!Arrays.equals(buff, i * HASH_LEN, (i+1) * HASH_LEN, found, i * HASH_LEN, (i+1) * HASH_LEN))
+        {
+          deck_mismatch.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static void readFully(FileChannel fc, long pos, byte[] buff)
+    throws java.io.IOException
+  {
+    ByteBuffer bb = ByteBuffer.wrap(buff);
+    while(bb.remaining() > 0)
+    {
+      int r = fc.read(bb, pos + bb.position());
+      if (r < 0) throw new EOFException("Short read at " + pos);
+    }
+  }
 
-    return hash;
+  private void checkError()
+  {
+    Throwable t = error.get();
+    if (t != null) throw new RuntimeException(t);
+  }
+
+  public ByteString getRootHash()
+  {
+    return ByteString.copyFrom(root_hash);
+  }
+  public String getRootHashStr()
+  {
+    return HashUtils.getHexString(root_hash);
 
   }
 
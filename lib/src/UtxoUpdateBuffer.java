@@ -2,10 +2,15 @@ package snowblossom.lib;
 
 import com.google.protobuf.ByteString;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInner;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
 import snowblossom.proto.TxOutPoint;
@@ -19,6 +24,9 @@ public class UtxoUpdateBuffer
 
   private HashMap<ByteString, ByteString> updates;
 
+  // Data at utxo_root, null for known absent
+  private HashMap<ByteString, ByteString> fetched;
+
   public static final ChainHash EMPTY = new ChainHash(HashUtils.hashOfEmpty());
 
   public UtxoUpdateBuffer(HashedTrie trie, ChainHash utxo_root)
@@ -26,12 +34,14 @@ public class UtxoUpdateBuffer
     this.trie = trie;
     this.utxo_root = utxo_root;
     this.updates = new HashMap<>(512, 0.5f);
+    this.fetched = new HashMap<>(512, 0.5f);
   }
 
   public UtxoUpdateBuffer deepCopy()
   {
     UtxoUpdateBuffer n = new UtxoUpdateBuffer(trie, utxo_root);
     n.updates.putAll(this.updates);
+    n.fetched.putAll(this.fetched);
 
     return n;
   }
@@ -66,7 +76,7 @@ public class UtxoUpdateBuffer
     }
     else
     {
-      data = trie.getLeafData(utxo_root.getBytes(), key);
+      data = getCommittedData(key);
     }
 
     if (data == null) return null;
@@ -93,12 +103,75 @@ public class UtxoUpdateBuffer
       new ChainHash(tx_out_point.getTxHash()),
       tx_out_point.getOutIdx());
 
-    ByteString data = trie.getLeafData(utxo_root.getBytes(), key);
+    ByteString data = getCommittedData(key);
     if (data == null) return false;
 
     return true;
   }
 
+  /**
+   * Look up all these keys in one pass down the trie, so later
+   * calls for them don't each walk it from the root.
+   * Keys already looked up or updated are skipped.
+   */
+  public void prefetch(Collection<ByteString> keys)
+  {
+    ArrayList<ByteString> needed = new ArrayList<>();
+    for(ByteString key : keys)
+    {
+      if (updates.containsKey(key)) continue;
+      if (fetched.containsKey(key)) continue;
+      needed.add(key);
+    }
+    if (needed.isEmpty()) return;
+
+    Map<ByteString, ByteString> found = trie.getLeafDataMulti(utxo_root.getBytes(), needed);
+    for(ByteString key : needed)
+    {
+      fetched.put(key, found.get(key));
+    }
+  }
+
+  /**
+   * Prefetch the outputs spent by all inputs of these transactions
+   */
+  public void prefetchInputs(Collection<Transaction> txs)
+  {
+    ArrayList<ByteString> keys = new ArrayList<>();
+    for(Transaction tx : txs)
+    {
+      TransactionInner inner;
+      try
+      {
+        inner = TransactionInner.parseFrom(tx.getInnerData());
+      }
+      catch(com.google.protobuf.InvalidProtocolBufferException e)
+      {
+        // Left for validation to complain about
+        continue;
+      }
+      for(TransactionInput in : inner.getInputsList())
+      {
+        keys.add(getKey(in));
+      }
+    }
+    prefetch(keys);
+  }
+
+  public boolean isFetched(ByteString key)
+  {
+    return fetched.containsKey(key);
+  }
+
+  /**
+   * @return the raw output at key as of the utxo root, ignoring any updates here
+   */
+  public ByteString getCommittedData(ByteString key)
+  {
+    if (fetched.containsKey(key)) return fetched.get(key);
+    return trie.getLeafData(utxo_root.getBytes(), key);
+  }
+
   public void useOutput(TransactionOutput out, ChainHash tx_id, int out_idx)
   {
     ByteString key = getKey(
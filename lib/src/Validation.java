@@ -189,12 +189,13 @@ public class Validation
         }
 
         ArrayList<ChainHash> tx_list = new ArrayList<>();
+        ArrayList<SignatureVerifier.SigCheck> sig_checks = new ArrayList<>();
         for(int i=0; i<blk.getTransactionsCount(); i++)
         {
           Transaction tx = blk.getTransactions(i);
           boolean coinbase = false;
           if (i == 0) coinbase = true;
-          checkTransactionBasics(tx, coinbase);
+          checkTransactionBasics(tx, coinbase, sig_checks);
 
           tx_list.add(new ChainHash(tx.getTxHash()));
         }
@@ -206,6 +207,9 @@ public class Validation
             merkle_root.toString(),
             new ChainHash(header.getMerkleRootHash()).toString()));
         }
+
+        // Signatures last, since they are by far the most expensive part
+        SignatureVerifier.verifyAll(sig_checks);
       }
     }
 
@@ -397,6 +401,11 @@ public class Validation
       Set<Integer> cover_set = ShardUtil.getCoverSet( blk.getHeader().getShardId(), params );
       Map<Integer, UtxoUpdateBuffer> export_utxo_buffer = new TreeMap<>();
 
+      try(TimeRecordAuto tra_pre = TimeRecord.openAuto("Validation.deepBlockValidation_prefetch"))
+      {
+        utxo_buffer.prefetchInputs(blk.getTransactionsList());
+      }
+
       for(Transaction tx : blk.getTransactionsList())
       {
         fee_sum += deepTransactionCheck(tx, utxo_buffer, blk.getHeader(), params, cover_set, export_utxo_buffer);
@@ -947,6 +956,19 @@ public class Validation
    */
   public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase)
     throws ValidationException
+  {
+    ArrayList<SignatureVerifier.SigCheck> sig_checks = new ArrayList<>();
+    checkTransactionBasics(tx, must_be_coinbase, sig_checks);
+    SignatureVerifier.verifyAll(sig_checks);
+  }
+
+  /**
+   * Check the things about a transaction that can be checked without the database,
+   * except for the signatures themselves, which are added to sig_checks for the caller
+   * to verify.  The transaction is only valid once those pass.
+   */
+  public static void checkTransactionBasics(Transaction tx, boolean must_be_coinbase, List<SignatureVerifier.SigCheck> sig_checks)
+    throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("Validation.checkTransactionBasics"))
     {
@@ -1087,6 +1109,10 @@ public class Validation
       // signed keys for claim 'i'.
       TreeMap<Integer, Set<Integer> > signed_claim_map = new TreeMap<>();
 
+      // If we have already verified these exact signatures (usually in the mempool)
+      // we still check the structure, but skip the expensive part
+      boolean sigs_verified = SignatureCache.isVerified(tx);
+
       for(SignatureEntry se : tx.getSignaturesList())
       {
         if (inner.getClaimsCount() <= se.getClaimIdx()) throw new ValidationException("Signature entry for non-existant claim");
@@ -1095,11 +1121,11 @@ public class Validation
         if (spec.getSigSpecsCount() <= se.getKeyIdx()) throw new ValidationException("Signature entry for non-existant sig spec");
         SigSpec sig_spec = spec.getSigSpecs(se.getKeyIdx());
 
-        if (!SignatureUtil.checkSignature( sig_spec, tx.getTxHash(), se.getSignature()))
+        if (!sigs_verified)
         {
-          throw new ValidationException("signature failed " + tx.getTxHash());
+          sig_checks.add(new SignatureVerifier.SigCheck(sig_spec, tx.getTxHash(), se.getSignature()));
         }
-        //So we have a valid signature on a valid claim!  woot
+        //So we have a signature on a valid claim, to be verified by the caller
 
         if (!signed_claim_map.containsKey(se.getClaimIdx())) signed_claim_map.put(se.getClaimIdx(), new TreeSet<Integer>());
 
@@ -4,15 +4,20 @@ import com.google.protobuf.ByteString;
 import duckutil.Config;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import snowblossom.lib.ChainHash;
 import snowblossom.lib.DaemonThreadFactory;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDB;
+import snowblossom.lib.trie.TrieDBCache;
 import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TriePruner;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockSummary;
 import snowblossom.proto.BlockHeader;
@@ -46,6 +51,11 @@ public class DB implements DBFace
   protected DBMap chain_index_map;
   protected HashedTrie chain_index_trie;
   protected HashedTrie utxo_hashed_trie;
+  protected TrieDBCache chain_index_trie_cache;
+  protected TrieDBCache utxo_trie_cache;
+  protected TriePruner chain_index_trie_pruner;
+  protected TriePruner utxo_trie_pruner;
+  protected final ReentrantReadWriteLock trie_prune_lock = new ReentrantReadWriteLock();
 
   private Config config;
   private DBProvider prov;
@@ -71,6 +81,15 @@ public class DB implements DBFace
     prov.close();
   }
 
+  /**
+   * Hold this thread's writes until commit, so they land all at once.
+   * See DBWriteBatch.
+   */
+  public DBWriteBatch startBatch()
+  {
+    return prov.startBatch();
+  }
+
   public void open()
     throws Exception
   {
@@ -88,8 +107,46 @@ public class DB implements DBFace
     best_block_map = prov.openMap("bbm");
     trust_map = prov.openMap("trust");
 
-    chain_index_trie = new HashedTrie(new TrieDBMap(chain_index_map), true, true);
-    utxo_hashed_trie = new HashedTrie(new TrieDBMap(utxo_node_map), true, false);
+    // Trie nodes are immutable and addressed by hash, so a cache in front of them
+    // never needs invalidating.  Set trie_cache_mb=0 to disable.
+    long trie_cache_bytes = config.getIntWithDefault("trie_cache_mb", 256) * 1048576L;
+    TrieDB chain_index_db = new TrieDBMap(chain_index_map);
+    TrieDB utxo_db = new TrieDBMap(utxo_node_map);
+    if (trie_cache_bytes > 0L)
+    {
+      // The utxo trie is read far more heavily, so it gets most of the budget
+      chain_index_trie_cache = new TrieDBCache(chain_index_db, trie_cache_bytes / 4L, prov);
+      utxo_trie_cache = new TrieDBCache(utxo_db, trie_cache_bytes - trie_cache_bytes / 4L, prov);
+      chain_index_db = chain_index_trie_cache;
+      utxo_db = utxo_trie_cache;
+    }
+
+    // Pruning is driven from the node, which knows which roots are still needed.
+    // Here we just need the pruner to see every write.
+    if (config.getIntWithDefault("trie_prune_depth", 0) > 0)
+    {
+      if (!prov.supportsRangeScan())
+      {
+        throw new RuntimeException("trie_prune_depth is only supported with db_type=rocksdb");
+      }
+      chain_index_trie_pruner = new TriePruner(chain_index_db, chain_index_map);
+      utxo_trie_pruner = new TriePruner(utxo_db, utxo_node_map);
+      chain_index_db = chain_index_trie_pruner;
+      utxo_db = utxo_trie_pruner;
+    }
+
+    chain_index_trie = new HashedTrie(chain_index_db, true, true);
+    utxo_hashed_trie = new HashedTrie(utxo_db, true, false);
+
+    // Merge big update batches across threads.  Same result, just sooner.
+    int merge_threads = config.getIntWithDefault("trie_merge_threads", 0);
+    if (merge_threads > 1)
+    {
+      int parallel_min = config.getIntWithDefault("trie_merge_parallel_min", 1024);
+      ForkJoinPool merge_pool = new ForkJoinPool(merge_threads);
+      chain_index_trie.setParallelMerge(merge_pool, parallel_min);
+      utxo_hashed_trie.setParallelMerge(merge_pool, parallel_min);
+    }
 
 
     try
@@ -144,6 +201,33 @@ public class DB implements DBFace
   @Override
   public HashedTrie getChainIndexTrie() { return chain_index_trie; }
 
+  /**
+   * @return the node cache in front of the utxo trie or null if caching is disabled
+   */
+  public TrieDBCache getUtxoTrieCache() { return utxo_trie_cache; }
+
+  /**
+   * @return the node cache in front of the chain index trie or null if caching is disabled
+   */
+  public TrieDBCache getChainIndexTrieCache() { return chain_index_trie_cache; }
+
+  /**
+   * @return the pruner for the utxo trie or null if pruning is not enabled
+   */
+  public TriePruner getUtxoTriePruner() { return utxo_trie_pruner; }
+
+  /**
+   * @return the pruner for the chain index trie or null if pruning is not enabled
+   */
+  public TriePruner getChainIndexTriePruner() { return chain_index_trie_pruner; }
+
+  /**
+   * Ingesting a block holds the read lock from the first trie write to the commit.
+   * A prune holds the write lock while it starts its cycles, so no block can have
+   * written nodes before the write barrier and land after the roots are picked.
+   */
+  public ReentrantReadWriteLock getTriePruneLock() { return trie_prune_lock; }
+
 
   /**
    * Used by things like the mining pool, not actually used in the node
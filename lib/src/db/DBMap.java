@@ -2,6 +2,8 @@ package snowblossom.lib.db;
 
 import com.google.protobuf.ByteString;
 import duckutil.TimeRecord;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
@@ -26,6 +28,21 @@ public abstract class DBMap
     throw new RuntimeException("NOT IMPLEMENTED");
   }
 
+  /**
+   * Implementing class should override this if they have something better to do
+   * @return map of the keys found to their values
+   */
+  public Map<ByteString, ByteString> getMulti(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, ByteString> found = new HashMap<>();
+    for(ByteString key : keys)
+    {
+      ByteString value = get(key);
+      if (value != null) found.put(key, value);
+    }
+    return found;
+  }
+
   public boolean containsKey(ByteString key)
   {
     return get(key) != null;
@@ -44,6 +61,15 @@ public abstract class DBMap
     return getByPrefix(prefix, max_reply, false);
   }
 
+  /**
+   * Return up to max_reply entries with keys greater than or equal to start_key, in key order.
+   * Used to walk an entire map a piece at a time.
+   */
+  public SortedMap<ByteString, ByteString> getRangeFrom(ByteString start_key, int max_reply)
+  {
+    throw new RuntimeException("NOT IMPLEMENTED");
+  }
+
   /** Implementing class should override this if they have something better to do */
   public void putAll(SortedMap<ByteString, ByteString> m)
   {
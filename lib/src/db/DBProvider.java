@@ -21,6 +21,33 @@ public abstract class DBProvider
   public abstract DBMap openMap(String name) throws Exception;
   public abstract DBMapMutationSet openMutationMapSet(String name) throws Exception;
 
+  /**
+   * Start holding this thread's writes to be written together.
+   * Implementing class should override this if it can write atomically.
+   */
+  public DBWriteBatch startBatch()
+  {
+    return new DBWriteBatch();
+  }
+
+  /**
+   * @return the batch open on this thread, or null if there is none
+   * or this provider writes straight through
+   */
+  public DBWriteBatch getOpenBatch()
+  {
+    return null;
+  }
+
+  /**
+   * @return true if maps from this provider implement remove and getRangeFrom,
+   * which trie pruning needs to walk and clean up the trie maps
+   */
+  public boolean supportsRangeScan()
+  {
+    return false;
+  }
+
   /**
    * Do any maintenance or checks or tuning or cleanup that is helpful to run
    * infrequently but does not make the database not usable by other threads.
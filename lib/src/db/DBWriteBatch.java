@@ -0,0 +1,45 @@
+package snowblossom.lib.db;
+
+import java.util.LinkedList;
+
+/**
+ * While open, writes made on the opening thread to maps from the same
+ * provider are held here and then written all at once by commit().
+ * Closing without commit drops them.
+ *
+ * Reads while open do not see the held writes.
+ *
+ * This base class is for providers that can't do that, where writes
+ * just go straight through as they are made.
+ */
+public class DBWriteBatch implements AutoCloseable
+{
+  private final LinkedList<Runnable> abort_list = new LinkedList<>();
+
+  public void commit()
+  {
+  }
+
+  /**
+   * Run if the batch is closed without its writes landing, for things
+   * like caches that took the writes as if they had.
+   */
+  public void onAbort(Runnable r)
+  {
+    abort_list.add(r);
+  }
+
+  protected void runAbort()
+  {
+    for(Runnable r : abort_list)
+    {
+      r.run();
+    }
+    abort_list.clear();
+  }
+
+  @Override
+  public void close()
+  {
+  }
+}
@@ -35,6 +35,14 @@ public class ProtoDBMap<M extends Message>
   }
 
 
+  /**
+   * The stored serialized message, without parsing it
+   */
+  public ByteString getBytes(ByteString key)
+  {
+    return inner.get(key);
+  }
+
   public M get(ByteString key)
   {
     ByteString bs = inner.get(key);
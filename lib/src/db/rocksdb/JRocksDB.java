@@ -3,17 +3,32 @@ package snowblossom.lib.db.rocksdb;
 import com.google.common.collect.ImmutableList;
 import duckutil.Config;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.CompactionStyle;
+import org.rocksdb.CompressionType;
+import org.rocksdb.DBOptions;
 import org.rocksdb.FlushOptions;
+import org.rocksdb.LRUCache;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import snowblossom.lib.db.DBMap;
 import snowblossom.lib.db.DBMapMutationSet;
 import snowblossom.lib.db.DBProvider;
+import snowblossom.lib.db.DBWriteBatch;
 
 public class JRocksDB extends DBProvider
 {
@@ -22,10 +37,26 @@ public class JRocksDB extends DBProvider
   private RocksDB shared_db;
   private Options options;
   private boolean use_separate_dbs;
+  private boolean use_column_families;
 
   private TreeMap<String, RocksDB> separate_db_map;
 
+  // Only used in column family mode
+  private TreeMap<String, ColumnFamilyHandle> cf_handle_map;
+  private LinkedList<ColumnFamilyOptions> cf_options_list;
+  private long cache_bytes;
+
   private WriteOptions sharedWriteOptions;
+  private WriteOptions syncWriteOptions;
+
+  // How batch commits are made durable, see getCommitWriteOption()
+  private String sync_mode;
+  private long sync_group_ms;
+  private long last_sync_time;
+  private boolean unsynced_commits;
+  private GroupSyncThread group_sync_thread;
+
+  private final ThreadLocal<RocksDBWriteBatch> thread_batch = new ThreadLocal<>();
 
   private File base_path;
 
@@ -35,6 +66,12 @@ public class JRocksDB extends DBProvider
     super(config);
 
     use_separate_dbs=config.getBoolean("db_separate");
+    use_column_families=config.getBoolean("db_column_families");
+
+    if (use_separate_dbs && use_column_families)
+    {
+      throw new RuntimeException("db_separate and db_column_families can not both be set");
+    }
 
     config.require("db_path");
 
@@ -47,26 +84,114 @@ public class JRocksDB extends DBProvider
     logger.info(String.format("Loading RocksDB with path %s", path));
 
     RocksDB.loadLibrary();
+    checkLayout(base_path, getLayout());
+
     sharedWriteOptions = new WriteOptions();
     sharedWriteOptions.setDisableWAL(false);
     sharedWriteOptions.setSync(false);
 
+    syncWriteOptions = new WriteOptions();
+    syncWriteOptions.setDisableWAL(false);
+    syncWriteOptions.setSync(true);
+
+    sync_mode = "wal";
+    if (config.isSet("db_sync")) sync_mode = config.get("db_sync");
+    if (!sync_mode.equals("wal") && !sync_mode.equals("sync") && !sync_mode.equals("group"))
+    {
+      throw new RuntimeException("Unknown db_sync mode: " + sync_mode + ", expected wal, sync or group");
+    }
+    sync_group_ms = config.getIntWithDefault("db_sync_group_ms", 1000);
 
     // Separate DBs should only be used when you don't care about syncing between
     // the databases,  If you are fine with writes to them being preserved out of order
     // relative to each other it should be fine.
     // For example, in combined DBs if you write a to A then b to B, you will either get {}, {a}, or {a,b}
     // on a bad shutdown.  If you use separate, you could very well get {b}.
+    //
+    // Column families keep the combined DB behavior (one WAL, so a WriteBatch across
+    // families is still atomic) but give each map its own keyspace and tuning.
+    // Note that the data layout is different from the shared mode, so switching
+    // an existing db_path between modes requires a resync.  See checkLayout().
 
     if (use_separate_dbs)
     {
       separate_db_map = new TreeMap<>();
     }
+    else if (use_column_families)
+    {
+      cache_bytes = config.getIntWithDefault("db_cache_mb", 512) * 1048576L;
+      shared_db = openRocksDBColumnFamilies(path);
+    }
     else
     {
       shared_db = openRocksDB(path);
     }
 
+    if (sync_mode.equals("group"))
+    {
+      group_sync_thread = new GroupSyncThread();
+      group_sync_thread.start();
+    }
+
+  }
+
+  public static final String LAYOUT_FILE = "db_layout";
+
+  public String getLayout()
+  {
+    if (use_separate_dbs) return "separate";
+    if (use_column_families) return "column_families";
+    return "shared";
+  }
+
+  /**
+   * The three layouts can't read each other's data, and opening one as another
+   * just looks like an empty db, which would then start syncing from scratch on top.
+   * So the layout is written to a marker file when the db is created and checked on
+   * every open after.  A db from before the marker gets one based on what is there.
+   */
+  public static void checkLayout(File base_path, String layout)
+    throws Exception
+  {
+    File marker = new File(base_path, LAYOUT_FILE);
+
+    String found = null;
+    if (marker.exists())
+    {
+      found = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+    }
+    else if (new File(base_path, "CURRENT").exists())
+    {
+      try(Options list_options = new Options())
+      {
+        List<byte[]> cf_list = RocksDB.listColumnFamilies(list_options, base_path.getPath());
+        if (cf_list.size() > 1) found = "column_families";
+        else found = "shared";
+      }
+    }
+    else
+    {
+      File[] sub_list = base_path.listFiles();
+      if (sub_list != null)
+      {
+        for(File sub : sub_list)
+        {
+          if (new File(sub, "CURRENT").exists()) found = "separate";
+        }
+      }
+    }
+
+    if ((found != null) && (!found.equals(layout)))
+    {
+      throw new RuntimeException(String.format(
+        "RocksDB at %s has the %s layout but the config asks for %s.  Set db_separate and db_column_families to match, or use a new db_path.",
+        base_path, found, layout));
+    }
+
+    if (!marker.exists())
+    {
+      Files.write(marker.toPath(), (layout + "\n").getBytes(StandardCharsets.UTF_8));
+    }
   }
 
   protected RocksDB openRocksDB(String path)
@@ -84,11 +209,271 @@ public class JRocksDB extends DBProvider
     return RocksDB.open(options, path);
   }
 
+  protected RocksDB openRocksDBColumnFamilies(String path)
+    throws Exception
+  {
+    DBOptions db_options = new DBOptions();
+
+    db_options.setIncreaseParallelism(16);
+    db_options.setCreateIfMissing(true);
+    db_options.setCreateMissingColumnFamilies(true);
+    db_options.setAllowMmapReads(true);
+    db_options.setKeepLogFileNum(5);
+
+    cf_handle_map = new TreeMap<>();
+    cf_options_list = new LinkedList<>();
+
+    // Any family that exists must be opened, so find what is already there
+    List<byte[]> existing = new LinkedList<>();
+    try(Options list_options = new Options())
+    {
+      existing.addAll(RocksDB.listColumnFamilies(list_options, path));
+    }
+    catch(RocksDBException e)
+    {
+      // No database yet, nothing to list
+    }
+
+    LinkedList<String> names = new LinkedList<>();
+    LinkedList<ColumnFamilyDescriptor> descriptors = new LinkedList<>();
+
+    names.add(new String(RocksDB.DEFAULT_COLUMN_FAMILY));
+    descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, getColumnFamilyOptions("default")));
+
+    for(byte[] b : existing)
+    {
+      String name = new String(b);
+      if (names.contains(name)) continue;
+      names.add(name);
+      descriptors.add(new ColumnFamilyDescriptor(b, getColumnFamilyOptions(name)));
+    }
+
+    LinkedList<ColumnFamilyHandle> handles = new LinkedList<>();
+    RocksDB db = RocksDB.open(db_options, path, descriptors, handles);
+
+    for(int i=0; i<names.size(); i++)
+    {
+      cf_handle_map.put(names.get(i), handles.get(i));
+    }
+    logger.info(String.format("Opened RocksDB with column families: %s", names));
+
+    return db;
+  }
+
+  /**
+   * Tuning for each map based on how it is used.
+   * The trie node maps are all random point lookups by hash, so they get bloom filters,
+   * small blocks and the biggest share of the cache.  Blocks and transactions are large values
+   * that are read whole, so they get large blocks and compression.
+   */
+  protected ColumnFamilyOptions getColumnFamilyOptions(String name)
+  {
+    ColumnFamilyOptions cf_options = new ColumnFamilyOptions();
+    BlockBasedTableConfig table_config = new BlockBasedTableConfig();
+
+    double cache_share = 0.02;
+
+    cf_options.setCompactionStyle(CompactionStyle.LEVEL);
+
+    if (name.equals("u") || name.equals("cit"))
+    {
+      cache_share = 0.30;
+      if (name.equals("cit")) cache_share = 0.15;
+
+      // Keys are hashes and values are mostly hashes, compression does nothing
+      cf_options.setCompressionType(CompressionType.NO_COMPRESSION);
+      table_config.setFilterPolicy(new BloomFilter(10));
+      table_config.setWholeKeyFiltering(true);
+      table_config.setBlockSize(4096);
+      table_config.setCacheIndexAndFilterBlocks(true);
+      table_config.setPinL0FilterAndIndexBlocksInCache(true);
+    }
+    else if (name.equals("block") || name.equals("tx"))
+    {
+      cache_share = 0.10;
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+      table_config.setBlockSize(256 * 1024);
+    }
+    else if (name.equals("blocksummary") || name.equals("bh") || name.equals("height"))
+    {
+      cache_share = 0.05;
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+      table_config.setFilterPolicy(new BloomFilter(10));
+      table_config.setBlockSize(16 * 1024);
+    }
+    else
+    {
+      cf_options.setCompressionType(CompressionType.LZ4_COMPRESSION);
+    }
+
+    long share_bytes = Math.max(8L * 1048576L, (long)(cache_bytes * cache_share));
+    table_config.setBlockCache(new LRUCache(share_bytes));
+
+    cf_options.setTableFormatConfig(table_config);
+
+    cf_options_list.add(cf_options);
+    return cf_options;
+  }
+
+  private synchronized ColumnFamilyHandle getColumnFamily(String name)
+    throws Exception
+  {
+    if (cf_handle_map.containsKey(name)) return cf_handle_map.get(name);
+
+    ColumnFamilyHandle handle = shared_db.createColumnFamily(
+      new ColumnFamilyDescriptor(name.getBytes(), getColumnFamilyOptions(name)));
+
+    cf_handle_map.put(name, handle);
+    logger.info(String.format("Created RocksDB column family %s", name));
+    return handle;
+  }
+
   protected WriteOptions getWriteOption()
   {
     return sharedWriteOptions;
   }
 
+  /**
+   * Options for committing a batch, based on db_sync:
+   * - wal: written to the WAL but left to the OS to flush.  A crash of the process loses nothing,
+   *   a crash of the machine may lose the last few batches.
+   * - sync: the WAL is synced on every batch
+   * - group: the WAL is synced on the first batch at least db_sync_group_ms after the last sync,
+   *   which also makes every batch before it durable.  If no such batch comes along,
+   *   GroupSyncThread syncs it instead, so no batch goes much over db_sync_group_ms
+   *   without being durable.
+   * A batch is always atomic no matter which, it is only a question of how recent
+   * the last one is after a crash.
+   */
+  protected synchronized WriteOptions getCommitWriteOption()
+  {
+    if (sync_mode.equals("sync")) return syncWriteOptions;
+    if (sync_mode.equals("group"))
+    {
+      long now = System.currentTimeMillis();
+      if (now >= last_sync_time + sync_group_ms)
+      {
+        last_sync_time = now;
+        return syncWriteOptions;
+      }
+    }
+    return sharedWriteOptions;
+  }
+
+  /**
+   * Called once a batch is written with the options from getCommitWriteOption()
+   */
+  protected synchronized void committed(WriteOptions opts)
+  {
+    if (opts != syncWriteOptions)
+    {
+      unsynced_commits = true;
+    }
+  }
+
+  /**
+   * Sync the WAL if there are commits since the last sync and it has been
+   * at least db_sync_group_ms
+   */
+  protected synchronized void groupSync()
+    throws RocksDBException
+  {
+    if (!unsynced_commits) return;
+    long now = System.currentTimeMillis();
+    if (now < last_sync_time + sync_group_ms) return;
+
+    for(RocksDB db : getDBList())
+    {
+      db.syncWal();
+    }
+    last_sync_time = now;
+    unsynced_commits = false;
+  }
+
+  public synchronized boolean hasUnsyncedCommits()
+  {
+    return unsynced_commits;
+  }
+
+  public class GroupSyncThread extends Thread
+  {
+    private volatile boolean done;
+
+    public GroupSyncThread()
+    {
+      setName("JRocksDB/GroupSyncThread");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      while(!done)
+      {
+        try
+        {
+          Thread.sleep(sync_group_ms);
+          if (!done) groupSync();
+        }
+        catch(InterruptedException e)
+        {
+          return;
+        }
+        catch(Throwable t)
+        {
+          logger.log(Level.WARNING, "GroupSyncThread", t);
+        }
+      }
+    }
+
+    public void halt()
+    {
+      done = true;
+      interrupt();
+    }
+  }
+
+  @Override
+  public boolean supportsRangeScan()
+  {
+    return true;
+  }
+
+  @Override
+  public DBWriteBatch startBatch()
+  {
+    if (thread_batch.get() != null)
+    {
+      throw new RuntimeException("Batch already open on this thread");
+    }
+    RocksDBWriteBatch batch = new RocksDBWriteBatch(this);
+    thread_batch.set(batch);
+    return batch;
+  }
+
+  @Override
+  public DBWriteBatch getOpenBatch()
+  {
+    return thread_batch.get();
+  }
+
+  protected void endBatch(RocksDBWriteBatch batch)
+  {
+    if (thread_batch.get() == batch)
+    {
+      thread_batch.remove();
+    }
+  }
+
+  /**
+   * @return the batch to put writes to db in, or null if this thread has none open
+   */
+  protected WriteBatch getThreadBatch(RocksDB db)
+  {
+    RocksDBWriteBatch batch = thread_batch.get();
+    if (batch == null) return null;
+    return batch.getBatch(db);
+  }
+
   @Override
   public synchronized DBMapMutationSet openMutationMapSet(String name) throws Exception
   {
@@ -104,6 +489,10 @@ public class JRocksDB extends DBProvider
         separate_db_map.put(name, db);
       }
     }
+    else if (use_column_families)
+    {
+      return new RocksDBMapMutationSet(this, shared_db, name, getColumnFamily(name));
+    }
     else
     {
       db = shared_db;
@@ -127,6 +516,10 @@ public class JRocksDB extends DBProvider
         separate_db_map.put(name, db);
       }
     }
+    else if (use_column_families)
+    {
+      return new RocksDBMap(this, shared_db, getColumnFamily(name));
+    }
     else
     {
       db = shared_db;
@@ -144,12 +537,23 @@ public class JRocksDB extends DBProvider
     return ImmutableList.copyOf(separate_db_map.values());
   }
 
+  private synchronized List<ColumnFamilyHandle> getColumnFamilyList()
+  {
+    if (cf_handle_map == null) return ImmutableList.of();
+    return ImmutableList.copyOf(cf_handle_map.values());
+  }
+
 
   @Override
   public void close()
   {
     super.close();
 
+    if (group_sync_thread != null)
+    {
+      group_sync_thread.halt();
+    }
+
     logger.info("RocksDB flush started");
     try
     {
@@ -157,7 +561,17 @@ public class JRocksDB extends DBProvider
       fl.setWaitForFlush(true);
       if (shared_db != null)
       {
-        shared_db.flush(fl);
+        if (use_column_families)
+        {
+          for(ColumnFamilyHandle cf : getColumnFamilyList())
+          {
+            shared_db.flush(fl, cf);
+          }
+        }
+        else
+        {
+          shared_db.flush(fl);
+        }
       }
       if (separate_db_map != null)
       {
@@ -181,9 +595,19 @@ public class JRocksDB extends DBProvider
   {
     logger.info("Compaction started");
     long t1 = System.currentTimeMillis();
-    for(RocksDB db : getDBList())
+    if (use_column_families)
+    {
+      for(ColumnFamilyHandle cf : getColumnFamilyList())
+      {
+        shared_db.compactRange(cf);
+      }
+    }
+    else
     {
-      db.compactRange();
+      for(RocksDB db : getDBList())
+      {
+        db.compactRange();
+      }
     }
     long t2 = System.currentTimeMillis();
     double sec = (t2 - t1) / 1000.0;
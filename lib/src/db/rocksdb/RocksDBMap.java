@@ -1,41 +1,67 @@
 package snowblossom.lib.db.rocksdb;
 
 import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
 import org.rocksdb.WriteBatch;
 import snowblossom.lib.db.DBMap;
 import snowblossom.lib.db.DBTooManyResultsException;
+import snowblossom.lib.trie.ByteStringComparator;
 
 public class RocksDBMap extends DBMap
 {
   RocksDB db;
   ByteString prefix;
   JRocksDB jdb;
+  ColumnFamilyHandle cf;
 
+  /**
+   * Map that shares the default column family with other maps,
+   * separated by a name prefix on each key
+   */
   public RocksDBMap(JRocksDB jdb, RocksDB db, String name)
   {
     this.db = db;
     this.jdb = jdb;
+    this.cf = db.getDefaultColumnFamily();
     String prefix_str = name + "/";
 
     this.prefix = ByteString.copyFrom(prefix_str.getBytes());
   }
 
-  public ByteString get(ByteString key)
+  /**
+   * Map that has a column family all to itself, so no key prefix is needed
+   */
+  public RocksDBMap(JRocksDB jdb, RocksDB db, ColumnFamilyHandle cf)
   {
-    ByteString key_str = prefix.concat(key);
+    this.db = db;
+    this.jdb = jdb;
+    this.cf = cf;
+    this.prefix = ByteString.EMPTY;
+  }
+
+  private byte[] getDBKey(ByteString key)
+  {
+    if (prefix.isEmpty()) return key.toByteArray();
+    return prefix.concat(key).toByteArray();
+  }
 
+  public ByteString get(ByteString key)
+  {
     try
     {
 
-      byte[] r = db.get(key_str.toByteArray());
+      byte[] r = db.get(cf, getDBKey(key));
       if (r == null) return null;
 
       return ByteString.copyFrom(r);
@@ -47,12 +73,48 @@ public class RocksDBMap extends DBMap
     }
   }
 
+  @Override
+  public Map<ByteString, ByteString> getMulti(Collection<ByteString> keys)
+  {
+    ArrayList<ByteString> key_list = new ArrayList<>(keys);
+    ArrayList<byte[]> db_keys = new ArrayList<>(key_list.size());
+    ArrayList<ColumnFamilyHandle> cf_list = new ArrayList<>(key_list.size());
+    for(ByteString key : key_list)
+    {
+      db_keys.add(getDBKey(key));
+      cf_list.add(cf);
+    }
+
+    try
+    {
+      List<byte[]> values = db.multiGetAsList(cf_list, db_keys);
+      HashMap<ByteString, ByteString> found = new HashMap<>();
+      for(int i=0; i<key_list.size(); i++)
+      {
+        byte[] r = values.get(i);
+        if (r != null) found.put(key_list.get(i), ByteString.copyFrom(r));
+      }
+      return found;
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void put(ByteString key, ByteString value)
   {
     try
     {
-      ByteString key_str = prefix.concat(key);
-      db.put(jdb.getWriteOption(), key_str.toByteArray(), value.toByteArray());
+      WriteBatch batch = jdb.getThreadBatch(db);
+      if (batch != null)
+      {
+        batch.put(cf, getDBKey(key), value.toByteArray());
+      }
+      else
+      {
+        db.put(cf, jdb.getWriteOption(), getDBKey(key), value.toByteArray());
+      }
     }
     catch(RocksDBException e)
     {
@@ -65,8 +127,15 @@ public class RocksDBMap extends DBMap
   {
     try
     {
-      ByteString key_str = prefix.concat(key);
-      db.delete(jdb.getWriteOption(), key_str.toByteArray());
+      WriteBatch batch = jdb.getThreadBatch(db);
+      if (batch != null)
+      {
+        batch.delete(cf, getDBKey(key));
+      }
+      else
+      {
+        db.delete(cf, jdb.getWriteOption(), getDBKey(key));
+      }
     }
     catch(RocksDBException e)
     {
@@ -77,18 +146,27 @@ public class RocksDBMap extends DBMap
   @Override
   public void putAll(SortedMap<ByteString, ByteString> m)
   {
-    try(WriteBatch batch = new WriteBatch())
+    WriteBatch open_batch = jdb.getThreadBatch(db);
+    try
     {
-
-      for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+      if (open_batch != null)
       {
-        ByteString key_str = prefix.concat(e.getKey());
-        batch.put(key_str.toByteArray(), e.getValue().toByteArray());
-
+        for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+        {
+          open_batch.put(cf, getDBKey(e.getKey()), e.getValue().toByteArray());
+        }
+        return;
       }
 
-      db.write(jdb.getWriteOption(), batch);
+      try(WriteBatch batch = new WriteBatch())
+      {
+        for(Map.Entry<ByteString, ByteString> e : m.entrySet())
+        {
+          batch.put(cf, getDBKey(e.getKey()), e.getValue().toByteArray());
+        }
 
+        db.write(jdb.getWriteOption(), batch);
+      }
     }
     catch(RocksDBException e)
     {
@@ -100,12 +178,12 @@ public class RocksDBMap extends DBMap
   @Override
   public List<ByteString> getClosestKeys(ByteString key, int count)
   {
-    ByteString key_str = prefix.concat(key);
+    byte[] key_str = getDBKey(key);
     LinkedList<ByteString> lst = new LinkedList<>();
 
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = db.newIterator(cf))
     {
-      it.seek(key_str.toByteArray());
+      it.seek(key_str);
 
       // Empty set, doomed
       if (!it.isValid()) return lst;
@@ -117,7 +195,7 @@ public class RocksDBMap extends DBMap
         if (!it.isValid()) it.seekToFirst(); //wrap around
       }
 
-      it.seek(key_str.toByteArray());
+      it.seek(key_str);
       for(int i=0; i<count; i++)
       {
         // First element covered by section above, so move then add
@@ -134,6 +212,27 @@ public class RocksDBMap extends DBMap
 
   }
 
+  @Override
+  public SortedMap<ByteString, ByteString> getRangeFrom(ByteString start_key, int max_reply)
+  {
+    TreeMap<ByteString, ByteString> map = new TreeMap<>(new ByteStringComparator());
+
+    try(RocksIterator it = db.newIterator(cf))
+    {
+      it.seek(getDBKey(start_key));
+
+      while((it.isValid()) && (map.size() < max_reply))
+      {
+        ByteString curr_key = ByteString.copyFrom(it.key());
+        if (!curr_key.startsWith(prefix)) break;
+
+        map.put(curr_key.substring(prefix.size()), ByteString.copyFrom(it.value()));
+        it.next();
+      }
+    }
+    return map;
+  }
+
   @Override
   public Map<ByteString, ByteString> getByPrefix(ByteString key, int max_reply, boolean allow_partial)
   {
@@ -143,7 +242,7 @@ public class RocksDBMap extends DBMap
     Map<ByteString, ByteString> map = new HashMap<>(16,0.5f);
 
     int count = 0;
-    RocksIterator it = db.newIterator();
+    RocksIterator it = db.newIterator(cf);
 
     try
     {
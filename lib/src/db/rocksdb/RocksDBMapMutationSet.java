@@ -5,6 +5,7 @@ import com.google.protobuf.ByteString;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import org.rocksdb.ColumnFamilyHandle;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
@@ -16,6 +17,7 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 {
   JRocksDB jdb;
   RocksDB db;
+  ColumnFamilyHandle cf;
   String name;
   byte[] name_bytes;
   byte sep = '/';
@@ -24,9 +26,22 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
     this.db = db;
     this.name = name;
     this.jdb = jdb;
+    this.cf = db.getDefaultColumnFamily();
     name_bytes = name.getBytes();
   }
 
+  /**
+   * Set with a column family all to itself, so no name prefix is needed
+   */
+  public RocksDBMapMutationSet(JRocksDB jdb, RocksDB db, String name, ColumnFamilyHandle cf)
+  {
+    this.db = db;
+    this.jdb = jdb;
+    this.cf = cf;
+    this.name = name;
+    name_bytes = new byte[0];
+  }
+
   private ByteString getDBKey(ByteString key, ByteString value)
   {
     try
@@ -71,7 +86,15 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
     try
     {
-      db.put(jdb.getWriteOption(), w.toByteArray(), b);
+      WriteBatch batch = jdb.getThreadBatch(db);
+      if (batch != null)
+      {
+        batch.put(cf, w.toByteArray(), b);
+      }
+      else
+      {
+        db.put(cf, jdb.getWriteOption(), w.toByteArray(), b);
+      }
     }
     catch(RocksDBException e)
     {
@@ -83,17 +106,29 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
   @Override
   public void addAll(TreeMultimap<ByteString, ByteString> map)
   {
-    try(WriteBatch batch = new WriteBatch())
+    byte b[]=new byte[0];
+    WriteBatch open_batch = jdb.getThreadBatch(db);
+    try
     {
-      byte b[]=new byte[0];
-
-      for(Map.Entry<ByteString, ByteString> me : map.entries())
+      if (open_batch != null)
       {
-        ByteString w = getDBKey(me.getKey(), me.getValue());
-        batch.put(w.toByteArray(), b);
+        for(Map.Entry<ByteString, ByteString> me : map.entries())
+        {
+          open_batch.put(cf, getDBKey(me.getKey(), me.getValue()).toByteArray(), b);
+        }
+        return;
       }
 
-      db.write(jdb.getWriteOption(), batch);
+      try(WriteBatch batch = new WriteBatch())
+      {
+        for(Map.Entry<ByteString, ByteString> me : map.entries())
+        {
+          ByteString w = getDBKey(me.getKey(), me.getValue());
+          batch.put(cf, w.toByteArray(), b);
+        }
+
+        db.write(jdb.getWriteOption(), batch);
+      }
     }
     catch(RocksDBException e)
     {
@@ -108,7 +143,15 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
     try
     {
       ByteString w = getDBKey(key, value);
-      db.delete(jdb.getWriteOption(), w.toByteArray());
+      WriteBatch batch = jdb.getThreadBatch(db);
+      if (batch != null)
+      {
+        batch.delete(cf, w.toByteArray());
+      }
+      else
+      {
+        db.delete(cf, jdb.getWriteOption(), w.toByteArray());
+      }
     }
     catch(RocksDBException e)
     {
@@ -123,7 +166,7 @@ public class RocksDBMapMutationSet extends DBMapMutationSet
 
     LinkedList<ByteString> set = new LinkedList<>();
     int count = 0;
-    try(RocksIterator it = db.newIterator())
+    try(RocksIterator it = db.newIterator(cf))
     {
       it.seek(dbKey.toByteArray());
 
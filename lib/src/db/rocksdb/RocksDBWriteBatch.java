@@ -0,0 +1,88 @@
+package snowblossom.lib.db.rocksdb;
+
+import duckutil.TimeRecord;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import snowblossom.lib.db.DBWriteBatch;
+
+/**
+ * One RocksDB WriteBatch per database written to.  With a shared db or column families
+ * that is a single batch, so it all lands at once or not at all.
+ * With db_separate each database gets its own batch, written one after another.
+ */
+public class RocksDBWriteBatch extends DBWriteBatch
+{
+  private final JRocksDB jdb;
+  private final IdentityHashMap<RocksDB, WriteBatch> batch_map = new IdentityHashMap<>();
+  private boolean finished;
+  private boolean committed;
+
+  protected RocksDBWriteBatch(JRocksDB jdb)
+  {
+    this.jdb = jdb;
+  }
+
+  protected WriteBatch getBatch(RocksDB db)
+  {
+    if (finished) throw new RuntimeException("Batch already finished");
+
+    WriteBatch batch = batch_map.get(db);
+    if (batch == null)
+    {
+      batch = new WriteBatch();
+      batch_map.put(db, batch);
+    }
+    return batch;
+  }
+
+  @Override
+  public void commit()
+  {
+    if (finished) throw new RuntimeException("Batch already finished");
+
+    long t1 = System.nanoTime();
+    try
+    {
+      WriteOptions opts = jdb.getCommitWriteOption();
+      for(Map.Entry<RocksDB, WriteBatch> me : batch_map.entrySet())
+      {
+        me.getKey().write(opts, me.getValue());
+      }
+      jdb.committed(opts);
+      committed = true;
+    }
+    catch(RocksDBException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      close();
+    }
+    TimeRecord.record(t1, "db_batch_commit");
+  }
+
+  @Override
+  public void close()
+  {
+    if (finished) return;
+    finished = true;
+
+    jdb.endBatch(this);
+    for(WriteBatch batch : batch_map.values())
+    {
+      batch.close();
+    }
+    batch_map.clear();
+
+    if (!committed)
+    {
+      runAbort();
+    }
+  }
+
+}
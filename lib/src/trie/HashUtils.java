@@ -6,6 +6,7 @@ import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
+import snowblossom.lib.DigestUtil;
 import snowblossom.lib.HexUtil;
 import snowblossom.trie.proto.ChildEntry;
 import snowblossom.trie.proto.TrieNode;
@@ -19,20 +20,12 @@ public class HashUtils
 
   public static ByteString hashConcat(List<ByteString> words)
   {
-    try
+    MessageDigest md = DigestUtil.getInstance(DigestUtil.TRIE_HASH_ALGO);
+    for(ByteString bs : words)
     {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      for(ByteString bs : words)
-      {
-        md.update(bs.toByteArray());
-      }
-      return ByteString.copyFrom(md.digest());
-
-    }
-    catch (java.security.NoSuchAlgorithmException e)
-    {
-            throw new RuntimeException(e);
+      md.update(bs.toByteArray());
     }
+    return ByteString.copyFrom(md.digest());
   }
 
   public static String getHexString(byte[] data)
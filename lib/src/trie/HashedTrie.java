@@ -4,6 +4,8 @@ import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.protobuf.ByteString;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import org.junit.Assert;
 import snowblossom.trie.proto.ChildEntry;
 import snowblossom.trie.proto.TrieNode;
@@ -27,6 +29,9 @@ public class HashedTrie
   private final TrieDB basedb;
   private final boolean end_cap_data;
 
+  private ForkJoinPool fork_pool;
+  private int parallel_min;
+
   public static final ByteString DATA_START = ByteString.copyFrom("DATA<".getBytes());
   public static final ByteString DATA_END = ByteString.copyFrom(">DATA".getBytes());
 
@@ -55,6 +60,17 @@ public class HashedTrie
     Assert.assertNotNull(root);
   }
 
+  /**
+   * Merge subtrees on the given pool where there are at least parallel_min updates under a node.
+   * Gives the same nodes and root hash as merging on one thread.
+   * @param pool the pool to use, null to merge on the calling thread
+   */
+  public void setParallelMerge(ForkJoinPool pool, int parallel_min)
+  {
+    this.fork_pool = pool;
+    this.parallel_min = Math.max(2, parallel_min);
+  }
+
   /** 
    * Merge in the following updates.
    * A null value means remove that entry if it exists
@@ -65,7 +81,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
 
     TrieNode root = db.load(root_hash);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     db.commit();
     return answer;
   }
@@ -75,7 +91,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(old_root);
     
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     if (answer.equals(expected_new_root))
     {
       logger.fine("Commiting new UTXO root: " + HashUtils.getHexString(answer));
@@ -94,7 +110,7 @@ public class HashedTrie
     TrieDBBuffered db = new TrieDBBuffered(basedb);
     TrieNode root = db.load(root_hash);
     Assert.assertNotNull("Simluating merge from " + HashUtils.getHexString(root_hash), root);
-    ByteString answer = mergeNode(db, root, updates).getHash();
+    ByteString answer = mergeRoot(db, root, updates).getHash();
     return answer;
   }
 
@@ -130,6 +146,70 @@ public class HashedTrie
     return null;
   }
 
+  /**
+   * Get many entries from the given root in one pass down the trie.
+   * Each level is loaded with a single loadMulti, so nodes shared by the paths
+   * to several keys are only read once.
+   * @return map of the keys that exist to their data
+   */
+  public Map<ByteString, ByteString> getLeafDataMulti(ByteString root_hash, Collection<ByteString> keys)
+  {
+    HashMap<ByteString, ByteString> found = new HashMap<>();
+
+    // Sorted so keys sharing a path are grouped together
+    TreeSet<ByteString> sorted_keys = new TreeSet<>(new ByteStringComparator());
+    sorted_keys.addAll(keys);
+
+    // Node hash to the keys to look for under it
+    LinkedHashMap<ByteString, List<ByteString>> level = new LinkedHashMap<>();
+    level.put(root_hash, new ArrayList<ByteString>(sorted_keys));
+
+    while(!level.isEmpty())
+    {
+      Map<ByteString, TrieNode> nodes = basedb.loadMulti(level.keySet());
+      LinkedHashMap<ByteString, List<ByteString>> next_level = new LinkedHashMap<>();
+
+      for(Map.Entry<ByteString, List<ByteString>> me : level.entrySet())
+      {
+        TrieNode node = nodes.get(me.getKey());
+        if (node == null)
+        {
+          throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(me.getKey())));
+        }
+
+        for(ByteString key : me.getValue())
+        {
+          if (node.getPrefix().equals(key))
+          {
+            if (node.getIsLeaf())
+            {
+              found.put(key, node.getLeafData());
+            }
+            continue;
+          }
+          for(ChildEntry ce : node.getChildrenList())
+          {
+            ByteString p = node.getPrefix().concat(ce.getKey());
+            if (key.startsWith(p))
+            {
+              List<ByteString> under = next_level.get(ce.getHash());
+              if (under == null)
+              {
+                under = new ArrayList<>();
+                next_level.put(ce.getHash(), under);
+              }
+              under.add(key);
+              break;
+            }
+          }
+        }
+      }
+      level = next_level;
+    }
+
+    return found;
+  }
+
   public TreeMap<ByteString, ByteString> getDataMap(ByteString hash, ByteString key, int max_results)
   {
     LinkedList<TrieNode> proof = new LinkedList<>();
@@ -191,6 +271,34 @@ public class HashedTrie
  
   }
 
+  /**
+   * Start a key order walk of the nodes under target_key.
+   * See TrieScan.
+   */
+  public TrieScan scan(ByteString root_hash, ByteString target_key, ByteString resume_after)
+  {
+    return new TrieScan(basedb, root_hash, target_key, resume_after);
+  }
+
+  /**
+   * Start a key order walk of the leaves that differ between old_root and new_root
+   * under target_key.  See TrieDiff.
+   */
+  public TrieDiff diff(ByteString old_root, ByteString new_root, ByteString target_key, ByteString resume_after)
+  {
+    return new TrieDiff(basedb, old_root, new_root, target_key, resume_after);
+  }
+
+  private TrieNode mergeRoot(TrieDB db, TrieNode root, Map<ByteString, ByteString> updates)
+  {
+    ForkJoinPool pool = fork_pool;
+    if ((pool != null) && (updates.size() >= parallel_min))
+    {
+      return pool.invoke(ForkJoinTask.adapt(() -> mergeNode(db, root, updates)));
+    }
+    return mergeNode(db, root, updates);
+  }
+
   private TrieNode mergeNode(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates)
   {
     Assert.assertNotNull(node);
@@ -274,75 +382,35 @@ public class HashedTrie
       children_by_start.put(start, c);
     }
 
-    for(ByteString start : fings.keySet())
+    ArrayList<ByteString> starts = new ArrayList<>(fings.keySet());
+    ArrayList<GroupResult> group_results = new ArrayList<>(starts.size());
+    if ((fork_pool != null) && (updates.size() >= parallel_min) && (starts.size() > 1) && (ForkJoinTask.inForkJoinPool()))
     {
-      Set<ByteString> changes = changes_by_start.get(start);
-
-      Set<ByteString> rests = fings.get(start);
-      ByteString prefix_for_group = findLongestCommonStart(rests);
-
-      if ((changes.isEmpty()) && (children.containsKey(prefix_for_group)))
+      // Each group is a separate subtree, so they can merge at the same time.
+      // Results are used in the same order as the serial case, so the nodes come out the same.
+      ArrayList<ForkJoinTask<GroupResult>> tasks = new ArrayList<>(starts.size());
+      for(ByteString start : starts)
       {
-        builder.addChildren( children.get(prefix_for_group));
-        continue; //woo ugly
-      }
-
-      Assert.assertTrue(prefix_for_group.size() > 0);
-
-      TrieNode child_node = null;
-      if (!children.containsKey(prefix_for_group))
-      { 
-        // Make a new node, put children if any under it
-
-        TrieNode.Builder sub_builder = TrieNode.newBuilder();
-        Assert.assertTrue(prefix_for_group.size() > 0);
-        sub_builder.setPrefix(node.getPrefix().concat(prefix_for_group));
-        Assert.assertTrue(sub_builder.getPrefix().size() > 0);
-        if (children_by_start.get(start) != null)
-        {
-          ChildEntry ce = children_by_start.get(start);
-          {
-            int cut_len= prefix_for_group.size();
-            ByteString new_prefix = ce.getKey().substring(cut_len);
-            sub_builder.addChildren(ChildEntry.newBuilder().setKey(new_prefix).setHash(ce.getHash()).build());
-          }
-          //sub_builder.addChildren(children_by_start.get(start));
-        }
-        child_node = sub_builder.build();
-        db.save(child_node);
-        Assert.assertTrue(child_node.getPrefix().size() > 0);
-
-        Assert.assertFalse(changes.isEmpty());
-
+        tasks.add(ForkJoinTask.adapt(() -> mergeGroup(db, node, updates, start, fings, changes_by_start, children, children_by_start)));
       }
-      else
+      ForkJoinTask.invokeAll(tasks);
+      for(ForkJoinTask<GroupResult> t : tasks)
       {
-        if (child_node == null)
-        {
-          child_node = db.load(children.get(prefix_for_group).getHash());
-          //child_node = db.load(node.getPrefix().concat(prefix_for_group));
-        }
+        group_results.add(t.join());
       }
-      
-      Map<ByteString, ByteString> sub_updates = new HashMap<>();
-      for(ByteString bs : changes)
+    }
+    else
+    {
+      for(ByteString start : starts)
       {
-        sub_updates.put(bs, updates.get(bs));
+        group_results.add(mergeGroup(db, node, updates, start, fings, changes_by_start, children, children_by_start));
       }
-      child_node = mergeNode(db, child_node, sub_updates);
-      if (child_node != null)
-      {
-        // The child node might have a different prefix
-        // than what we expect, since it might need to structural shorten itself
-
-        ByteString prefix_for_child_node = child_node.getPrefix().substring(node.getPrefix().size());
-        Assert.assertTrue(""+start, child_node.getPrefix().size() > 0);
-        Assert.assertTrue(""+start, prefix_for_child_node.size() > 0);
-        builder.addChildren( ChildEntry.newBuilder().setKey(prefix_for_child_node).setHash(child_node.getHash()));
+    }
 
-        last_seen_child_node = child_node;
-      }
-      
+    for(GroupResult r : group_results)
+    {
+      if (r.entry != null) builder.addChildren(r.entry);
+      if (r.child_node != null) last_seen_child_node = r.child_node;
     }
 
     if (!builder.getIsLeaf())
@@ -389,6 +457,96 @@ public class HashedTrie
 
   }
 
+  /**
+   * Merge the updates and existing children of node that start with the byte start,
+   * which all end up under one child entry
+   */
+  private GroupResult mergeGroup(TrieDB db, TrieNode node, Map<ByteString, ByteString> updates, ByteString start,
+    SetMultimap<ByteString, ByteString> fings, SetMultimap<ByteString, ByteString> changes_by_start,
+    Map<ByteString, ChildEntry> children, Map<ByteString, ChildEntry> children_by_start)
+  {
+    Set<ByteString> changes = changes_by_start.get(start);
+
+    Set<ByteString> rests = fings.get(start);
+    ByteString prefix_for_group = findLongestCommonStart(rests);
+
+    if ((changes.isEmpty()) && (children.containsKey(prefix_for_group)))
+    {
+      return new GroupResult(children.get(prefix_for_group), null);
+    }
+
+    Assert.assertTrue(prefix_for_group.size() > 0);
+
+    TrieNode child_node = null;
+    if (!children.containsKey(prefix_for_group))
+    { 
+      // Make a new node, put children if any under it
+
+      TrieNode.Builder sub_builder = TrieNode.newBuilder();
+      Assert.assertTrue(prefix_for_group.size() > 0);
+      sub_builder.setPrefix(node.getPrefix().concat(prefix_for_group));
+      Assert.assertTrue(sub_builder.getPrefix().size() > 0);
+      if (children_by_start.get(start) != null)
+      {
+        ChildEntry ce = children_by_start.get(start);
+        {
+          int cut_len= prefix_for_group.size();
+          ByteString new_prefix = ce.getKey().substring(cut_len);
+          sub_builder.addChildren(ChildEntry.newBuilder().setKey(new_prefix).setHash(ce.getHash()).build());
+        }
+        //sub_builder.addChildren(children_by_start.get(start));
+      }
+      child_node = sub_builder.build();
+      db.save(child_node);
+      Assert.assertTrue(child_node.getPrefix().size() > 0);
+
+      Assert.assertFalse(changes.isEmpty());
+
+    }
+    else
+    {
+      if (child_node == null)
+      {
+        child_node = db.load(children.get(prefix_for_group).getHash());
+        //child_node = db.load(node.getPrefix().concat(prefix_for_group));
+      }
+    }
+    
+    Map<ByteString, ByteString> sub_updates = new HashMap<>();
+    for(ByteString bs : changes)
+    {
+      sub_updates.put(bs, updates.get(bs));
+    }
+    child_node = mergeNode(db, child_node, sub_updates);
+    if (child_node != null)
+    {
+      // The child node might have a different prefix
+      // than what we expect, since it might need to structural shorten itself
+
+      ByteString prefix_for_child_node = child_node.getPrefix().substring(node.getPrefix().size());
+      Assert.assertTrue(""+start, child_node.getPrefix().size() > 0);
+      Assert.assertTrue(""+start, prefix_for_child_node.size() > 0);
+      return new GroupResult(
+        ChildEntry.newBuilder().setKey(prefix_for_child_node).setHash(child_node.getHash()).build(),
+        child_node);
+    }
+    return new GroupResult(null, null);
+  }
+
+  private static class GroupResult
+  {
+    /** null if the group is now empty */
+    final ChildEntry entry;
+    /** null if the child was not changed */
+    final TrieNode child_node;
+
+    GroupResult(ChildEntry entry, TrieNode child_node)
+    {
+      this.entry = entry;
+      this.child_node = child_node;
+    }
+  }
+
   public void printTree(ByteString root)
   {
     printNode(basedb, root, 0);
@@ -1,6 +1,8 @@
 package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import org.junit.Assert;
@@ -11,6 +13,30 @@ public abstract class TrieDB
   public abstract void save(TrieNode node);
   public abstract TrieNode load(ByteString key);
 
+  /**
+   * Load a number of nodes at once.  Implementing class should override this
+   * if they have something better to do.
+   * @return map of the keys found to their nodes
+   */
+  public Map<ByteString, TrieNode> loadMulti(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> found = new HashMap<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = load(key);
+      if (node != null) found.put(key, node);
+    }
+    return found;
+  }
+
+  /**
+   * Only safe to call for nodes that are not reachable from any root still in use
+   */
+  public void remove(ByteString key)
+  {
+    throw new RuntimeException("NOT IMPLEMENTED");
+  }
+
   public void bulkSave(TreeMap<ByteString, TrieNode> updates)
   {
     for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
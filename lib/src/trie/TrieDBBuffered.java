@@ -1,19 +1,28 @@
 package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import snowblossom.trie.proto.TrieNode;
 
+/**
+ * Holds the nodes written by a merge until commit.
+ * Safe for the threads of a parallel merge to use at once.
+ */
 public class TrieDBBuffered extends TrieDB
 {
-  private TreeMap<ByteString, TrieNode> changes;
+  private final ConcurrentHashMap<ByteString, TrieNode> changes;
 
   TrieDB db;
 
   public TrieDBBuffered(TrieDB inner)
   {
     this.db = inner;
-    changes = new TreeMap<>(new ByteStringComparator());
+    changes = new ConcurrentHashMap<>(256, 0.75f);
   }
 
   public void save(TrieNode node)
@@ -22,14 +31,35 @@ public class TrieDBBuffered extends TrieDB
   }
   public TrieNode load(ByteString key)
   {
-    if (changes.containsKey(key)) return changes.get(key);
+    TrieNode node = changes.get(key);
+    if (node != null) return node;
 
     return db.load(key);
   }
 
+  @Override
+  public Map<ByteString, TrieNode> loadMulti(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> found = new HashMap<>();
+    LinkedList<ByteString> needed = new LinkedList<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = changes.get(key);
+      if (node != null) found.put(key, node);
+      else needed.add(key);
+    }
+    if (needed.size() > 0)
+    {
+      found.putAll(db.loadMulti(needed));
+    }
+    return found;
+  }
+
   public void commit()
   {
-    db.bulkSave(changes);
+    TreeMap<ByteString, TrieNode> sorted = new TreeMap<>(new ByteStringComparator());
+    sorted.putAll(changes);
+    db.bulkSave(sorted);
     changes.clear();
   }
 }
@@ -0,0 +1,285 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import duckutil.TimeRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.lib.db.DBProvider;
+import snowblossom.lib.db.DBWriteBatch;
+import snowblossom.trie.proto.TrieNode;
+
+/**
+ * A bounded cache of decoded nodes in front of another TrieDB.
+ *
+ * Since trie nodes are addressed by their hash, a cached node can never be stale,
+ * so there is no invalidation to worry about other than an explicit remove.
+ * The exception is a node saved in a DBWriteBatch that then gets dropped, so
+ * given the provider, nodes saved in a batch are taken back out if it aborts.
+ *
+ * The cache is split into a number of independently locked shards so that
+ * validation threads and rpc threads are not fighting over one monitor.
+ * Each shard is a LRU bounded by an estimate of the memory used by the nodes in it.
+ */
+public class TrieDBCache extends TrieDB
+{
+  public static final int DEFAULT_SHARDS = 32;
+
+  // Rough per entry cost of the map entry, the key ByteString and the TrieNode object
+  // on top of the serialized size
+  private static final long ENTRY_OVERHEAD = 192L;
+
+  private final TrieDB inner;
+  private final CacheShard[] shards;
+  private final DBProvider prov;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * @param inner the DB to read and write through to
+   * @param max_bytes total memory budget in bytes, spread across all shards
+   */
+  public TrieDBCache(TrieDB inner, long max_bytes)
+  {
+    this(inner, max_bytes, DEFAULT_SHARDS, null);
+  }
+
+  /**
+   * @param prov the provider inner writes to, for its open batches
+   */
+  public TrieDBCache(TrieDB inner, long max_bytes, DBProvider prov)
+  {
+    this(inner, max_bytes, DEFAULT_SHARDS, prov);
+  }
+
+  public TrieDBCache(TrieDB inner, long max_bytes, int shard_count)
+  {
+    this(inner, max_bytes, shard_count, null);
+  }
+
+  public TrieDBCache(TrieDB inner, long max_bytes, int shard_count, DBProvider prov)
+  {
+    this.inner = inner;
+    this.prov = prov;
+    this.shards = new CacheShard[shard_count];
+
+    long per_shard = Math.max(1L, max_bytes / shard_count);
+    for(int i=0; i<shard_count; i++)
+    {
+      shards[i] = new CacheShard(per_shard);
+    }
+  }
+
+  @Override
+  public void save(TrieNode node)
+  {
+    inner.save(node);
+    getShard(node.getHash()).put(node.getHash(), node);
+
+    DBWriteBatch batch = getOpenBatch();
+    if (batch != null)
+    {
+      ByteString key = node.getHash();
+      batch.onAbort(() -> getShard(key).remove(key));
+    }
+  }
+
+  @Override
+  public TrieNode load(ByteString key)
+  {
+    long t1 = System.nanoTime();
+    CacheShard shard = getShard(key);
+
+    TrieNode node = shard.get(key);
+    if (node != null)
+    {
+      hits.incrementAndGet();
+      TimeRecord.record(t1, "trie_cache:hit");
+      return node;
+    }
+
+    node = inner.load(key);
+    misses.incrementAndGet();
+    TimeRecord.record(t1, "trie_cache:miss");
+
+    if (node != null)
+    {
+      shard.put(key, node);
+    }
+    return node;
+  }
+
+  @Override
+  public Map<ByteString, TrieNode> loadMulti(Collection<ByteString> keys)
+  {
+    long t1 = System.nanoTime();
+    HashMap<ByteString, TrieNode> found = new HashMap<>();
+    LinkedList<ByteString> needed = new LinkedList<>();
+    for(ByteString key : keys)
+    {
+      TrieNode node = getShard(key).get(key);
+      if (node != null) found.put(key, node);
+      else needed.add(key);
+    }
+    hits.addAndGet(found.size());
+
+    if (needed.size() > 0)
+    {
+      misses.addAndGet(needed.size());
+      Map<ByteString, TrieNode> loaded = inner.loadMulti(needed);
+      for(Map.Entry<ByteString, TrieNode> me : loaded.entrySet())
+      {
+        getShard(me.getKey()).put(me.getKey(), me.getValue());
+      }
+      found.putAll(loaded);
+    }
+    TimeRecord.record(t1, "trie_cache:multi");
+    return found;
+  }
+
+  @Override
+  public void remove(ByteString key)
+  {
+    getShard(key).remove(key);
+    inner.remove(key);
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    inner.bulkSave(updates);
+
+    // Freshly written nodes are the new root paths, which are the ones
+    // most likely to be read next
+    ArrayList<ByteString> saved = new ArrayList<>();
+    for(Map.Entry<ByteString, TrieNode> me : updates.entrySet())
+    {
+      if (me.getValue() != null)
+      {
+        getShard(me.getKey()).put(me.getKey(), me.getValue());
+        saved.add(me.getKey());
+      }
+    }
+
+    DBWriteBatch batch = getOpenBatch();
+    if (batch != null)
+    {
+      batch.onAbort(() -> {
+        for(ByteString key : saved)
+        {
+          getShard(key).remove(key);
+        }
+      });
+    }
+  }
+
+  public long getHitCount() { return hits.get(); }
+  public long getMissCount() { return misses.get(); }
+
+  public long getSizeBytes()
+  {
+    long sum = 0L;
+    for(CacheShard shard : shards)
+    {
+      sum += shard.getSizeBytes();
+    }
+    return sum;
+  }
+
+  public long getEntryCount()
+  {
+    long sum = 0L;
+    for(CacheShard shard : shards)
+    {
+      sum += shard.getEntryCount();
+    }
+    return sum;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("TrieDBCache{entries:%d bytes:%d hits:%d misses:%d}",
+      getEntryCount(), getSizeBytes(), getHitCount(), getMissCount());
+  }
+
+  private DBWriteBatch getOpenBatch()
+  {
+    if (prov == null) return null;
+    return prov.getOpenBatch();
+  }
+
+  private CacheShard getShard(ByteString key)
+  {
+    // Keys are hashes, so the low bits are well distributed
+    int idx = (key.hashCode() & 0x7fffffff) % shards.length;
+    return shards[idx];
+  }
+
+  protected static long estimateSize(TrieNode node)
+  {
+    return node.getSerializedSize() * 2L + ENTRY_OVERHEAD;
+  }
+
+  private static class CacheShard
+  {
+    private final long max_bytes;
+    private long size_bytes;
+    private final LinkedHashMap<ByteString, TrieNode> map = new LinkedHashMap<>(64, 0.75f, true);
+
+    public CacheShard(long max_bytes)
+    {
+      this.max_bytes = max_bytes;
+    }
+
+    public synchronized TrieNode get(ByteString key)
+    {
+      return map.get(key);
+    }
+
+    public synchronized void put(ByteString key, TrieNode node)
+    {
+      TrieNode old = map.put(key, node);
+      if (old != null)
+      {
+        size_bytes -= estimateSize(old);
+      }
+      size_bytes += estimateSize(node);
+
+      Iterator<TrieNode> it = map.values().iterator();
+      while((size_bytes > max_bytes) && (it.hasNext()))
+      {
+        TrieNode eldest = it.next();
+        size_bytes -= estimateSize(eldest);
+        it.remove();
+      }
+    }
+
+    public synchronized void remove(ByteString key)
+    {
+      TrieNode old = map.remove(key);
+      if (old != null)
+      {
+        size_bytes -= estimateSize(old);
+      }
+    }
+
+    public synchronized long getSizeBytes()
+    {
+      return size_bytes;
+    }
+
+    public synchronized int getEntryCount()
+    {
+      return map.size();
+    }
+  }
+
+}
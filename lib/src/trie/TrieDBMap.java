@@ -2,6 +2,8 @@ package snowblossom.lib.trie;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 import snowblossom.lib.db.DBMap;
@@ -37,6 +39,30 @@ public class TrieDBMap extends TrieDB
 
   }
 
+  @Override
+  public Map<ByteString, TrieNode> loadMulti(Collection<ByteString> keys)
+  {
+    HashMap<ByteString, TrieNode> found = new HashMap<>();
+    for(Map.Entry<ByteString, ByteString> me : db_map.getMulti(keys).entrySet())
+    {
+      try
+      {
+        found.put(me.getKey(), TrieNode.parser().parseFrom(me.getValue()));
+      }
+      catch(InvalidProtocolBufferException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public void remove(ByteString key)
+  {
+    db_map.remove(key);
+  }
+
   @Override
   public void bulkSave(TreeMap<ByteString, TrieNode> updates)
   {
@@ -21,4 +21,9 @@ public class TrieDBMem extends TrieDB
   {
     return map.get(key);
   }
+  @Override
+  public void remove(ByteString key)
+  {
+    map.remove(key);
+  }
 }
@@ -0,0 +1,169 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+/**
+ * The leaves that differ between two roots, in key order, a piece at a time.
+ *
+ * Walks both tries in key order together, the same way as TrieScan.
+ * Wherever both have a node at the same prefix with the same hash the whole subtree
+ * is the same and is skipped, so the cost goes with the size of the change
+ * rather than the size of the tries.
+ */
+public class TrieDiff
+{
+  public static class Change
+  {
+    public final ByteString key;
+    /** null if added */
+    public final ByteString old_data;
+    /** null if removed */
+    public final ByteString new_data;
+
+    public Change(ByteString key, ByteString old_data, ByteString new_data)
+    {
+      this.key = key;
+      this.old_data = old_data;
+      this.new_data = new_data;
+    }
+
+    public boolean isAdded() { return old_data == null; }
+    public boolean isRemoved() { return new_data == null; }
+
+    @Override
+    public String toString()
+    {
+      String type = "changed";
+      if (isAdded()) type = "added";
+      if (isRemoved()) type = "removed";
+      return type + ":" + HashUtils.getHexString(key);
+    }
+  }
+
+  private final TrieDB db;
+  private final ByteString resume_after;
+  private final ArrayDeque<ChildEntry> old_stack = new ArrayDeque<>();
+  private final ArrayDeque<ChildEntry> new_stack = new ArrayDeque<>();
+
+  private long nodes_loaded;
+  private long subtrees_skipped;
+
+  /**
+   * @param target_key only keys under this, empty for all
+   * @param resume_after only changes with keys after this, empty for all
+   */
+  public TrieDiff(TrieDB db, ByteString old_root, ByteString new_root, ByteString target_key, ByteString resume_after)
+  {
+    this.db = db;
+    if (resume_after.size() > 0)
+    {
+      this.resume_after = resume_after;
+    }
+    else
+    {
+      this.resume_after = null;
+    }
+
+    LinkedList<TrieNode> proof = new LinkedList<>();
+    ChildEntry old_top = TrieScan.findSubtree(db, old_root, target_key, proof);
+    ChildEntry new_top = TrieScan.findSubtree(db, new_root, target_key, proof);
+    if (old_top != null) old_stack.push(old_top);
+    if (new_top != null) new_stack.push(new_top);
+  }
+
+  /**
+   * @return up to max_results more changes in key order, empty when done
+   */
+  public List<Change> next(int max_results)
+  {
+    LinkedList<Change> results = new LinkedList<>();
+
+    while(results.size() < max_results)
+    {
+      skipBeforeResume(old_stack);
+      skipBeforeResume(new_stack);
+
+      ChildEntry o = old_stack.peek();
+      ChildEntry n = new_stack.peek();
+      if ((o == null) && (n == null)) break;
+
+      int cmp;
+      if (o == null) cmp = 1;
+      else if (n == null) cmp = -1;
+      else cmp = ByteStringComparator.compareStatic(o.getKey(), n.getKey());
+
+      if ((cmp == 0) && (o.getHash().equals(n.getHash())))
+      {
+        old_stack.pop();
+        new_stack.pop();
+        subtrees_skipped++;
+        continue;
+      }
+
+      // Whichever side has the lower prefix, the other side has no node there
+      TrieNode old_node = null;
+      TrieNode new_node = null;
+      ByteString key;
+      if (cmp <= 0)
+      {
+        old_stack.pop();
+        old_node = TrieScan.load(db, o.getHash());
+        TrieScan.pushChildren(old_stack, old_node);
+        nodes_loaded++;
+        key = o.getKey();
+      }
+      else
+      {
+        key = n.getKey();
+      }
+      if (cmp >= 0)
+      {
+        new_stack.pop();
+        new_node = TrieScan.load(db, n.getHash());
+        TrieScan.pushChildren(new_stack, new_node);
+        nodes_loaded++;
+      }
+
+      if ((resume_after != null) && (ByteStringComparator.compareStatic(key, resume_after) <= 0)) continue;
+
+      ByteString old_data = null;
+      ByteString new_data = null;
+      if ((old_node != null) && (old_node.getIsLeaf())) old_data = old_node.getLeafData();
+      if ((new_node != null) && (new_node.getIsLeaf())) new_data = new_node.getLeafData();
+
+      if ((old_data == null) && (new_data == null)) continue;
+      if ((old_data != null) && (old_data.equals(new_data))) continue;
+
+      results.add(new Change(key, old_data, new_data));
+    }
+
+    return results;
+  }
+
+  public boolean isDone()
+  {
+    return old_stack.isEmpty() && new_stack.isEmpty();
+  }
+
+  public long getNodesLoaded() { return nodes_loaded; }
+  public long getSubtreesSkipped() { return subtrees_skipped; }
+
+  private void skipBeforeResume(ArrayDeque<ChildEntry> stack)
+  {
+    if (resume_after == null) return;
+
+    while(!stack.isEmpty())
+    {
+      ByteString p = stack.peek().getKey();
+      if (ByteStringComparator.compareStatic(p, resume_after) > 0) return;
+      if (resume_after.startsWith(p)) return;
+      stack.pop();
+    }
+  }
+
+}
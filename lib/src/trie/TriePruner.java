@@ -0,0 +1,374 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import snowblossom.lib.db.DBMap;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+/**
+ * Mark and sweep garbage collection for a HashedTrie stored in a DBMap.
+ *
+ * This sits between the HashedTrie and the real TrieDB so that it can see every node written.
+ * A prune cycle is:
+ *  - begin: turn on the write barrier, before the caller picks the roots to retain
+ *  - mark: walk every node reachable from the given retained roots
+ *  - sweep: walk the entire map in pieces and remove anything not marked
+ *
+ * Any node written while a cycle is running is also marked (a write barrier) so that
+ * blocks ingested while we are marking or sweeping are not damaged.  The sweep takes a short
+ * write lock for each piece, so writers are only held up for one piece at a time.
+ *
+ * Marks are kept as 128-bit prefixes of the node hashes to keep the mark set small.
+ * The odds of two distinct nodes colliding on that are not worth worrying about.
+ */
+public class TriePruner extends TrieDB
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.db");
+
+  public static final int SWEEP_CHUNK = 10000;
+
+  private final TrieDB inner;
+  private final DBMap db_map;
+
+  private final ReentrantReadWriteLock barrier_lock = new ReentrantReadWriteLock();
+  private volatile MarkSet mark_set;
+
+  private final AtomicLong bytes_reclaimed = new AtomicLong(0L);
+  private final AtomicLong nodes_reclaimed = new AtomicLong(0L);
+  private final AtomicLong cycles = new AtomicLong(0L);
+
+  /**
+   * @param inner the TrieDB for reads and writes, may be a cache in front of db_map
+   * @param db_map the underlying map, used to find every stored node during a sweep
+   */
+  public TriePruner(TrieDB inner, DBMap db_map)
+  {
+    this.inner = inner;
+    this.db_map = db_map;
+  }
+
+  @Override
+  public void save(TrieNode node)
+  {
+    barrier_lock.readLock().lock();
+    try
+    {
+      MarkSet marks = mark_set;
+      if (marks != null) marks.add(getMarkKey(node.getHash()));
+      inner.save(node);
+    }
+    finally
+    {
+      barrier_lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public TrieNode load(ByteString key)
+  {
+    return inner.load(key);
+  }
+
+  @Override
+  public Map<ByteString, TrieNode> loadMulti(Collection<ByteString> keys)
+  {
+    return inner.loadMulti(keys);
+  }
+
+  @Override
+  public void remove(ByteString key)
+  {
+    inner.remove(key);
+  }
+
+  @Override
+  public void bulkSave(TreeMap<ByteString, TrieNode> updates)
+  {
+    barrier_lock.readLock().lock();
+    try
+    {
+      MarkSet marks = mark_set;
+      if (marks != null)
+      {
+        for(ByteString key : updates.keySet())
+        {
+          marks.add(getMarkKey(key));
+        }
+      }
+      inner.bulkSave(updates);
+    }
+    finally
+    {
+      barrier_lock.readLock().unlock();
+    }
+  }
+
+  public long getBytesReclaimed() { return bytes_reclaimed.get(); }
+  public long getNodesReclaimed() { return nodes_reclaimed.get(); }
+  public long getCycleCount() { return cycles.get(); }
+
+  /**
+   * Run a full prune cycle.  Blocks the calling thread until done,
+   * but only briefly blocks writers to the trie.
+   *
+   * Only safe if nothing can write a node that ends up under a new root
+   * between the caller picking retained_roots and this call.
+   * Otherwise use beginCycle() before picking the roots and then markAndSweep().
+   *
+   * @param retained_roots every root that must remain fully readable
+   * @param sweep_pause_ms time to sleep between sweep pieces to limit the IO load
+   * @return bytes reclaimed by this cycle
+   */
+  public synchronized long prune(Collection<ByteString> retained_roots, long sweep_pause_ms)
+    throws InterruptedException
+  {
+    beginCycle();
+    return markAndSweep(retained_roots, sweep_pause_ms);
+  }
+
+  /**
+   * Start a prune cycle by turning on the write barrier.  Every node saved
+   * from here until the cycle ends is kept, so the retained roots should be
+   * picked after this returns.
+   */
+  public synchronized void beginCycle()
+  {
+    if (mark_set != null) throw new IllegalStateException("Trie prune cycle already running");
+    mark_set = new MarkSet();
+  }
+
+  /**
+   * Mark everything reachable from the retained roots and sweep the rest.
+   * Ends the cycle started by beginCycle(), even on failure.
+   *
+   * @param retained_roots every root that must remain fully readable
+   * @param sweep_pause_ms time to sleep between sweep pieces to limit the IO load
+   * @return bytes reclaimed by this cycle
+   */
+  public synchronized long markAndSweep(Collection<ByteString> retained_roots, long sweep_pause_ms)
+    throws InterruptedException
+  {
+    MarkSet marks = mark_set;
+    if (marks == null) throw new IllegalStateException("Trie prune cycle not started");
+
+    long start_bytes = bytes_reclaimed.get();
+    long t1 = System.currentTimeMillis();
+
+    try
+    {
+      // The empty root is needed to open the trie and for shard utxo resets
+      mark(marks, HashUtils.hashOfEmpty());
+      for(ByteString root : retained_roots)
+      {
+        mark(marks, root);
+      }
+      long t2 = System.currentTimeMillis();
+      logger.fine(String.format("Trie prune marked %d nodes from %d roots in %d ms", marks.size(), retained_roots.size(), t2 - t1));
+
+      sweep(marks, sweep_pause_ms);
+    }
+    finally
+    {
+      endCycle();
+    }
+    cycles.incrementAndGet();
+
+    long reclaimed = bytes_reclaimed.get() - start_bytes;
+    long t3 = System.currentTimeMillis();
+    logger.info(String.format("Trie prune reclaimed %d bytes in %d ms", reclaimed, t3 - t1));
+    return reclaimed;
+  }
+
+  /**
+   * Turn off the write barrier without sweeping.  Does nothing if no cycle is running.
+   */
+  public synchronized void endCycle()
+  {
+    mark_set = null;
+  }
+
+  public boolean isCycleRunning()
+  {
+    return mark_set != null;
+  }
+
+  private void mark(MarkSet marks, ByteString root)
+  {
+    LinkedList<ByteString> stack = new LinkedList<>();
+
+    if (!marks.add(getMarkKey(root))) return;
+    stack.push(root);
+
+    while(stack.size() > 0)
+    {
+      ByteString hash = stack.pop();
+
+      // Read directly rather than through inner so a full walk doesn't flush any cache
+      ByteString data = db_map.get(hash);
+      if (data == null)
+      {
+        logger.warning(String.format("Trie prune missing node %s", HashUtils.getHexString(hash)));
+        continue;
+      }
+      TrieNode node;
+      try
+      {
+        node = TrieNode.parseFrom(data);
+      }
+      catch(InvalidProtocolBufferException e)
+      {
+        throw new RuntimeException(e);
+      }
+
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        // Already marked means the whole subtree is marked (or on the stack)
+        if (marks.add(getMarkKey(ce.getHash())))
+        {
+          stack.push(ce.getHash());
+        }
+      }
+    }
+  }
+
+  private void sweep(MarkSet marks, long sweep_pause_ms)
+    throws InterruptedException
+  {
+    ByteString cursor = ByteString.EMPTY;
+
+    while(true)
+    {
+      SortedMap<ByteString, ByteString> piece = db_map.getRangeFrom(cursor, SWEEP_CHUNK);
+      if (piece.isEmpty()) return;
+
+      barrier_lock.writeLock().lock();
+      try
+      {
+        // Recheck under the lock, anything saved since we read the piece is marked now
+        for(Map.Entry<ByteString, ByteString> me : piece.entrySet())
+        {
+          if (!marks.contains(getMarkKey(me.getKey())))
+          {
+            inner.remove(me.getKey());
+            bytes_reclaimed.addAndGet(me.getKey().size() + me.getValue().size());
+            nodes_reclaimed.incrementAndGet();
+          }
+        }
+      }
+      finally
+      {
+        barrier_lock.writeLock().unlock();
+      }
+
+      if (piece.size() < SWEEP_CHUNK) return;
+
+      // Next key after the last one we have seen
+      cursor = piece.lastKey().concat(ByteString.copyFrom(new byte[1]));
+
+      if (sweep_pause_ms > 0L) Thread.sleep(sweep_pause_ms);
+    }
+  }
+
+  /**
+   * Nodes are referenced by the first 128 bits of their hash.
+   * Short keys (like the empty root) are zero padded.
+   */
+  private static long[] getMarkKey(ByteString hash)
+  {
+    byte[] b = new byte[16];
+    hash.substring(0, Math.min(16, hash.size())).copyTo(b, 0);
+    ByteBuffer bb = ByteBuffer.wrap(b);
+    return new long[]{ bb.getLong(), bb.getLong() };
+  }
+
+  /**
+   * Minimal open addressing set of 128-bit values, to keep the mark set
+   * small for tries with many millions of nodes
+   */
+  protected static class MarkSet
+  {
+    // All zero is used as the empty marker, so it is tracked on the side
+    private long[] table_hi = new long[1 << 16];
+    private long[] table_lo = new long[1 << 16];
+    private int size;
+    private boolean has_zero;
+
+    public synchronized boolean add(long[] v)
+    {
+      if ((v[0] == 0L) && (v[1] == 0L))
+      {
+        if (has_zero) return false;
+        has_zero = true;
+        return true;
+      }
+      if ((size + 1) * 2 > table_hi.length) grow();
+      if (insert(table_hi, table_lo, v[0], v[1]))
+      {
+        size++;
+        return true;
+      }
+      return false;
+    }
+
+    public synchronized boolean contains(long[] v)
+    {
+      if ((v[0] == 0L) && (v[1] == 0L)) return has_zero;
+      int mask = table_hi.length - 1;
+      int idx = mix(v[0], v[1]) & mask;
+      while((table_hi[idx] != 0L) || (table_lo[idx] != 0L))
+      {
+        if ((table_hi[idx] == v[0]) && (table_lo[idx] == v[1])) return true;
+        idx = (idx + 1) & mask;
+      }
+      return false;
+    }
+
+    public synchronized int size()
+    {
+      return size + (has_zero ? 1 : 0);
+    }
+
+    private static boolean insert(long[] t_hi, long[] t_lo, long hi, long lo)
+    {
+      int mask = t_hi.length - 1;
+      int idx = mix(hi, lo) & mask;
+      while((t_hi[idx] != 0L) || (t_lo[idx] != 0L))
+      {
+        if ((t_hi[idx] == hi) && (t_lo[idx] == lo)) return false;
+        idx = (idx + 1) & mask;
+      }
+      t_hi[idx] = hi;
+      t_lo[idx] = lo;
+      return true;
+    }
+
+    private void grow()
+    {
+      long[] n_hi = new long[table_hi.length * 2];
+      long[] n_lo = new long[table_lo.length * 2];
+      for(int i=0; i<table_hi.length; i++)
+      {
+        if ((table_hi[i] != 0L) || (table_lo[i] != 0L)) insert(n_hi, n_lo, table_hi[i], table_lo[i]);
+      }
+      table_hi = n_hi;
+      table_lo = n_lo;
+    }
+
+    private static int mix(long hi, long lo)
+    {
+      long v = hi ^ lo;
+      return (int)(v ^ (v >>> 32));
+    }
+  }
+
+}
@@ -0,0 +1,157 @@
+package snowblossom.lib.trie;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
+
+/**
+ * Walks the subtree under a prefix in key order, a piece at a time.
+ *
+ * A node's prefix is a prefix of all its children's, so visiting a node
+ * before its children in key order gives every node in key order.
+ * That way the last prefix returned is all a caller needs to pick up where it left off.
+ *
+ * The proof is the nodes from the root down to the subtree, and when resuming,
+ * the nodes in the subtree on the way down to resume_after.  With those a caller
+ * can check every returned node hashes up to the root without the earlier pieces.
+ */
+public class TrieScan
+{
+  private final TrieDB db;
+  private final ByteString resume_after;
+  private final ArrayDeque<ChildEntry> stack = new ArrayDeque<>();
+  private LinkedList<TrieNode> proof = new LinkedList<>();
+
+  /**
+   * @param resume_after only return nodes after this prefix, empty for all.
+   * Since the root prefix is also empty, resuming right after the root sends it again.
+   */
+  public TrieScan(TrieDB db, ByteString root_hash, ByteString target_key, ByteString resume_after)
+  {
+    this.db = db;
+    if (resume_after.size() > 0)
+    {
+      this.resume_after = resume_after;
+    }
+    else
+    {
+      this.resume_after = null;
+    }
+
+    ChildEntry top = findSubtree(db, root_hash, target_key, proof);
+    if (top != null) stack.push(top);
+  }
+
+  /**
+   * Walks down from the root to the first node at or under target_key.
+   * The nodes passed on the way are added to proof.
+   * @return that node's full prefix and hash as a ChildEntry, or null if there is nothing under target_key
+   */
+  static ChildEntry findSubtree(TrieDB db, ByteString root_hash, ByteString target_key, List<TrieNode> proof)
+  {
+    TrieNode node = load(db, root_hash);
+    while(node != null)
+    {
+      if (node.getPrefix().startsWith(target_key))
+      {
+        // Full prefix as key, saves tracking the parent
+        return ChildEntry.newBuilder().setKey(node.getPrefix()).setHash(node.getHash()).build();
+      }
+      proof.add(node);
+
+      TrieNode next = null;
+      for(ChildEntry ce : node.getChildrenList())
+      {
+        ByteString p = node.getPrefix().concat(ce.getKey());
+        if ((target_key.startsWith(p)) || (p.startsWith(target_key)))
+        {
+          next = load(db, ce.getHash());
+          break;
+        }
+      }
+      node = next;
+    }
+    return null;
+  }
+
+  /**
+   * @return up to max_results more nodes in key order, empty when done
+   */
+  public List<TrieNode> next(int max_results)
+  {
+    LinkedList<TrieNode> results = new LinkedList<>();
+
+    while((results.size() < max_results) && (!stack.isEmpty()))
+    {
+      ChildEntry entry = stack.pop();
+      ByteString p = entry.getKey();
+
+      boolean after = (resume_after == null) || (ByteStringComparator.compareStatic(p, resume_after) > 0);
+      if ((!after) && (!resume_after.startsWith(p)))
+      {
+        // Whole subtree is before the resume point
+        continue;
+      }
+
+      TrieNode node = load(db, entry.getHash());
+      if (after)
+      {
+        results.add(node);
+      }
+      else
+      {
+        proof.add(node);
+      }
+
+      pushChildren(stack, node);
+    }
+
+    return results;
+  }
+
+  public boolean isDone()
+  {
+    return stack.isEmpty();
+  }
+
+  /**
+   * @return proof nodes found since the last call
+   */
+  public List<TrieNode> takeProof()
+  {
+    LinkedList<TrieNode> p = proof;
+    proof = new LinkedList<>();
+    return p;
+  }
+
+  /**
+   * Push the node's children with full prefixes, last to first so they pop in key order
+   */
+  static void pushChildren(ArrayDeque<ChildEntry> stack, TrieNode node)
+  {
+    TreeMap<ByteString, ChildEntry> sorted = new TreeMap<>(new ByteStringComparator());
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      sorted.put(ce.getKey(), ce);
+    }
+    for(ChildEntry ce : sorted.descendingMap().values())
+    {
+      stack.push(ChildEntry.newBuilder().setKey(node.getPrefix().concat(ce.getKey())).setHash(ce.getHash()).build());
+    }
+  }
+
+  static TrieNode load(TrieDB db, ByteString hash)
+  {
+    TrieNode node = db.load(hash);
+    if (node == null)
+    {
+      throw new RuntimeException(String.format("Referenced node %s not in database", HashUtils.getHexString(hash)));
+    }
+    return node;
+  }
+
+}
@@ -9,6 +9,7 @@ import org.junit.Test;
 import snowblossom.lib.ChainHash;
 import snowblossom.lib.DigestUtil;
 import snowblossom.lib.Globals;
+import snowblossom.lib.HexUtil;
 
 public class DigestUtilTest
 {
@@ -145,4 +146,17 @@ public class DigestUtilTest
     return r;
   }
   
+  @Test
+  public void testSelectedProviders()
+  {
+    DigestUtil.selectProviders();
+    Assert.assertEquals("BC", DigestUtil.getProviderMap().get(Globals.BLOCKCHAIN_HASH_ALGO));
+    Assert.assertTrue(DigestUtil.getProviderMap().containsKey(DigestUtil.TRIE_HASH_ALGO));
+
+    // Whichever provider won, the hash is the same
+    MessageDigest md = DigestUtil.getInstance(DigestUtil.TRIE_HASH_ALGO);
+    byte[] h = md.digest("abc".getBytes());
+    Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", HexUtil.getHexString(h));
+  }
+
 }
@@ -0,0 +1,125 @@
+package lib.test;
+
+import com.google.protobuf.ByteString;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.Random;
+import org.junit.Test;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.Globals;
+import snowblossom.lib.PowUtil;
+import snowblossom.proto.BlockHeader;
+
+/**
+ * Hashes per second and bytes allocated per hash for the PoW inner loop,
+ * minus the field reads.  Compares the old allocating calls with the
+ * header suffix and reused buffers the miners now use.
+ *
+ * Not run by default:
+ *   bazel test --test_output=all //lib:lib.test.PowLoopBenchTest
+ */
+public class PowLoopBenchTest
+{
+  public static final long RUN_MS = 5000L;
+  public static final long TOTAL_WORDS = 1L << 33;
+
+  @Test
+  public void benchLoop()
+  {
+    Globals.addCryptoProvider();
+    Random rnd = new Random();
+    byte[] b = new byte[32];
+
+    BlockHeader.Builder header = BlockHeader.newBuilder()
+      .setVersion(2)
+      .setBlockHeight(100000)
+      .setTimestamp(System.currentTimeMillis())
+      .setSnowField(10);
+    rnd.nextBytes(b); header.setPrevBlockHash(ByteString.copyFrom(b));
+    rnd.nextBytes(b); header.setMerkleRootHash(ByteString.copyFrom(b));
+    rnd.nextBytes(b); header.setUtxoRootHash(ByteString.copyFrom(b));
+    header.setTarget(ByteString.copyFrom(new byte[32]));
+    header.setNonce(ByteString.copyFrom(new byte[Globals.NONCE_LENGTH]));
+
+    BlockHeader h = header.build();
+
+    // Warm up both, then measure
+    runOld(h, 1000L);
+    runNew(h, 1000L);
+    report("allocating", h, false);
+    report("zero-alloc", h, true);
+  }
+
+  private void report(String name, BlockHeader h, boolean zero_alloc)
+  {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().getId();
+
+    long alloc_start = mx.getThreadAllocatedBytes(tid);
+    long ops;
+    if (zero_alloc) ops = runNew(h, RUN_MS);
+    else ops = runOld(h, RUN_MS);
+    long alloc = mx.getThreadAllocatedBytes(tid) - alloc_start;
+
+    System.out.println(String.format("%s: %.0f hashes/s on one thread, %.1f bytes allocated per hash",
+      name, ops * 1000.0 / RUN_MS, (double)alloc / ops));
+  }
+
+  private long runOld(BlockHeader h, long run_ms)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    byte[] nonce = new byte[Globals.NONCE_LENGTH];
+    byte[] word = new byte[16];
+    long ops = 0;
+    long end = System.currentTimeMillis() + run_ms;
+
+    while(System.currentTimeMillis() < end)
+    {
+      for(int i=0; i<1000; i++)
+      {
+        nonce[0]++;
+        byte[] context = PowUtil.hashHeaderBits(h, nonce, md);
+        for(int pass=0; pass<Globals.POW_LOOK_PASSES; pass++)
+        {
+          long word_idx = PowUtil.getNextSnowFieldIndex(context, TOTAL_WORDS, md);
+          word[0] = (byte)word_idx;
+          context = PowUtil.getNextContext(context, word, md);
+        }
+        PowUtil.lessThanTarget(context, h.getTarget());
+        ops++;
+      }
+    }
+    return ops;
+  }
+
+  private long runNew(BlockHeader h, long run_ms)
+  {
+    MessageDigest md = DigestUtil.getMD();
+    PowUtil.HeaderSuffixCache header_cache = new PowUtil.HeaderSuffixCache();
+    byte[] nonce = new byte[Globals.NONCE_LENGTH];
+    byte[] word = new byte[16];
+    byte[] context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    byte[] tmp_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    long ops = 0;
+    long end = System.currentTimeMillis() + run_ms;
+
+    while(System.currentTimeMillis() < end)
+    {
+      for(int i=0; i<1000; i++)
+      {
+        nonce[0]++;
+        PowUtil.hashHeaderBits(header_cache.getSuffix(h), nonce, md, context);
+        for(int pass=0; pass<Globals.POW_LOOK_PASSES; pass++)
+        {
+          long word_idx = PowUtil.getNextSnowFieldIndex(context, TOTAL_WORDS, md, tmp_buff);
+          word[0] = (byte)word_idx;
+          PowUtil.getNextContext(context, word, md, context);
+        }
+        PowUtil.lessThanTarget(context, h.getTarget());
+        ops++;
+      }
+    }
+    return ops;
+  }
+
+}
@@ -1,10 +1,13 @@
 package lib.test;
 
+import com.google.protobuf.ByteString;
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
 import snowblossom.lib.BlockchainUtil;
+import snowblossom.lib.DigestUtil;
 import snowblossom.lib.Globals;
 import snowblossom.lib.HexUtil;
 import snowblossom.lib.NetworkParams;
@@ -231,4 +234,73 @@ public class PowUtilTest
   }
 
 
+
+  @Test
+  public void testHeaderSuffixHash()
+  {
+    Random rnd=new Random(1177L);
+    BlockHeader.Builder header = BlockHeader.newBuilder()
+      .setVersion(2)
+      .setBlockHeight(9933)
+      .setTimestamp(1558000000000L)
+      .setSnowField(7)
+      .setPrevBlockHash(randomBytes(rnd, 32))
+      .setMerkleRootHash(randomBytes(rnd, 32))
+      .setUtxoRootHash(randomBytes(rnd, 32))
+      .setTarget(randomBytes(rnd, 32))
+      .setShardId(3)
+      .setTxDataSizeSum(88000)
+      .setTxCount(12)
+      .putShardExportRootHash(5, randomBytes(rnd, 32))
+      .putShardExportRootHash(6, randomBytes(rnd, 32));
+
+    BlockImportList.Builder bil = BlockImportList.newBuilder();
+    bil.putHeightMap(40, randomBytes(rnd, 32));
+    bil.putHeightMap(41, randomBytes(rnd, 32));
+    header.putShardImport(4, bil.build());
+
+    MessageDigest md = DigestUtil.getMD();
+    byte[] suffix = PowUtil.getHeaderSuffix(header.build());
+    byte[] out = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+
+    for(int i=0; i<4; i++)
+    {
+      byte[] nonce = new byte[Globals.NONCE_LENGTH];
+      rnd.nextBytes(nonce);
+      header.setNonce(ByteString.copyFrom(nonce));
+
+      PowUtil.hashHeaderBits(suffix, nonce, md, out);
+      Assert.assertArrayEquals(PowUtil.hashHeaderBits(header.build(), nonce), out);
+    }
+  }
+
+  @Test
+  public void testLessThanTarget()
+  {
+    byte[] target = new byte[32];
+    target[2] = (byte)0x80;
+    ByteString target_bs = ByteString.copyFrom(target);
+
+    byte[] found = new byte[32];
+    found[2] = (byte)0x7f;
+    found[31] = (byte)0xff;
+    Assert.assertTrue(PowUtil.lessThanTarget(found, target_bs));
+
+    found[2] = (byte)0x80;
+    Assert.assertFalse(PowUtil.lessThanTarget(found, target_bs));
+
+    found[31] = 0;
+    Assert.assertFalse(PowUtil.lessThanTarget(found, target_bs));
+
+    found[2] = (byte)0x90;
+    Assert.assertFalse(PowUtil.lessThanTarget(found, target_bs));
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
 }
@@ -11,6 +11,7 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.HexUtil;
 import snowblossom.lib.SnowFall;
 import snowblossom.lib.SnowMerkle;
 
@@ -36,6 +37,8 @@ public class SnowFallMerkleTest
 
     checkFile(snow);
 
+    Assert.assertTrue(SnowMerkle.verify(tmp_dir, "test", HexUtil.hexStringToBytes(expected)));
+
     deck.renameTo(new File(tmp_dir, "snowdeck.snow"));
 
     // The deck file should have the exact same merkle root hash
@@ -75,6 +78,28 @@ public class SnowFallMerkleTest
     testSize(64, "zing", "f8ca73a8cc7076dc9823caebbcadbf79");
   }
  
+  @Test
+  public void testCheckpointResume() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+    String path = tmp_dir.getAbsolutePath() +"/test.snow";
+    long size = 8 * 1048576L;
+
+    try
+    {
+      new SnowFall(path, "zing", size, true, 4, 30);
+      Assert.fail();
+    }
+    catch(RuntimeException e){}
+    Assert.assertTrue(new File(path + ".checkpoint").exists());
+
+    // Pages written after the last checkpoint get rolled back, then it carries on
+    new SnowFall(path, "zing", size, true);
+    Assert.assertFalse(new File(path + ".checkpoint").exists());
+
+    Assert.assertEquals("10d0a3be329d4b490d18c6295b08f77e", new SnowMerkle(tmp_dir, "test", true).getRootHashStr());
+  }
+
   @Test
   public void testTeapot8MB() throws Exception
   {
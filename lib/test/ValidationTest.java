@@ -183,6 +183,75 @@ public class ValidationTest
   }
 
 
+  @Test
+  public void testParallelSignatureCheck()
+    throws Exception
+  {
+    byte[] data = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(data);
+    ByteString signed_data = ByteString.copyFrom(data);
+
+    ArrayList<SignatureVerifier.SigCheck> checks = new ArrayList<>();
+    for(int i=0; i<16; i++)
+    {
+      KeyPair key_pair = KeyUtil.generateECCompressedKey();
+      SigSpec sig_spec = SigSpec.newBuilder()
+        .setSignatureType(SignatureUtil.SIG_TYPE_ECDSA)
+        .setPublicKey(ByteString.copyFrom(key_pair.getPublic().getEncoded()))
+        .build();
+
+      Signature sig_engine = Signature.getInstance("ECDSA");
+      sig_engine.initSign(key_pair.getPrivate());
+      sig_engine.update(data);
+
+      checks.add(new SignatureVerifier.SigCheck(sig_spec, signed_data, ByteString.copyFrom(sig_engine.sign())));
+    }
+
+    SignatureVerifier.verifyAll(checks);
+
+    // Swap in a signature from a different key, which must fail
+    SignatureVerifier.SigCheck good = checks.get(11);
+    checks.set(11, new SignatureVerifier.SigCheck(good.getSigSpec(), good.getSignedData(), checks.get(3).getSignature()));
+
+    try
+    {
+      SignatureVerifier.verifyAll(checks);
+      Assert.fail("bad signature passed");
+    }
+    catch(ValidationException e)
+    {
+    }
+  }
+
+  @Test
+  public void testSignatureCache()
+    throws Exception
+  {
+    byte[] hash = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    rnd.nextBytes(hash);
+    byte[] sig = new byte[64];
+    rnd.nextBytes(sig);
+
+    Transaction tx = Transaction.newBuilder()
+      .setTxHash(ByteString.copyFrom(hash))
+      .addSignatures(SignatureEntry.newBuilder().setSignature(ByteString.copyFrom(sig)).build())
+      .build();
+
+    Assert.assertFalse(SignatureCache.isVerified(tx));
+    SignatureCache.markVerified(tx);
+    Assert.assertTrue(SignatureCache.isVerified(tx));
+
+    // Same tx hash with different signatures must not match
+    sig[0]++;
+    Transaction tx_alt = Transaction.newBuilder(tx)
+      .setSignatures(0, SignatureEntry.newBuilder().setSignature(ByteString.copyFrom(sig)).build())
+      .build();
+    Assert.assertFalse(SignatureCache.isVerified(tx_alt));
+
+    SignatureCache.forget(new ChainHash(hash));
+    Assert.assertFalse(SignatureCache.isVerified(tx));
+  }
+
   @Test
   public void testTxOutCoding()
     throws Exception
@@ -0,0 +1,284 @@
+package lib.test.db;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBMapMutationSet;
+import snowblossom.lib.db.DBWriteBatch;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.HashUtils;
+
+public class DBWriteBatchTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void testSharedDB() throws Exception
+  {
+    testBatch(new TreeMap<>());
+  }
+
+  @Test
+  public void testColumnFamilies() throws Exception
+  {
+    TreeMap<String, String> extra = new TreeMap<>();
+    extra.put("db_column_families", "true");
+    extra.put("db_sync", "sync");
+    testBatch(extra);
+  }
+
+  @Test
+  public void testSeparateDBs() throws Exception
+  {
+    TreeMap<String, String> extra = new TreeMap<>();
+    extra.put("db_separate", "true");
+    extra.put("db_sync", "group");
+    testBatch(extra);
+  }
+
+  private void testBatch(Map<String, String> extra) throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    config_map.putAll(extra);
+
+    JRocksDB prov = new JRocksDB(new ConfigMem(config_map));
+    try
+    {
+      DBMap a = prov.openMap("a");
+      DBMap b = prov.openMap("b");
+      DBMapMutationSet set = prov.openMutationMapSet("s");
+
+      ByteString k = ByteString.copyFromUtf8("key");
+      ByteString v = ByteString.copyFromUtf8("value");
+
+      // Dropped without commit
+      try(DBWriteBatch batch = prov.startBatch())
+      {
+        a.put(k, v);
+        set.add(k, v);
+      }
+      Assert.assertNull(a.get(k));
+      Assert.assertEquals(0, set.getSet(k, 10).size());
+
+      // Nothing shows until commit, then all of it
+      try(DBWriteBatch batch = prov.startBatch())
+      {
+        a.put(k, v);
+        TreeMap<ByteString, ByteString> m = new TreeMap<>();
+        m.put(k, v);
+        b.putAll(m);
+        set.add(k, v);
+
+        // Another thread writes straight through
+        Thread t = new Thread(() -> a.put(v, k));
+        t.start();
+        t.join();
+        Assert.assertEquals(k, a.get(v));
+
+        Assert.assertNull(a.get(k));
+        Assert.assertNull(b.get(k));
+        Assert.assertEquals(0, set.getSet(k, 10).size());
+
+        batch.commit();
+      }
+      Assert.assertEquals(v, a.get(k));
+      Assert.assertEquals(v, b.get(k));
+      Assert.assertEquals(1, set.getSet(k, 10).size());
+
+      // Removes in a batch too, and closed batches leave the thread writing directly again
+      try(DBWriteBatch batch = prov.startBatch())
+      {
+        a.remove(k);
+        set.remove(k, v);
+        Assert.assertEquals(v, a.get(k));
+        batch.commit();
+      }
+      Assert.assertNull(a.get(k));
+      Assert.assertEquals(0, set.getSet(k, 10).size());
+
+      b.put(v, v);
+      Assert.assertEquals(v, b.get(v));
+    }
+    finally
+    {
+      prov.close();
+    }
+  }
+
+  @Test
+  public void testGroupSyncTimeBound() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    config_map.put("db_sync", "group");
+    config_map.put("db_sync_group_ms", "100");
+
+    JRocksDB prov = new JRocksDB(new ConfigMem(config_map));
+    try
+    {
+      DBMap a = prov.openMap("a");
+      ByteString k = ByteString.copyFromUtf8("key");
+
+      // First one syncs, the next is inside the window so it waits
+      for(int i=0; i<2; i++)
+      {
+        try(DBWriteBatch batch = prov.startBatch())
+        {
+          a.put(k, ByteString.copyFromUtf8("v" + i));
+          batch.commit();
+        }
+      }
+      Assert.assertTrue(prov.hasUnsyncedCommits());
+
+      // With no more batches coming, the sync thread takes care of it
+      for(int i=0; (i<50) && prov.hasUnsyncedCommits(); i++)
+      {
+        Thread.sleep(20);
+      }
+      Assert.assertFalse(prov.hasUnsyncedCommits());
+    }
+    finally
+    {
+      prov.close();
+    }
+  }
+
+  @Test
+  public void testAbortHooks() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+
+    JRocksDB prov = new JRocksDB(new ConfigMem(config_map));
+    try
+    {
+      AtomicInteger aborts = new AtomicInteger(0);
+      Assert.assertNull(prov.getOpenBatch());
+
+      try(DBWriteBatch batch = prov.startBatch())
+      {
+        Assert.assertSame(batch, prov.getOpenBatch());
+        batch.onAbort(() -> aborts.incrementAndGet());
+        batch.commit();
+      }
+      Assert.assertEquals(0, aborts.get());
+      Assert.assertNull(prov.getOpenBatch());
+
+      try(DBWriteBatch batch = prov.startBatch())
+      {
+        batch.onAbort(() -> aborts.incrementAndGet());
+      }
+      Assert.assertEquals(1, aborts.get());
+    }
+    finally
+    {
+      prov.close();
+    }
+  }
+
+  /**
+   * Trie nodes written in a batch that gets dropped must not be left in the
+   * trie cache, where they would look saved to anything reading through the DB
+   */
+  @Test
+  public void testAbortDropsTrieCache() throws Exception
+  {
+    testTrieCache(false);
+  }
+
+  @Test
+  public void testCommitKeepsTrieCache() throws Exception
+  {
+    testTrieCache(true);
+  }
+
+  private void testTrieCache(boolean commit) throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    config_map.put("db_column_families", "true");
+    ConfigMem config = new ConfigMem(config_map);
+
+    Random rnd = new Random(44L);
+    ByteString empty = HashUtils.hashOfEmpty();
+
+    HashMap<ByteString, ByteString> utxo_updates = new HashMap<>();
+    HashMap<ByteString, ByteString> chain_index_updates = new HashMap<>();
+    for(int i=0; i<1000; i++)
+    {
+      utxo_updates.put(randomBytes(rnd, 20), randomBytes(rnd, 40));
+      chain_index_updates.put(randomBytes(rnd, 20), randomBytes(rnd, 8));
+    }
+
+    DB db = new DB(config, new JRocksDB(config));
+    try
+    {
+      Assert.assertNotNull(db.getUtxoTrieCache());
+      ByteString utxo_root = db.getUtxoHashedTrie().simulateMerge(empty, utxo_updates);
+      ByteString chain_index_root;
+
+      try(DBWriteBatch batch = db.startBatch())
+      {
+        // bulkSave path, same as commitIfEqual in deepBlockValidation
+        Assert.assertTrue(db.getUtxoHashedTrie().mergeIfNewRoot(empty, utxo_updates, utxo_root));
+        // save path
+        chain_index_root = db.getChainIndexTrie().mergeBatch(empty, chain_index_updates);
+
+        // Cached while the batch is open, same as a read from the merge itself would want
+        Assert.assertNotNull(db.getUtxoTrieCache().load(utxo_root));
+
+        if (commit) batch.commit();
+      }
+
+      ByteString utxo_key = utxo_updates.keySet().iterator().next();
+      ByteString chain_index_key = chain_index_updates.keySet().iterator().next();
+      if (commit)
+      {
+        Assert.assertEquals(utxo_updates.get(utxo_key), db.getUtxoHashedTrie().getLeafData(utxo_root, utxo_key));
+        Assert.assertEquals(chain_index_updates.get(chain_index_key),
+          db.getChainIndexTrie().getLeafData(chain_index_root, chain_index_key));
+      }
+      else
+      {
+        Assert.assertNull(db.getUtxoTrieCache().load(utxo_root));
+        Assert.assertNull(db.getChainIndexTrieCache().load(chain_index_root));
+        try
+        {
+          db.getUtxoHashedTrie().getLeafData(utxo_root, utxo_key);
+          Assert.fail();
+        }
+        catch(RuntimeException e){}
+
+        // And it can still be written for real after
+        try(DBWriteBatch batch = db.startBatch())
+        {
+          Assert.assertTrue(db.getUtxoHashedTrie().mergeIfNewRoot(empty, utxo_updates, utxo_root));
+          batch.commit();
+        }
+        Assert.assertEquals(utxo_updates.get(utxo_key), db.getUtxoHashedTrie().getLeafData(utxo_root, utxo_key));
+      }
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
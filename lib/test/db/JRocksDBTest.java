@@ -0,0 +1,136 @@
+package lib.test.db;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.io.File;
+import java.util.TreeMap;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+
+public class JRocksDBTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private static final String SHARED = "shared";
+  private static final String CF = "column_families";
+  private static final String SEPARATE = "separate";
+  private static final String[] LAYOUTS = new String[]{SHARED, CF, SEPARATE};
+
+  @Test
+  public void testSharedLayout() throws Exception
+  {
+    testLayout(SHARED);
+  }
+
+  @Test
+  public void testColumnFamilyLayout() throws Exception
+  {
+    testLayout(CF);
+  }
+
+  @Test
+  public void testSeparateLayout() throws Exception
+  {
+    testLayout(SEPARATE);
+  }
+
+  /**
+   * A db from before there was a marker gets one from what is on disk
+   */
+  @Test
+  public void testNoMarker() throws Exception
+  {
+    for(String layout : LAYOUTS)
+    {
+      File path = testFolder.newFolder();
+      create(path, layout);
+      File marker = new File(path, JRocksDB.LAYOUT_FILE);
+      Assert.assertTrue(marker.delete());
+
+      for(String other : LAYOUTS)
+      {
+        if (!other.equals(layout)) expectRefused(path, other);
+      }
+      Assert.assertFalse(marker.exists());
+
+      JRocksDB.checkLayout(path, layout);
+      Assert.assertTrue(marker.exists());
+      JRocksDB.checkLayout(path, layout);
+    }
+  }
+
+  @Test
+  public void testEmptyPath() throws Exception
+  {
+    File path = testFolder.newFolder();
+    JRocksDB.checkLayout(path, CF);
+    expectRefused(path, SHARED);
+    JRocksDB.checkLayout(path, CF);
+  }
+
+  private void testLayout(String layout) throws Exception
+  {
+    File path = testFolder.newFolder();
+    create(path, layout);
+    Assert.assertTrue(new File(path, JRocksDB.LAYOUT_FILE).exists());
+
+    for(String other : LAYOUTS)
+    {
+      if (other.equals(layout)) continue;
+      expectRefused(path, other);
+
+      // The whole open, not just the check
+      try
+      {
+        open(path, other);
+        Assert.fail("Opened " + layout + " as " + other);
+      }
+      catch(RuntimeException e){}
+    }
+
+    // Still fine in the mode it was made in
+    JRocksDB.checkLayout(path, layout);
+  }
+
+  private void create(File path, String layout) throws Exception
+  {
+    JRocksDB prov = open(path, layout);
+    try
+    {
+      Assert.assertEquals(layout, prov.getLayout());
+      DBMap m = prov.openMap("block");
+      m.put(ByteString.copyFromUtf8("k"), ByteString.copyFromUtf8(layout));
+      Assert.assertEquals(ByteString.copyFromUtf8(layout), m.get(ByteString.copyFromUtf8("k")));
+    }
+    finally
+    {
+      prov.close();
+    }
+  }
+
+  private void expectRefused(File path, String layout) throws Exception
+  {
+    try
+    {
+      JRocksDB.checkLayout(path, layout);
+      Assert.fail("Allowed as " + layout);
+    }
+    catch(RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("layout"));
+    }
+  }
+
+  private static JRocksDB open(File path, String layout) throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", path.getPath());
+    if (layout.equals(CF)) config_map.put("db_column_families", "true");
+    if (layout.equals(SEPARATE)) config_map.put("db_separate", "true");
+    return new JRocksDB(new ConfigMem(config_map));
+  }
+
+}
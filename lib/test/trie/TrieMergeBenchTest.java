@@ -0,0 +1,106 @@
+package lib.test.trie;
+
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.Globals;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMem;
+
+/**
+ * Merge throughput against update batch size and thread count,
+ * on a trie the shape of a UTXO set.
+ *
+ * Not run by default:
+ *   bazel test --test_output=all //lib:lib.test.trie.TrieMergeBenchTest
+ */
+public class TrieMergeBenchTest
+{
+  public static final int BASE_KEYS = 200000;
+  public static final int[] BATCH_SIZES = {100, 1000, 10000, 100000};
+  public static final int PARALLEL_MIN = 1024;
+  public static final long RUN_MS = 3000L;
+
+  @Test
+  public void benchMerge()
+  {
+    Random rnd = new Random(92L);
+    TrieDBMem db = new TrieDBMem();
+    HashedTrie trie = new HashedTrie(db, true, false);
+
+    ArrayList<ByteString> existing = new ArrayList<>();
+    Map<ByteString, ByteString> base = new HashMap<>();
+    for(int i=0; i<BASE_KEYS; i++)
+    {
+      ByteString k = randomBytes(rnd, Globals.UTXO_KEY_LEN);
+      base.put(k, randomBytes(rnd, 40));
+      existing.add(k);
+    }
+    ByteString root = trie.mergeBatch(HashUtils.hashOfEmpty(), base);
+
+    ArrayList<Integer> thread_counts = new ArrayList<>();
+    int cores = Runtime.getRuntime().availableProcessors();
+    for(int t=1; t<cores; t*=2) thread_counts.add(t);
+    thread_counts.add(cores);
+
+    for(int batch_size : BATCH_SIZES)
+    {
+      // Like a block, half spends and half new outputs
+      Map<ByteString, ByteString> updates = new HashMap<>();
+      for(int i=0; i<batch_size/2; i++)
+      {
+        updates.put(existing.get(rnd.nextInt(existing.size())), null);
+      }
+      while(updates.size() < batch_size)
+      {
+        updates.put(randomBytes(rnd, Globals.UTXO_KEY_LEN), randomBytes(rnd, 40));
+      }
+
+      ByteString expected = null;
+      for(int threads : thread_counts)
+      {
+        ForkJoinPool pool = null;
+        if (threads > 1)
+        {
+          pool = new ForkJoinPool(threads);
+        }
+        trie.setParallelMerge(pool, PARALLEL_MIN);
+
+        // Warm up, then measure
+        ByteString result = trie.simulateMerge(root, updates);
+        if (expected == null) expected = result;
+        Assert.assertEquals(expected, result);
+
+        long merges = 0;
+        long t1 = System.nanoTime();
+        long end = System.currentTimeMillis() + RUN_MS;
+        while(System.currentTimeMillis() < end)
+        {
+          trie.simulateMerge(root, updates);
+          merges++;
+        }
+        double sec = (System.nanoTime() - t1) / 1e9;
+
+        System.out.println(String.format("batch %d threads %d: %.1f merges/s %.0f updates/s",
+          batch_size, threads, merges / sec, merges * batch_size / sec));
+
+        if (pool != null) pool.shutdown();
+      }
+    }
+    trie.setParallelMerge(null, PARALLEL_MIN);
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
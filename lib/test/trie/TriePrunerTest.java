@@ -0,0 +1,406 @@
+package lib.test.trie;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBMap;
+import snowblossom.lib.db.DBWriteBatch;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.lib.trie.HashUtils;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBMap;
+import snowblossom.lib.trie.TriePruner;
+
+public class TriePrunerTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private JRocksDB prov;
+
+  private DBMap utxo_map;
+  private DBMap chain_index_map;
+  private TriePruner utxo_pruner;
+  private TriePruner chain_index_pruner;
+  private HashedTrie utxo_trie;
+  private HashedTrie chain_index_trie;
+
+  // Stand in for the chain, one entry per block in each
+  private List<ByteString> utxo_roots = new ArrayList<>();
+  private List<ByteString> chain_index_roots = new ArrayList<>();
+  private HashMap<ByteString, ByteString> utxo_state = new HashMap<>();
+  private HashMap<ByteString, ByteString> chain_index_state = new HashMap<>();
+
+  private Random rnd = new Random(91L);
+
+  @Before
+  public void setupDB()
+    throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    prov = new JRocksDB(new ConfigMem(config_map));
+
+    utxo_map = prov.openMap("u");
+    chain_index_map = prov.openMap("cit");
+
+    utxo_pruner = new TriePruner(new TrieDBMap(utxo_map), utxo_map);
+    chain_index_pruner = new TriePruner(new TrieDBMap(chain_index_map), chain_index_map);
+
+    utxo_trie = new HashedTrie(utxo_pruner, true, false);
+    chain_index_trie = new HashedTrie(chain_index_pruner, true, true);
+
+    utxo_roots.add(HashUtils.hashOfEmpty());
+    chain_index_roots.add(HashUtils.hashOfEmpty());
+  }
+
+  @After
+  public void closeDB()
+  {
+    prov.close();
+  }
+
+  @Test
+  public void testPruneKeepsRetained()
+    throws Exception
+  {
+    for(int i=0; i<20; i++) ingestBlock(200);
+
+    long before = utxo_pruner.getNodesReclaimed();
+    utxo_pruner.prune(lastRoots(utxo_roots, 3), 0L);
+    Assert.assertTrue(utxo_pruner.getNodesReclaimed() > before);
+    Assert.assertFalse(utxo_pruner.isCycleRunning());
+
+    checkState(utxo_trie, last(utxo_roots), utxo_state);
+    // Old roots are gone
+    Assert.assertNull(utxo_map.get(utxo_roots.get(1)));
+  }
+
+  /**
+   * Does what TriePruneThread does, with blocks ingested after the roots are
+   * picked and all through both prunes
+   */
+  @Test
+  public void testIngestDuringPrune()
+    throws Exception
+  {
+    for(int i=0; i<40; i++) ingestBlock(500);
+
+    utxo_pruner.beginCycle();
+    chain_index_pruner.beginCycle();
+
+    List<ByteString> retained_utxo = lastRoots(utxo_roots, 3);
+    List<ByteString> retained_chain_index = lastRoots(chain_index_roots, 3);
+
+    // Lands after the roots are picked, only the write barrier can save it
+    ingestBlock(500);
+
+    AtomicReference<Throwable> ingest_error = new AtomicReference<>();
+    Thread ingest_thread = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          do
+          {
+            ingestBlock(100);
+          }
+          while(utxo_pruner.isCycleRunning() || chain_index_pruner.isCycleRunning());
+        }
+        catch(Throwable t)
+        {
+          ingest_error.set(t);
+        }
+      }
+    };
+    int blocks_before = utxo_roots.size();
+    ingest_thread.start();
+
+    long utxo_reclaimed = utxo_pruner.markAndSweep(retained_utxo, 5L);
+    long chain_index_reclaimed = chain_index_pruner.markAndSweep(retained_chain_index, 5L);
+
+    ingest_thread.join();
+    Assert.assertNull(ingest_error.get());
+
+    Assert.assertTrue(utxo_reclaimed > 0L);
+    Assert.assertTrue(chain_index_reclaimed > 0L);
+    Assert.assertTrue(utxo_roots.size() > blocks_before);
+
+    checkState(utxo_trie, last(utxo_roots), utxo_state);
+    checkState(chain_index_trie, last(chain_index_roots), chain_index_state);
+
+    // And the chain carries on from there
+    ingestBlock(500);
+    checkState(utxo_trie, last(utxo_roots), utxo_state);
+    checkState(chain_index_trie, last(chain_index_roots), chain_index_state);
+  }
+
+  /**
+   * Blocks committed in batches under the DB trie prune lock the way BlockIngestor
+   * does it, with prunes run the way TriePruneThread does them, all at once.
+   * Reads go through the DB, so through the trie cache as well.
+   */
+  @Test
+  public void testPruneDuringBlockCommit()
+    throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    config_map.put("db_column_families", "true");
+    config_map.put("trie_prune_depth", "3");
+    ConfigMem config = new ConfigMem(config_map);
+
+    DB db = new DB(config, new JRocksDB(config));
+    try
+    {
+      Assert.assertNotNull(db.getUtxoTriePruner());
+      Assert.assertNotNull(db.getChainIndexTriePruner());
+
+      // The head, only ever moved while the read lock is held, same as the ingestor
+      AtomicReference<List<ByteString>> head = new AtomicReference<>(
+        ImmutableList.of(HashUtils.hashOfEmpty(), HashUtils.hashOfEmpty()));
+      List<List<ByteString>> chain = Collections.synchronizedList(new ArrayList<>());
+      chain.add(head.get());
+      HashMap<ByteString, ByteString> db_utxo_state = new HashMap<>();
+      HashMap<ByteString, ByteString> db_chain_index_state = new HashMap<>();
+
+      AtomicBoolean done = new AtomicBoolean(false);
+      AtomicReference<Throwable> error = new AtomicReference<>();
+      AtomicInteger prune_count = new AtomicInteger(0);
+      AtomicLong reclaimed = new AtomicLong(0L);
+
+      Thread prune_thread = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            while(!done.get())
+            {
+              db.getTriePruneLock().writeLock().lock();
+              try
+              {
+                db.getUtxoTriePruner().beginCycle();
+                db.getChainIndexTriePruner().beginCycle();
+              }
+              finally
+              {
+                db.getTriePruneLock().writeLock().unlock();
+              }
+
+              try
+              {
+                reclaimed.addAndGet(db.getUtxoTriePruner().markAndSweep(getRetained(chain, 0), 1L));
+                reclaimed.addAndGet(db.getChainIndexTriePruner().markAndSweep(getRetained(chain, 1), 1L));
+              }
+              finally
+              {
+                db.getUtxoTriePruner().endCycle();
+                db.getChainIndexTriePruner().endCycle();
+              }
+              prune_count.incrementAndGet();
+            }
+          }
+          catch(Throwable t)
+          {
+            error.set(t);
+          }
+        }
+      };
+      prune_thread.start();
+
+      for(int b=0; (b<60) || (prune_count.get() < 3); b++)
+      {
+        Assert.assertNull(error.get());
+        Assert.assertTrue("Prune thread fell behind", b < 1000);
+
+        HashMap<ByteString, ByteString> utxo_updates = makeUpdates(db_utxo_state, 200);
+        HashMap<ByteString, ByteString> chain_index_updates = makeUpdates(new HashMap<>(), 200);
+
+        db.getTriePruneLock().readLock().lock();
+        try(DBWriteBatch batch = db.startBatch())
+        {
+          List<ByteString> prev = head.get();
+          ByteString utxo_root = db.getUtxoHashedTrie().simulateMerge(prev.get(0), utxo_updates);
+          Assert.assertTrue(db.getUtxoHashedTrie().mergeIfNewRoot(prev.get(0), utxo_updates, utxo_root));
+          ByteString chain_index_root = db.getChainIndexTrie().mergeBatch(prev.get(1), chain_index_updates);
+          batch.commit();
+
+          List<ByteString> next = ImmutableList.of(utxo_root, chain_index_root);
+          head.set(next);
+          chain.add(next);
+        }
+        finally
+        {
+          db.getTriePruneLock().readLock().unlock();
+        }
+        apply(db_utxo_state, utxo_updates);
+        apply(db_chain_index_state, chain_index_updates);
+      }
+
+      done.set(true);
+      prune_thread.join();
+      Assert.assertNull(error.get());
+      Assert.assertTrue(reclaimed.get() > 0L);
+
+      checkState(db.getUtxoHashedTrie(), head.get().get(0), db_utxo_state);
+      checkState(db.getChainIndexTrie(), head.get().get(1), db_chain_index_state);
+
+      // And all the retained ones, which are what a reorg would need
+      for(ByteString root : getRetained(chain, 0))
+      {
+        db.getUtxoHashedTrie().getTreeReport(root);
+      }
+      for(ByteString root : getRetained(chain, 1))
+      {
+        db.getChainIndexTrie().getTreeReport(root);
+      }
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /**
+   * What TriePruneThread keeps, the last few heads
+   */
+  private static List<ByteString> getRetained(List<List<ByteString>> chain, int idx)
+  {
+    ArrayList<ByteString> roots = new ArrayList<>();
+    synchronized(chain)
+    {
+      for(int i=Math.max(0, chain.size() - 3); i<chain.size(); i++)
+      {
+        roots.add(chain.get(i).get(idx));
+      }
+    }
+    return roots;
+  }
+
+  private HashMap<ByteString, ByteString> makeUpdates(Map<ByteString, ByteString> state, int count)
+  {
+    HashMap<ByteString, ByteString> updates = new HashMap<>();
+    ArrayList<ByteString> existing = new ArrayList<>(state.keySet());
+    for(int i=0; i<count; i++)
+    {
+      if ((existing.size() > 0) && (i % 4 == 0))
+      {
+        updates.put(existing.get(rnd.nextInt(existing.size())), null);
+      }
+      else
+      {
+        updates.put(randomBytes(12), randomBytes(16));
+      }
+    }
+    return updates;
+  }
+
+  @Test
+  public void testEndCycle()
+    throws Exception
+  {
+    utxo_pruner.beginCycle();
+    try
+    {
+      utxo_pruner.beginCycle();
+      Assert.fail();
+    }
+    catch(IllegalStateException e){}
+
+    utxo_pruner.endCycle();
+    Assert.assertFalse(utxo_pruner.isCycleRunning());
+
+    try
+    {
+      utxo_pruner.markAndSweep(utxo_roots, 0L);
+      Assert.fail();
+    }
+    catch(IllegalStateException e){}
+  }
+
+  /**
+   * Add new keys and change some old ones in both tries, like a block would
+   */
+  private void ingestBlock(int updates)
+  {
+    HashMap<ByteString, ByteString> utxo_updates = new HashMap<>();
+    HashMap<ByteString, ByteString> chain_index_updates = new HashMap<>();
+
+    ArrayList<ByteString> existing = new ArrayList<>(utxo_state.keySet());
+    for(int i=0; i<updates; i++)
+    {
+      ByteString value = randomBytes(16);
+      if ((existing.size() > 0) && (i % 4 == 0))
+      {
+        ByteString key = existing.get(rnd.nextInt(existing.size()));
+        if (i % 8 == 0) value = null;
+        utxo_updates.put(key, value);
+      }
+      else
+      {
+        utxo_updates.put(randomBytes(12), value);
+      }
+      chain_index_updates.put(randomBytes(12), randomBytes(16));
+    }
+
+    utxo_roots.add(utxo_trie.mergeBatch(last(utxo_roots), utxo_updates));
+    chain_index_roots.add(chain_index_trie.mergeBatch(last(chain_index_roots), chain_index_updates));
+
+    apply(utxo_state, utxo_updates);
+    apply(chain_index_state, chain_index_updates);
+  }
+
+  private static void apply(Map<ByteString, ByteString> state, Map<ByteString, ByteString> updates)
+  {
+    for(Map.Entry<ByteString, ByteString> me : updates.entrySet())
+    {
+      if (me.getValue() == null) state.remove(me.getKey());
+      else state.put(me.getKey(), me.getValue());
+    }
+  }
+
+  private static void checkState(HashedTrie trie, ByteString root, Map<ByteString, ByteString> state)
+  {
+    // Loads every node under the root, any that were swept would blow up here
+    trie.getTreeReport(root);
+
+    for(Map.Entry<ByteString, ByteString> me : state.entrySet())
+    {
+      Assert.assertEquals(me.getValue(), trie.getLeafData(root, me.getKey()));
+    }
+  }
+
+  private static ByteString last(List<ByteString> l)
+  {
+    return l.get(l.size() - 1);
+  }
+
+  private static List<ByteString> lastRoots(List<ByteString> l, int count)
+  {
+    return new ArrayList<>(l.subList(l.size() - count, l.size()));
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
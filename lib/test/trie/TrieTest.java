@@ -4,13 +4,24 @@ import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.Assert;
 import org.junit.Test;
+import snowblossom.lib.trie.ByteStringComparator;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.lib.trie.TrieDBCache;
 import snowblossom.lib.trie.TrieDBMem;
+import snowblossom.lib.trie.TrieDiff;
+import snowblossom.lib.trie.TrieScan;
+import snowblossom.trie.proto.ChildEntry;
+import snowblossom.trie.proto.TrieNode;
 
 public class TrieTest
 {
@@ -432,5 +443,266 @@ public class TrieTest
 
   }
 
+  @Test
+  public void testScanResume() throws Exception
+  {
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random rnd = new Random(88L);
+    for(int i=0; i<5000; i++)
+    {
+      byte[] key = new byte[8];
+      byte[] data = new byte[8];
+      rnd.nextBytes(key);
+      rnd.nextBytes(data);
+      key[0] = (byte)(key[0] % 4);
+      update_map.put(ByteString.copyFrom(key), ByteString.copyFrom(data));
+    }
+    ByteString hash = trie.mergeBatch(emptyRoot, update_map);
+    ByteString prefix = ByteString.copyFrom(new byte[]{2});
+
+    LinkedList<TrieNode> proof = new LinkedList<>();
+    LinkedList<TrieNode> expected = new LinkedList<>();
+    trie.getNodeDetails(hash, prefix, proof, expected, 1000000);
+
+    // Whole scan comes out in key order with the same nodes
+    TrieScan scan = trie.scan(hash, prefix, ByteString.EMPTY);
+    ArrayList<TrieNode> all = new ArrayList<>();
+    while(!scan.isDone())
+    {
+      all.addAll(scan.next(100));
+    }
+    Assert.assertEquals(expected.size(), all.size());
+    for(int i=1; i<all.size(); i++)
+    {
+      Assert.assertTrue(ByteStringComparator.compareStatic(all.get(i-1).getPrefix(), all.get(i).getPrefix()) < 0);
+    }
+    Assert.assertEquals(new HashSet<TrieNode>(expected), new HashSet<TrieNode>(all));
+    Assert.assertEquals(proof, scan.takeProof());
+
+    // Resume partway, proof covers the way down to the resume point
+    ByteString resume_after = all.get(all.size() / 2).getPrefix();
+    TrieScan resumed = trie.scan(hash, prefix, resume_after);
+    List<TrieNode> rest = resumed.next(1000000);
+    Assert.assertTrue(resumed.isDone());
+    Assert.assertEquals(all.subList(all.size() / 2 + 1, all.size()), rest);
+
+    HashMap<ByteString, TrieNode> have = new HashMap<>();
+    for(TrieNode n : resumed.takeProof()) have.put(n.getPrefix(), n);
+    for(TrieNode n : rest) have.put(n.getPrefix(), n);
+    for(TrieNode n : rest)
+    {
+      // Some ancestor we have must list this node's hash
+      boolean found = false;
+      for(TrieNode p : have.values())
+      {
+        for(ChildEntry ce : p.getChildrenList())
+        {
+          if (p.getPrefix().concat(ce.getKey()).equals(n.getPrefix()) && ce.getHash().equals(n.getHash())) found = true;
+        }
+      }
+      Assert.assertTrue(found);
+    }
+  }
+
+
+  @Test
+  public void testDiff() throws Exception
+  {
+    Map<ByteString, ByteString> old_map = new HashMap<>();
+    Random rnd = new Random(89L);
+    for(int i=0; i<5000; i++)
+    {
+      byte[] key = new byte[8];
+      byte[] data = new byte[8];
+      rnd.nextBytes(key);
+      rnd.nextBytes(data);
+      old_map.put(ByteString.copyFrom(key), ByteString.copyFrom(data));
+    }
+    ByteString old_root = trie.mergeBatch(emptyRoot, old_map);
+
+    // Remove some, change some, add some
+    Map<ByteString, ByteString> updates = new HashMap<>();
+    TreeMap<ByteString, String> expected = new TreeMap<>(new ByteStringComparator());
+    ArrayList<ByteString> keys = new ArrayList<>(old_map.keySet());
+    for(int i=0; i<50; i++)
+    {
+      ByteString k = keys.get(i);
+      updates.put(k, null);
+      expected.put(k, "removed");
+    }
+    for(int i=50; i<100; i++)
+    {
+      ByteString k = keys.get(i);
+      updates.put(k, ByteString.copyFrom(new String("changed").getBytes()));
+      expected.put(k, "changed");
+    }
+    for(int i=0; i<50; i++)
+    {
+      byte[] key = new byte[8];
+      rnd.nextBytes(key);
+      ByteString k = ByteString.copyFrom(key);
+      updates.put(k, ByteString.copyFrom(new String("added").getBytes()));
+      expected.put(k, "added");
+    }
+    ByteString new_root = trie.mergeBatch(old_root, updates);
+
+    TrieDiff diff = trie.diff(old_root, new_root, ByteString.EMPTY, ByteString.EMPTY);
+    ArrayList<TrieDiff.Change> changes = new ArrayList<>();
+    while(!diff.isDone())
+    {
+      changes.addAll(diff.next(7));
+    }
+    Assert.assertEquals(expected.size(), changes.size());
+    int idx = 0;
+    for(Map.Entry<ByteString, String> me : expected.entrySet())
+    {
+      TrieDiff.Change c = changes.get(idx);
+      Assert.assertEquals(me.getKey(), c.key);
+      Assert.assertTrue(c.toString().startsWith(me.getValue()));
+      Assert.assertEquals(old_map.get(c.key), c.old_data);
+      Assert.assertEquals(updates.get(c.key), c.new_data);
+      idx++;
+    }
+    // Shared subtrees skipped rather than walked
+    Assert.assertTrue(diff.getNodesLoaded() < 5000);
+
+    // Reversed, resumed and under a prefix
+    ByteString resume_after = changes.get(changes.size() / 2).key;
+    ByteString prefix = resume_after.substring(0, 1);
+    List<TrieDiff.Change> rest = trie.diff(new_root, old_root, prefix, resume_after).next(1000000);
+    for(TrieDiff.Change c : rest)
+    {
+      Assert.assertTrue(c.key.startsWith(prefix));
+      Assert.assertTrue(ByteStringComparator.compareStatic(c.key, resume_after) > 0);
+      Assert.assertEquals(updates.get(c.key), c.old_data);
+    }
+    Assert.assertEquals(expected.tailMap(resume_after, false).headMap(prefix.concat(ByteString.copyFrom(new byte[]{-1,-1,-1,-1,-1,-1,-1,-1,-1}))).size(), rest.size());
+
+    Assert.assertTrue(trie.diff(new_root, new_root, ByteString.EMPTY, ByteString.EMPTY).next(1000).isEmpty());
+  }
+
+  @Test
+  public void testGetMulti() throws Exception
+  {
+    TrieDBCache cache = new TrieDBCache(new TrieDBMem(), 64*1024, 4);
+    HashedTrie cached_trie = new HashedTrie(cache, true, true);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    ArrayList<ByteString> lookup = new ArrayList<>();
+    Random rnd = new Random(90L);
+    for(int i=0; i<5000; i++)
+    {
+      byte[] key = new byte[8];
+      byte[] data = new byte[8];
+      rnd.nextBytes(key);
+      rnd.nextBytes(data);
+      update_map.put(ByteString.copyFrom(key), ByteString.copyFrom(data));
+      if (i % 10 == 0) lookup.add(ByteString.copyFrom(key));
+    }
+    // Some shorter keys for inner nodes that are also leaves
+    update_map.put(lookup.get(0).substring(0, 2), ByteString.copyFrom(new String("short").getBytes()));
+    lookup.add(lookup.get(0).substring(0, 2));
+    lookup.add(lookup.get(1).substring(0, 3));
+    for(int i=0; i<100; i++)
+    {
+      byte[] key = new byte[8];
+      rnd.nextBytes(key);
+      lookup.add(ByteString.copyFrom(key));
+    }
+    ByteString hash = cached_trie.mergeBatch(emptyRoot, update_map);
+
+    Map<ByteString, ByteString> found = cached_trie.getLeafDataMulti(hash, lookup);
+    for(ByteString k : lookup)
+    {
+      Assert.assertEquals(cached_trie.getLeafData(hash, k), found.get(k));
+    }
+    Assert.assertEquals(501, found.size());
+    Assert.assertTrue(cached_trie.getLeafDataMulti(emptyRoot, lookup).isEmpty());
+  }
+
+  @Test
+  public void testParallelMerge() throws Exception
+  {
+    TrieDBMem serial_db = new TrieDBMem();
+    TrieDBMem parallel_db = new TrieDBMem();
+    HashedTrie serial_trie = new HashedTrie(serial_db, true, true);
+    HashedTrie parallel_trie = new HashedTrie(parallel_db, true, true);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    parallel_trie.setParallelMerge(pool, 16);
+
+    Random rnd = new Random(91L);
+    ArrayList<ByteString> existing_keys = new ArrayList<>();
+    ByteString serial_root = emptyRoot;
+    ByteString parallel_root = emptyRoot;
+
+    for(int round=0; round<5; round++)
+    {
+      Map<ByteString, ByteString> update_map = new HashMap<>();
+      for(int i=0; i<4000; i++)
+      {
+        // Mixed lengths so some inner nodes are also leaves
+        byte[] key = new byte[4 + rnd.nextInt(5)];
+        byte[] data = new byte[8];
+        rnd.nextBytes(key);
+        rnd.nextBytes(data);
+        update_map.put(ByteString.copyFrom(key), ByteString.copyFrom(data));
+        existing_keys.add(ByteString.copyFrom(key));
+      }
+      for(int i=0; i<500; i++)
+      {
+        update_map.put(existing_keys.get(rnd.nextInt(existing_keys.size())), null);
+      }
+
+      serial_root = serial_trie.mergeBatch(serial_root, update_map);
+      parallel_root = parallel_trie.mergeBatch(parallel_root, update_map);
+      Assert.assertEquals(serial_root, parallel_root);
+      assertSameNodes(serial_db, parallel_db, serial_root);
+      Assert.assertEquals(serial_trie.simulateMerge(serial_root, update_map), parallel_trie.simulateMerge(parallel_root, update_map));
+    }
+    pool.shutdown();
+  }
+
+  private void assertSameNodes(TrieDBMem a, TrieDBMem b, ByteString hash)
+  {
+    TrieNode node = a.load(hash);
+    Assert.assertEquals(node, b.load(hash));
+    for(ChildEntry ce : node.getChildrenList())
+    {
+      assertSameNodes(a, b, ce.getHash());
+    }
+  }
+
+  @Test
+  public void testCachedMatchesUncached() throws Exception
+  {
+    // Small budget so that eviction actually happens
+    TrieDBCache cache = new TrieDBCache(new TrieDBMem(), 64*1024, 4);
+    HashedTrie cached_trie = new HashedTrie(cache, true, false);
+
+    Map<ByteString, ByteString> update_map = new HashMap<>();
+    Random rnd = new Random();
+    for(int i=0; i<5000; i++)
+    {
+      byte[] key = new byte[8];
+      byte[] data = new byte[20];
+      rnd.nextBytes(key);
+      rnd.nextBytes(data);
+      update_map.put(ByteString.copyFrom(key), ByteString.copyFrom(data));
+    }
+
+    ByteString expected = trie.mergeBatch(emptyRoot, update_map);
+    ByteString hash = cached_trie.mergeBatch(emptyRoot, update_map);
+    Assert.assertEquals(expected, hash);
+
+    for(ByteString k : update_map.keySet())
+    {
+      Assert.assertEquals(update_map.get(k), cached_trie.getLeafData(hash, k));
+    }
+    cached_trie.assertValid(hash);
+
+    Assert.assertTrue(cache.getSizeBytes() <= 64*1024);
+    Assert.assertTrue(cache.getHitCount() > 0);
+    Assert.assertTrue(cache.getMissCount() > 0);
+  }
 
 }
@@ -89,6 +89,7 @@ public class Arktika implements PoolClientOperator
   {
     this.config = config;
     logger.info(String.format("Starting Arktika version %s", Globals.VERSION));
+    logger.info("Digest providers: " + DigestUtil.getProviderMap());
 
     config.require("selected_field");
     config.require("layer_count");
@@ -348,13 +349,20 @@ public class Arktika implements PoolClientOperator
     for(int i=0; i<layer_count; i++)
     {
       String type = config.get("layer_" + i + "_type");
-      if (type.equals("file"))
+      if (type.equals("file") || type.equals("mmap"))
       {
         config.require("layer_" + i + "_path");
         String path = config.get("layer_" + i + "_path");
       
         FieldSource fs = null;
-        fs = new FieldSourceFile(config, i, params, selected_field, new File(path));
+        if (type.equals("mmap"))
+        {
+          fs = new FieldSourceMmap(config, i, params, selected_field, new File(path));
+        }
+        else
+        {
+          fs = new FieldSourceFile(config, i, params, selected_field, new File(path));
+        }
         disk_sources.add(fs);
         all_sources[i] = fs;
         for(int x : fs.getHoldingSet())
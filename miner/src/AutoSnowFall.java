@@ -41,7 +41,7 @@ public class AutoSnowFall extends Thread
 
     field_dir.mkdirs();
 
-    new SnowFall(snow_file.getPath(), path_name, field_info.getLength());
+    new SnowFall(snow_file.getPath(), path_name, field_info.getLength(), true);
 
     logger.info(String.format("Snow field written: %s", snow_file.getPath()));
     logger.info("Starting merkle deck files");
@@ -2,8 +2,9 @@ package snowblossom.miner;
 
 import com.google.protobuf.ByteString;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import org.junit.Assert;
 import snowblossom.lib.*;
@@ -18,6 +19,13 @@ public class BatchLayerWorkThread extends LayerWorkThread
   // 1024 = 650kh/s
   public static final int BATCH_SIZE=1024;
 
+  // Batches each thread keeps out to the source at once
+  public static final int MAX_IN_FLIGHT=4;
+
+  // Answers come back here, possibly from other threads
+  private final LinkedBlockingQueue<Answer> answer_queue = new LinkedBlockingQueue<>();
+  private int in_flight = 0;
+
   public BatchLayerWorkThread(Arktika arktika, FieldSource fs, FaQueue queue, long total_words)
   {
     super(arktika, fs, queue, total_words);
@@ -27,7 +35,19 @@ public class BatchLayerWorkThread extends LayerWorkThread
   @Override
   protected void runPass() throws Exception
   {
-    LinkedList<PartialWork> pw_list = new LinkedList<>();
+    // Handle whatever has come back.  If we have as much out as we are allowed, wait for something.
+    Answer a;
+    if (in_flight >= MAX_IN_FLIGHT) a = answer_queue.poll(250, TimeUnit.MILLISECONDS);
+    else a = answer_queue.poll();
+    while(a != null)
+    {
+      in_flight--;
+      processAnswer(a);
+      a = answer_queue.poll();
+    }
+    if (in_flight >= MAX_IN_FLIGHT) return;
+
+    ArrayList<PartialWork> pw_list = new ArrayList<>();
 
     queue.superPoll(BATCH_SIZE, pw_list);
 
@@ -40,10 +60,11 @@ public class BatchLayerWorkThread extends LayerWorkThread
         return;
       }
       int diff = BATCH_SIZE - pw_list.size();
+      byte[] header_suffix = header_cache.getSuffix(wu.getHeader());
 
       for(int x =0; x<diff; x++)
       {
-        PartialWork pw = new PartialWork(wu, rnd, md, total_words);
+        PartialWork pw = new PartialWork(wu, rnd, md, total_words, header_suffix);
         long next_word = pw.getNextWordIdx();
         int chunk = (int)(next_word / fs.words_per_chunk);
         if (fs.hasChunk(chunk))
@@ -66,14 +87,48 @@ public class BatchLayerWorkThread extends LayerWorkThread
         words.add(pw.getNextWordIdx());
       }
       BatchSource bs = (BatchSource) fs;
-      List<ByteString> answers = bs.readWordsBulk(words);
+      in_flight++;
+      bs.readWordsAsync(words, new BatchSource.WordsCallback() {
+        public void onWords(List<ByteString> answers)
+        {
+          answer_queue.add(new Answer(pw_list, answers, null));
+        }
+        public void onError(Throwable t)
+        {
+          answer_queue.add(new Answer(pw_list, null, t));
+        }
+      });
+    }
+  }
 
-      for(int i=0; i<pw_list.size(); i++)
-      {
-        PartialWork pw = pw_list.get(i);
-        pw.doPass(answers.get(i).toByteArray(), md, total_words);
-        processPw(pw);
-      }
+  private void processAnswer(Answer a)
+    throws Exception
+  {
+    if (a.error != null)
+    {
+      // Just lose that work, there is always more
+      logger.warning("Error reading words from " + fs + ": " + a.error);
+      return;
+    }
+    for(int i=0; i<a.pw_list.size(); i++)
+    {
+      PartialWork pw = a.pw_list.get(i);
+      pw.doPass(a.answers.get(i).toByteArray(), md, total_words);
+      processPw(pw);
+    }
+  }
+
+  private static class Answer
+  {
+    final List<PartialWork> pw_list;
+    final List<ByteString> answers;
+    final Throwable error;
+
+    Answer(List<PartialWork> pw_list, List<ByteString> answers, Throwable error)
+    {
+      this.pw_list = pw_list;
+      this.answers = answers;
+      this.error = error;
     }
   }
 
@@ -8,4 +8,29 @@ public interface BatchSource
   public int getSuggestedBatchSize();
   public List<ByteString> readWordsBulk(List<Long> indexes);
 
+  /**
+   * Read words without waiting on the answer.  The callback may be called
+   * from another thread.  Sources that can't do better just read inline.
+   */
+  public default void readWordsAsync(List<Long> indexes, WordsCallback callback)
+  {
+    List<ByteString> words;
+    try
+    {
+      words = readWordsBulk(indexes);
+    }
+    catch(Throwable t)
+    {
+      callback.onError(t);
+      return;
+    }
+    callback.onWords(words);
+  }
+
+  public interface WordsCallback
+  {
+    public void onWords(List<ByteString> words);
+    public void onError(Throwable t);
+  }
+
 }
@@ -56,8 +56,10 @@ public class FieldScan
             memfield = false;
             precache = (long)(precacheGig * 1024.0 * 1024.0 * 1024.0);
           }
-          logger.info("creating field: " + field_folder + " memfield=" + memfield + ", precache=" + precache + ", minDepthToDisk=" + minDepthToDisk);
-          SnowMerkleProof proof = new SnowMerkleProof(field_folder, name, memfield, precache, minDepthToDisk);
+          boolean mmap = config.getBoolean("memfield_mmap");
+          boolean prefault = config.getBoolean("memfield_mmap_prefault");
+          logger.info("creating field: " + field_folder + " memfield=" + memfield + ", precache=" + precache + ", minDepthToDisk=" + minDepthToDisk + ", mmap=" + mmap);
+          SnowMerkleProof proof = new SnowMerkleProof(field_folder, name, memfield, precache, minDepthToDisk, mmap, prefault);
 
           for(int i = 0; i<64; i++)
           {
@@ -163,7 +165,8 @@ public class FieldScan
       return null;
     }
 
-    if (config.getBoolean("memfield") || config.getDoubleWithDefault("memfield_precache_gb", 0) > 0)
+    // The memory based ones are thread safe and expensive to make, so share them
+    if (config.getBoolean("memfield") || config.getBoolean("memfield_mmap") || config.getDoubleWithDefault("memfield_precache_gb", 0) > 0)
     {
       return getFieldProof(f);
     }
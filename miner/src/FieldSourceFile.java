@@ -136,6 +136,21 @@ public class FieldSourceFile extends FieldSource
 
   }
 
+  protected int getTotalChunks()
+  {
+    return total_chunk;
+  }
+
+  protected boolean isBlobFile()
+  {
+    return using_blob_file;
+  }
+
+  protected FileChannel getChunkChannel(int chunk)
+  {
+    return snow_file_channel[chunk];
+  }
+
   @Override
   public boolean hasDeckFiles()
   {
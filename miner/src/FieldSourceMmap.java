@@ -0,0 +1,57 @@
+package snowblossom.miner;
+
+import duckutil.Config;
+import java.io.File;
+import java.nio.ByteBuffer;
+import snowblossom.lib.*;
+
+/**
+ * Same files as FieldSourceFile, but read through a memory map of each chunk
+ * rather than a positional read per word.
+ *
+ * Unlike FieldSourceMem, the field stays in the page cache rather than on the heap,
+ * so a multi-GB field doesn't give the garbage collector anything to do.
+ * Set layer_N_prefault=true to fault in all the pages on startup.
+ */
+public class FieldSourceMmap extends FieldSourceFile
+{
+  private final MappedFieldFile[] chunk_map;
+
+  public FieldSourceMmap(Config conf, int layer, NetworkParams params, int field_number, File path) throws java.io.IOException
+  {
+    super(conf, layer, params, field_number, path);
+
+    chunk_map = new MappedFieldFile[getTotalChunks()];
+    for(int i : holding_set)
+    {
+      long start = 0L;
+      if (isBlobFile())
+      {
+        start = i * Globals.MINE_CHUNK_SIZE;
+      }
+      chunk_map[i] = new MappedFieldFile(getChunkChannel(i), start, Globals.MINE_CHUNK_SIZE);
+    }
+
+    if (conf.getBoolean("layer_" + layer + "_prefault"))
+    {
+      for(int i : holding_set)
+      {
+        logger.info(String.format("Prefaulting chunk %d of %s", i, toString()));
+        chunk_map[i].prefault();
+      }
+    }
+  }
+
+  @Override
+  public void bulkRead(long word_index, ByteBuffer bb) throws java.io.IOException
+  {
+    int chunk =  (int)(word_index / words_per_chunk);
+    long word_offset = word_index % words_per_chunk;
+
+    chunk_map[chunk].read(word_offset * SnowMerkle.HASH_LEN_LONG, bb);
+  }
+
+  @Override
+  public String toString(){return "FieldSourceMmap-" + super.toString(); }
+
+}
@@ -19,6 +19,7 @@ public class LayerWorkThread extends Thread
 
   Random rnd;
   MessageDigest md = DigestUtil.getMD();
+  PowUtil.HeaderSuffixCache header_cache = new PowUtil.HeaderSuffixCache();
 
   FieldSource fs;
   Arktika arktika;
@@ -75,7 +76,7 @@ public class LayerWorkThread extends Thread
         }*/
       }
 
-      pw = new PartialWork(wu, rnd, md, total_words);
+      pw = new PartialWork(wu, rnd, md, total_words, header_cache.getSuffix(wu.getHeader()));
     }
     else
     {
@@ -0,0 +1,86 @@
+package snowblossom.miner;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only memory map of a region of a file, for snow field and deck reads
+ * without a syscall or an allocation per read.
+ *
+ * MappedByteBuffer is limited to 2GB, so larger regions are mapped as a series of segments.
+ * All reads use absolute positions on the mapping, so one of these can be shared by any number
+ * of threads.
+ */
+public class MappedFieldFile
+{
+  public static final int SEGMENT_BITS = 30;
+  public static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1L;
+
+  private final MappedByteBuffer[] segments;
+  private final long length;
+
+  public MappedFieldFile(RandomAccessFile file)
+    throws java.io.IOException
+  {
+    this(file.getChannel(), 0L, file.length());
+  }
+
+  public MappedFieldFile(FileChannel channel, long start, long length)
+    throws java.io.IOException
+  {
+    this.length = length;
+    int count = (int)((length + SEGMENT_SIZE - 1L) / SEGMENT_SIZE);
+    segments = new MappedByteBuffer[count];
+    for(int i=0; i<count; i++)
+    {
+      long seg_start = i * SEGMENT_SIZE;
+      long seg_len = Math.min(SEGMENT_SIZE, length - seg_start);
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + seg_start, seg_len);
+    }
+  }
+
+  public long getLength()
+  {
+    return length;
+  }
+
+  /**
+   * Fault in every page of the mapping now, rather than on first read.
+   * Only worth doing if the field fits in memory.
+   */
+  public void prefault()
+  {
+    for(MappedByteBuffer mbb : segments)
+    {
+      mbb.load();
+    }
+  }
+
+  /**
+   * Read bb.remaining() bytes starting at offset into bb, advancing its position.
+   * The read must not span segments, which is always true for word and deck entry reads.
+   */
+  public void read(long offset, ByteBuffer bb)
+  {
+    MappedByteBuffer seg = segments[(int)(offset >>> SEGMENT_BITS)];
+    int seg_offset = (int)(offset & SEGMENT_MASK);
+    int len = bb.remaining();
+
+    if (bb.hasArray())
+    {
+      seg.get(seg_offset, bb.array(), bb.arrayOffset() + bb.position(), len);
+      bb.position(bb.position() + len);
+    }
+    else
+    {
+      for(int i=0; i<len; i++)
+      {
+        bb.put(seg.get(seg_offset + i));
+      }
+    }
+  }
+
+}
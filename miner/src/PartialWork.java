@@ -1,7 +1,6 @@
 package snowblossom.miner;
 
 import com.google.common.annotations.VisibleForTesting;
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.Random;
 import org.junit.Assert;
@@ -17,9 +16,7 @@ public class PartialWork implements Comparable<PartialWork>
 
   long next_word_idx;
 
-  byte[] word_buff = new byte[SnowMerkle.HASH_LEN];
-  ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
-  byte[] tmp_buff = new byte[32];
+  byte[] tmp_buff = new byte[Globals.BLOCKCHAIN_HASH_LEN];
 
   @VisibleForTesting
   public PartialWork(int pass_no)
@@ -28,12 +25,21 @@ public class PartialWork implements Comparable<PartialWork>
   }
 
   public PartialWork(WorkUnit wu, Random rnd, MessageDigest md, long total_words)
+  {
+    this(wu, rnd, md, total_words, PowUtil.getHeaderSuffix(wu.getHeader()));
+  }
+
+  /**
+   * @param header_suffix from PowUtil.getHeaderSuffix() of this work unit's header
+   */
+  public PartialWork(WorkUnit wu, Random rnd, MessageDigest md, long total_words, byte[] header_suffix)
   {
     this.wu = wu;
     nonce = new byte[Globals.NONCE_LENGTH];
     rnd.nextBytes(nonce);
     wu.getHeader().getNonce().copyTo(nonce, 0);
-    context = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+    context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    PowUtil.hashHeaderBits(header_suffix, nonce, md, context);
     
     next_word_idx = PowUtil.getNextSnowFieldIndex(context, total_words, md, tmp_buff);
 
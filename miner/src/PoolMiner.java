@@ -74,6 +74,7 @@ public class PoolMiner implements PoolClientOperator
   {
     this.config = config;
     logger.info(String.format("Starting PoolMiner version %s", Globals.VERSION));
+    logger.info("Digest providers: " + DigestUtil.getProviderMap());
 
     config.require("snow_path");
 
@@ -204,6 +205,8 @@ public class PoolMiner implements PoolClientOperator
     MessageDigest md = DigestUtil.getMD();
 
     byte[] tmp_buff = new byte[32];
+    byte[] context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    PowUtil.HeaderSuffixCache header_cache = new PowUtil.HeaderSuffixCache();
     byte[] word_buff = new byte[SnowMerkle.HASH_LEN];
     ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
     SnowMerkleProof merkle_proof;
@@ -259,7 +262,7 @@ public class PoolMiner implements PoolClientOperator
         wu.getHeader().getNonce().copyTo(nonce, 0);
       }
 
-      byte[] first_hash = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+      PowUtil.hashHeaderBits(header_cache.getSuffix(wu.getHeader()), nonce, md, context);
 
       /**
        * This is a windows specific improvement since windows likes separete file descriptors
@@ -271,8 +274,6 @@ public class PoolMiner implements PoolClientOperator
         proof_field = wu.getHeader().getSnowField();
       }
 
-      byte[] context = first_hash;
-
       try (TimeRecordAuto tra = null)
       {
         for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
@@ -78,6 +78,7 @@ public class SnowBlossomMiner
   {
     this.config = config;
     logger.info(String.format("Starting SnowBlossomMiner version %s", Globals.VERSION));
+    logger.info("Digest providers: " + DigestUtil.getProviderMap());
 
     config.require("snow_path");
 
@@ -275,6 +276,9 @@ public class SnowBlossomMiner
     Random rnd;
     MessageDigest md = DigestUtil.getMD();
 
+    byte[] tmp_buff = new byte[32];
+    byte[] context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    PowUtil.HeaderSuffixCache header_cache = new PowUtil.HeaderSuffixCache();
     byte[] word_buff = new byte[SnowMerkle.HASH_LEN];
     ByteBuffer word_bb = ByteBuffer.wrap(word_buff);
     SnowMerkleProof merkle_proof;
@@ -330,7 +334,7 @@ public class SnowBlossomMiner
       }
 
       // TODO, modify headers to put snow field in
-      byte[] first_hash = PowUtil.hashHeaderBits(b.getHeader(), nonce, md);
+      PowUtil.hashHeaderBits(header_cache.getSuffix(b.getHeader()), nonce, md, context);
 
 
       /**
@@ -343,17 +347,15 @@ public class SnowBlossomMiner
         proof_field = b.getHeader().getSnowField();
       }
 
-      byte[] context = first_hash;
-
       try (TimeRecordAuto tra = null)
       {
         for (int pass = 0; pass < Globals.POW_LOOK_PASSES; pass++)
         {
           long word_idx;
           ((Buffer)word_bb).clear();
-          word_idx = PowUtil.getNextSnowFieldIndex(context, merkle_proof.getTotalWords(), md);
+          word_idx = PowUtil.getNextSnowFieldIndex(context, merkle_proof.getTotalWords(), md, tmp_buff);
           merkle_proof.readWord(word_idx, word_bb, pass);
-          context = PowUtil.getNextContext(context, word_buff, md);
+          PowUtil.getNextContext(context, word_buff, md, context);
         }
       }
 
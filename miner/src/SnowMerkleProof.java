@@ -11,6 +11,7 @@ import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 import org.junit.Assert;
@@ -27,6 +28,10 @@ public class SnowMerkleProof
   private final FileChannel snow_file_channel;
 
   private final ImmutableMap<Long, FileChannel> deck_files;
+
+  // Only set in mmap mode
+  private final MappedFieldFile snow_map;
+  private final ImmutableMap<Long, MappedFieldFile> deck_maps;
   private final long total_words;
   private final boolean memcache;
 
@@ -47,6 +52,21 @@ public class SnowMerkleProof
    */
   public SnowMerkleProof(File path, String base, boolean memcache, long bytesToPreCache, int minDepthToDisk) throws java.io.IOException
   {
+    this(path, base, memcache, bytesToPreCache, minDepthToDisk, false, false);
+  }
+
+  /**
+   * @param mmap read the field and decks through memory maps.  Takes the place of memcache and precache.
+   * @param prefault with mmap, fault in the whole field now
+   */
+  public SnowMerkleProof(File path, String base, boolean memcache, long bytesToPreCache, int minDepthToDisk,
+    boolean mmap, boolean prefault) throws java.io.IOException
+  {
+    if (mmap)
+    {
+      memcache = false;
+      bytesToPreCache = 0;
+    }
     this.memcache = memcache;
     this.minDepthToDisk = minDepthToDisk;
     snow_file = new RandomAccessFile(new File(path, base + ".snow"), "r");
@@ -77,6 +97,27 @@ public class SnowMerkleProof
     }
     deck_files = ImmutableMap.copyOf(deck_map);
 
+    if (mmap)
+    {
+      snow_map = new MappedFieldFile(snow_file);
+      TreeMap<Long, MappedFieldFile> deck_map_mm = new TreeMap<>();
+      for(Map.Entry<Long, FileChannel> me : deck_files.entrySet())
+      {
+        deck_map_mm.put(me.getKey(), new MappedFieldFile(me.getValue(), 0L, me.getValue().size()));
+      }
+      deck_maps = ImmutableMap.copyOf(deck_map_mm);
+      if (prefault)
+      {
+        logger.info("Prefaulting snow field " + base);
+        snow_map.prefault();
+      }
+    }
+    else
+    {
+      snow_map = null;
+      deck_maps = null;
+    }
+
     if (memcache)
     {
       mem_buff = new byte[(int) (snow_file.length() / MEM_BLOCK)][];
@@ -156,6 +197,12 @@ public class SnowMerkleProof
    */
   public boolean readWord(long word_index, ByteBuffer bb, int currentDepth) throws java.io.IOException
   {
+    if (snow_map != null)
+    {
+      snow_map.read(word_index * SnowMerkle.HASH_LEN_LONG, bb);
+      return true;
+    }
+
     if (bytes_to_precache > 0)
     {
       synchronized (this)
@@ -213,6 +260,30 @@ public class SnowMerkleProof
     return true;
   }
 
+  private void readSnow(long pos, ByteBuffer bb) throws java.io.IOException
+  {
+    if (snow_map != null)
+    {
+      snow_map.read(pos, bb);
+    }
+    else
+    {
+      ChannelUtil.readFully(snow_file_channel, bb, pos);
+    }
+  }
+
+  private void readDeck(long dist, long pos, ByteBuffer bb) throws java.io.IOException
+  {
+    if (deck_maps != null)
+    {
+      deck_maps.get(dist).read(pos, bb);
+    }
+    else
+    {
+      ChannelUtil.readFully(deck_files.get(dist), bb, pos);
+    }
+  }
+
   /**
    * If the target is not in specified subtree, return hash of subtree
    * If the target is in the specified subtree, return null and add hash partner from
@@ -235,7 +306,7 @@ public class SnowMerkleProof
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
 
-        ChannelUtil.readFully(deck_files.get(dist), bb, deck_pos);
+        readDeck(dist, deck_pos, bb);
 
         return ByteString.copyFrom(buff);
       }
@@ -245,7 +316,7 @@ public class SnowMerkleProof
         long word_pos = start * SnowMerkle.HASH_LEN_LONG;
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
-        ChannelUtil.readFully(snow_file_channel, bb, word_pos);
+        readSnow(word_pos, bb);
 
         return ByteString.copyFrom(buff);
 
@@ -271,7 +342,7 @@ public class SnowMerkleProof
         long word_pos = start * SnowMerkle.HASH_LEN_LONG;
         byte[] buff = new byte[SnowMerkle.HASH_LEN];
         ByteBuffer bb = ByteBuffer.wrap(buff);
-        ChannelUtil.readFully(snow_file_channel, bb, word_pos);
+        readSnow(word_pos, bb);
 
         partners.add(ByteString.copyFrom(buff));
         return null;
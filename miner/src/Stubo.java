@@ -4,6 +4,8 @@ import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import snowblossom.lib.*;
@@ -29,41 +31,99 @@ public class Stubo extends SharedMiningServiceGrpc.SharedMiningServiceImplBase
   {
     try
     {
-      GetWordsResponce.Builder builder = GetWordsResponce.newBuilder();
-      if (req.getField() > 0)
+      observer.onNext(lookup(req));
+      observer.onCompleted();
+    }
+    catch(java.io.IOException e)
+    {
+      logger.warning("Error from client: " + e);
+      observer.onError(e);
+      observer.onCompleted();
+    }
+
+  }
+
+  @Override
+  public StreamObserver<GetWordsRequest> getWordsStream(StreamObserver<GetWordsResponce> observer)
+  {
+    return new StreamObserver<GetWordsRequest>() {
+
+      public void onNext(GetWordsRequest req)
       {
-        if (req.getField() != field_number)
+        try
         {
-          builder.setWrongField(true);
-          observer.onNext(builder.build());
-          observer.onCompleted();
-          return;
-          
-          
+          GetWordsResponce r = lookup(req);
+          synchronized(observer)
+          {
+            observer.onNext(r);
+          }
+        }
+        catch(java.io.IOException e)
+        {
+          logger.warning("Error from client: " + e);
+          synchronized(observer)
+          {
+            observer.onError(e);
+          }
         }
       }
 
-      call_counter.getAndIncrement();
-      read_counter.getAndAdd(req.getWordIndexesCount());
+      public void onError(Throwable t)
+      {
+        logger.fine("Word stream error: " + t);
+      }
 
+      public void onCompleted()
+      {
+        synchronized(observer)
+        {
+          observer.onCompleted();
+        }
+      }
+    };
+  }
 
-      for(long x : req.getWordIndexesList())
+  /**
+   * Reads the words in offset order, which is kinder to whatever is under the source,
+   * and answers them in request order.
+   */
+  private GetWordsResponce lookup(GetWordsRequest req)
+    throws java.io.IOException
+  {
+    GetWordsResponce.Builder builder = GetWordsResponce.newBuilder();
+    builder.setRequestId(req.getRequestId());
+    if (req.getField() > 0)
+    {
+      if (req.getField() != field_number)
       {
-        byte[] b = new byte[Globals.SNOW_MERKLE_HASH_LEN];
-        src.readWord(x, ByteBuffer.wrap(b));
-        builder.addWords(ByteString.copyFrom(b));
+        builder.setWrongField(true);
+        return builder.build();
       }
-      observer.onNext(builder.build());
-      observer.onCompleted();
     }
-    catch(java.io.IOException e)
+
+    call_counter.getAndIncrement();
+    read_counter.getAndAdd(req.getWordIndexesCount());
+
+    List<Long> indexes = req.getWordIndexesList();
+    int n = indexes.size();
+    Integer[] order = new Integer[n];
+    for(int i=0; i<n; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Long.compare(indexes.get(a), indexes.get(b)));
+
+    ByteString[] words = new ByteString[n];
+    byte[] b = new byte[Globals.SNOW_MERKLE_HASH_LEN];
+    ByteBuffer bb = ByteBuffer.wrap(b);
+    for(int i : order)
     {
-      logger.warning("Error from client: " + e);
-      observer.onError(e);
-      observer.onCompleted();
+      bb.clear();
+      src.readWord(indexes.get(i), bb);
+      words[i] = ByteString.copyFrom(b);
     }
+    builder.addAllWords(Arrays.asList(words));
 
+    return builder.build();
   }
+
   public String getRateString(double elapsed_sec)
   {
     double reads = read_counter.getAndSet(0L);
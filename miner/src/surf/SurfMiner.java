@@ -99,6 +99,7 @@ public class SurfMiner implements PoolClientOperator
   {
     this.config = config;
     logger.info(String.format("Starting SurfMiner version %s", Globals.VERSION));
+    logger.info("Digest providers: " + DigestUtil.getProviderMap());
 
     config.require("snow_path");
     config.require("selected_field");
@@ -330,6 +331,8 @@ public class SurfMiner implements PoolClientOperator
     int proof_field;
     byte[] nonce = new byte[Globals.NONCE_LENGTH];
     byte[] tmp_buff = new byte[32];
+    byte[] context = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+    PowUtil.HeaderSuffixCache header_cache = new PowUtil.HeaderSuffixCache();
 
     public WorkStarter()
     {
@@ -392,12 +395,13 @@ public class SurfMiner implements PoolClientOperator
         dist=new int[total_blocks];
       }*/
 
+      byte[] header_suffix = header_cache.getSuffix(wu.getHeader());
       for(int s =0 ; s<to_start; s++)
       {
         rnd.nextBytes(nonce);
         wu.getHeader().getNonce().copyTo(nonce, 0);
 
-        byte[] context = PowUtil.hashHeaderBits(wu.getHeader(), nonce, md);
+        PowUtil.hashHeaderBits(header_suffix, nonce, md, context);
 
         long word_idx = PowUtil.getNextSnowFieldIndex(context, field.getTotalWords(), md, tmp_buff);
 
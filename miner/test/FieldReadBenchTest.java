@@ -0,0 +1,95 @@
+package miner.test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.SnowFall;
+import snowblossom.lib.SnowMerkle;
+import snowblossom.miner.SnowMerkleProof;
+
+/**
+ * Random word read rate through SnowMerkleProof, for positional reads,
+ * the heap memcache and the memory map.  Same pattern as the miner BenchThread.
+ *
+ * Not run by default:
+ *   bazel test --test_output=all //miner:miner.test.FieldReadBenchTest
+ */
+public class FieldReadBenchTest
+{
+  public static final long FIELD_SIZE = 256L * 1048576L;
+  public static final int THREADS = 4;
+  public static final long RUN_MS = 5000L;
+
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Test
+  public void benchReads() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+    File snow = new File(tmp_dir, "bench.snow");
+    new SnowFall(snow.getAbsolutePath(), "bench", FIELD_SIZE);
+    new SnowMerkle(tmp_dir, "bench", true);
+
+    runBench("file", new SnowMerkleProof(tmp_dir, "bench"));
+    runBench("memcache", new SnowMerkleProof(tmp_dir, "bench", true, 0, 0));
+    runBench("mmap", new SnowMerkleProof(tmp_dir, "bench", false, 0, 0, true, true));
+  }
+
+  private void runBench(String name, SnowMerkleProof proof) throws Exception
+  {
+    // One pass first, so memcache has loaded and we measure steady state
+    runThreads(proof, 1000L);
+    long reads = runThreads(proof, RUN_MS);
+
+    double rate = reads * 1000.0 / RUN_MS;
+    System.out.println(String.format("%s: %d threads, %.0f reads/s", name, THREADS, rate));
+  }
+
+  private long runThreads(SnowMerkleProof proof, long run_ms) throws Exception
+  {
+    AtomicLong counter = new AtomicLong(0L);
+    long end = System.currentTimeMillis() + run_ms;
+    long words = proof.getTotalWords();
+
+    ArrayList<Thread> threads = new ArrayList<>();
+    for(int t=0; t<THREADS; t++)
+    {
+      Thread th = new Thread(){
+        public void run()
+        {
+          SplittableRandom rnd = new SplittableRandom();
+          ByteBuffer bb = ByteBuffer.allocate(SnowMerkle.HASH_LEN);
+          long n = 0;
+          try
+          {
+            while(System.currentTimeMillis() < end)
+            {
+              for(int i=0; i<1000; i++)
+              {
+                bb.clear();
+                proof.readWord(rnd.nextLong(words), bb, 0);
+              }
+              n+=1000;
+            }
+          }
+          catch(java.io.IOException e)
+          {
+            throw new RuntimeException(e);
+          }
+          counter.addAndGet(n);
+        }
+      };
+      th.start();
+      threads.add(th);
+    }
+    for(Thread th : threads) th.join();
+    return counter.get();
+  }
+
+}
@@ -0,0 +1,205 @@
+package miner.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.Globals;
+import snowblossom.miner.BatchSource;
+import snowblossom.miner.FieldSourceRemote;
+import snowblossom.mining.proto.*;
+
+/**
+ * Runs FieldSourceRemote against a word server started in the test
+ */
+public class FieldSourceRemoteTest
+{
+  private static final int FIELD = 7;
+
+  private Random rnd = new Random(30L);
+
+  @Test
+  public void testStream() throws Exception
+  {
+    StreamServer impl = new StreamServer();
+    Server server = ServerBuilder.forPort(0).addService(impl).build().start();
+    try
+    {
+      FieldSourceRemote src = newSource(server.getPort());
+      readAll(src, 500);
+
+      Assert.assertTrue(impl.stream_requests.get() > 0);
+      Assert.assertEquals(0L, impl.unary_calls.get());
+    }
+    finally
+    {
+      server.shutdownNow();
+    }
+  }
+
+  /**
+   * Server from before GetWordsStream, so the stream fails with UNIMPLEMENTED.
+   * Reads already out on the streams go back on the queue and get done with GetWords.
+   */
+  @Test
+  public void testUnaryFallback() throws Exception
+  {
+    UnaryServer impl = new UnaryServer();
+    Server server = ServerBuilder.forPort(0).addService(impl).build().start();
+    try
+    {
+      FieldSourceRemote src = newSource(server.getPort());
+      readAll(src, 500);
+      Assert.assertTrue(impl.unary_calls.get() > 0);
+
+      // And after the switch, both ways in still work
+      long calls = impl.unary_calls.get();
+      List<Long> indexes = randomIndexes();
+      Assert.assertEquals(getWords(indexes), src.readWordsBulk(indexes));
+      readAll(src, 50);
+      Assert.assertTrue(impl.unary_calls.get() > calls);
+    }
+    finally
+    {
+      server.shutdownNow();
+    }
+  }
+
+  private FieldSourceRemote newSource(int port)
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("layer_0_host", "localhost");
+    config_map.put("layer_0_port", "" + port);
+    config_map.put("layer_0_range", "0,1");
+    config_map.put("layer_0_streams", "2");
+    config_map.put("layer_0_outstanding", "4");
+
+    return new FieldSourceRemote(new ConfigMem(config_map), 0, FIELD);
+  }
+
+  /**
+   * Queue up a bunch of async reads at once and check every one gets the right words
+   */
+  private void readAll(FieldSourceRemote src, int count) throws Exception
+  {
+    CountDownLatch latch = new CountDownLatch(count);
+    ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+
+    for(int i=0; i<count; i++)
+    {
+      List<Long> indexes = randomIndexes();
+      List<ByteString> expected = getWords(indexes);
+      src.readWordsAsync(indexes, new BatchSource.WordsCallback(){
+        public void onWords(List<ByteString> words)
+        {
+          if (!expected.equals(words)) problems.add("Wrong words for " + indexes);
+          latch.countDown();
+        }
+        public void onError(Throwable t)
+        {
+          problems.add("Error: " + t);
+          latch.countDown();
+        }
+      });
+    }
+
+    Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+    Assert.assertEquals(new ArrayList<String>(), new ArrayList<String>(problems));
+  }
+
+  private List<Long> randomIndexes()
+  {
+    ArrayList<Long> lst = new ArrayList<>();
+    int n = 1 + rnd.nextInt(20);
+    for(int i=0; i<n; i++)
+    {
+      lst.add((long)rnd.nextInt(1000000));
+    }
+    return lst;
+  }
+
+  private static List<ByteString> getWords(List<Long> indexes)
+  {
+    ArrayList<ByteString> words = new ArrayList<>();
+    for(long idx : indexes)
+    {
+      ByteBuffer bb = ByteBuffer.allocate(Globals.SNOW_MERKLE_HASH_LEN);
+      bb.putLong(idx);
+      bb.putLong(FIELD);
+      words.add(ByteString.copyFrom(bb.array()));
+    }
+    return words;
+  }
+
+  private static GetWordsResponce lookup(GetWordsRequest req)
+  {
+    GetWordsResponce.Builder r = GetWordsResponce.newBuilder();
+    r.setRequestId(req.getRequestId());
+    if (req.getField() != FIELD)
+    {
+      r.setWrongField(true);
+    }
+    else
+    {
+      r.addAllWords(getWords(req.getWordIndexesList()));
+    }
+    return r.build();
+  }
+
+  /**
+   * Only GetWords, the base class answers GetWordsStream with UNIMPLEMENTED
+   */
+  public static class UnaryServer extends SharedMiningServiceGrpc.SharedMiningServiceImplBase
+  {
+    final AtomicLong unary_calls = new AtomicLong(0L);
+
+    @Override
+    public void getWords(GetWordsRequest req, StreamObserver<GetWordsResponce> observer)
+    {
+      unary_calls.getAndIncrement();
+      observer.onNext(lookup(req));
+      observer.onCompleted();
+    }
+  }
+
+  public static class StreamServer extends UnaryServer
+  {
+    final AtomicLong stream_requests = new AtomicLong(0L);
+
+    @Override
+    public StreamObserver<GetWordsRequest> getWordsStream(StreamObserver<GetWordsResponce> observer)
+    {
+      return new StreamObserver<GetWordsRequest>() {
+        public void onNext(GetWordsRequest req)
+        {
+          stream_requests.getAndIncrement();
+          synchronized(observer)
+          {
+            observer.onNext(lookup(req));
+          }
+        }
+        public void onError(Throwable t) {}
+        public void onCompleted()
+        {
+          synchronized(observer)
+          {
+            observer.onCompleted();
+          }
+        }
+      };
+    }
+  }
+
+}
@@ -2,6 +2,7 @@ package miner.test;
 
 import com.google.protobuf.ByteString;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.LinkedList;
 import java.util.Random;
@@ -132,4 +133,37 @@ public class SnowMerkleProofTest
     testProofMany(2, "zing", 200);
   }
 
+  @Test
+  public void testMmap() throws Exception
+  {
+    File tmp_dir = testFolder.newFolder();
+
+    long byte_len = 2 * 1048576L;
+    File snow = new File(tmp_dir, "test.snow");
+    new SnowFall(snow.getAbsolutePath(), "zing", byte_len);
+
+    ByteString root_hash = new SnowMerkle(tmp_dir, "test", true).getRootHash();
+
+    SnowMerkleProof plain = new SnowMerkleProof(tmp_dir, "test");
+    SnowMerkleProof mapped = new SnowMerkleProof(tmp_dir, "test", false, 0, 6, true, true);
+
+    int words = (int) (byte_len / SnowMerkle.HASH_LEN_LONG);
+    Random rnd = new Random(byte_len);
+    byte[] a = new byte[SnowMerkle.HASH_LEN];
+    byte[] b = new byte[SnowMerkle.HASH_LEN];
+
+    for(int i=0; i<200; i++)
+    {
+      long location = rnd.nextInt(words);
+
+      Assert.assertTrue(plain.readWord(location, ByteBuffer.wrap(a), 0));
+      Assert.assertTrue(mapped.readWord(location, ByteBuffer.wrap(b), 0));
+      Assert.assertArrayEquals(a, b);
+
+      SnowPowProof proof = mapped.getProof(location);
+      Assert.assertEquals(plain.getProof(location), proof);
+      Assert.assertTrue(Validation.checkProof(proof, root_hash, byte_len));
+    }
+  }
+
 }
@@ -129,6 +129,7 @@ public class BlockForge
       Set<Integer> shard_cover_set = ShardUtil.getCoverSet(header_builder.getShardId(), params);
       Map<Integer, UtxoUpdateBuffer> export_utxo_buffer = new TreeMap<>();
 
+      utxo_buffer.prefetchInputs(regular_transactions);
       for(Transaction tx : regular_transactions)
       {
          fee_sum += Validation.deepTransactionCheck(tx, utxo_buffer, header_builder.build(), params,
@@ -13,6 +13,7 @@ import java.util.Set;
 import java.util.logging.Logger;
 import snowblossom.lib.*;
 import snowblossom.lib.db.DB;
+import snowblossom.lib.db.DBWriteBatch;
 import snowblossom.lib.trie.HashUtils;
 import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
@@ -161,6 +162,15 @@ public class BlockIngestor implements ChainStateSource
   public boolean ingestBlock(Block blk)
     throws ValidationException
   {
+    return ingestBlock(blk, false);
+  }
+
+  /**
+   * @param basics_checked if the caller has already done Validation.checkBlockBasics on this block
+   */
+  public boolean ingestBlock(Block blk, boolean basics_checked)
+    throws ValidationException
+  {
 
     ChainHash blockhash;
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("BlockIngestor.ingestBlock");
@@ -168,7 +178,10 @@ public class BlockIngestor implements ChainStateSource
     {
       mlog.setOperation("ingest_block");
       mlog.setModule("block_ingestor");
-      Validation.checkBlockBasics(node.getParams(), blk, true, false);
+      if (!basics_checked)
+      {
+        Validation.checkBlockBasics(node.getParams(), blk, true, false);
+      }
 
       if (blk.getHeader().getShardId() != shard_id)
       {
@@ -216,54 +229,84 @@ public class BlockIngestor implements ChainStateSource
 
       BlockSummary summary = BlockchainUtil.getNewSummary(blk.getHeader(), prev_summary, node.getParams(), blk.getTransactionsCount(), tx_body_size, blk.getImportedBlocksList() );
 
-      Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
+      // Everything this block writes goes in one batch, from the utxo and chain index
+      // trie nodes through to the new head, so it all lands together or not at all.
+      // The prune lock keeps a trie prune from starting part way through.
+      boolean new_head;
+      db.getTriePruneLock().readLock().lock();
+      try(DBWriteBatch batch = db.startBatch())
+      {
+        Validation.deepBlockValidation(node.getParams(), node.getUtxoHashedTrie(), blk, prev_summary);
 
-      summary = saveOtherChainIndexBits(summary, prev_summary, blk);
+        summary = saveOtherChainIndexBits(summary, prev_summary, blk);
 
-      if (tx_index)
-      {
-        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
+        if (tx_index)
         {
-          ByteString block_hash_str = blockhash.getBytes();
-          HashMap<ByteString, Transaction> tx_map = new HashMap<>();
-          for(Transaction tx : blk.getTransactionsList())
+          try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.saveTx"))
           {
-            tx_map.put(tx.getTxHash(), tx);
+            ByteString block_hash_str = blockhash.getBytes();
+            HashMap<ByteString, Transaction> tx_map = new HashMap<>();
+            for(Transaction tx : blk.getTransactionsList())
+            {
+              tx_map.put(tx.getTxHash(), tx);
+            }
+            db.getTransactionMap().putAll(tx_map);
           }
-          db.getTransactionMap().putAll(tx_map);
         }
-      }
 
-      try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
-      {
-        db.getBlockMap().put( blockhash.getBytes(), blk);
+        try(TimeRecordAuto tra_tx = TimeRecord.openAuto("BlockIngestor.blockSave"))
+        {
+          db.getBlockMap().put( blockhash.getBytes(), blk);
+
 
+          saveBlockChildMapping( blk.getHeader().getPrevBlockHash(), blockhash.getBytes());
+          for(ImportedBlock ib : blk.getImportedBlocksList())
+          {
+            // not positive we actually need this, but what the hell
+            saveBlockChildMapping( ib.getHeader().getPrevBlockHash(), ib.getHeader().getSnowHash());
+            node.getDB().getBlockHeaderMap().put( ib.getHeader().getSnowHash(), ib.getHeader());
+          }
+          db.setBestBlockAt( blk.getHeader().getShardId(), blk.getHeader().getBlockHeight(),
+            BlockchainUtil.readInteger(summary.getWorkSum()));
+
+
+          // THIS IS SUPER IMPORTANT!!!!
+          // the summary being saved in the summary map acts as a signal that
+          // - this block is fully stored
+          //   - we have the utxo saved
+          //   - we have the block itself saved
+          //   - if we are using tx_index, we have the transactions saved
+          // - the previous block summary is also saved, which by induction means
+          //   that we have every block from this one all the way back to block 0
+          // In short, after the summary is written, things can depend on this being
+          // a valid and correct block that goes all the way back to block 0.
+          // It might not be in the main chain, but it can be counted on to be valid chain
+          // With the batch that holds anyways, but on a DB that can't batch
+          // the writes go through in order, so the summary still has to be last.
+          db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
+        }
 
-        saveBlockChildMapping( blk.getHeader().getPrevBlockHash(), blockhash.getBytes());
-        for(ImportedBlock ib : blk.getImportedBlocksList())
+        new_head = BlockchainUtil.isBetter( chainhead, summary );
+        if (new_head)
         {
-          // not positive we actually need this, but what the hell
-          saveBlockChildMapping( ib.getHeader().getPrevBlockHash(), ib.getHeader().getSnowHash());
-          node.getDB().getBlockHeaderMap().put( ib.getHeader().getSnowHash(), ib.getHeader());
+          db.getBlockSummaryMap().put(HEAD, summary);
+          updateHeights(summary);
         }
-        db.setBestBlockAt( blk.getHeader().getShardId(), blk.getHeader().getBlockHeight(),
-          BlockchainUtil.readInteger(summary.getWorkSum()));
-
-
-        // THIS IS SUPER IMPORTANT!!!!
-        // the summary being saved in the summary map acts as a signal that
-        // - this block is fully stored
-        //   - we have the utxo saved
-        //   - we have the block itself saved
-        //   - if we are using tx_index, we have the transactions saved
-        // - the previous block summary is also saved, which by induction means
-        //   that we have every block from this one all the way back to block 0
-        // In short, after the summary is written, things can depend on this being
-        // a valid and correct block that goes all the way back to block 0.
-        // It might not be in the main chain, but it can be counted on to be valid chain
-        db.getBlockSummaryMap().put( blockhash.getBytes(), summary);
+
+        try(TimeRecordAuto tra_commit = TimeRecord.openAuto("BlockIngestor.commit"))
+        {
+          batch.commit();
+        }
+        // Before the prune lock is let go, so a prune that starts next
+        // keeps the roots of this block
+        if (new_head) chainhead = summary;
         mlog.set("saved",1);
       }
+      finally
+      {
+        db.getTriePruneLock().readLock().unlock();
+      }
+      node.getBlockReadCache().addBlock(blk);
 
       if (ShardUtil.shardSplit(summary, params))
       {
@@ -293,16 +336,13 @@ public class BlockIngestor implements ChainStateSource
       }
 
 
-      if (BlockchainUtil.isBetter( chainhead, summary ))
+      if (new_head)
       {
         mlog.set("head_update",1);
-        chainhead = summary;
-        db.getBlockSummaryMap().put(HEAD, summary);
+        SignatureCache.newBlock();
         //System.out.println("UTXO at new root: " + HexUtil.getHexString(summary.getHeader().getUtxoRootHash()));
         //node.getUtxoHashedTrie().printTree(summary.getHeader().getUtxoRootHash());
 
-        updateHeights(summary);
-
         logger.info(String.format("New chain tip: Shard %d Height %d %s (tx:%d sz:%d)", shard_id, blk.getHeader().getBlockHeight(), blockhash, blk.getTransactionsCount(), blk.toByteString().size()));
 
         String age = MiscUtils.getAgeSummary( System.currentTimeMillis() - blk.getHeader().getTimestamp() );
@@ -316,7 +356,16 @@ public class BlockIngestor implements ChainStateSource
         {
           u.tickleBlocks();
         }
-        node.getMemPool(shard_id).tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
+        if (Validation.shouldResetUtxo(blk, prev_summary, params))
+        {
+          node.getMemPool(shard_id).tickleBlocks(new ChainHash(summary.getHeader().getUtxoRootHash()));
+        }
+        else
+        {
+          node.getMemPool(shard_id).tickleBlock(blk,
+            new ChainHash(prev_summary.getHeader().getUtxoRootHash()),
+            new ChainHash(summary.getHeader().getUtxoRootHash()));
+        }
         node.getPeerage().sendAllTips(summary.getHeader().getShardId());
       }
 
@@ -0,0 +1,170 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+import duckutil.SoftLRUCache;
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DBFace;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.PeerMessage;
+
+/**
+ * Serialized recent blocks, headers and compact blocks, for answering peer requests.
+ * When a bunch of peers sync from us they all ask for the same blocks, so this saves
+ * parsing them out of the DB and serializing them again for each one.
+ *
+ * Only blocks with a saved summary go in here, same as what the DB lookups would find.
+ */
+public class BlockReadCache
+{
+  private final DBFace db;
+
+  private final SoftLRUCache<ChainHash, ByteString> block_cache;
+  private final SoftLRUCache<ChainHash, ByteString> compact_cache;
+  private final SoftLRUCache<ChainHash, ByteString> header_cache;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  public BlockReadCache(SnowBlossomNode node)
+  {
+    this(node.getDB(), node.getConfig().getIntWithDefault("block_read_cache_size", 64));
+  }
+
+  public BlockReadCache(DBFace db, int block_count)
+  {
+    this.db = db;
+    block_cache = new SoftLRUCache<>(block_count);
+    compact_cache = new SoftLRUCache<>(block_count);
+    header_cache = new SoftLRUCache<>(block_count * 16);
+  }
+
+  /**
+   * Called once the block and its summary are saved
+   */
+  public void addBlock(Block blk)
+  {
+    ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+    put(block_cache, hash, blk.toByteString());
+    put(header_cache, hash, blk.getHeader().toByteString());
+  }
+
+  /**
+   * @return serialized Block, or null if we don't have it
+   */
+  public ByteString getBlockBytes(ChainHash hash)
+  {
+    ByteString b = get(block_cache, hash);
+    count(b != null);
+    if (b != null) return b;
+
+    return loadBlockBytes(hash);
+  }
+
+  private ByteString loadBlockBytes(ChainHash hash)
+  {
+    ByteString b = db.getBlockMap().getBytes(hash.getBytes());
+    if (b != null) put(block_cache, hash, b);
+    return b;
+  }
+
+  /**
+   * @return serialized CompactBlock, or null if we don't have the block
+   */
+  public ByteString getCompactBytes(ChainHash hash)
+    throws InvalidProtocolBufferException
+  {
+    ByteString b = get(compact_cache, hash);
+    count(b != null);
+    if (b != null) return b;
+
+    // Counted once above, as a miss, even if the block itself is cached
+    ByteString blk_bytes = get(block_cache, hash);
+    if (blk_bytes == null) blk_bytes = loadBlockBytes(hash);
+    if (blk_bytes == null) return null;
+
+    b = CompactBlockUtil.compact(Block.parseFrom(blk_bytes)).toByteString();
+    put(compact_cache, hash, b);
+    return b;
+  }
+
+  /**
+   * @return serialized BlockHeader, or null if there is no summary for it
+   */
+  public ByteString getHeaderBytes(ChainHash hash)
+  {
+    ByteString b = get(header_cache, hash);
+    count(b != null);
+    if (b != null) return b;
+
+    BlockSummary summary = db.getBlockSummaryMap().get(hash.getBytes());
+    if (summary == null) return null;
+
+    b = summary.getHeader().toByteString();
+    put(header_cache, hash, b);
+    return b;
+  }
+
+  /**
+   * A PeerMessage with the given field set to an already serialized message.
+   * Set as an unknown field, it goes on the wire exactly as if it were set normally
+   * and the other side parses it as the real field, but we never parse it.
+   */
+  public static PeerMessage.Builder wrapField(int field_number, ByteString serialized)
+  {
+    UnknownFieldSet fields = UnknownFieldSet.newBuilder()
+      .addField(field_number, UnknownFieldSet.Field.newBuilder().addLengthDelimited(serialized).build())
+      .build();
+    return PeerMessage.newBuilder().setUnknownFields(fields);
+  }
+
+  public long getHitCount() { return hits.get(); }
+  public long getMissCount() { return misses.get(); }
+
+  public double getHitRate()
+  {
+    double h = hits.get();
+    double total = h + misses.get();
+    if (total == 0.0) return 0.0;
+    return h / total;
+  }
+
+  public String getStatusReport()
+  {
+    DecimalFormat df = new DecimalFormat("0.000");
+    return String.format("BlockReadCache{hits:%d misses:%d rate:%s}", hits.get(), misses.get(), df.format(getHitRate()));
+  }
+
+  private ByteString get(SoftLRUCache<ChainHash, ByteString> cache, ChainHash hash)
+  {
+    ByteString b;
+    synchronized(cache)
+    {
+      b = cache.get(hash);
+    }
+    return b;
+  }
+
+  /**
+   * Once per public lookup, so one peer request is one hit or one miss
+   */
+  private void count(boolean hit)
+  {
+    if (hit) hits.getAndIncrement();
+    else misses.getAndIncrement();
+  }
+
+  private void put(SoftLRUCache<ChainHash, ByteString> cache, ChainHash hash, ByteString b)
+  {
+    synchronized(cache)
+    {
+      cache.put(hash, b);
+    }
+  }
+
+}
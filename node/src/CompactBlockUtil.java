@@ -0,0 +1,198 @@
+package snowblossom.node;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.ValidationException;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockTransactions;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.PrefilledTransaction;
+import snowblossom.proto.Transaction;
+
+/**
+ * Building and filling in compact blocks.
+ *
+ * A compact block is the header plus a 64-bit short id for each transaction.
+ * Peers that have been following along will have nearly all of those in their mempool
+ * already, so they only need to ask for the few they are missing.
+ * The short ids are keyed by the block hash so that someone can't grind out transactions
+ * that collide with ones in other blocks.
+ */
+public class CompactBlockUtil
+{
+  public static CompactBlock compact(Block blk)
+  {
+    HashFunction hf = getShortIdFunction(new ChainHash(blk.getHeader().getSnowHash()));
+
+    CompactBlock.Builder cb = CompactBlock.newBuilder();
+    cb.setHeader(blk.getHeader());
+    cb.addAllImportedBlocks(blk.getImportedBlocksList());
+
+    for(int i=0; i<blk.getTransactionsCount(); i++)
+    {
+      Transaction tx = blk.getTransactions(i);
+      if (i == 0)
+      {
+        // Coinbase, nobody else has it
+        cb.addShortTxIds(0L);
+        cb.addPrefilled(PrefilledTransaction.newBuilder().setIndex(i).setTx(tx).build());
+      }
+      else
+      {
+        cb.addShortTxIds(getShortId(hf, tx.getTxHash()));
+      }
+    }
+    return cb.build();
+  }
+
+  public static HashFunction getShortIdFunction(ChainHash block_hash)
+  {
+    ByteBuffer bb = ByteBuffer.wrap(block_hash.toByteArray());
+    long k0 = bb.getLong();
+    long k1 = bb.getLong();
+    return Hashing.sipHash24(k0, k1);
+  }
+
+  public static long getShortId(HashFunction hf, ByteString tx_hash)
+  {
+    return hf.hashBytes(tx_hash.toByteArray()).asLong();
+  }
+
+  /**
+   * Where a PartialBlock looks for transactions, normally the MetaMemPool
+   */
+  public interface TxPool
+  {
+    public Collection<ChainHash> getPoolHashList();
+    public Transaction getTransaction(ChainHash tx_hash);
+  }
+
+  /**
+   * A compact block we are filling in
+   */
+  public static class PartialBlock
+  {
+    private final CompactBlock cb;
+    private final Transaction[] txs;
+    private final long create_time;
+
+    /**
+     * Fill in what we can from the mempool
+     */
+    public PartialBlock(CompactBlock cb, TxPool pool)
+      throws ValidationException
+    {
+      this.cb = cb;
+      this.create_time = System.currentTimeMillis();
+
+      int count = cb.getShortTxIdsCount();
+      if (count == 0) throw new ValidationException("Compact block with no transactions");
+      txs = new Transaction[count];
+
+      for(PrefilledTransaction pt : cb.getPrefilledList())
+      {
+        fill(pt);
+      }
+      if (txs[0] == null) throw new ValidationException("Compact block without coinbase");
+
+      // Anything that shows up twice is ambiguous, so leave those for the peer to send
+      HashFunction hf = getShortIdFunction(getHash());
+      HashMap<Long, ChainHash> short_map = new HashMap<>();
+      HashMap<Long, Boolean> dup_map = new HashMap<>();
+      for(ChainHash tx_hash : pool.getPoolHashList())
+      {
+        long id = getShortId(hf, tx_hash.getBytes());
+        if (short_map.put(id, tx_hash) != null) dup_map.put(id, true);
+      }
+
+      for(int i=0; i<count; i++)
+      {
+        if (txs[i] != null) continue;
+        long id = cb.getShortTxIds(i);
+        if (dup_map.containsKey(id)) continue;
+
+        ChainHash tx_hash = short_map.get(id);
+        if (tx_hash != null)
+        {
+          // might have left the pool since, in which case it is just missing
+          txs[i] = pool.getTransaction(tx_hash);
+        }
+      }
+    }
+
+    public ChainHash getHash()
+    {
+      return new ChainHash(cb.getHeader().getSnowHash());
+    }
+
+    public long getCreateTime()
+    {
+      return create_time;
+    }
+
+    public List<Integer> getMissing()
+    {
+      ArrayList<Integer> missing = new ArrayList<>();
+      for(int i=0; i<txs.length; i++)
+      {
+        if (txs[i] == null) missing.add(i);
+      }
+      return missing;
+    }
+
+    public void addTransactions(BlockTransactions bt)
+      throws ValidationException
+    {
+      for(PrefilledTransaction pt : bt.getTransactionsList())
+      {
+        fill(pt);
+      }
+    }
+
+    private void fill(PrefilledTransaction pt)
+      throws ValidationException
+    {
+      if ((pt.getIndex() < 0) || (pt.getIndex() >= txs.length))
+      {
+        throw new ValidationException("Transaction index out of range: " + pt.getIndex());
+      }
+      txs[pt.getIndex()] = pt.getTx();
+    }
+
+    /**
+     * @return the reconstructed block, or null if something is still missing
+     * or we filled in the wrong thing somewhere (short id collision).
+     * Either way, the caller should fall back to the full block.
+     */
+    public Block getBlock()
+    {
+      ArrayList<ChainHash> tx_list = new ArrayList<>();
+      for(Transaction tx : txs)
+      {
+        if (tx == null) return null;
+        tx_list.add(new ChainHash(tx.getTxHash()));
+      }
+
+      ChainHash merkle_root = DigestUtil.getMerkleRootForTxList(tx_list);
+      if (!merkle_root.equals(cb.getHeader().getMerkleRootHash())) return null;
+
+      Block.Builder blk = Block.newBuilder();
+      blk.setHeader(cb.getHeader());
+      for(Transaction tx : txs)
+      {
+        blk.addTransactions(tx);
+      }
+      blk.addAllImportedBlocks(cb.getImportedBlocksList());
+      return blk.build();
+    }
+  }
+
+}
@@ -1,9 +1,11 @@
 package snowblossom.node;
 
 import com.google.protobuf.ByteString;
+import duckutil.MetricLog;
 import duckutil.PeriodicThread;
 import java.util.Random;
 import java.util.logging.Logger;
+import snowblossom.lib.trie.TrieDBCache;
 import snowblossom.proto.BlockHeader;
 
 public class DBMaintThread extends PeriodicThread
@@ -35,6 +37,9 @@ public class DBMaintThread extends PeriodicThread
   public void runPass()
     throws Exception
   {
+    logTrieCache("utxo", node.getDB().getUtxoTrieCache());
+    logTrieCache("chain_index", node.getDB().getChainIndexTrieCache());
+
     int maint_height = 0;
     ByteString db_maint_data = node.getDB().getSpecialMap().get("db_maint_height");
     if(db_maint_data != null)
@@ -58,4 +63,21 @@ public class DBMaintThread extends PeriodicThread
     }
   }
 
+  private void logTrieCache(String name, TrieDBCache cache)
+  {
+    if (cache == null) return;
+
+    try(MetricLog mlog = new MetricLog())
+    {
+      mlog.setOperation("trie_cache");
+      mlog.setModule("db");
+      mlog.set("trie", name);
+      mlog.set("hits", cache.getHitCount());
+      mlog.set("misses", cache.getMissCount());
+      mlog.set("entries", cache.getEntryCount());
+      mlog.set("bytes", cache.getSizeBytes());
+    }
+    logger.fine(String.format("Trie cache %s: %s", name, cache));
+  }
+
 }
@@ -0,0 +1,659 @@
+package snowblossom.node;
+
+import duckutil.MetricLog;
+import duckutil.PeriodicThread;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Validation;
+import snowblossom.lib.ValidationException;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.RequestBlock;
+import snowblossom.proto.RequestBlockHeader;
+
+/**
+ * Catches up on a long chain faster than the normal block by block sync in PeerLink.
+ *
+ * When a peer shows us a tip well ahead of ours on a shard:
+ *  - request the headers by height for a window ahead of our head, from any peers that have them
+ *  - once we have a linked run of headers, request the bodies for a smaller window, spread
+ *    across peers by how fast they have been delivering
+ *  - as bodies come in, do the stateless block checks on the peer thread and park them
+ *  - a single ingest thread feeds the parked blocks into the BlockIngestor in height order
+ *
+ * So network round trips, signature checks and the utxo work all overlap, rather
+ * than one block per round trip.  Once we are within min_gap blocks of the best tip,
+ * this steps aside and the normal sync takes over.
+ *
+ * Headers are only fetched above our head, so if the peers' chain forks off below it
+ * there is nothing here to link to.  In that case this also steps aside for a while
+ * and lets the normal sync walk back by hash to where the chains meet.
+ */
+public class HeadersFirstSync extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.peering");
+
+  public static final long REQUEST_TIMEOUT_MS = 20000L;
+
+  // After finding the peers on a fork from below our head, how long to leave
+  // the shard to the normal sync
+  public static final long FORK_HOLD_MS = 60000L;
+
+  // Peers we haven't heard from yet start here, so they get tried
+  public static final double INITIAL_RATE = 100.0;
+
+  private final SnowBlossomNode node;
+  private final int min_gap;
+  private final int header_window;
+  private final int block_window;
+  private final int per_peer_blocks;
+
+  private final TreeMap<Integer, ShardSync> shard_map = new TreeMap<>();
+  private final HashMap<String, PeerScore> score_map = new HashMap<>();
+
+  private final IngestThread ingest_thread;
+
+  public HeadersFirstSync(SnowBlossomNode node)
+  {
+    super(500L);
+    setName("HeadersFirstSync");
+    setDaemon(true);
+
+    this.node = node;
+    this.min_gap = node.getConfig().getIntWithDefault("headers_first_min_gap", 32);
+    this.header_window = node.getConfig().getIntWithDefault("headers_first_header_window", 2000);
+    this.block_window = node.getConfig().getIntWithDefault("headers_first_block_window", 128);
+    this.per_peer_blocks = node.getConfig().getIntWithDefault("headers_first_peer_blocks", 16);
+
+    ingest_thread = new IngestThread();
+  }
+
+  @Override
+  public void start()
+  {
+    super.start();
+    ingest_thread.start();
+  }
+
+  /**
+   * A peer told us about its tip.  Header basics have already been checked.
+   */
+  public synchronized void onTip(PeerLink link, BlockHeader header)
+  {
+    int shard_id = header.getShardId();
+    if (!node.getActiveShards().contains(shard_id)) return;
+
+    ShardSync ss = getShardSync(shard_id);
+    ss.peer_tips.put(link.getLinkId(), header.getBlockHeight());
+    ss.target_height = Math.max(ss.target_height, header.getBlockHeight());
+  }
+
+  /**
+   * A header came in, possibly one we asked for.  Header basics have already been checked.
+   */
+  public synchronized void onHeader(PeerLink link, BlockHeader header, int req_shard_id)
+  {
+    // Peers answer height requests with parent shard headers sometimes
+    if (header.getShardId() != req_shard_id) return;
+
+    ShardSync ss = shard_map.get(header.getShardId());
+    if (ss == null) return;
+
+    int height = header.getBlockHeight();
+    HeaderRequest req = ss.header_requests.remove(height);
+    if (req == null) return;
+    headerDone(req);
+    if (height <= ss.getHeadHeight()) return;
+
+    // Only keep headers that link to what we already have below them.
+    // Anything above that doesn't link to this one is from some other chain, so toss it.
+    BlockHeader below = ss.headers.get(height - 1);
+    if ((below != null) && (!below.getSnowHash().equals(header.getPrevBlockHash()))) return;
+
+    BlockHeader above = ss.headers.get(height + 1);
+    if ((above != null) && (!above.getPrevBlockHash().equals(header.getSnowHash())))
+    {
+      ss.headers.tailMap(height, false).clear();
+    }
+
+    ss.headers.put(height, header);
+    getScore(link).headers++;
+  }
+
+  /**
+   * @return true if this block was one we requested and we have taken it.
+   * Otherwise, it is up to the caller to handle it.
+   */
+  public boolean onBlock(PeerLink link, Block blk)
+    throws ValidationException
+  {
+    ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+    BlockRequest req;
+    synchronized(this)
+    {
+      ShardSync ss = shard_map.get(blk.getHeader().getShardId());
+      if (ss == null) return false;
+      req = ss.block_requests.remove(hash);
+      if (req == null) return false;
+
+      PeerScore score = getScore(link);
+      score.inflight = Math.max(0, score.inflight - 1);
+      score.recordDelivery(blk.getSerializedSize(), System.currentTimeMillis() - req.request_time);
+    }
+
+    // Stateless checks here on the peer thread, so they overlap with everything else
+    try
+    {
+      Validation.checkBlockBasics(node.getParams(), blk, true, false);
+    }
+    catch(ValidationException e)
+    {
+      synchronized(this)
+      {
+        getScore(link).failures++;
+      }
+      throw e;
+    }
+
+    synchronized(this)
+    {
+      ShardSync ss = shard_map.get(blk.getHeader().getShardId());
+      if (ss != null)
+      {
+        ss.ready.put(blk.getHeader().getBlockHeight(), blk);
+      }
+    }
+    ingest_thread.wake();
+    return true;
+  }
+
+  @Override
+  public void runPass()
+    throws Exception
+  {
+    ArrayList<PendingSend> sends = new ArrayList<>();
+    synchronized(this)
+    {
+      pruneScores();
+      for(ShardSync ss : shard_map.values())
+      {
+        planShard(ss, sends);
+      }
+    }
+
+    // Send outside the lock, so a slow link doesn't hold up incoming blocks
+    for(PendingSend ps : sends)
+    {
+      ps.link.writeMessage(ps.msg);
+    }
+  }
+
+  private void planShard(ShardSync ss, List<PendingSend> sends)
+  {
+    // Read once, the ingest thread moves it along while we work
+    BlockSummary head_summary = getHead(ss.shard_id);
+    int head = -1;
+    if (head_summary != null) head = head_summary.getHeader().getBlockHeight();
+    long now = System.currentTimeMillis();
+
+    ss.headers.headMap(head, true).clear();
+    ss.ready.headMap(head, true).clear();
+
+    if (!ss.active)
+    {
+      if (now < ss.fork_hold_until) return;
+      if (ss.target_height - head < min_gap) return;
+      ss.active = true;
+      logger.info(String.format("Starting headers first sync on shard %d from %d to %d", ss.shard_id, head, ss.target_height));
+    }
+    else if ((ss.target_height - head < min_gap / 2) && (ss.block_requests.isEmpty()) && (ss.ready.isEmpty()))
+    {
+      ss.active = false;
+      ss.headers.clear();
+      clearHeaderRequests(ss);
+      logger.info(String.format("Finished headers first sync on shard %d at %d", ss.shard_id, head));
+      return;
+    }
+
+    expireRequests(ss, now);
+
+    try(MetricLog mlog = new MetricLog())
+    {
+      mlog.setOperation("headers_first_sync");
+      mlog.setModule("peering");
+      mlog.set("shard", ss.shard_id);
+      mlog.set("head", head);
+      mlog.set("target", ss.target_height);
+
+      // The headers we have link to each other, make sure they link to our head too
+      BlockHeader next = ss.headers.get(head + 1);
+      if ((next != null) && (!extendsHead(next, head_summary)))
+      {
+        handBack(ss, now);
+        mlog.set("fork", 1);
+        return;
+      }
+
+      // Headers, by height from peers that claim to have that height
+      int header_limit = Math.min(ss.target_height, head + header_window);
+      int header_sent = 0;
+      for(int h = head + 1; h <= header_limit; h++)
+      {
+        if (ss.headers.containsKey(h)) continue;
+        if (ss.header_requests.containsKey(h)) continue;
+
+        PeerLink link = selectPeer(ss, h, false);
+        if (link == null) break;
+
+        ss.header_requests.put(h, new HeaderRequest(link.getLinkId(), now));
+        getScore(link).headers_inflight++;
+        sends.add(new PendingSend(link, PeerMessage.newBuilder()
+          .setReqHeader(RequestBlockHeader.newBuilder().setShardId(ss.shard_id).setBlockHeight(h).build())
+          .build()));
+        header_sent++;
+      }
+
+      // Bodies, only for a window we have linked headers for
+      int block_limit = head + block_window;
+      int block_sent = 0;
+      BlockIngestor ingestor = node.getBlockIngestor(ss.shard_id);
+      for(int h = head + 1; h <= block_limit; h++)
+      {
+        BlockHeader header = ss.headers.get(h);
+        if (header == null) break;
+        if (ss.ready.containsKey(h)) continue;
+
+        ChainHash hash = new ChainHash(header.getSnowHash());
+        if (ss.block_requests.containsKey(hash)) continue;
+
+        PeerLink link = selectPeer(ss, h, true);
+        if (link == null) break;
+
+        // Keep the normal sync from asking for the same thing
+        if (ingestor != null) ingestor.reserveBlock(hash);
+
+        ss.block_requests.put(hash, new BlockRequest(h, link.getLinkId(), now));
+        getScore(link).inflight++;
+        sends.add(new PendingSend(link, PeerMessage.newBuilder()
+          .setReqBlock(RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
+          .build()));
+        block_sent++;
+      }
+
+      mlog.set("headers", ss.headers.size());
+      mlog.set("header_req_sent", header_sent);
+      mlog.set("block_inflight", ss.block_requests.size());
+      mlog.set("block_req_sent", block_sent);
+      mlog.set("ready", ss.ready.size());
+    }
+  }
+
+  /**
+   * @return true if the header is the next block on top of this head
+   * (or is a first block when there is no head)
+   */
+  public static boolean extendsHead(BlockHeader next, BlockSummary head)
+  {
+    if (head == null)
+    {
+      return new ChainHash(next.getPrevBlockHash()).equals(ChainHash.ZERO_HASH);
+    }
+    return next.getPrevBlockHash().equals(head.getHeader().getSnowHash());
+  }
+
+  /**
+   * The peers are on a fork from below our head.  Drop everything we have
+   * for it and leave the shard to the normal sync for a while.
+   */
+  private void handBack(ShardSync ss, long now)
+  {
+    logger.info(String.format("Headers first sync on shard %d found a fork below head %d, leaving it to normal sync",
+      ss.shard_id, ss.getHeadHeight()));
+
+    ss.active = false;
+    ss.forks++;
+    ss.fork_hold_until = now + FORK_HOLD_MS;
+    ss.headers.clear();
+    ss.ready.clear();
+    clearHeaderRequests(ss);
+    for(BlockRequest req : ss.block_requests.values())
+    {
+      PeerScore score = score_map.get(req.link_id);
+      if (score != null)
+      {
+        score.inflight = Math.max(0, score.inflight - 1);
+      }
+    }
+    ss.block_requests.clear();
+  }
+
+  private void expireRequests(ShardSync ss, long now)
+  {
+    Iterator<HeaderRequest> h_it = ss.header_requests.values().iterator();
+    while(h_it.hasNext())
+    {
+      HeaderRequest req = h_it.next();
+      if (req.request_time + REQUEST_TIMEOUT_MS < now)
+      {
+        headerDone(req);
+        h_it.remove();
+      }
+    }
+
+    Iterator<Map.Entry<ChainHash, BlockRequest>> it = ss.block_requests.entrySet().iterator();
+    while(it.hasNext())
+    {
+      BlockRequest req = it.next().getValue();
+      if (req.request_time + REQUEST_TIMEOUT_MS < now)
+      {
+        PeerScore score = score_map.get(req.link_id);
+        if (score != null)
+        {
+          score.inflight = Math.max(0, score.inflight - 1);
+          score.recordTimeout();
+        }
+        it.remove();
+      }
+    }
+  }
+
+  private void headerDone(HeaderRequest req)
+  {
+    PeerScore score = score_map.get(req.link_id);
+    if (score != null)
+    {
+      score.headers_inflight = Math.max(0, score.headers_inflight - 1);
+    }
+  }
+
+  private void clearHeaderRequests(ShardSync ss)
+  {
+    for(HeaderRequest req : ss.header_requests.values())
+    {
+      headerDone(req);
+    }
+    ss.header_requests.clear();
+  }
+
+  /**
+   * Pick the open peer with the best delivery rate that has room for another request
+   * and claims to have a block at this height
+   */
+  private PeerLink selectPeer(ShardSync ss, int height, boolean body)
+  {
+    PeerLink best = null;
+    double best_rate = -1.0;
+
+    for(PeerLink link : node.getPeerage().getLinkList())
+    {
+      if (!link.isOpen()) continue;
+      Integer tip = ss.peer_tips.get(link.getLinkId());
+      if ((tip == null) || (tip < height)) continue;
+
+      PeerScore score = getScore(link);
+      if (body && (score.inflight >= per_peer_blocks)) continue;
+
+      // Spread load a bit, a peer with a full pipe looks worse.
+      // Headers are small, so those just go to whoever has the fewest outstanding.
+      double rate = score.rate / (1.0 + score.inflight);
+      if (!body) rate = 1.0 / (1.0 + score.headers_inflight);
+      if (rate > best_rate)
+      {
+        best = link;
+        best_rate = rate;
+      }
+    }
+    return best;
+  }
+
+  private PeerScore getScore(PeerLink link)
+  {
+    PeerScore score = score_map.get(link.getLinkId());
+    if (score == null)
+    {
+      score = new PeerScore();
+      score_map.put(link.getLinkId(), score);
+    }
+    return score;
+  }
+
+  private void pruneScores()
+  {
+    HashMap<String, PeerLink> open = new HashMap<>();
+    for(PeerLink link : node.getPeerage().getLinkList())
+    {
+      open.put(link.getLinkId(), link);
+    }
+    score_map.keySet().retainAll(open.keySet());
+    for(ShardSync ss : shard_map.values())
+    {
+      ss.peer_tips.keySet().retainAll(open.keySet());
+    }
+  }
+
+  private ShardSync getShardSync(int shard_id)
+  {
+    ShardSync ss = shard_map.get(shard_id);
+    if (ss == null)
+    {
+      ss = new ShardSync(shard_id);
+      shard_map.put(shard_id, ss);
+    }
+    return ss;
+  }
+
+  private BlockSummary getHead(int shard_id)
+  {
+    BlockIngestor ingestor = node.getBlockIngestor(shard_id);
+    if (ingestor == null) return null;
+    return ingestor.getHead();
+  }
+
+  private int getHeadHeight(int shard_id)
+  {
+    BlockSummary head = getHead(shard_id);
+    if (head == null) return -1;
+    return head.getHeader().getBlockHeight();
+  }
+
+  /**
+   * @return number of times a shard was handed back to normal sync over a fork
+   */
+  public synchronized int getForkCount()
+  {
+    int forks = 0;
+    for(ShardSync ss : shard_map.values())
+    {
+      forks += ss.forks;
+    }
+    return forks;
+  }
+
+  public synchronized String getStatusReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    for(ShardSync ss : shard_map.values())
+    {
+      sb.append(String.format("shard %d: active:%s head:%d target:%d headers:%d inflight:%d ready:%d forks:%d\n",
+        ss.shard_id, ss.active, ss.getHeadHeight(), ss.target_height,
+        ss.headers.size(), ss.block_requests.size(), ss.ready.size(), ss.forks));
+    }
+    for(Map.Entry<String, PeerScore> me : score_map.entrySet())
+    {
+      PeerScore s = me.getValue();
+      sb.append(String.format("  peer %s: rate:%.1f kb/s blocks:%d inflight:%d timeouts:%d failures:%d\n",
+        me.getKey(), s.rate, s.blocks, s.inflight, s.timeouts, s.failures));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Feeds parked blocks to the ingestor in height order
+   */
+  public class IngestThread extends PeriodicThread
+  {
+    public IngestThread()
+    {
+      super(1000L);
+      setName("HeadersFirstSync/Ingest");
+      setDaemon(true);
+    }
+
+    @Override
+    public void runPass()
+    {
+      while(true)
+      {
+        Block blk = null;
+        int shard_id = 0;
+        synchronized(HeadersFirstSync.this)
+        {
+          for(ShardSync ss : shard_map.values())
+          {
+            Block b = ss.ready.remove(ss.getHeadHeight() + 1);
+            if (b != null)
+            {
+              blk = b;
+              shard_id = ss.shard_id;
+              break;
+            }
+          }
+        }
+        if (blk == null) return;
+
+        boolean ingested = false;
+        try
+        {
+          ingested = node.getBlockIngestor(shard_id).ingestBlock(blk, true);
+        }
+        catch(ValidationException e)
+        {
+          logger.log(Level.INFO, "Headers first sync block failed validation", e);
+        }
+
+        if ((!ingested) && (blk.getHeader().getBlockHeight() > getHeadHeight(shard_id)))
+        {
+          // Either we don't have the previous block or this one is bad
+          // (already having it because the normal sync got there first is fine).
+          // Either way the headers from here up are suspect, so start again from the head.
+          synchronized(HeadersFirstSync.this)
+          {
+            ShardSync ss = shard_map.get(shard_id);
+            ss.headers.clear();
+            ss.ready.clear();
+          }
+          HeadersFirstSync.this.wake();
+        }
+        else
+        {
+          // Make room in the window
+          HeadersFirstSync.this.wake();
+        }
+      }
+    }
+  }
+
+  private class ShardSync
+  {
+    final int shard_id;
+    boolean active;
+    int target_height = -1;
+    int forks;
+    long fork_hold_until;
+
+    // Tip height each peer has told us about
+    final HashMap<String, Integer> peer_tips = new HashMap<>();
+
+    // Validated headers above our head, linked to each other
+    final TreeMap<Integer, BlockHeader> headers = new TreeMap<>();
+    final TreeMap<Integer, HeaderRequest> header_requests = new TreeMap<>();
+
+    final HashMap<ChainHash, BlockRequest> block_requests = new HashMap<>();
+
+    // Blocks that passed basic checks, waiting for their turn
+    final TreeMap<Integer, Block> ready = new TreeMap<>();
+
+    ShardSync(int shard_id)
+    {
+      this.shard_id = shard_id;
+    }
+
+    int getHeadHeight()
+    {
+      return HeadersFirstSync.this.getHeadHeight(shard_id);
+    }
+  }
+
+  private static class HeaderRequest
+  {
+    final String link_id;
+    final long request_time;
+
+    HeaderRequest(String link_id, long request_time)
+    {
+      this.link_id = link_id;
+      this.request_time = request_time;
+    }
+  }
+
+  private static class BlockRequest
+  {
+    final int height;
+    final String link_id;
+    final long request_time;
+
+    BlockRequest(int height, String link_id, long request_time)
+    {
+      this.height = height;
+      this.link_id = link_id;
+      this.request_time = request_time;
+    }
+  }
+
+  private static class PeerScore
+  {
+    // Exponentially weighted delivery rate in kb/s
+    double rate = INITIAL_RATE;
+    int inflight;
+    long blocks;
+    long headers;
+    int headers_inflight;
+    long timeouts;
+    long failures;
+
+    void recordDelivery(int bytes, long ms)
+    {
+      blocks++;
+      double kbs = (bytes / 1024.0) / (Math.max(1L, ms) / 1000.0);
+      rate = rate * 0.8 + kbs * 0.2;
+    }
+
+    void recordTimeout()
+    {
+      timeouts++;
+      rate = rate / 2.0;
+    }
+  }
+
+  private static class PendingSend
+  {
+    final PeerLink link;
+    final PeerMessage msg;
+
+    PendingSend(PeerLink link, PeerMessage msg)
+    {
+      this.link = link;
+      this.msg = msg;
+    }
+  }
+
+}
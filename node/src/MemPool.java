@@ -10,11 +10,14 @@ import duckutil.MetricLog;
 import duckutil.PeriodicThread;
 import duckutil.TimeRecord;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.Assert;
 import snowblossom.lib.*;
 import snowblossom.lib.trie.HashedTrie;
+import snowblossom.proto.Block;
 import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInner;
@@ -39,15 +42,21 @@ public class MemPool
 {
   private static final Logger logger = Logger.getLogger("snowblossom.mempool");
 
-  private Map<ChainHash, TransactionMempoolInfo> known_transactions = new HashMap<>(512, 0.5f);
+  // These three are only modified while holding the lock on this, but can be read
+  // without it, so that lookups never wait on transactions being added
+  private ConcurrentHashMap<ChainHash, TransactionMempoolInfo> known_transactions = new ConcurrentHashMap<>(512, 0.5f);
 
-  private HashMap<String, ChainHash> claimed_outputs = new HashMap<>();
+  private ConcurrentHashMap<OutPoint, ChainHash> claimed_outputs = new ConcurrentHashMap<>();
 
   // Mapping of addresses to transactions that involve them
-  private HashMultimap<AddressSpecHash, ChainHash> address_tx_map = HashMultimap.<AddressSpecHash, ChainHash>create();
+  private ConcurrentHashMap<AddressSpecHash, Set<ChainHash>> address_tx_map = new ConcurrentHashMap<>();
 
   // In normal operation, the priority map is updated as transactions come in
-  // However, when a new block is learned we need to toss it all and start
+  // When a new block extends the utxo root we built from, we apply the block as a delta:
+  // transactions in the block or double spent by it are dropped and only the clusters
+  // that contained those are rebuilt.  Everything else is still valid against the new root.
+  //
+  // If we can't do that (reorg, missed block), we toss it all and start
   // fresh.  Since we don't want to require a transaction index for the entire chain
   // it isn't easy to see which transactions we should exclude because they are in blocks
   // already.  So we toss the priority map and build a new one from known_transactions.
@@ -58,9 +67,18 @@ public class MemPool
   //
   // Easy as eating pancakes.
   //
-  private ChainHash utxo_for_pri_map = null;
+  private volatile ChainHash utxo_for_pri_map = null;
   private TreeMultimap<Double, TXCluster> priority_map = TreeMultimap.<Double, TXCluster>create();
 
+  // Cluster built for each transaction, keyed by that transaction
+  private HashMap<ChainHash, TXCluster> cluster_map = new HashMap<>();
+  // For each transaction, the transactions whose clusters include it
+  private HashMultimap<ChainHash, ChainHash> cluster_members = HashMultimap.<ChainHash, ChainHash>create();
+
+  // Blocks waiting to be applied to the priority map
+  private LinkedList<BlockDelta> pending_blocks = new LinkedList<>();
+  public static final int MAX_PENDING_BLOCKS = 16;
+
   private HashedTrie utxo_hashed_trie;
   private ChainStateSource chain_state_source;
 
@@ -75,7 +93,7 @@ public class MemPool
   private final boolean accepts_p2p_tx;
 
   private Tickler tickler;
-  private ImmutableList<MemPoolTickleInterface> mempool_listener = ImmutableList.of();
+  private volatile ImmutableList<MemPoolTickleInterface> mempool_listener = ImmutableList.of();
 
   private ImmutableSet<Integer> shard_cover_set;
 
@@ -103,12 +121,12 @@ public class MemPool
     new TicklerBroadcast().start();
   }
 
-  public synchronized int getMemPoolSize()
+  public int getMemPoolSize()
   {
     return known_transactions.size();
   }
 
-  public synchronized TransactionMempoolInfo getRandomPoolTransaction()
+  public TransactionMempoolInfo getRandomPoolTransaction()
   {
     ArrayList<TransactionMempoolInfo> list = new ArrayList<>();
     list.addAll(known_transactions.values());
@@ -118,7 +136,7 @@ public class MemPool
     return list.get(rnd.nextInt(list.size()));
   }
 
-  public synchronized Transaction getTransaction(ChainHash tx_hash)
+  public Transaction getTransaction(ChainHash tx_hash)
   {
     TransactionMempoolInfo info = known_transactions.get(tx_hash);
     if (info != null)
@@ -128,22 +146,34 @@ public class MemPool
     return null;
   }
 
-  public synchronized Collection<ChainHash> getPoolHashList()
+  public Collection<ChainHash> getPoolHashList()
   {
     return ImmutableList.copyOf( known_transactions.keySet() );
 
   }
 
-  public synchronized Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
+  public Set<ChainHash> getTransactionsForAddress(AddressSpecHash spec_hash)
+  {
+    Set<ChainHash> s = address_tx_map.get(spec_hash);
+    if (s == null) return ImmutableSet.of();
+    return ImmutableSet.copyOf(s);
+  }
+
+  private void addAddressTx(AddressSpecHash spec_hash, ChainHash tx_hash)
   {
-    return ImmutableSet.copyOf(address_tx_map.get(spec_hash));
+    address_tx_map.computeIfAbsent(spec_hash, k -> ConcurrentHashMap.newKeySet()).add(tx_hash);
+  }
+
+  private void removeAddressTx(AddressSpecHash spec_hash, ChainHash tx_hash)
+  {
+    address_tx_map.computeIfPresent(spec_hash, (k, s) -> { s.remove(tx_hash); return s.isEmpty() ? null : s; });
   }
 
   public synchronized List<Transaction> getTxClusterForTransaction(ChainHash tx_id)
   {
-    for(TXCluster cluster : priority_map.values())
+    for(ChainHash target : cluster_members.get(tx_id))
     {
-      if (cluster.tx_set.contains(tx_id)) return cluster.tx_list;
+      return cluster_map.get(target).tx_list;
     }
     return null;
   }
@@ -170,7 +200,7 @@ public class MemPool
         {
           sub_log.setOperation("priority_map_rebuild");
           sub_log.setModule("mem_pool");
-          rebuildPriorityMap(last_utxo);
+          updatePriorityMap(last_utxo);
         }
       }
       else
@@ -207,7 +237,7 @@ public class MemPool
                 {
                   block_list.add(tx);
                   included_txs.add(tx_hash);
-                  int sz = tx.toByteString().size();
+                  int sz = tx.getSerializedSize();
                   size += sz;
                   if (low_fee)
                   {
@@ -234,139 +264,274 @@ public class MemPool
   {
     try(MetricLog mlog = new MetricLog())
     {
+      mlog.setOperation("add_transaction");
+      mlog.setModule("mem_pool");
+      mlog.set("added", 0);
 
       long t1 = System.nanoTime();
       Validation.checkTransactionBasics(tx, false);
       mlog.set("basic_validation", 1);
       TimeRecord.record(t1, "mempool:tx_validation");
 
-      long t_lock = System.nanoTime();
-      synchronized(this)
+      if ((p2p_source) && (!accepts_p2p_tx))
       {
-        TimeRecord.record(t_lock, "mempool:have_lock");
-        mlog.setOperation("add_transaction");
-        mlog.setModule("mem_pool");
-        mlog.set("added", 0);
-
-        if ((p2p_source) && (!accepts_p2p_tx))
-        {
-          mlog.set("reject_p2p", 1);
-          return false;
-        }
+        mlog.set("reject_p2p", 1);
+        return false;
+      }
 
-        ChainHash tx_hash = new ChainHash(tx.getTxHash());
-        mlog.set("tx_id", tx_hash.toString());
-        if (known_transactions.containsKey(tx_hash))
-        {
-          mlog.set("already_known", 1);
-          return false;
-        }
+      ChainHash tx_hash = new ChainHash(tx.getTxHash());
+      mlog.set("tx_id", tx_hash.toString());
 
-        if (known_transactions.size() >= MEM_POOL_MAX)
-        {
-          throw new ValidationException("mempool is full");
-        }
+      // Everything up to the critical section below runs without the lock,
+      // against whatever utxo root the priority map is on right now.
+      // These checks are repeated under the lock, since things may have changed.
+      if (known_transactions.containsKey(tx_hash))
+      {
+        mlog.set("already_known", 1);
+        return false;
+      }
 
-        TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
+      TransactionMempoolInfo info = new TransactionMempoolInfo(tx);
 
-        TransactionInner inner = info.inner;
-        double tx_ratio = (double) inner.getFee() / (double)tx.toByteString().size();
+      TransactionInner inner = info.inner;
+      double tx_ratio = (double) inner.getFee() / (double)tx.getSerializedSize();
+      boolean low_fee = (tx_ratio < Globals.LOW_FEE);
 
-        mlog.set("fee", inner.getFee());
-        mlog.set("fee_ratio", tx_ratio);
+      mlog.set("fee", inner.getFee());
+      mlog.set("fee_ratio", tx_ratio);
+      if (low_fee) mlog.set("low_fee", 1);
+      checkPoolLimits(low_fee);
 
-        if (tx_ratio < Globals.LOW_FEE)
-        {
-          mlog.set("low_fee", 1);
+      HashSet<OutPoint> used_outputs = new HashSet<>();
+      TimeRecord.record(t1, "mempool:p1");
 
-          if (known_transactions.size() >= MEM_POOL_MAX_LOW)
-          {
-            throw new ValidationException("mempool is too full for low fee transactions");
-          }
-        }
+      long t3 = System.nanoTime();
+      mlog.set("input_count", inner.getInputsCount());
+      mlog.set("output_count", inner.getOutputsCount());
 
+      for (TransactionInput in : inner.getInputsList())
+      {
+        used_outputs.add(new OutPoint(in));
+      }
+      checkDoubleSpend(tx_hash, used_outputs);
+      TimeRecord.record(t3, "mempool:input_proc");
 
-        TreeSet<String> used_outputs = new TreeSet<>();
-        TimeRecord.record(t1, "mempool:p1");
+      long output_total = inner.getFee();
+      for(TransactionOutput out : inner.getOutputsList())
+      {
+        output_total += out.getValue();
+      }
+      mlog.set("total_output", output_total);
 
-        long t3 = System.nanoTime();
-        mlog.set("input_count", inner.getInputsCount());
-        mlog.set("output_count", inner.getOutputsCount());
+      ChainHash snapshot_root = utxo_for_pri_map;
+      TXCluster cluster = null;
+      if (snapshot_root != null)
+      {
+        long t2 = System.nanoTime();
+        cluster = buildTXCluster(tx, snapshot_root);
+        mlog.set("cluster_tx_count", cluster.tx_list.size());
+        mlog.set("cluster_tx_size", cluster.total_size);
+        TimeRecord.record(t2, "mempool:build_cluster");
+      }
 
-        for (TransactionInput in : inner.getInputsList())
-        {
-          String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-          used_outputs.add(key);
+      long t_lock = System.nanoTime();
+      synchronized(this)
+      {
+        TimeRecord.record(t_lock, "mempool:have_lock");
 
-          if (claimed_outputs.containsKey(key))
-          {
-            if (!claimed_outputs.get(key).equals(tx_hash))
-            {
-              throw new ValidationException("Discarding as double-spend");
-            }
-          }
-        }
-        TimeRecord.record(t3, "mempool:input_proc");
-        long output_total = inner.getFee();
-        for(TransactionOutput out : inner.getOutputsList())
+        if (known_transactions.containsKey(tx_hash))
         {
-          output_total += out.getValue();
+          mlog.set("already_known", 1);
+          return false;
         }
-        mlog.set("total_output", output_total);
+        checkPoolLimits(low_fee);
+        checkDoubleSpend(tx_hash, used_outputs);
 
         if (utxo_for_pri_map != null)
         {
-          long t2 = System.nanoTime();
-          TXCluster cluster = buildTXCluster(tx);
-          mlog.set("cluster_tx_count", cluster.tx_list.size());
-          mlog.set("cluster_tx_size", cluster.total_size);
-          TimeRecord.record(t2, "mempool:build_cluster");
-          if (cluster == null)
+          // If the root moved or a transaction we were depending on left, the cluster
+          // we built might not be right anymore.  Rare, so just do it again here.
+          if ((cluster == null) || (!utxo_for_pri_map.equals(snapshot_root)) || (!isClusterCurrent(cluster, tx_hash)))
           {
-            throw new ValidationException("Unable to find a tx cluster that makes this work");
+            mlog.set("cluster_rebuild", 1);
+            cluster = buildTXCluster(tx, utxo_for_pri_map);
           }
-          double ratio = (double) cluster.total_fee / (double) cluster.total_size;
-
-          //Random rnd = new Random();
-          //ratio = ratio * 1e9 + rnd.nextDouble();
           long t4 = System.nanoTime();
-          priority_map.put(ratio, cluster);
+          addCluster(tx_hash, cluster);
           TimeRecord.record(t4, "mempool:primapput");
-
         }
         TimeRecord.record(t1, "mempool:p2");
 
         known_transactions.put(tx_hash, info);
+        SignatureCache.markVerified(tx);
 
         for (AddressSpecHash spec_hash : info.involved_addresses)
         {
-          address_tx_map.put(spec_hash, tx_hash);
+          addAddressTx(spec_hash, tx_hash);
         }
 
         // Claim outputs used by inputs
-        for (String key : used_outputs)
+        for (OutPoint key : used_outputs)
         {
           claimed_outputs.put(key, tx_hash);
         }
         TimeRecord.record(t1, "mempool:tx_add");
         TimeRecord.record(t1, "mempool:p3");
+      }
 
-        for(MemPoolTickleInterface listener : mempool_listener)
-        {
-          listener.tickleMemPool(tx, info.involved_addresses);
-        }
+      for(MemPoolTickleInterface listener : mempool_listener)
+      {
+        listener.tickleMemPool(tx, info.involved_addresses);
+      }
+
+      mlog.set("added", 1);
+      return true;
+    }
+  }
 
-        mlog.set("added", 1);
-        return true;
+  private void checkPoolLimits(boolean low_fee)
+    throws ValidationException
+  {
+    if (known_transactions.size() >= MEM_POOL_MAX)
+    {
+      throw new ValidationException("mempool is full");
+    }
+    if ((low_fee) && (known_transactions.size() >= MEM_POOL_MAX_LOW))
+    {
+      throw new ValidationException("mempool is too full for low fee transactions");
+    }
+  }
+
+  private void checkDoubleSpend(ChainHash tx_hash, Collection<OutPoint> used_outputs)
+    throws ValidationException
+  {
+    for (OutPoint key : used_outputs)
+    {
+      ChainHash claimer = claimed_outputs.get(key);
+      if ((claimer != null) && (!claimer.equals(tx_hash)))
+      {
+        throw new ValidationException("Discarding as double-spend");
       }
     }
   }
 
+  /**
+   * @return true iff every other transaction in the cluster is still in the pool
+   */
+  private boolean isClusterCurrent(TXCluster cluster, ChainHash tx_hash)
+  {
+    for(ChainHash h : cluster.tx_set)
+    {
+      if (h.equals(tx_hash)) continue;
+      if (!known_transactions.containsKey(h)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Bring the priority map up to date with the given utxo root, applying any
+   * pending blocks that lead there and falling back to a full rebuild if they don't
+   */
+  public synchronized void updatePriorityMap(ChainHash new_utxo_root)
+  {
+    while(!new_utxo_root.equals(utxo_for_pri_map))
+    {
+      BlockDelta delta;
+      synchronized(pending_blocks)
+      {
+        delta = pending_blocks.poll();
+      }
+      if (delta == null) break;
+
+      applyBlock(delta.blk, delta.prev_utxo_root, delta.new_utxo_root);
+    }
+    if (!new_utxo_root.equals(utxo_for_pri_map))
+    {
+      rebuildPriorityMap(new_utxo_root);
+    }
+  }
+
+  /**
+   * Update the priority map for a block built on the utxo root the map is currently for.
+   * Removes transactions in the block or in conflict with it and rebuilds
+   * only the clusters that included any of those.
+   *
+   * @return true if applied, false if the map was for a different utxo root and nothing was done
+   */
+  public synchronized boolean applyBlock(Block blk, ChainHash prev_utxo_root, ChainHash new_utxo_root)
+  {
+    if ((utxo_for_pri_map == null) || (!utxo_for_pri_map.equals(prev_utxo_root))) return false;
+
+    long t1 = System.nanoTime();
+    utxo_for_pri_map = new_utxo_root;
+
+    HashSet<ChainHash> remove_set = new HashSet<>();
+    for(Transaction tx : blk.getTransactionsList())
+    {
+      ChainHash tx_hash = new ChainHash(tx.getTxHash());
+      if (known_transactions.containsKey(tx_hash)) remove_set.add(tx_hash);
+
+      TransactionInner inner = TransactionUtil.getInner(tx);
+      for (TransactionInput in : inner.getInputsList())
+      {
+        // Anything else spending this output is now a double spend
+        ChainHash claimer = claimed_outputs.get(new OutPoint(in));
+        if (claimer != null) remove_set.add(claimer);
+      }
+    }
+
+    HashSet<ChainHash> recluster_set = new HashSet<>();
+    for(ChainHash h : remove_set)
+    {
+      recluster_set.addAll(cluster_members.get(h));
+    }
+    recluster_set.removeAll(remove_set);
+
+    for(ChainHash h : remove_set)
+    {
+      removeTransaction(h);
+    }
+
+    int dropped = 0;
+    for(ChainHash h : recluster_set)
+    {
+      TransactionMempoolInfo info = known_transactions.get(h);
+      if (info == null) continue;
+
+      removeCluster(h);
+      TXCluster cluster;
+      try
+      {
+        cluster = buildTXCluster(info.tx, utxo_for_pri_map);
+      }
+      catch (ValidationException e)
+      {
+        cluster = null;
+      }
+      if (cluster == null)
+      {
+        removeTransaction(h);
+        dropped++;
+      }
+      else
+      {
+        addCluster(h, cluster);
+      }
+    }
+    TimeRecord.record(t1, "mempool:apply_block");
+    logger.log(Level.FINER, String.format("Mempool.applyBlock removed %d, reclustered %d, dropped %d, remaining %d",
+      remove_set.size(), recluster_set.size(), dropped, known_transactions.size()));
+
+    return true;
+  }
+
   public synchronized void rebuildPriorityMap(ChainHash new_utxo_root)
   {
     logger.log(Level.FINE, String.format("Mempool.rebuildPriorityMap(%s)", new_utxo_root));
     utxo_for_pri_map = new_utxo_root;
     priority_map.clear();
+    cluster_map.clear();
+    cluster_members.clear();
 
     LinkedList<ChainHash> remove_list = new LinkedList<>();
 
@@ -376,7 +541,7 @@ public class MemPool
       TXCluster cluster;
       try
       {
-        cluster = buildTXCluster(tx);
+        cluster = buildTXCluster(tx, utxo_for_pri_map);
       }
       catch (ValidationException e)
       {
@@ -386,33 +551,60 @@ public class MemPool
       if (cluster == null)
       {
         remove_list.add(new ChainHash(tx.getTxHash()));
-        TransactionInner inner = TransactionUtil.getInner(tx);
-        for (TransactionInput in : inner.getInputsList())
-        {
-          String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
-          claimed_outputs.remove(key);
-        }
       }
       else
       {
-        double ratio = (double) cluster.total_fee / (double) cluster.total_size;
-        priority_map.put(ratio, cluster);
+        addCluster(new ChainHash(tx.getTxHash()), cluster);
       }
     }
     logger.log(Level.FINER, String.format("Removing %d transactions from mempool", remove_list.size()));
 
     for (ChainHash h : remove_list)
     {
-      TransactionMempoolInfo info = known_transactions.remove(h);
+      removeTransaction(h);
+    }
+    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
 
-      for (AddressSpecHash spec_hash : info.involved_addresses)
-      {
-        address_tx_map.remove(spec_hash, h);
-      }
+  }
 
+  private void addCluster(ChainHash tx_hash, TXCluster cluster)
+  {
+    cluster_map.put(tx_hash, cluster);
+    priority_map.put(cluster.getRatio(), cluster);
+    for(ChainHash member : cluster.tx_set)
+    {
+      cluster_members.put(member, tx_hash);
     }
-    logger.log(Level.FINER, String.format("Remaining in mempool: %d", known_transactions.size()));
+  }
+
+  private void removeCluster(ChainHash tx_hash)
+  {
+    TXCluster cluster = cluster_map.remove(tx_hash);
+    if (cluster == null) return;
 
+    priority_map.remove(cluster.getRatio(), cluster);
+    for(ChainHash member : cluster.tx_set)
+    {
+      cluster_members.remove(member, tx_hash);
+    }
+  }
+
+  private void removeTransaction(ChainHash tx_hash)
+  {
+    TransactionMempoolInfo info = known_transactions.remove(tx_hash);
+    if (info == null) return;
+
+    SignatureCache.forget(tx_hash);
+    removeCluster(tx_hash);
+
+    for (AddressSpecHash spec_hash : info.involved_addresses)
+    {
+      removeAddressTx(spec_hash, tx_hash);
+    }
+    for (TransactionInput in : info.inner.getInputsList())
+    {
+      claimed_outputs.remove(new OutPoint(in), tx_hash);
+    }
   }
 
   private static void addInputRequirements(Transaction tx, HashMultimap<ChainHash, ChainHash> depends_on_map, List<TransactionInput> needed_inputs)
@@ -479,7 +671,7 @@ public class MemPool
    * Probably need to actually build the graph and do graph
    * theory things.
    */
-  private TXCluster buildTXCluster(Transaction target_tx) throws ValidationException
+  private TXCluster buildTXCluster(Transaction target_tx, ChainHash utxo_root) throws ValidationException
   {
     HashMap<ChainHash, Transaction> working_map = new HashMap<>();
 
@@ -492,6 +684,7 @@ public class MemPool
     working_map.put(new ChainHash(target_tx.getTxHash()), target_tx);
     long t1;
 
+    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_root);
 
     while (needed_inputs.size() > 0)
     {
@@ -502,15 +695,28 @@ public class MemPool
 
         ByteString key = UtxoUpdateBuffer.getKey(in);
         t1 = System.nanoTime();
-        ByteString matching_output = utxo_hashed_trie.getLeafData(utxo_for_pri_map.getBytes(), key);
+        if (!test_buffer.isFetched(key))
+        {
+          // Look up this one and all others needed so far in one pass down the trie
+          ArrayList<ByteString> keys = new ArrayList<>();
+          keys.add(key);
+          for(TransactionInput n : needed_inputs)
+          {
+            keys.add(UtxoUpdateBuffer.getKey(n));
+          }
+          test_buffer.prefetch(keys);
+        }
+        ByteString matching_output = test_buffer.getCommittedData(key);
         TimeRecord.record(t1, "utxo_lookup");
         if (matching_output == null)
         {
-          if (known_transactions.containsKey(needed_tx))
+          // Might be running without the lock, so only look once
+          TransactionMempoolInfo found_info = known_transactions.get(needed_tx);
+          if (found_info != null)
           {
             t1 = System.nanoTime();
             // TODO Check shard IDs
-            Transaction found_tx = known_transactions.get(needed_tx).tx;
+            Transaction found_tx = found_info.tx;
             TransactionInner found_tx_inner = TransactionUtil.getInner(found_tx);
 
             TransactionOutput tx_out = found_tx_inner.getOutputs( in.getSrcTxOutIdx() );
@@ -543,7 +749,6 @@ public class MemPool
     TimeRecord.record(t1, "get_order");
 
     t1 = System.nanoTime();
-    UtxoUpdateBuffer test_buffer = new UtxoUpdateBuffer(utxo_hashed_trie, utxo_for_pri_map);
     int header_version = 1;
     if (chain_state_source.getParams().getActivationHeightShards() <= chain_state_source.getHeight() + 1)
     {
@@ -585,7 +790,12 @@ public class MemPool
     final ImmutableSet<ChainHash> tx_set;
     int total_size;
     long total_fee;
-    final String rnd_val;
+    final long rnd_val;
+
+    public double getRatio()
+    {
+      return (double) total_fee / (double) total_size;
+    }
 
     public TXCluster(List<Transaction> tx_in_list)
     {
@@ -598,7 +808,7 @@ public class MemPool
 
       for (Transaction t : tx_in_list)
       {
-        total_size += t.toByteString().size();
+        total_size += t.getSerializedSize();
 
         TransactionInner inner = TransactionUtil.getInner(t);
         total_fee += inner.getFee();
@@ -606,13 +816,13 @@ public class MemPool
         s.add(new ChainHash(t.getTxHash()));
       }
       tx_set = ImmutableSet.copyOf(s);
-      rnd_val = "" + new Random().nextDouble();
+      rnd_val = ThreadLocalRandom.current().nextLong();
     }
 
     //Don't care about ordering, just want something
     public int compareTo(TXCluster o)
     {
-      return rnd_val.compareTo(o.rnd_val);
+      return Long.compare(rnd_val, o.rnd_val);
     }
   }
 
@@ -624,6 +834,21 @@ public class MemPool
     tickler.wake();
   }
 
+  /**
+   * Like tickleBlocks, but with the block so the priority map can be
+   * updated incrementally if it is still at prev_utxo_root
+   */
+  public void tickleBlock(Block blk, ChainHash prev_utxo_root, ChainHash new_utxo_root)
+  {
+    synchronized(pending_blocks)
+    {
+      // If we are this far behind, a rebuild is going to happen anyways
+      if (pending_blocks.size() >= MAX_PENDING_BLOCKS) pending_blocks.clear();
+      pending_blocks.add(new BlockDelta(blk, prev_utxo_root, new_utxo_root));
+    }
+    tickleBlocks(new_utxo_root);
+  }
+
   private Peerage peerage = null;
 
   public void setPeerage(Peerage peerage)
@@ -665,7 +890,7 @@ public class MemPool
           ChainHash tx_hash = new ChainHash(info.tx.getTxHash());
           if (send_cache.get(tx_hash) == null)
           {
-            peerage.broadcastTransaction(info.tx);
+            peerage.announceTransactions(ImmutableList.of(info.tx));
             send_cache.put(tx_hash, true);
           }
         }
@@ -688,13 +913,28 @@ public class MemPool
     {
         if (tickle_hash != null)
         {
-          rebuildPriorityMap(tickle_hash);
+          ChainHash h = tickle_hash;
           tickle_hash = null;
+          updatePriorityMap(h);
         }
     }
 
   }
 
+  private static class BlockDelta
+  {
+    final Block blk;
+    final ChainHash prev_utxo_root;
+    final ChainHash new_utxo_root;
+
+    BlockDelta(Block blk, ChainHash prev_utxo_root, ChainHash new_utxo_root)
+    {
+      this.blk = blk;
+      this.prev_utxo_root = prev_utxo_root;
+      this.new_utxo_root = new_utxo_root;
+    }
+  }
+
   public class TransactionMempoolInfo
   {
     public final Transaction tx;
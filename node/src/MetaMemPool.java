@@ -14,7 +14,7 @@ import snowblossom.lib.ChainHash;
 import snowblossom.lib.ValidationException;
 import snowblossom.proto.Transaction;
 
-public class MetaMemPool
+public class MetaMemPool implements CompactBlockUtil.TxPool
 {
   private SnowBlossomNode node;
   private static final Logger logger = Logger.getLogger("snowblossom.mempool");
@@ -3,12 +3,19 @@ package snowblossom.node;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.protobuf.ByteString;
+import duckutil.LRUCache;
 import duckutil.MetricLog;
 import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.util.List;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
@@ -21,15 +28,16 @@ import snowblossom.proto.*;
 /**
  * This class exists to present a single view of a peer regardless
  * of if we are the client or server.  We don't really care.
- * Messages to the other side go out on the 'sink'.
+ * Messages to the other side go out on the 'sink', by way of the send queue.
  * Messages come in on the onNext() method.
  */
-public class PeerLink implements StreamObserver<PeerMessage>
+public class PeerLink implements ClientResponseObserver<PeerMessage, PeerMessage>
 {
   private static final Logger logger = Logger.getLogger("snowblossom.peering");
 
   private SnowBlossomNode node;
   private StreamObserver<PeerMessage> sink;
+  private final PeerSendQueue send_queue = new PeerSendQueue();
   private ManagedChannel channel;
   private volatile boolean closed;
 
@@ -49,12 +57,33 @@ public class PeerLink implements StreamObserver<PeerMessage>
   private SetMultimap<ChainHash, ChainHash> desire_block_map =
                      MultimapBuilder.hashKeys().hashSetValues().build();
 
+  // Ask for blocks compact if they are within this many of our head
+  public static final int COMPACT_BLOCK_DEPTH = 3;
+  public static final long COMPACT_PENDING_MS = 60000L;
+
+  // Compact blocks waiting on transactions we asked for
+  private HashMap<ChainHash, CompactBlockUtil.PartialBlock> pending_compact = new HashMap<>();
+
+  public static final int KNOWN_TX_MAX = 50000;
+
+  // Transactions the peer has sent us, or that we have told it about,
+  // so we don't announce them again
+  private LRUCache<ChainHash, Boolean> known_tx = new LRUCache<>(KNOWN_TX_MAX);
+
+  // Set from the peer's tips.  Older peers drop tx_inv, so they get full transactions.
+  private volatile boolean peer_tx_inv_ok = false;
+
   public PeerLink(SnowBlossomNode node, StreamObserver<PeerMessage> sink)
   {
     this.node = node;
     this.sink = sink;
     server_side=true;
     setLinkId();
+    if (sink instanceof ServerCallStreamObserver)
+    {
+      ((ServerCallStreamObserver<PeerMessage>) sink).setOnReadyHandler(send_queue::drain);
+    }
+    send_queue.setSink(sink);
     last_received_message_time = System.currentTimeMillis();
 
   }
@@ -81,6 +110,16 @@ public class PeerLink implements StreamObserver<PeerMessage>
   public void setSink(StreamObserver<PeerMessage> sink)
   {
     this.sink=sink;
+    send_queue.setSink(sink);
+  }
+
+  /**
+   * Called by gRPC when we are the client, before the stream starts
+   */
+  @Override
+  public void beforeStart(ClientCallStreamObserver<PeerMessage> request_stream)
+  {
+    request_stream.setOnReadyHandler(send_queue::drain);
   }
   public void setChannel(ManagedChannel channel)
   {
@@ -125,6 +164,8 @@ public class PeerLink implements StreamObserver<PeerMessage>
       {
         Transaction tx = msg.getTx();
         mlog.set("type","tx");
+        markTxKnown(new ChainHash(tx.getTxHash()));
+        node.getTxBroadcaster().markReceived(new ChainHash(tx.getTxHash()));
         //logger.info("TX: " + new ChainHash(tx.getTxHash()));
         try
         {
@@ -158,6 +199,49 @@ public class PeerLink implements StreamObserver<PeerMessage>
         }
         // do not care about tx validation errors from peers
       }
+      else if (msg.hasTxInv())
+      {
+        mlog.set("type","tx_inv");
+        mlog.set("tx_count", msg.getTxInv().getTxHashesCount());
+
+        RequestTransactions.Builder req = RequestTransactions.newBuilder();
+        for(ByteString hash_bytes : msg.getTxInv().getTxHashesList())
+        {
+          if (req.getTxHashesCount() >= TxBroadcaster.MAX_INV) break;
+
+          ChainHash tx_hash = new ChainHash(hash_bytes);
+          markTxKnown(tx_hash);
+
+          if (!node.areWeSynced()) continue;
+          if (node.getMemPool().getTransaction(tx_hash) != null) continue;
+          if (node.getTxBroadcaster().reserveTx(tx_hash, this))
+          {
+            req.addTxHashes(hash_bytes);
+          }
+        }
+        mlog.set("tx_req", req.getTxHashesCount());
+        if (req.getTxHashesCount() > 0)
+        {
+          writeMessage( PeerMessage.newBuilder().setReqTxs(req.build()).build() );
+        }
+      }
+      else if (msg.hasReqTxs())
+      {
+        mlog.set("type","req_txs");
+        mlog.set("tx_count", msg.getReqTxs().getTxHashesCount());
+        int sent = 0;
+        for(ByteString hash_bytes : msg.getReqTxs().getTxHashesList())
+        {
+          if (sent >= TxBroadcaster.MAX_INV) break;
+          Transaction tx = node.getMemPool().getTransaction(new ChainHash(hash_bytes));
+          if (tx != null)
+          {
+            writeMessage( PeerMessage.newBuilder().setTx(tx).build() );
+            sent++;
+          }
+        }
+        mlog.set("tx_sent", sent);
+      }
       else if (msg.hasTip())
       {
         mlog.set("type","tip");
@@ -169,6 +253,8 @@ public class PeerLink implements StreamObserver<PeerMessage>
           return;
         }
         node.getPeerage().reportTip();
+        prunePendingCompact();
+        setPeerTxInvOk(tip.getTxInvOk());
 
         try(MetricLog mlog_sub = new MetricLog(mlog, "tip_trust"))
         {
@@ -208,6 +294,10 @@ public class PeerLink implements StreamObserver<PeerMessage>
           mlog.set("head_height", header.getBlockHeight());
           considerBlockHeader(header, header.getShardId());
           node.getPeerage().setHighestHeader(header);
+          if (node.getHeadersFirstSync() != null)
+          {
+            node.getHeadersFirstSync().onTip(this, header);
+          }
         }
 
         // save first peer info as opposite side
@@ -231,45 +321,104 @@ public class PeerLink implements StreamObserver<PeerMessage>
         ChainHash hash = new ChainHash(msg.getReqBlock().getBlockHash());
         mlog.set("hash", hash.toString());
         logger.fine("Got block request: " + hash);
-        Block blk = node.getDB().getBlockMap().get(hash.getBytes());
-        if (blk != null)
+        BlockReadCache cache = node.getBlockReadCache();
+        if (msg.getReqBlock().getCompactOk())
         {
-          writeMessage( PeerMessage.newBuilder().setBlock(blk).build() );
+          ByteString cb = cache.getCompactBytes(hash);
+          if (cb != null)
+          {
+            writeMessage( BlockReadCache.wrapField(PeerMessage.COMPACT_BLOCK_FIELD_NUMBER, cb).build() );
+          }
+        }
+        else
+        {
+          ByteString blk = cache.getBlockBytes(hash);
+          if (blk != null)
+          {
+            writeMessage( BlockReadCache.wrapField(PeerMessage.BLOCK_FIELD_NUMBER, blk).build() );
+          }
         }
       }
       else if (msg.hasBlock())
       {
         mlog.set("type","block");
         // Getting a block, we probably asked for it.  See if we can eat it.
-        Block blk = msg.getBlock();
-        synchronized(desire_block_map)
+        handleBlock(msg.getBlock(), mlog);
+      }
+      else if (msg.hasCompactBlock())
+      {
+        mlog.set("type","compact_block");
+        CompactBlock cb = msg.getCompactBlock();
+        Validation.checkBlockHeaderBasics(node.getParams(), cb.getHeader(), false);
+        ChainHash hash = new ChainHash(cb.getHeader().getSnowHash());
+        mlog.set("hash", hash.toString());
+        mlog.set("tx_count", cb.getShortTxIdsCount());
+
+        if (node.getDB().getBlockSummaryMap().get(hash.getBytes()) == null)
         {
-          desire_block_map.remove(
-            new ChainHash(blk.getHeader().getPrevBlockHash()),
-            new ChainHash(blk.getHeader().getSnowHash()));
+          CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(cb, node.getMemPool());
+          List<Integer> missing = partial.getMissing();
+          mlog.set("missing", missing.size());
+          if (missing.isEmpty())
+          {
+            finishCompactBlock(partial, mlog);
+          }
+          else
+          {
+            synchronized(pending_compact)
+            {
+              pending_compact.put(hash, partial);
+            }
+            writeMessage( PeerMessage.newBuilder()
+              .setReqBlockTx(
+                RequestBlockTransactions.newBuilder()
+                  .setBlockHash(hash.getBytes())
+                  .addAllIndexes(missing)
+                  .build())
+              .build());
+          }
         }
+      }
+      else if (msg.hasReqBlockTx())
+      {
+        mlog.set("type","req_block_tx");
+        RequestBlockTransactions req = msg.getReqBlockTx();
+        ChainHash hash = new ChainHash(req.getBlockHash());
+        mlog.set("hash", hash.toString());
+        mlog.set("tx_count", req.getIndexesCount());
 
-        mlog.set("hash", new ChainHash(blk.getHeader().getSnowHash()).toString());
-        try
+        Block blk = node.getDB().getBlockMap().get(hash.getBytes());
+        if (blk != null)
         {
-          logger.fine(String.format("Got block shard:%d height:%d %s ",
-            blk.getHeader().getShardId(),
-            blk.getHeader().getBlockHeight(),
-            new ChainHash(blk.getHeader().getSnowHash()).toString() ));
-          // will only open if we are actually interested in this shard
-          node.openShard(blk.getHeader().getShardId());
-          if (node.getBlockIngestor(blk.getHeader().getShardId()).ingestBlock(blk))
-          { // we could eat it, think about getting more blocks
-            scanForBlocksToRequest(new ChainHash(blk.getHeader().getSnowHash()));
-
-            // Think about getting more blocks from desire map
+          BlockTransactions.Builder bt = BlockTransactions.newBuilder();
+          bt.setBlockHash(hash.getBytes());
+          for(int idx : req.getIndexesList())
+          {
+            if ((idx >= 0) && (idx < blk.getTransactionsCount()))
+            {
+              bt.addTransactions(PrefilledTransaction.newBuilder().setIndex(idx).setTx(blk.getTransactions(idx)).build());
+            }
           }
+          writeMessage( PeerMessage.newBuilder().setBlockTx(bt.build()).build() );
+        }
+      }
+      else if (msg.hasBlockTx())
+      {
+        mlog.set("type","block_tx");
+        BlockTransactions bt = msg.getBlockTx();
+        ChainHash hash = new ChainHash(bt.getBlockHash());
+        mlog.set("hash", hash.toString());
+        mlog.set("tx_count", bt.getTransactionsCount());
+
+        CompactBlockUtil.PartialBlock partial;
+        synchronized(pending_compact)
+        {
+          partial = pending_compact.remove(hash);
         }
-        catch(ValidationException ve)
+        if (partial != null)
         {
-          logger.info("Got a block %s that didn't validate - closing link");
-          close();
-          throw(ve);
+          partial.addTransactions(bt);
+          finishCompactBlock(partial, mlog);
         }
       }
       else if (msg.hasReqHeader())
@@ -296,14 +445,14 @@ public class PeerLink implements StreamObserver<PeerMessage>
         if (hash != null)
         {
           mlog.set("hash", hash.toString());
-          BlockSummary summary = node.getDB().getBlockSummaryMap().get(hash.getBytes());
-          if (summary == null)
+          ByteString header = node.getBlockReadCache().getHeaderBytes(hash);
+          if (header == null)
           {
             mlog.set("missing_summary", 1);
           }
           else
           {
-            writeMessage( PeerMessage.newBuilder().setHeader(summary.getHeader()).setReqHeaderShardId(shard).build() );
+            writeMessage( BlockReadCache.wrapField(PeerMessage.HEADER_FIELD_NUMBER, header).setReqHeaderShardId(shard).build() );
           }
         }
       }
@@ -318,6 +467,10 @@ public class PeerLink implements StreamObserver<PeerMessage>
         mlog.set("head_shard", header.getShardId());
         mlog.set("head_height", header.getBlockHeight());
         considerBlockHeader(header, msg.getReqHeaderShardId());
+        if (node.getHeadersFirstSync() != null)
+        {
+          node.getHeadersFirstSync().onHeader(this, header, msg.getReqHeaderShardId());
+        }
       }
       else if (msg.hasReqCluster())
       {
@@ -455,11 +608,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
       // Request it now
       if (node.getBlockIngestor(0).reserveBlock(hash))
       {
-        logger.info("Requesting block: " + hash);
-        writeMessage( PeerMessage.newBuilder()
-          .setReqBlock(
-            RequestBlock.newBuilder().setBlockHash(hash.getBytes()).build())
-          .build());
+        requestBlock(hash, shard_id, bp.getBlockHeight());
       }
       synchronized(plan_lock)
       {
@@ -497,6 +646,161 @@ public class PeerLink implements StreamObserver<PeerMessage>
 
   }
 
+  /**
+   * Announce the transactions in the list this peer hasn't already seen.
+   * Peers that haven't said they take tx_inv get the transactions themselves.
+   */
+  public void sendTxInventory(List<Transaction> tx_list)
+  {
+    boolean inv_ok = peer_tx_inv_ok;
+    TransactionInventory.Builder inv = TransactionInventory.newBuilder();
+    LinkedList<Transaction> full_list = new LinkedList<>();
+    synchronized(known_tx)
+    {
+      for(Transaction tx : tx_list)
+      {
+        ChainHash tx_hash = new ChainHash(tx.getTxHash());
+        if (known_tx.containsKey(tx_hash)) continue;
+        known_tx.put(tx_hash, true);
+        if (inv_ok)
+        {
+          inv.addTxHashes(tx_hash.getBytes());
+        }
+        else
+        {
+          full_list.add(tx);
+        }
+      }
+    }
+    if (inv.getTxHashesCount() > 0)
+    {
+      writeMessage( PeerMessage.newBuilder().setTxInv(inv.build()).build() );
+    }
+    for(Transaction tx : full_list)
+    {
+      writeMessage( PeerMessage.newBuilder().setTx(tx).build() );
+    }
+  }
+
+  /**
+   * Whether the peer takes tx_inv, or needs the full transactions
+   */
+  public void setPeerTxInvOk(boolean ok)
+  {
+    peer_tx_inv_ok = ok;
+  }
+
+  /**
+   * Ask this peer for transactions it announced to us
+   */
+  public void requestTransactions(List<ChainHash> tx_hashes)
+  {
+    RequestTransactions.Builder req = RequestTransactions.newBuilder();
+    for(ChainHash tx_hash : tx_hashes)
+    {
+      req.addTxHashes(tx_hash.getBytes());
+    }
+    writeMessage( PeerMessage.newBuilder().setReqTxs(req.build()).build() );
+  }
+
+  private void markTxKnown(ChainHash tx_hash)
+  {
+    synchronized(known_tx)
+    {
+      known_tx.put(tx_hash, true);
+    }
+  }
+
+  private void handleBlock(Block blk, MetricLog mlog)
+    throws ValidationException
+  {
+    synchronized(desire_block_map)
+    {
+      desire_block_map.remove(
+        new ChainHash(blk.getHeader().getPrevBlockHash()),
+        new ChainHash(blk.getHeader().getSnowHash()));
+    }
+
+    mlog.set("hash", new ChainHash(blk.getHeader().getSnowHash()).toString());
+    try
+    {
+      logger.fine(String.format("Got block shard:%d height:%d %s ",
+        blk.getHeader().getShardId(),
+        blk.getHeader().getBlockHeight(),
+        new ChainHash(blk.getHeader().getSnowHash()).toString() ));
+      // will only open if we are actually interested in this shard
+      node.openShard(blk.getHeader().getShardId());
+      if ((node.getHeadersFirstSync() != null) && (node.getHeadersFirstSync().onBlock(this, blk)))
+      { // taken by the headers first sync, it will ingest it in order
+      }
+      else if (node.getBlockIngestor(blk.getHeader().getShardId()).ingestBlock(blk))
+      { // we could eat it, think about getting more blocks
+        scanForBlocksToRequest(new ChainHash(blk.getHeader().getSnowHash()));
+
+        // Think about getting more blocks from desire map
+      }
+    }
+    catch(ValidationException ve)
+    {
+      logger.info("Got a block %s that didn't validate - closing link");
+      close();
+      throw(ve);
+    }
+  }
+
+  /**
+   * If the compact block filled in correctly, ingest it.  If not, it was either a short id
+   * collision or the peer left something out, so just ask for the whole thing.
+   */
+  private void finishCompactBlock(CompactBlockUtil.PartialBlock partial, MetricLog mlog)
+    throws ValidationException
+  {
+    Block blk = partial.getBlock();
+    if (blk == null)
+    {
+      mlog.set("compact_fallback", 1);
+      logger.fine("Compact block did not reconstruct, requesting full block: " + partial.getHash());
+      writeMessage( PeerMessage.newBuilder()
+        .setReqBlock(
+          RequestBlock.newBuilder().setBlockHash(partial.getHash().getBytes()).build())
+        .build());
+      return;
+    }
+    handleBlock(blk, mlog);
+  }
+
+  /**
+   * Ask for a block.  If it is near our head, we probably have most of its transactions
+   * in the mempool, so ask for it compact.
+   */
+  private void requestBlock(ChainHash hash, int shard_id, int height)
+  {
+    boolean compact = false;
+    if (node.getCompactBlocks())
+    {
+      BlockIngestor ingestor = node.getBlockIngestor(shard_id);
+      if ((ingestor != null) && (ingestor.getHead() != null))
+      {
+        compact = (height + COMPACT_BLOCK_DEPTH > ingestor.getHead().getHeader().getBlockHeight());
+      }
+    }
+
+    logger.info("Requesting block: " + hash);
+    writeMessage( PeerMessage.newBuilder()
+      .setReqBlock(
+        RequestBlock.newBuilder().setBlockHash(hash.getBytes()).setCompactOk(compact).build())
+      .build());
+  }
+
+  private void prunePendingCompact()
+  {
+    synchronized(pending_compact)
+    {
+      long expire = System.currentTimeMillis() - COMPACT_PENDING_MS;
+      pending_compact.values().removeIf(p -> p.getCreateTime() < expire);
+    }
+  }
+
   private void checkTipForInterestThing(PeerChainTip tip)
     throws ValidationException
   {
@@ -573,10 +877,7 @@ public class PeerLink implements StreamObserver<PeerMessage>
     try
     {
 
-      if (sink != null)
-      {
-        sink.onCompleted();
-      }
+      send_queue.close();
 
       if (channel != null)
       {
@@ -600,17 +901,26 @@ public class PeerLink implements StreamObserver<PeerMessage>
     return !closed;
   }
 
+  /**
+   * Queues the message for sending, doesn't wait on the peer
+   */
   public void writeMessage(PeerMessage msg)
   {
     if (!closed)
     {
-      synchronized(sink)
+      if (!send_queue.add(msg))
       {
-        sink.onNext(msg);
+        logger.info(getLinkId() + " - Send queue overflow, closing link");
+        close();
       }
     }
   }
 
+  public PeerSendQueue getSendQueue()
+  {
+    return send_queue;
+  }
+
   public String getLinkId()
   {
     return link_id;
@@ -0,0 +1,166 @@
+package snowblossom.node;
+
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import snowblossom.proto.PeerMessage;
+
+/**
+ * Outbound messages for one peer.  Messages are only handed to gRPC while the
+ * stream says it is ready, the rest wait here until the onReady callback drains them.
+ * So a slow peer just builds up its own queue rather than holding up whoever is sending.
+ *
+ * Tips go first, and a newer tip for a shard replaces one not yet sent.
+ * Then blocks, headers and requests, then transaction relay.
+ */
+public class PeerSendQueue
+{
+  public static final long MAX_QUEUE_BYTES = 64L * 1048576L;
+  public static final long RATE_WINDOW_MS = 10000L;
+
+  private StreamObserver<PeerMessage> sink;
+  private CallStreamObserver<PeerMessage> flow_sink;
+  private boolean closed;
+
+  private final TreeMap<Integer, PeerMessage> tip_map = new TreeMap<>();
+  private final ArrayDeque<PeerMessage> high_queue = new ArrayDeque<>();
+  private final ArrayDeque<PeerMessage> low_queue = new ArrayDeque<>();
+  private long queued_bytes;
+
+  private long window_start = System.currentTimeMillis();
+  private long window_bytes;
+  private double send_rate;
+
+  public synchronized void setSink(StreamObserver<PeerMessage> sink)
+  {
+    this.sink = sink;
+    if (sink instanceof CallStreamObserver)
+    {
+      flow_sink = (CallStreamObserver<PeerMessage>) sink;
+    }
+    drain();
+  }
+
+  /**
+   * @return false if the queue is over MAX_QUEUE_BYTES and the peer should be dropped
+   */
+  public synchronized boolean add(PeerMessage msg)
+  {
+    if (closed) return true;
+
+    if (msg.hasTip())
+    {
+      PeerMessage prev = tip_map.put(msg.getTip().getHeader().getShardId(), msg);
+      if (prev != null) queued_bytes -= prev.getSerializedSize();
+    }
+    else if (isLowPriority(msg))
+    {
+      low_queue.add(msg);
+    }
+    else
+    {
+      high_queue.add(msg);
+    }
+    queued_bytes += msg.getSerializedSize();
+
+    if (queued_bytes > MAX_QUEUE_BYTES) return false;
+
+    drain();
+    return true;
+  }
+
+  /**
+   * Send whatever the stream will take right now
+   */
+  public synchronized void drain()
+  {
+    if (closed) return;
+    if (sink == null) return;
+
+    while((flow_sink == null) || (flow_sink.isReady()))
+    {
+      PeerMessage msg = poll();
+      if (msg == null) break;
+
+      int sz = msg.getSerializedSize();
+      queued_bytes -= sz;
+      window_bytes += sz;
+      sink.onNext(msg);
+    }
+    updateRate();
+  }
+
+  public synchronized void close()
+  {
+    if (closed) return;
+    closed = true;
+    tip_map.clear();
+    high_queue.clear();
+    low_queue.clear();
+    queued_bytes = 0L;
+
+    if (sink != null)
+    {
+      sink.onCompleted();
+    }
+  }
+
+  public synchronized int getQueueDepth()
+  {
+    return tip_map.size() + high_queue.size() + low_queue.size();
+  }
+
+  public synchronized long getQueuedBytes()
+  {
+    return queued_bytes;
+  }
+
+  /**
+   * @return bytes per second sent over the last full window
+   */
+  public synchronized double getSendRate()
+  {
+    updateRate();
+    return send_rate;
+  }
+
+  private PeerMessage poll()
+  {
+    Map.Entry<Integer, PeerMessage> tip = tip_map.pollFirstEntry();
+    if (tip != null) return tip.getValue();
+
+    PeerMessage msg = high_queue.poll();
+    if (msg != null) return msg;
+
+    return low_queue.poll();
+  }
+
+  private void updateRate()
+  {
+    long now = System.currentTimeMillis();
+    long delta = now - window_start;
+    if (delta >= RATE_WINDOW_MS)
+    {
+      send_rate = window_bytes * 1000.0 / delta;
+      window_bytes = 0L;
+      window_start = now;
+    }
+  }
+
+  private static boolean isLowPriority(PeerMessage msg)
+  {
+    switch(msg.getZCase())
+    {
+      case TX:
+      case TX_INV:
+      case REQ_TXS:
+      case REQ_CLUSTER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+}
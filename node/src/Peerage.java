@@ -197,6 +197,7 @@ public class Peerage
 
     tip.setNetworkName(node.getParams().getNetworkName());
     tip.setVersion(Globals.VERSION);
+    tip.setTxInvOk(true);
 
     if (summary != null)
     {
@@ -361,13 +362,17 @@ public class Peerage
     }
   }
 
-  public void broadcastTransaction(Transaction tx)
+  /**
+   * Tell each peer about these transactions, skipping ones it already knows about.
+   * Peers that take inventory get the hashes, older ones get the full transactions.
+   */
+  public void announceTransactions(List<Transaction> tx_list)
   {
     for(PeerLink link : getLinkList())
     {
       try
       {
-        link.writeMessage(PeerMessage.newBuilder().setTx(tx).build());
+        link.sendTxInventory(tx_list);
       }
       catch(Throwable e)
       {
@@ -601,6 +606,7 @@ public class Peerage
       ConnectionReport cr = getConnectionReport();
 
       logger.fine(cr.toString());
+      logger.fine(node.getBlockReadCache().getStatusReport());
 
       int connected = getLinkList().size();
       int desired = node.getConfig().getIntWithDefault("peer_count", 8);
@@ -856,6 +862,7 @@ public class Peerage
       for(PeerLink pl : links.values())
       {
         cr.addPeerInfo(pl.getPeerInfo());
+        cr.addSendQueue(pl.getLinkId(), pl.getSendQueue());
       }
     }
 
@@ -874,11 +881,15 @@ public class Peerage
     // What peers we have that are interested in each shard
     SetMultimap<Integer, ByteString> interest_network_map;
 
+    // Per link send queue depth, bytes and send rate
+    TreeMap<String, String> send_queue_map;
+
     public ConnectionReport()
     {
       connected_ids = new HashMap<>();
       trust_network_map = MultimapBuilder.treeKeys().hashSetValues().build();
       interest_network_map = MultimapBuilder.treeKeys().hashSetValues().build();
+      send_queue_map = new TreeMap<>();
     }
 
     public synchronized Map<ByteString, PeerInfo> getConnectedIds()
@@ -931,6 +942,20 @@ public class Peerage
     }
 
 
+    public synchronized void addSendQueue(String link_id, PeerSendQueue q)
+    {
+      send_queue_map.put(link_id, String.format("%d/%d/%.0f",
+        q.getQueueDepth(), q.getQueuedBytes(), q.getSendRate()));
+    }
+
+    /**
+     * @return link id to "queued messages/queued bytes/bytes per second sent"
+     */
+    public synchronized Map<String, String> getSendQueues()
+    {
+      return ImmutableMap.copyOf(send_queue_map);
+    }
+
     public synchronized void addPeerInfo(PeerInfo pi)
     {
       if (pi == null) return;
@@ -991,6 +1016,8 @@ public class Peerage
 
       }
 
+      sb.append(",send_queues:" + send_queue_map);
+
       sb.append("}");
 
       return sb.toString();
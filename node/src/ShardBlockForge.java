@@ -44,6 +44,10 @@ public class ShardBlockForge
 
   private LRUCache<ChainHash, Boolean> signature_cache = new LRUCache<>(2000);
 
+  // Shared part of templates, so a burst of subscribers on a new tip only validate the transactions once
+  public static final long SKELETON_MAX_AGE_MS = 2000L;
+  private LRUCache<ChainHash, TemplateSkeleton> skeleton_cache = new LRUCache<>(64);
+
   public ShardBlockForge(SnowBlossomNode node)
     throws Exception
   {
@@ -615,6 +619,74 @@ public class ShardBlockForge
     throws ValidationException
   {
     try(TimeRecordAuto tra_blk = TimeRecord.openAuto("ShardBlockForge.fleshOut"))
+    {
+      TemplateSkeleton skel = getSkeleton(concept);
+
+      Block.Builder block_builder = Block.newBuilder();
+      BlockHeader.Builder header_builder = BlockHeader.newBuilder().mergeFrom(concept.getHeader());
+      BlockSummary prev_summary = concept.getPrevSummary();
+
+      long time = System.currentTimeMillis();
+      BigInteger target = PowUtil.calcNextTarget(prev_summary, params, time);
+      header_builder.setTimestamp(time);
+      header_builder.setTarget(BlockchainUtil.targetBigIntegerToBytes(target));
+
+      block_builder.addAllImportedBlocks( concept.getImportedBlocks() );
+
+      // Only the coinbase is different per subscriber, so start from the shared buffer
+      UtxoUpdateBuffer utxo_buffer = skel.utxo_buffer.deepCopy();
+      Map<Integer, UtxoUpdateBuffer> coinbase_export_buffer = new TreeMap<>();
+
+      Transaction coinbase = BlockForge.buildCoinbase( params, header_builder.build(), skel.fee_sum, mine_to, header_builder.getShardId());
+      Validation.deepTransactionCheck(coinbase, utxo_buffer, header_builder.build(), params,
+        skel.shard_cover_set, coinbase_export_buffer);
+
+      block_builder.addTransactions(coinbase);
+      block_builder.addAllTransactions(skel.regular_transactions);
+
+      // Save export UTXO data
+      header_builder.putAllShardExportRootHash(skel.export_roots);
+      if (coinbase_export_buffer.size() > 0)
+      {
+        // Coinbase paying out to another shard, so redo the exports with it included
+        Map<Integer, UtxoUpdateBuffer> export_utxo_buffer = skel.copyExportBuffers();
+        Validation.deepTransactionCheck(coinbase, skel.utxo_buffer.deepCopy(), header_builder.build(), params,
+          skel.shard_cover_set, export_utxo_buffer);
+        for(int export_shard_id : export_utxo_buffer.keySet())
+        {
+          UtxoUpdateBuffer export_buffer = export_utxo_buffer.get(export_shard_id);
+          header_builder.putShardExportRootHash(export_shard_id, export_buffer.simulateUpdates().getBytes());
+        }
+      }
+
+      int tx_size_total = skel.tx_size_total + coinbase.getInnerData().size() + coinbase.getTxHash().size();
+      ArrayList<ChainHash> tx_list = new ArrayList<ChainHash>();
+      tx_list.add( new ChainHash(coinbase.getTxHash()));
+      tx_list.addAll(skel.tx_hash_list);
+
+      if (header_builder.getVersion() == 2)
+      {
+        header_builder.setTxDataSizeSum(tx_size_total);
+        header_builder.setTxCount(tx_list.size());
+      }
+
+      header_builder.setMerkleRootHash( DigestUtil.getMerkleRootForTxList(tx_list).getBytes());
+      header_builder.setUtxoRootHash( utxo_buffer.simulateUpdates().getBytes());
+
+      block_builder.setHeader(header_builder.build());
+
+      return block_builder.build();
+    }
+  }
+
+  /**
+   * Build the whole block directly, without the shared skeleton.
+   * Should give the same block as fleshOut(), just slower when there are a lot of subscribers.
+   */
+  public Block fleshOutFull(BlockConcept concept, SubscribeBlockTemplateRequest mine_to)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("ShardBlockForge.fleshOutFull"))
     {
       Block.Builder block_builder = Block.newBuilder();
       BlockHeader.Builder header_builder = BlockHeader.newBuilder().mergeFrom(concept.getHeader());
@@ -634,7 +706,6 @@ public class ShardBlockForge
       }
       UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer( node.getUtxoHashedTrie(), prev_utxo_root);
 
-
       // Add import shards to utxo buffer
       block_builder.addAllImportedBlocks( concept.getImportedBlocks() );
       for(ImportedBlock ib : block_builder.getImportedBlocksList())
@@ -645,13 +716,11 @@ public class ShardBlockForge
         }
       }
 
-
       // Copy in just for size estimate - we will do it again later
       block_builder.setHeader(header_builder.build());
 
       int max_tx_fill_size = node.getParams().getMaxBlockSize() - block_builder.build().toByteString().size() - 8192;
 
-
       List<Transaction> regular_transactions = node.getMemPool(header_builder.getShardId())
         .getTransactionsForBlock(prev_utxo_root, max_tx_fill_size);
 
@@ -703,7 +772,135 @@ public class ShardBlockForge
     }
   }
 
+  /**
+   * Get the shared part of a block for this concept, building it if we don't have
+   * a recent one.  Building is done under the lock so that a burst of subscribers
+   * after a new block all wait on the same build rather than each doing their own.
+   */
+  private TemplateSkeleton getSkeleton(BlockConcept concept)
+    throws ValidationException
+  {
+    ChainHash sig = concept.getSig();
+    synchronized(skeleton_cache)
+    {
+      TemplateSkeleton skel = skeleton_cache.get(sig);
+      if ((skel != null) && (skel.create_time + SKELETON_MAX_AGE_MS > System.currentTimeMillis()))
+      {
+        return skel;
+      }
+      skel = buildSkeleton(concept);
+      skeleton_cache.put(sig, skel);
+      return skel;
+    }
+  }
+
+  private TemplateSkeleton buildSkeleton(BlockConcept concept)
+    throws ValidationException
+  {
+    try(TimeRecordAuto tra_blk = TimeRecord.openAuto("ShardBlockForge.buildSkeleton"))
+    {
+      Block.Builder block_builder = Block.newBuilder();
+      BlockHeader header = concept.getHeader();
+      BlockSummary prev_summary = concept.getPrevSummary();
+
+      ChainHash prev_utxo_root = new ChainHash(prev_summary.getHeader().getUtxoRootHash());
+      if (header.getShardId() != prev_summary.getHeader().getShardId())
+      if (!ShardUtil.getInheritSet(header.getShardId()).contains(prev_summary.getHeader().getShardId()))
+      {
+        // If we are a split and do not inherit, start with clean slate
+        prev_utxo_root = new ChainHash(HashUtils.hashOfEmpty());
+      }
+      UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer( node.getUtxoHashedTrie(), prev_utxo_root);
+
+      // Add import shards to utxo buffer
+      block_builder.addAllImportedBlocks( concept.getImportedBlocks() );
+      for(ImportedBlock ib : block_builder.getImportedBlocksList())
+      {
+        for(ImportedOutputList lst : ib.getImportOutputsMap().values())
+        {
+          utxo_buffer.addOutputs(lst);
+        }
+      }
+
+      // Copy in just for size estimate
+      block_builder.setHeader(header);
+
+      int max_tx_fill_size = node.getParams().getMaxBlockSize() - block_builder.build().toByteString().size() - 8192;
+
+      List<Transaction> regular_transactions = node.getMemPool(header.getShardId())
+        .getTransactionsForBlock(prev_utxo_root, max_tx_fill_size);
+
+      long fee_sum = 0L;
 
+      Set<Integer> shard_cover_set = ShardUtil.getCoverSet(header.getShardId(), params);
+      Map<Integer, UtxoUpdateBuffer> export_utxo_buffer = new TreeMap<>();
+
+      utxo_buffer.prefetchInputs(regular_transactions);
+      for(Transaction tx : regular_transactions)
+      {
+         fee_sum += Validation.deepTransactionCheck(tx, utxo_buffer, header, params,
+          shard_cover_set, export_utxo_buffer);
+      }
+
+      TreeMap<Integer, ByteString> export_roots = new TreeMap<>();
+      for(int export_shard_id : export_utxo_buffer.keySet())
+      {
+        UtxoUpdateBuffer export_buffer = export_utxo_buffer.get(export_shard_id);
+        export_roots.put(export_shard_id, export_buffer.simulateUpdates().getBytes());
+      }
+
+      return new TemplateSkeleton(regular_transactions, fee_sum, shard_cover_set,
+        utxo_buffer, export_utxo_buffer, export_roots);
+    }
+  }
+
+  /**
+   * Everything about a block template that doesn't depend on who gets the coinbase
+   */
+  private static class TemplateSkeleton
+  {
+    final long create_time;
+    final ImmutableList<Transaction> regular_transactions;
+    final ImmutableList<ChainHash> tx_hash_list;
+    final int tx_size_total;
+    final long fee_sum;
+    final Set<Integer> shard_cover_set;
+    final UtxoUpdateBuffer utxo_buffer;
+    final Map<Integer, UtxoUpdateBuffer> export_buffers;
+    final Map<Integer, ByteString> export_roots;
+
+    TemplateSkeleton(List<Transaction> regular_transactions, long fee_sum, Set<Integer> shard_cover_set,
+      UtxoUpdateBuffer utxo_buffer, Map<Integer, UtxoUpdateBuffer> export_buffers, Map<Integer, ByteString> export_roots)
+    {
+      this.create_time = System.currentTimeMillis();
+      this.regular_transactions = ImmutableList.copyOf(regular_transactions);
+      this.fee_sum = fee_sum;
+      this.shard_cover_set = shard_cover_set;
+      this.utxo_buffer = utxo_buffer;
+      this.export_buffers = export_buffers;
+      this.export_roots = export_roots;
+
+      ImmutableList.Builder<ChainHash> hash_list = ImmutableList.builder();
+      int size = 0;
+      for(Transaction tx : regular_transactions)
+      {
+        hash_list.add(new ChainHash(tx.getTxHash()));
+        size += tx.getInnerData().size() + tx.getTxHash().size();
+      }
+      this.tx_hash_list = hash_list.build();
+      this.tx_size_total = size;
+    }
+
+    Map<Integer, UtxoUpdateBuffer> copyExportBuffers()
+    {
+      TreeMap<Integer, UtxoUpdateBuffer> m = new TreeMap<>();
+      for(Map.Entry<Integer, UtxoUpdateBuffer> me : export_buffers.entrySet())
+      {
+        m.put(me.getKey(), me.getValue().deepCopy());
+      }
+      return m;
+    }
+  }
 
   public List<ImportedBlock> sortImportedBlocks(List<ImportedBlock> input)
   {
@@ -73,6 +73,10 @@ public class SnowBlossomNode
   private WalletDatabase trustnet_wallet_db;
   private TxBroadcaster tx_broadcaster;
   private DBMaintThread db_maint_thread;
+  private TriePruneThread trie_prune_thread;
+  private HeadersFirstSync headers_first_sync;
+  private boolean compact_blocks;
+  private BlockReadCache block_read_cache;
 
   private ImmutableList<Integer> service_ports;
   private ImmutableList<Integer> tls_service_ports;
@@ -140,6 +144,14 @@ public class SnowBlossomNode
   {
     params = NetworkParams.loadFromConfig(config);
 
+    if (config.isSet("sig_verify_threads"))
+    {
+      SignatureVerifier.setThreadCount(config.getInt("sig_verify_threads"));
+    }
+    SignatureCache.configure(
+      config.getIntWithDefault("sig_cache_entries", 100000),
+      config.getIntWithDefault("sig_cache_depth", 100));
+
     TreeSet<Integer> cover_set = new TreeSet<>();
     TreeSet<Integer> config_set = new TreeSet<>();
 
@@ -191,12 +203,26 @@ public class SnowBlossomNode
 
     peerage = new Peerage(this);
     tx_broadcaster = new TxBroadcaster(peerage);
+    block_read_cache = new BlockReadCache(this);
     forge_info = new ForgeInfo(this);
     shard_utxo_import = new ShardUtxoImport(this);
     shard_blockforge = new ShardBlockForge(this);
     meta_mem_pool = new MetaMemPool(this);
     db_maint_thread = new DBMaintThread(this);
 
+    int trie_prune_depth = config.getIntWithDefault("trie_prune_depth", 0);
+    if (trie_prune_depth > 0)
+    {
+      trie_prune_thread = new TriePruneThread(this, trie_prune_depth);
+    }
+
+    compact_blocks = (!config.isSet("compact_blocks")) || config.getBoolean("compact_blocks");
+
+    if (config.getBoolean("headers_first_sync"))
+    {
+      headers_first_sync = new HeadersFirstSync(this);
+    }
+
   }
 
   /**
@@ -332,6 +358,8 @@ public class SnowBlossomNode
 
     user_service.start();
     db_maint_thread.start();
+    if (trie_prune_thread != null) trie_prune_thread.start();
+    if (headers_first_sync != null) headers_first_sync.start();
   }
 
 
@@ -420,6 +448,7 @@ public class SnowBlossomNode
   public ShardBlockForge getBlockForge(){return shard_blockforge;}
   public MetaMemPool getMemPool(){return meta_mem_pool;}
   public TxBroadcaster getTxBroadcaster(){return tx_broadcaster;}
+  public BlockReadCache getBlockReadCache(){return block_read_cache;}
 
   public ShardUtxoImport getShardUtxoImport(){return shard_utxo_import;}
 
@@ -507,6 +536,9 @@ public class SnowBlossomNode
 
   public HashedTrie getUtxoHashedTrie(){return db.getUtxoHashedTrie();}
   public Peerage getPeerage(){return peerage;}
+  /** null unless headers_first_sync is enabled */
+  public HeadersFirstSync getHeadersFirstSync(){return headers_first_sync;}
+  public boolean getCompactBlocks(){return compact_blocks;}
   public SnowUserService getUserService() {return user_service;}
 
   public ImmutableList<Integer> getServicePorts() {return service_ports;}
@@ -5,16 +5,21 @@ import duckutil.LRUCache;
 import duckutil.MetricLog;
 import duckutil.TimeRecord;
 import duckutil.TimeRecordAuto;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import snowblossom.lib.*;
+import snowblossom.lib.trie.TrieDiff;
+import snowblossom.lib.trie.TrieScan;
 import snowblossom.proto.*;
 import snowblossom.trie.proto.TrieNode;
 
@@ -22,6 +27,8 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
 {
   private static final Logger logger = Logger.getLogger("snowblossom.userservice");
 
+  public static final int SCAN_CHUNK_NODES = 1000;
+
   private LinkedList<BlockSubscriberInfo> block_subscribers = new LinkedList<>();
   private HashMap<AddressSpecHash, LinkedList<StreamObserver<AddressUpdate> > > address_watchers = new HashMap<>();
 
@@ -178,6 +185,23 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
     }
 
   }
+  /**
+   * Addresses with any UTXO added or removed between the two roots
+   */
+  private Set<AddressSpecHash> getChangedAddresses(ChainHash old_root, ChainHash new_root)
+  {
+    HashSet<AddressSpecHash> involved = new HashSet<>();
+    TrieDiff diff = node.getUtxoHashedTrie().diff(old_root.getBytes(), new_root.getBytes(), ByteString.EMPTY, ByteString.EMPTY);
+    while(!diff.isDone())
+    {
+      for(TrieDiff.Change c : diff.next(SCAN_CHUNK_NODES))
+      {
+        involved.add(new AddressSpecHash(c.key.substring(0, Globals.ADDRESS_SPEC_HASH_LEN)));
+      }
+    }
+    return involved;
+  }
+
   private void sendAddressUpdate(AddressSpecHash hash, ChainHash utxo_root, StreamObserver<AddressUpdate> ob)
   {
     AddressUpdate.Builder update = AddressUpdate.newBuilder();
@@ -310,42 +334,185 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
     {
       mlog.setModule("SnowUserService");
       mlog.setOperation("GetUTXONode");
-      ChainHash utxo_root = null;
-      if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.UTXO_ROOT_HASH)
+      if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.ALL_SHARDS)
       {
-        utxo_root = new ChainHash(request.getUtxoRootHash());
+        responseObserver.onError(new Exception("Unsupported all_shards request - use other method"));
+        return;
       }
-      else if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.SHARD_ID)
+      ChainHash utxo_root = getUtxoRoot(request);
+
+      responseObserver.onNext(getUtxoNodeDetails(utxo_root, request));
+      responseObserver.onCompleted();
+    }
+  }
+
+  /**
+   * The root for a request that isn't all_shards
+   */
+  private ChainHash getUtxoRoot(GetUTXONodeRequest request)
+  {
+    if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.UTXO_ROOT_HASH)
+    {
+      return new ChainHash(request.getUtxoRootHash());
+    }
+
+    // Root of shard 0 if not specified
+    int shard_id = 0;
+    if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.SHARD_ID)
+    {
+      shard_id = request.getShardId();
+    }
+
+    BlockSummary summary = node.getBlockIngestor(shard_id).getHead();
+    if (summary != null)
+    {
+      return new ChainHash(summary.getHeader().getUtxoRootHash());
+    }
+    return UtxoUpdateBuffer.EMPTY;
+  }
+
+  @Override
+  public void scanUTXONodes(GetUTXONodeRequest request, StreamObserver<GetUTXONodeReply> responseObserver)
+  {
+    TrieScan scan;
+    ChainHash utxo_root;
+    try(MetricLog mlog = new MetricLog())
+    {
+      mlog.setModule("SnowUserService");
+      mlog.setOperation("ScanUTXONodes");
+      if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.ALL_SHARDS)
       {
-        int shard_id = request.getShardId();
+        responseObserver.onError(new Exception("Unsupported all_shards request - use a scan per shard"));
+        return;
+      }
+      utxo_root = getUtxoRoot(request);
+      scan = node.getUtxoHashedTrie().scan(utxo_root.getBytes(), request.getPrefix(), request.getResumeAfter());
+    }
 
-        utxo_root = UtxoUpdateBuffer.EMPTY;
-        BlockSummary summary = node.getBlockIngestor(shard_id).getHead();
-        if (summary != null)
+    int chunk = SCAN_CHUNK_NODES;
+    if (request.getMaxResults() > 0) chunk = Math.min(chunk, request.getMaxResults());
+
+    final int chunk_size = chunk;
+    new ChunkSender<GetUTXONodeReply>("scanUTXONodes", responseObserver){
+      protected GetUTXONodeReply nextChunk()
+      {
+        List<TrieNode> results = scan.next(chunk_size);
+        GetUTXONodeReply.Builder reply = GetUTXONodeReply.newBuilder();
+        reply.setUtxoRootHash(utxo_root.getBytes());
+        reply.addAllProof(scan.takeProof());
+        reply.addAllAnswer(results);
+        if (results.size() > 0)
         {
-          utxo_root = new ChainHash(summary.getHeader().getUtxoRootHash());
+          reply.setResumeAfter(results.get(results.size() - 1).getPrefix());
         }
+        return reply.build();
       }
-      else if (request.getUtxoTypeCase() == GetUTXONodeRequest.UtxoTypeCase.ALL_SHARDS)
-      {
-        responseObserver.onError(new Exception("Unsupported all_shards request - use other method"));
-        return;
+      protected boolean isDone() { return scan.isDone(); }
+    }.start();
+  }
 
-      }
-      else
+  @Override
+  public void getUTXODiff(GetUTXODiffRequest request, StreamObserver<GetUTXODiffReply> responseObserver)
+  {
+    TrieDiff diff;
+    try(MetricLog mlog = new MetricLog())
+    {
+      mlog.setModule("SnowUserService");
+      mlog.setOperation("GetUTXODiff");
+      diff = node.getUtxoHashedTrie().diff(
+        request.getOldUtxoRootHash(), request.getNewUtxoRootHash(),
+        request.getPrefix(), request.getResumeAfter());
+    }
+    catch(Throwable t)
+    {
+      responseObserver.onError(t);
+      return;
+    }
+
+    int chunk = SCAN_CHUNK_NODES;
+    if (request.getMaxResults() > 0) chunk = Math.min(chunk, request.getMaxResults());
+
+    final int chunk_size = chunk;
+    new ChunkSender<GetUTXODiffReply>("getUTXODiff", responseObserver){
+      protected GetUTXODiffReply nextChunk()
       {
-        // Root of shard 0 case
-        utxo_root = UtxoUpdateBuffer.EMPTY;
-        BlockSummary summary = node.getBlockIngestor(0).getHead();
-        if (summary != null)
+        GetUTXODiffReply.Builder reply = GetUTXODiffReply.newBuilder();
+        for(TrieDiff.Change c : diff.next(chunk_size))
         {
-          utxo_root = new ChainHash(summary.getHeader().getUtxoRootHash());
+          UTXODiffEntry.Builder e = UTXODiffEntry.newBuilder();
+          e.setKey(c.key);
+          if (c.old_data != null) e.setOldData(c.old_data);
+          if (c.new_data != null) e.setNewData(c.new_data);
+          reply.addChanges(e.build());
+          reply.setResumeAfter(c.key);
         }
+        return reply.build();
+      }
+      protected boolean isDone() { return diff.isDone(); }
+    }.start();
+  }
+
+  /**
+   * Sends a reply stream a chunk at a time as the stream is ready for it,
+   * so a slow client doesn't have the whole answer buffered for it.
+   * Always sends at least one reply.
+   */
+  private abstract class ChunkSender<T> implements Runnable
+  {
+    private final String name;
+    private final StreamObserver<T> sink;
+    private CallStreamObserver<T> flow_sink;
+    private boolean done;
+
+    public ChunkSender(String name, StreamObserver<T> sink)
+    {
+      this.name = name;
+      this.sink = sink;
+    }
+
+    protected abstract T nextChunk();
+    protected abstract boolean isDone();
 
+    public void start()
+    {
+      if (sink instanceof ServerCallStreamObserver)
+      {
+        ServerCallStreamObserver<T> server_sink = (ServerCallStreamObserver<T>) sink;
+        server_sink.setOnReadyHandler(this);
+        server_sink.setOnCancelHandler(() -> { synchronized(this) { done = true; } });
+        flow_sink = server_sink;
       }
+      run();
+    }
 
-      responseObserver.onNext(getUtxoNodeDetails(utxo_root, request));
-      responseObserver.onCompleted();
+    public synchronized void run()
+    {
+      if (done) return;
+      try
+      {
+        while((flow_sink == null) || (flow_sink.isReady()))
+        {
+          T reply;
+          try(TimeRecordAuto tra = TimeRecord.openAuto("SnowUserService." + name + "_chunk"))
+          {
+            reply = nextChunk();
+          }
+          sink.onNext(reply);
+
+          if (isDone())
+          {
+            done = true;
+            sink.onCompleted();
+            return;
+          }
+        }
+      }
+      catch(Throwable t)
+      {
+        logger.log(Level.INFO, name + " stream failed", t);
+        done = true;
+        sink.onError(t);
+      }
     }
   }
 
@@ -418,7 +585,8 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
         .setConnectedPeers(node.getPeerage().getConnectedPeerCount())
         .setEstimatedNodes(node.getPeerage().getEstimateUniqueNodes())
         .setNodeVersion(Globals.VERSION)
-        .putAllVersionMap(node.getPeerage().getVersionMap());
+        .putAllVersionMap(node.getPeerage().getVersionMap())
+        .putAllDigestProviderMap(DigestUtil.getProviderMap());
 
       ns.setNetwork( node.getParams().getNetworkName() );
 
@@ -769,6 +937,8 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
 
   public class Tickler extends Thread
   {
+    private ChainHash last_notified_utxo_root;
+
     public Tickler()
     {
       setName("SnowUserService/Tickler");
@@ -787,7 +957,6 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
           }
           sendNewBlocks();
 
-          //TODO - should maybe look at more than last block in case we missed a few
           if (node.getBlockIngestor().getHead() != null)
           {
             ChainHash head_block = new ChainHash(node.getBlockIngestor().getHead().getHeader().getSnowHash());
@@ -795,21 +964,38 @@ public class SnowUserService extends UserServiceGrpc.UserServiceImplBase impleme
             Block b = node.getDB().getBlockMap().get(head_block.getBytes());
             ChainHash utxo_root_hash = new ChainHash(b.getHeader().getUtxoRootHash());
 
-            HashSet<AddressSpecHash> involved = new HashSet<>();
-            for(Transaction tx : b.getTransactionsList())
+            Set<AddressSpecHash> involved = null;
+            if (last_notified_utxo_root != null)
             {
-              TransactionInner inner = TransactionUtil.getInner(tx);
-              for (TransactionInput in : inner.getInputsList())
+              // Covers any blocks since the last time around, not just the head
+              try
+              {
+                involved = getChangedAddresses(last_notified_utxo_root, utxo_root_hash);
+              }
+              catch(Throwable t)
               {
-                involved.add(new AddressSpecHash(in.getSpecHash()));
+                logger.log(Level.FINE, "UTXO diff failed, using head block: " + t);
               }
-              for (TransactionOutput out : inner.getOutputsList())
+            }
+            if (involved == null)
+            {
+              involved = new HashSet<>();
+              for(Transaction tx : b.getTransactionsList())
               {
-                involved.add(new AddressSpecHash(out.getRecipientSpecHash()));
+                TransactionInner inner = TransactionUtil.getInner(tx);
+                for (TransactionInput in : inner.getInputsList())
+                {
+                  involved.add(new AddressSpecHash(in.getSpecHash()));
+                }
+                for (TransactionOutput out : inner.getOutputsList())
+                {
+                  involved.add(new AddressSpecHash(out.getRecipientSpecHash()));
+                }
               }
             }
 
             sendAddressUpdates(involved, utxo_root_hash);
+            last_notified_utxo_root = utxo_root_hash;
           }
 
 
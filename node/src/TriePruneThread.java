@@ -0,0 +1,176 @@
+package snowblossom.node;
+
+import com.google.protobuf.ByteString;
+import duckutil.MetricLog;
+import duckutil.PeriodicThread;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.trie.TriePruner;
+import snowblossom.proto.BlockSummary;
+
+/**
+ * Periodically prunes the utxo and chain index tries down to the roots of the
+ * last trie_prune_depth blocks of each active shard, plus any forks off of those blocks.
+ *
+ * Blocks that build on anything older than that can no longer be validated,
+ * so the depth should be well past any reorg we expect to see.
+ */
+public class TriePruneThread extends PeriodicThread
+{
+  private static final Logger logger = Logger.getLogger("snowblossom.node");
+
+  public static final int MAX_FORK_BLOCKS = 100000;
+
+  private final SnowBlossomNode node;
+  private final int depth;
+  private final long sweep_pause_ms;
+
+  public TriePruneThread(SnowBlossomNode node, int depth)
+  {
+    super(node.getConfig().getLongWithDefault("trie_prune_period_ms", 3600000L));
+    setName("TriePruneThread");
+    setDaemon(true);
+
+    this.node = node;
+    this.depth = depth;
+    this.sweep_pause_ms = node.getConfig().getLongWithDefault("trie_prune_sweep_pause_ms", 50L);
+  }
+
+  @Override
+  public void runPass()
+    throws Exception
+  {
+    DB db = node.getDB();
+
+    TriePruner utxo_pruner = db.getUtxoTriePruner();
+    TriePruner chain_index_pruner = db.getChainIndexTriePruner();
+
+    // Both write barriers go up before we look at any heads.  Any node
+    // written after this is kept, and the lock waits out any block that is part
+    // way through, so its roots are picked up below.  That way nothing a current
+    // or future head needs is lost.
+    db.getTriePruneLock().writeLock().lock();
+    try
+    {
+      if (utxo_pruner != null) utxo_pruner.beginCycle();
+      if (chain_index_pruner != null) chain_index_pruner.beginCycle();
+    }
+    finally
+    {
+      db.getTriePruneLock().writeLock().unlock();
+    }
+
+    try(MetricLog mlog = new MetricLog())
+    {
+      mlog.setOperation("trie_prune");
+      mlog.setModule("db");
+
+      if (utxo_pruner != null)
+      {
+        Set<ByteString> utxo_roots = new HashSet<>();
+        addRetainedRoots(utxo_roots, new HashSet<>());
+        if (utxo_roots.isEmpty()) return;
+        mlog.set("utxo_roots", utxo_roots.size());
+
+        long reclaimed = utxo_pruner.markAndSweep(utxo_roots, sweep_pause_ms);
+        mlog.set("utxo_reclaimed_bytes", reclaimed);
+        mlog.set("utxo_reclaimed_total", utxo_pruner.getBytesReclaimed());
+      }
+      if (chain_index_pruner != null)
+      {
+        // Roots are gathered again now so that blocks ingested
+        // during the utxo prune are retained as well
+        Set<ByteString> chain_index_roots = new HashSet<>();
+        addRetainedRoots(new HashSet<>(), chain_index_roots);
+        if (chain_index_roots.isEmpty()) return;
+        mlog.set("chain_index_roots", chain_index_roots.size());
+
+        long reclaimed = chain_index_pruner.markAndSweep(chain_index_roots, sweep_pause_ms);
+        mlog.set("chain_index_reclaimed_bytes", reclaimed);
+        mlog.set("chain_index_reclaimed_total", chain_index_pruner.getBytesReclaimed());
+      }
+    }
+    finally
+    {
+      if (utxo_pruner != null) utxo_pruner.endCycle();
+      if (chain_index_pruner != null) chain_index_pruner.endCycle();
+    }
+  }
+
+  private void addRetainedRoots(Set<ByteString> utxo_roots, Set<ByteString> chain_index_roots)
+  {
+    for(int shard_id : node.getActiveShards())
+    {
+      BlockIngestor ingestor = node.getBlockIngestor(shard_id);
+      if (ingestor == null) continue;
+      BlockSummary head = ingestor.getHead();
+      if (head == null) continue;
+
+      addRetainedRoots(head, utxo_roots, chain_index_roots);
+    }
+  }
+
+  /**
+   * Walk back depth blocks from head, then forward from there to pick up
+   * every fork that branches off within the retained window
+   */
+  private void addRetainedRoots(BlockSummary head, Set<ByteString> utxo_roots, Set<ByteString> chain_index_roots)
+  {
+    DB db = node.getDB();
+
+    BlockSummary curr = head;
+    BlockSummary oldest = head;
+    for(int i=0; (i<depth) && (curr != null); i++)
+    {
+      addRoots(curr, utxo_roots, chain_index_roots);
+      oldest = curr;
+
+      ChainHash prev = new ChainHash(curr.getHeader().getPrevBlockHash());
+      if (prev.equals(ChainHash.ZERO_HASH)) break;
+      curr = db.getBlockSummaryMap().get(prev.getBytes());
+    }
+
+    if (db.getChildBlockMapSet() == null) return;
+
+    HashSet<ChainHash> visited = new HashSet<>();
+    LinkedList<ChainHash> queue = new LinkedList<>();
+    queue.add(new ChainHash(oldest.getHeader().getSnowHash()));
+
+    while((queue.size() > 0) && (visited.size() < MAX_FORK_BLOCKS))
+    {
+      ChainHash hash = queue.poll();
+      if (!visited.add(hash)) continue;
+
+      BlockSummary summary = db.getBlockSummaryMap().get(hash.getBytes());
+      if (summary != null)
+      {
+        addRoots(summary, utxo_roots, chain_index_roots);
+      }
+
+      List<ByteString> children = db.getChildBlockMapSet().getSet(hash.getBytes(), MAX_FORK_BLOCKS);
+      for(ByteString c : children)
+      {
+        queue.add(new ChainHash(c));
+      }
+    }
+    if (visited.size() >= MAX_FORK_BLOCKS)
+    {
+      logger.warning("Trie prune hit fork block limit, some forks may not be retained");
+    }
+  }
+
+  private static void addRoots(BlockSummary summary, Set<ByteString> utxo_roots, Set<ByteString> chain_index_roots)
+  {
+    utxo_roots.add(summary.getHeader().getUtxoRootHash());
+    if (summary.getChainIndexTrieHash().size() > 0)
+    {
+      chain_index_roots.add(summary.getChainIndexTrieHash());
+    }
+  }
+
+}
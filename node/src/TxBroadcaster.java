@@ -1,32 +1,65 @@
 package snowblossom.node;
 
+import duckutil.LRUCache;
 import duckutil.RateLimit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import snowblossom.lib.ChainHash;
 import snowblossom.proto.Transaction;
 
 /**
- * Buffers transactions to broadcast and sends them at a fixed rate
+ * Buffers transactions to relay and announces them to peers in batches
+ * of hashes.  Peers then pull the ones they don't have.
+ * Peers too old for that get sent the transactions instead, see PeerLink.sendTxInventory().
+ * The rate limit is on the bytes of transactions announced, since that is roughly
+ * what peers will pull from us.
+ *
+ * Also tracks the transactions we are pulling.  If the peer we asked doesn't deliver
+ * in time, we ask the next peer that announced it.
  */
 public class TxBroadcaster extends Thread
 {
 
   private static final Logger logger = Logger.getLogger("snowblossom.peering");
 
-  public static final int MAX_QUEUE_SIZE=2500;
-  public static final double TPS=2.0;
+  public static final int MAX_QUEUE_SIZE=100000;
+  public static final double BYTES_PER_SEC=250000.0;
   public static final double BURST_SEC=5.0;
 
+  public static final long INV_INTERVAL_MS=500L;
+  public static final int MAX_INV=1000;
+
+  // How long to wait on one peer for a tx before asking another
+  public static final long TX_PULL_TIMEOUT_MS=10000L;
+  // Other peers to remember per tx, to ask if the first one doesn't come through
+  public static final int MAX_TX_ANNOUNCERS=8;
+
   private final Peerage peerage;
   private final LinkedBlockingQueue<Transaction> queue;
   private final RateLimit rate_limit;
+  private final LRUCache<ChainHash, TxPull> tx_pull_map = new LRUCache<>(50000);
+  private final AtomicLong dropped = new AtomicLong(0L);
+  private final long pull_timeout_ms;
 
   public TxBroadcaster(Peerage peerage)
+  {
+    this(peerage, TX_PULL_TIMEOUT_MS);
+  }
+
+  public TxBroadcaster(Peerage peerage, long pull_timeout_ms)
   {
     this.peerage = peerage;
+    this.pull_timeout_ms = pull_timeout_ms;
     this.queue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
-    this.rate_limit = new RateLimit(TPS, BURST_SEC);
+    this.rate_limit = new RateLimit(BYTES_PER_SEC, BURST_SEC);
 
     setName("TxBroadcaster");
     setDaemon(true);
@@ -37,7 +70,106 @@ public class TxBroadcaster extends Thread
    */
   public boolean send(Transaction tx)
   {
-    return queue.offer(tx);
+    if (queue.offer(tx)) return true;
+
+    long d = dropped.incrementAndGet();
+    if (d % 1000 == 1)
+    {
+      logger.warning("TxBroadcast queue full, dropped so far: " + d);
+    }
+    return false;
+  }
+
+  /**
+   * @param link the peer that announced this tx
+   * @return true if the caller should ask link for this tx now.  Otherwise some
+   * other peer has been asked recently and link is kept in case that one fails.
+   */
+  public boolean reserveTx(ChainHash hash, PeerLink link)
+  {
+    synchronized(tx_pull_map)
+    {
+      long tm = System.currentTimeMillis();
+      TxPull pull = tx_pull_map.get(hash);
+      if (pull == null)
+      {
+        tx_pull_map.put(hash, new TxPull(tm));
+        return true;
+      }
+      if (pull.request_time + pull_timeout_ms > tm)
+      {
+        if ((pull.announcers.size() < MAX_TX_ANNOUNCERS) && (!pull.announcers.contains(link)))
+        {
+          pull.announcers.add(link);
+        }
+        return false;
+      }
+      pull.request_time = tm;
+      return true;
+    }
+  }
+
+  /**
+   * We have this tx now, no need to ask anyone else for it
+   */
+  public void markReceived(ChainHash hash)
+  {
+    synchronized(tx_pull_map)
+    {
+      tx_pull_map.remove(hash);
+    }
+  }
+
+  /**
+   * Ask the next announcing peer for any tx the last peer we asked didn't deliver in time.
+   * Ones with no peers left to ask are forgotten, so a later announcement starts over.
+   */
+  private void retryPulls()
+  {
+    HashMap<PeerLink, List<ChainHash>> asks = new HashMap<>();
+    synchronized(tx_pull_map)
+    {
+      long tm = System.currentTimeMillis();
+      Iterator<Map.Entry<ChainHash, TxPull>> it = tx_pull_map.entrySet().iterator();
+      while(it.hasNext())
+      {
+        Map.Entry<ChainHash, TxPull> me = it.next();
+        TxPull pull = me.getValue();
+        if (pull.request_time + pull_timeout_ms > tm) continue;
+
+        PeerLink next = null;
+        while((next == null) && (pull.announcers.size() > 0))
+        {
+          PeerLink link = pull.announcers.poll();
+          if (link.isOpen()) next = link;
+        }
+        if (next == null)
+        {
+          it.remove();
+          continue;
+        }
+        pull.request_time = tm;
+        if (!asks.containsKey(next)) asks.put(next, new ArrayList<>());
+        asks.get(next).add(me.getKey());
+      }
+    }
+
+    for(Map.Entry<PeerLink, List<ChainHash>> me : asks.entrySet())
+    {
+      try
+      {
+        me.getKey().requestTransactions(me.getValue());
+      }
+      catch(Throwable e)
+      {
+        me.getKey().close();
+      }
+    }
+  }
+
+  public long getDroppedCount()
+  {
+    return dropped.get();
   }
 
   public void run()
@@ -46,13 +178,28 @@ public class TxBroadcaster extends Thread
     {
       try
       {
-        Transaction tx = queue.poll(2, TimeUnit.DAYS);
-        if (tx != null)
+        ArrayList<Transaction> batch = new ArrayList<>();
+        long end = System.currentTimeMillis() + INV_INTERVAL_MS;
+
+        Transaction tx = queue.poll(INV_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        while(tx != null)
+        {
+          rate_limit.waitForRate(tx.getSerializedSize());
+          batch.add(tx);
+          if (batch.size() >= MAX_INV) break;
+
+          long wait = end - System.currentTimeMillis();
+          if (wait <= 0) break;
+          tx = queue.poll(wait, TimeUnit.MILLISECONDS);
+        }
+
+        if (batch.size() > 0)
         {
-          rate_limit.waitForRate(1.0);
-          peerage.broadcastTransaction(tx);
+          peerage.announceTransactions(batch);
         }
 
+        retryPulls();
+
       }
       catch(Throwable t)
       {
@@ -64,8 +211,16 @@ public class TxBroadcaster extends Thread
 
   }
 
+  private static class TxPull
+  {
+    long request_time;
+    // Peers that announced it after we asked someone, in the order they did
+    final LinkedList<PeerLink> announcers = new LinkedList<>();
 
-
-
+    TxPull(long request_time)
+    {
+      this.request_time = request_time;
+    }
+  }
 
 }
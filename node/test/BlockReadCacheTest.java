@@ -0,0 +1,145 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import duckutil.ConfigMem;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.db.DB;
+import snowblossom.lib.db.rocksdb.JRocksDB;
+import snowblossom.node.BlockReadCache;
+import snowblossom.node.CompactBlockUtil;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.Transaction;
+
+public class BlockReadCacheTest
+{
+  @Rule
+  public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private Random rnd = new Random(20L);
+
+  @Test
+  public void testCounters() throws Exception
+  {
+    TreeMap<String, String> config_map = new TreeMap<>();
+    config_map.put("db_path", testFolder.newFolder().getPath());
+    ConfigMem config = new ConfigMem(config_map);
+
+    DB db = new DB(config, new JRocksDB(config));
+    try
+    {
+      Block blk = randomBlock();
+      ChainHash hash = new ChainHash(blk.getHeader().getSnowHash());
+      db.getBlockMap().put(hash.getBytes(), blk);
+      db.getBlockSummaryMap().put(hash.getBytes(), BlockSummary.newBuilder().setHeader(blk.getHeader()).build());
+
+      BlockReadCache cache = new BlockReadCache(db, 4);
+
+      // Compact miss loads the block too, still just the one miss
+      Assert.assertEquals(CompactBlockUtil.compact(blk).toByteString(), cache.getCompactBytes(hash));
+      assertCounts(cache, 0, 1);
+
+      Assert.assertEquals(CompactBlockUtil.compact(blk).toByteString(), cache.getCompactBytes(hash));
+      assertCounts(cache, 1, 1);
+
+      // Loaded along the way by the compact miss
+      Assert.assertEquals(blk.toByteString(), cache.getBlockBytes(hash));
+      assertCounts(cache, 2, 1);
+
+      Assert.assertEquals(blk.getHeader().toByteString(), cache.getHeaderBytes(hash));
+      assertCounts(cache, 2, 2);
+      Assert.assertEquals(blk.getHeader().toByteString(), cache.getHeaderBytes(hash));
+      assertCounts(cache, 3, 2);
+
+      ChainHash unknown = new ChainHash(randomBytes(32));
+      Assert.assertNull(cache.getBlockBytes(unknown));
+      Assert.assertNull(cache.getCompactBytes(unknown));
+      Assert.assertNull(cache.getHeaderBytes(unknown));
+      assertCounts(cache, 3, 5);
+
+      Assert.assertEquals(3.0 / 8.0, cache.getHitRate(), 1e-9);
+
+      // Added blocks are hits straight away
+      Block blk2 = randomBlock();
+      cache.addBlock(blk2);
+      ChainHash hash2 = new ChainHash(blk2.getHeader().getSnowHash());
+      Assert.assertEquals(blk2.toByteString(), cache.getBlockBytes(hash2));
+      Assert.assertEquals(blk2.getHeader().toByteString(), cache.getHeaderBytes(hash2));
+      assertCounts(cache, 5, 5);
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  @Test
+  public void testWrapField() throws Exception
+  {
+    Block blk = randomBlock();
+
+    PeerMessage pm = PeerMessage.parseFrom(
+      BlockReadCache.wrapField(PeerMessage.BLOCK_FIELD_NUMBER, blk.toByteString()).build().toByteString());
+    Assert.assertTrue(pm.hasBlock());
+    Assert.assertEquals(blk, pm.getBlock());
+
+    pm = PeerMessage.parseFrom(
+      BlockReadCache.wrapField(PeerMessage.COMPACT_BLOCK_FIELD_NUMBER, CompactBlockUtil.compact(blk).toByteString())
+      .build().toByteString());
+    Assert.assertTrue(pm.hasCompactBlock());
+    Assert.assertEquals(CompactBlockUtil.compact(blk), pm.getCompactBlock());
+
+    // Real fields set next to the unknown one come through too
+    PeerMessage expected = PeerMessage.newBuilder()
+      .setHeader(blk.getHeader())
+      .setReqHeaderShardId(3)
+      .build();
+    pm = PeerMessage.parseFrom(
+      BlockReadCache.wrapField(PeerMessage.HEADER_FIELD_NUMBER, blk.getHeader().toByteString())
+      .setReqHeaderShardId(3)
+      .build().toByteString());
+    Assert.assertEquals(expected, pm);
+    Assert.assertEquals(expected.toByteString().size(),
+      BlockReadCache.wrapField(PeerMessage.HEADER_FIELD_NUMBER, blk.getHeader().toByteString())
+      .setReqHeaderShardId(3).build().getSerializedSize());
+  }
+
+  private static void assertCounts(BlockReadCache cache, long hits, long misses)
+  {
+    Assert.assertEquals(hits, cache.getHitCount());
+    Assert.assertEquals(misses, cache.getMissCount());
+  }
+
+  private Block randomBlock()
+  {
+    Block.Builder blk = Block.newBuilder();
+    blk.setHeader(BlockHeader.newBuilder()
+      .setBlockHeight(rnd.nextInt(100000))
+      .setSnowHash(randomBytes(32))
+      .setMerkleRootHash(randomBytes(32))
+      .setTimestamp(System.currentTimeMillis())
+      .build());
+    for(int i=0; i<4; i++)
+    {
+      blk.addTransactions(Transaction.newBuilder()
+        .setTxHash(randomBytes(32))
+        .setInnerData(randomBytes(100))
+        .build());
+    }
+    return blk.build();
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
@@ -0,0 +1,299 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.DigestUtil;
+import snowblossom.lib.ValidationException;
+import snowblossom.node.CompactBlockUtil;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockTransactions;
+import snowblossom.proto.CompactBlock;
+import snowblossom.proto.PrefilledTransaction;
+import snowblossom.proto.Transaction;
+
+public class CompactBlockUtilTest
+{
+  private Random rnd = new Random(10L);
+
+  @Test
+  public void testShortId()
+  {
+    ChainHash block_hash = new ChainHash(randomBytes(32));
+    ByteString tx_hash = randomBytes(32);
+
+    ByteBuffer bb = ByteBuffer.wrap(block_hash.toByteArray());
+    HashFunction expected = Hashing.sipHash24(bb.getLong(), bb.getLong());
+
+    long id = CompactBlockUtil.getShortId(CompactBlockUtil.getShortIdFunction(block_hash), tx_hash);
+    Assert.assertEquals(expected.hashBytes(tx_hash.toByteArray()).asLong(), id);
+
+    // Keyed by the block, so the same tx gets a different id in another block
+    ChainHash other_block = new ChainHash(randomBytes(32));
+    Assert.assertNotEquals(id, CompactBlockUtil.getShortId(CompactBlockUtil.getShortIdFunction(other_block), tx_hash));
+
+    // Only the first 16 bytes of the block hash are the key
+    byte[] same_key = block_hash.toByteArray();
+    same_key[20] ^= 0x01;
+    Assert.assertEquals(id, CompactBlockUtil.getShortId(CompactBlockUtil.getShortIdFunction(new ChainHash(same_key)), tx_hash));
+  }
+
+  @Test
+  public void testCompact()
+  {
+    Block blk = randomBlock(10);
+    CompactBlock cb = CompactBlockUtil.compact(blk);
+
+    Assert.assertEquals(blk.getHeader(), cb.getHeader());
+    Assert.assertEquals(10, cb.getShortTxIdsCount());
+    Assert.assertEquals(1, cb.getPrefilledCount());
+    Assert.assertEquals(0, cb.getPrefilled(0).getIndex());
+    Assert.assertEquals(blk.getTransactions(0), cb.getPrefilled(0).getTx());
+    Assert.assertEquals(0L, cb.getShortTxIds(0));
+
+    HashFunction hf = CompactBlockUtil.getShortIdFunction(new ChainHash(blk.getHeader().getSnowHash()));
+    for(int i=1; i<10; i++)
+    {
+      Assert.assertEquals(CompactBlockUtil.getShortId(hf, blk.getTransactions(i).getTxHash()), cb.getShortTxIds(i));
+    }
+  }
+
+  @Test
+  public void testFullPool() throws Exception
+  {
+    Block blk = randomBlock(20);
+    TestPool pool = new TestPool();
+    for(int i=1; i<blk.getTransactionsCount(); i++) pool.add(blk.getTransactions(i));
+    // Unrelated things in the pool don't get in the way
+    for(int i=0; i<50; i++) pool.add(randomTx());
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(CompactBlockUtil.compact(blk), pool);
+    Assert.assertEquals(new ChainHash(blk.getHeader().getSnowHash()), partial.getHash());
+    Assert.assertEquals(0, partial.getMissing().size());
+    Assert.assertEquals(blk, partial.getBlock());
+  }
+
+  @Test
+  public void testPartialPool() throws Exception
+  {
+    Block blk = randomBlock(20);
+    TestPool pool = new TestPool();
+    ArrayList<Integer> expected_missing = new ArrayList<>();
+    for(int i=1; i<blk.getTransactionsCount(); i++)
+    {
+      if (i % 3 == 0) expected_missing.add(i);
+      else pool.add(blk.getTransactions(i));
+    }
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(CompactBlockUtil.compact(blk), pool);
+    Assert.assertEquals(expected_missing, partial.getMissing());
+    Assert.assertNull(partial.getBlock());
+
+    // What the peer sends back for a RequestBlockTransactions
+    partial.addTransactions(getBlockTransactions(blk, expected_missing));
+    Assert.assertEquals(0, partial.getMissing().size());
+    Assert.assertEquals(blk, partial.getBlock());
+  }
+
+  /**
+   * Listed in the pool, but gone by the time we go to get it
+   */
+  @Test
+  public void testLeftPool() throws Exception
+  {
+    Block blk = randomBlock(5);
+    TestPool pool = new TestPool();
+    for(int i=1; i<blk.getTransactionsCount(); i++) pool.add(blk.getTransactions(i));
+    pool.gone.add(new ChainHash(blk.getTransactions(2).getTxHash()));
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(CompactBlockUtil.compact(blk), pool);
+    Assert.assertEquals(ImmutableList.of(2), partial.getMissing());
+
+    partial.addTransactions(getBlockTransactions(blk, partial.getMissing()));
+    Assert.assertEquals(blk, partial.getBlock());
+  }
+
+  /**
+   * An id that shows up twice in the pool is ambiguous, so it is left for the peer
+   */
+  @Test
+  public void testDuplicateInPool() throws Exception
+  {
+    Block blk = randomBlock(5);
+    TestPool pool = new TestPool();
+    for(int i=1; i<blk.getTransactionsCount(); i++) pool.add(blk.getTransactions(i));
+    // Same as when two shard pools both have it
+    pool.hash_list.add(new ChainHash(blk.getTransactions(3).getTxHash()));
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(CompactBlockUtil.compact(blk), pool);
+    Assert.assertEquals(ImmutableList.of(3), partial.getMissing());
+
+    partial.addTransactions(getBlockTransactions(blk, partial.getMissing()));
+    Assert.assertEquals(blk, partial.getBlock());
+  }
+
+  /**
+   * A pool tx with the same short id as a block tx gets filled in wrong.
+   * Real 64-bit collisions can't be found for a test, so the compact block carries
+   * the id of the pool tx instead, which looks exactly the same from this side.
+   * The merkle root catches it and the caller falls back to the full block.
+   */
+  @Test
+  public void testCollidingPool() throws Exception
+  {
+    Block blk = randomBlock(8);
+    TestPool pool = new TestPool();
+    for(int i=1; i<blk.getTransactionsCount(); i++) pool.add(blk.getTransactions(i));
+
+    Transaction imposter = randomTx();
+    pool.add(imposter);
+    HashFunction hf = CompactBlockUtil.getShortIdFunction(new ChainHash(blk.getHeader().getSnowHash()));
+
+    CompactBlock cb = CompactBlockUtil.compact(blk).toBuilder()
+      .setShortTxIds(4, CompactBlockUtil.getShortId(hf, imposter.getTxHash()))
+      .build();
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(cb, pool);
+    Assert.assertEquals(0, partial.getMissing().size());
+    Assert.assertNull(partial.getBlock());
+  }
+
+  /**
+   * Peer sends something other than what the block has
+   */
+  @Test
+  public void testWrongFill() throws Exception
+  {
+    Block blk = randomBlock(6);
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(CompactBlockUtil.compact(blk), new TestPool());
+    Assert.assertEquals(ImmutableList.of(1,2,3,4,5), partial.getMissing());
+
+    BlockTransactions.Builder bt = getBlockTransactions(blk, partial.getMissing()).toBuilder();
+    bt.setTransactions(2, PrefilledTransaction.newBuilder().setIndex(3).setTx(randomTx()).build());
+    partial.addTransactions(bt.build());
+
+    Assert.assertEquals(0, partial.getMissing().size());
+    Assert.assertNull(partial.getBlock());
+  }
+
+  @Test
+  public void testBadCompact() throws Exception
+  {
+    Block blk = randomBlock(4);
+    CompactBlock cb = CompactBlockUtil.compact(blk);
+
+    expectInvalid(cb.toBuilder().clearShortTxIds().clearPrefilled().build());
+    expectInvalid(cb.toBuilder().clearPrefilled().build());
+    expectInvalid(cb.toBuilder()
+      .addPrefilled(PrefilledTransaction.newBuilder().setIndex(4).setTx(randomTx()).build())
+      .build());
+
+    CompactBlockUtil.PartialBlock partial = new CompactBlockUtil.PartialBlock(cb, new TestPool());
+    try
+    {
+      partial.addTransactions(BlockTransactions.newBuilder()
+        .addTransactions(PrefilledTransaction.newBuilder().setIndex(-1).setTx(randomTx()).build())
+        .build());
+      Assert.fail();
+    }
+    catch(ValidationException e){}
+  }
+
+  private static void expectInvalid(CompactBlock cb)
+  {
+    try
+    {
+      new CompactBlockUtil.PartialBlock(cb, new TestPool());
+      Assert.fail();
+    }
+    catch(ValidationException e){}
+  }
+
+  private static BlockTransactions getBlockTransactions(Block blk, List<Integer> indexes)
+  {
+    BlockTransactions.Builder bt = BlockTransactions.newBuilder();
+    bt.setBlockHash(blk.getHeader().getSnowHash());
+    for(int idx : indexes)
+    {
+      bt.addTransactions(PrefilledTransaction.newBuilder().setIndex(idx).setTx(blk.getTransactions(idx)).build());
+    }
+    return bt.build();
+  }
+
+  /**
+   * Not a valid block, but with a real merkle root, which is all the compact code checks
+   */
+  private Block randomBlock(int tx_count)
+  {
+    Block.Builder blk = Block.newBuilder();
+    ArrayList<ChainHash> tx_list = new ArrayList<>();
+    for(int i=0; i<tx_count; i++)
+    {
+      Transaction tx = randomTx();
+      blk.addTransactions(tx);
+      tx_list.add(new ChainHash(tx.getTxHash()));
+    }
+
+    blk.setHeader(BlockHeader.newBuilder()
+      .setBlockHeight(rnd.nextInt(100000))
+      .setSnowHash(randomBytes(32))
+      .setMerkleRootHash(DigestUtil.getMerkleRootForTxList(tx_list).getBytes())
+      .build());
+    return blk.build();
+  }
+
+  private Transaction randomTx()
+  {
+    return Transaction.newBuilder()
+      .setTxHash(randomBytes(32))
+      .setInnerData(randomBytes(80))
+      .build();
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  public static class TestPool implements CompactBlockUtil.TxPool
+  {
+    final LinkedList<ChainHash> hash_list = new LinkedList<>();
+    final HashMap<ChainHash, Transaction> tx_map = new HashMap<>();
+    final LinkedList<ChainHash> gone = new LinkedList<>();
+
+    void add(Transaction tx)
+    {
+      ChainHash hash = new ChainHash(tx.getTxHash());
+      hash_list.add(hash);
+      tx_map.put(hash, tx);
+    }
+
+    @Override
+    public Collection<ChainHash> getPoolHashList()
+    {
+      return hash_list;
+    }
+
+    @Override
+    public Transaction getTransaction(ChainHash tx_hash)
+    {
+      if (gone.contains(tx_hash)) return null;
+      return tx_map.get(tx_hash);
+    }
+  }
+
+}
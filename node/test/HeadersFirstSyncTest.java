@@ -0,0 +1,85 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.node.HeadersFirstSync;
+import snowblossom.proto.BlockHeader;
+import snowblossom.proto.BlockSummary;
+
+public class HeadersFirstSyncTest
+{
+  private Random rnd = new Random(9L);
+
+  @Test
+  public void testExtendsHead()
+  {
+    BlockHeader head_header = BlockHeader.newBuilder()
+      .setBlockHeight(100)
+      .setSnowHash(randomHash())
+      .setPrevBlockHash(randomHash())
+      .build();
+    BlockSummary head = BlockSummary.newBuilder().setHeader(head_header).build();
+
+    BlockHeader next = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setSnowHash(randomHash())
+      .setPrevBlockHash(head_header.getSnowHash())
+      .build();
+    Assert.assertTrue(HeadersFirstSync.extendsHead(next, head));
+  }
+
+  /**
+   * Peers on a chain that split off below our head, so their next header
+   * builds on a block at our head height that isn't ours
+   */
+  @Test
+  public void testFork()
+  {
+    BlockHeader head_header = BlockHeader.newBuilder()
+      .setBlockHeight(100)
+      .setSnowHash(randomHash())
+      .setPrevBlockHash(randomHash())
+      .build();
+    BlockSummary head = BlockSummary.newBuilder().setHeader(head_header).build();
+
+    BlockHeader their_100 = head_header.toBuilder().setSnowHash(randomHash()).build();
+    BlockHeader next = BlockHeader.newBuilder()
+      .setBlockHeight(101)
+      .setSnowHash(randomHash())
+      .setPrevBlockHash(their_100.getSnowHash())
+      .build();
+    Assert.assertFalse(HeadersFirstSync.extendsHead(next, head));
+
+    // Same height, same parent as ours, still not on top of us
+    BlockHeader sibling = head_header.toBuilder().setSnowHash(randomHash()).build();
+    Assert.assertFalse(HeadersFirstSync.extendsHead(sibling, head));
+  }
+
+  @Test
+  public void testNoHead()
+  {
+    BlockHeader first = BlockHeader.newBuilder()
+      .setBlockHeight(0)
+      .setSnowHash(randomHash())
+      .setPrevBlockHash(ChainHash.ZERO_HASH.getBytes())
+      .build();
+    Assert.assertTrue(HeadersFirstSync.extendsHead(first, null));
+
+    BlockHeader later = first.toBuilder()
+      .setBlockHeight(1)
+      .setPrevBlockHash(randomHash())
+      .build();
+    Assert.assertFalse(HeadersFirstSync.extendsHead(later, null));
+  }
+
+  private ByteString randomHash()
+  {
+    byte[] b = new byte[32];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
@@ -0,0 +1,214 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import snowblossom.lib.*;
+import snowblossom.lib.trie.HashedTrie;
+import snowblossom.node.MemPool;
+import snowblossom.proto.Block;
+import snowblossom.proto.Transaction;
+import snowblossom.proto.TransactionInput;
+import snowblossom.proto.TransactionOutput;
+
+/**
+ * Measures how long the mempool takes to catch up to a new tip,
+ * applying the block incrementally vs a full priority map rebuild,
+ * and the cost of the claimed output keys.
+ *
+ * Slow to set up (every transaction is signed and checked), so not run by default:
+ *   bazel test --test_output=all //node:node.test.MemPoolBenchTest
+ */
+public class MemPoolBenchTest
+{
+  public static final int[] POOL_SIZES = {10000, 50000, 80000};
+  public static final int BLOCK_TX = 1000;
+
+  // One in this many transactions spends an output of an earlier pool transaction
+  public static final int CHILD_EVERY = 10;
+
+  @BeforeClass
+  public static void loadProvider()
+  {
+    Globals.addCryptoProvider();
+  }
+
+  @Test
+  public void benchTipUpdate() throws Exception
+  {
+    // All the test transactions are zero fee, and we need room for the block on top
+    int old_max = MemPool.MEM_POOL_MAX;
+    int old_max_low = MemPool.MEM_POOL_MAX_LOW;
+    MemPool.MEM_POOL_MAX = POOL_SIZES[POOL_SIZES.length-1] + BLOCK_TX;
+    MemPool.MEM_POOL_MAX_LOW = MemPool.MEM_POOL_MAX;
+    try
+    {
+      runBench();
+    }
+    finally
+    {
+      MemPool.MEM_POOL_MAX = old_max;
+      MemPool.MEM_POOL_MAX_LOW = old_max_low;
+    }
+  }
+
+  private void runBench() throws Exception
+  {
+    int max_size = POOL_SIZES[POOL_SIZES.length-1];
+    HashedTrie utxo_trie = MemPoolTest.newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+    LinkedList<TransactionInput> fresh_inputs = new LinkedList<>();
+    for(int i=0; i<max_size + BLOCK_TX * POOL_SIZES.length; i++)
+    {
+      fresh_inputs.add(MemPoolTest.addUtxoToUseAtInput(utxo_buffer, keys, 100000L));
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    MemPool mem_pool = new MemPool(utxo_trie, new MemPoolTest.DummyChainState(100), 10000000);
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    // Transactions that only depend on the utxo set, so any prefix makes a valid block
+    LinkedList<Transaction> independent = new LinkedList<>();
+    int created = 0;
+
+    for(int pool_size : POOL_SIZES)
+    {
+      while(mem_pool.getMemPoolSize() < pool_size + BLOCK_TX)
+      {
+        created++;
+        if ((created % CHILD_EVERY == 0) && (independent.size() > 0))
+        {
+          Transaction parent = independent.getLast();
+          TransactionInput in = TransactionInput.newBuilder()
+            .setSpecHash(fresh_inputs.peek().getSpecHash())
+            .setSrcTxId(parent.getTxHash())
+            .setSrcTxOutIdx(1)
+            .build();
+          mem_pool.addTransaction(createTx(in, 50000L, keys), false);
+        }
+        else
+        {
+          Transaction tx = createTx(fresh_inputs.poll(), 100000L, keys);
+          mem_pool.addTransaction(tx, false);
+          independent.add(tx);
+        }
+      }
+
+      Block.Builder blk = Block.newBuilder();
+      for(int i=0; i<BLOCK_TX; i++)
+      {
+        blk.addTransactions(independent.poll());
+      }
+      ChainHash new_root = MemPoolTest.applyToUtxo(utxo_trie, utxo_root, blk.build());
+
+      long t1 = System.nanoTime();
+      Assert.assertTrue(mem_pool.applyBlock(blk.build(), utxo_root, new_root));
+      long t2 = System.nanoTime();
+      int size_incremental = mem_pool.getMemPoolSize();
+
+      mem_pool.rebuildPriorityMap(new_root);
+      long t3 = System.nanoTime();
+      int size_rebuild = mem_pool.getMemPoolSize();
+
+      // The incremental update should have left nothing for the rebuild to remove
+      Assert.assertEquals(size_incremental, size_rebuild);
+
+      System.out.println(String.format("Pool size %d, block of %d: incremental %.3f ms, full rebuild %.3f ms",
+        pool_size + BLOCK_TX, BLOCK_TX, (t2 - t1) / 1e6, (t3 - t2) / 1e6));
+
+      utxo_root = new_root;
+    }
+  }
+
+  /**
+   * Compares the old hex string outpoint keys with OutPoint for the claimed output
+   * bookkeeping of a full pool: build keys, double spend check, claim, then release.
+   */
+  @Test
+  public void benchOutPointKeys() throws Exception
+  {
+    int tx_count = 80000;
+    int inputs = 2;
+    Random rnd = new Random(1L);
+    ArrayList<TransactionInput> in_list = new ArrayList<>();
+    for(int i=0; i<tx_count * inputs; i++)
+    {
+      byte[] tx_id = new byte[Globals.BLOCKCHAIN_HASH_LEN];
+      rnd.nextBytes(tx_id);
+      in_list.add(TransactionInput.newBuilder()
+        .setSrcTxId(ByteString.copyFrom(tx_id))
+        .setSrcTxOutIdx(rnd.nextInt(4))
+        .build());
+    }
+    ChainHash claimer = ChainHash.getRandom();
+
+    for(int pass=0; pass<3; pass++)
+    {
+      long mem_before = usedMemory();
+      long t1 = System.nanoTime();
+      ConcurrentHashMap<String, ChainHash> str_map = new ConcurrentHashMap<>();
+      for(TransactionInput in : in_list)
+      {
+        String key = HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx();
+        if (str_map.get(key) == null) str_map.put(key, claimer);
+      }
+      long t2 = System.nanoTime();
+      long str_mem = usedMemory() - mem_before;
+      for(TransactionInput in : in_list)
+      {
+        str_map.remove(HexUtil.getHexString(in.getSrcTxId()) + ":" + in.getSrcTxOutIdx(), claimer);
+      }
+      long t3 = System.nanoTime();
+      str_map = null;
+
+      mem_before = usedMemory();
+      long t4 = System.nanoTime();
+      ConcurrentHashMap<OutPoint, ChainHash> op_map = new ConcurrentHashMap<>();
+      for(TransactionInput in : in_list)
+      {
+        OutPoint key = new OutPoint(in);
+        if (op_map.get(key) == null) op_map.put(key, claimer);
+      }
+      long t5 = System.nanoTime();
+      long op_mem = usedMemory() - mem_before;
+      for(TransactionInput in : in_list)
+      {
+        op_map.remove(new OutPoint(in), claimer);
+      }
+      long t6 = System.nanoTime();
+      op_map = null;
+
+      System.out.println(String.format("Outpoint keys, %d tx: string claim %.0f ns/tx release %.0f ns/tx heap %d kb; OutPoint claim %.0f ns/tx release %.0f ns/tx heap %d kb",
+        tx_count,
+        (t2 - t1) / (double) tx_count, (t3 - t2) / (double) tx_count, str_mem / 1024,
+        (t5 - t4) / (double) tx_count, (t6 - t5) / (double) tx_count, op_mem / 1024));
+    }
+  }
+
+  private static long usedMemory()
+  {
+    Runtime rt = Runtime.getRuntime();
+    for(int i=0; i<3; i++) System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private static Transaction createTx(TransactionInput in, long value, KeyPair keys)
+  {
+    // Two outputs, so some later transaction can spend the second one
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in.getSpecHash())
+      .setValue(value / 2L)
+      .build();
+    return TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out, out), keys);
+  }
+
+}
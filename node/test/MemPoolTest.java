@@ -4,8 +4,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import duckutil.TimeRecord;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Set;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -16,6 +20,8 @@ import snowblossom.lib.trie.TrieDBMem;
 import snowblossom.node.ChainStateSource;
 import snowblossom.node.MemPool;
 import snowblossom.proto.AddressSpec;
+import snowblossom.proto.Block;
+import snowblossom.proto.BlockHeader;
 import snowblossom.proto.Transaction;
 import snowblossom.proto.TransactionInput;
 import snowblossom.proto.TransactionOutput;
@@ -364,6 +370,133 @@ public class MemPoolTest
 
   }
 
+  @Test
+  public void testApplyBlock() throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    TransactionInput in_a = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+    TransactionInput in_x = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    TransactionOutput out = TransactionOutput.newBuilder()
+      .setRecipientSpecHash(in_a.getSpecHash())
+      .setValue(100000L)
+      .build();
+
+    Transaction tx_a = TransactionUtil.createTransaction(ImmutableList.of(in_a), ImmutableList.of(out), keys);
+    TransactionInput in_b = TransactionInput.newBuilder()
+      .setSpecHash(in_a.getSpecHash())
+      .setSrcTxId(tx_a.getTxHash())
+      .setSrcTxOutIdx(0)
+      .build();
+    Transaction tx_b = TransactionUtil.createTransaction(ImmutableList.of(in_b), ImmutableList.of(out), keys);
+    Transaction tx_x = TransactionUtil.createTransaction(ImmutableList.of(in_x), ImmutableList.of(out), keys);
+
+    // Spends the same output as tx_x, but only shows up in the block
+    Transaction tx_x2 = TransactionUtil.createTransaction(ImmutableList.of(in_x), ImmutableList.of(out, out), keys);
+
+    MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+    mem_pool.addTransaction(tx_a, false);
+    mem_pool.addTransaction(tx_b, false);
+    mem_pool.addTransaction(tx_x, false);
+    Assert.assertEquals(3, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+
+    Block blk = Block.newBuilder().addTransactions(tx_a).addTransactions(tx_x2).build();
+    ChainHash new_root = applyToUtxo(utxo_trie, utxo_root, blk);
+
+    Assert.assertTrue(mem_pool.applyBlock(blk, utxo_root, new_root));
+    Assert.assertEquals(1, mem_pool.getMemPoolSize());
+
+    List<Transaction> lst = mem_pool.getTransactionsForBlock(new_root, 1048576);
+    Assert.assertEquals(1, lst.size());
+    Assert.assertEquals(tx_b, lst.get(0));
+
+    // Applying again from the wrong root does nothing
+    Assert.assertFalse(mem_pool.applyBlock(blk, utxo_root, new_root));
+  }
+
+  @Test
+  public void testConcurrentAdd() throws Exception
+  {
+    HashedTrie utxo_trie = newMemoryTrie();
+    KeyPair keys = KeyUtil.generateECCompressedKey();
+
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, UtxoUpdateBuffer.EMPTY);
+
+    ConcurrentLinkedQueue<Transaction> tx_queue = new ConcurrentLinkedQueue<>();
+    TransactionInput in_double = null;
+    for(int i=0; i<64; i++)
+    {
+      TransactionInput in = addUtxoToUseAtInput(utxo_buffer, keys, 100000L);
+      if (in_double == null) in_double = in;
+      TransactionOutput out = TransactionOutput.newBuilder()
+        .setRecipientSpecHash(in.getSpecHash())
+        .setValue(100000L)
+        .build();
+      tx_queue.add(TransactionUtil.createTransaction(ImmutableList.of(in), ImmutableList.of(out), keys));
+    }
+    // Add some double spends of the first input, only one of these can get in
+    for(int i=1; i<=8; i++)
+    {
+      TransactionOutput out = TransactionOutput.newBuilder()
+        .setRecipientSpecHash(in_double.getSpecHash())
+        .setValue(100000L / i)
+        .build();
+      tx_queue.add(TransactionUtil.createTransaction(ImmutableList.of(in_double), ImmutableList.of(out), keys));
+    }
+    ChainHash utxo_root = utxo_buffer.commit();
+
+    MemPool mem_pool = new MemPool(utxo_trie, new DummyChainState(100));
+    mem_pool.rebuildPriorityMap(utxo_root);
+
+    AtomicInteger added = new AtomicInteger(0);
+    ArrayList<Thread> threads = new ArrayList<>();
+    for(int t=0; t<8; t++)
+    {
+      Thread thread = new Thread(() -> {
+        Transaction tx;
+        while((tx = tx_queue.poll()) != null)
+        {
+          try
+          {
+            if (mem_pool.addTransaction(tx, false)) added.incrementAndGet();
+          }
+          catch(ValidationException e) {}
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for(Thread thread : threads) thread.join();
+
+    Assert.assertEquals(64, added.get());
+    Assert.assertEquals(64, mem_pool.getMemPoolSize());
+    Assert.assertEquals(64, mem_pool.getTransactionsForBlock(utxo_root, 1048576).size());
+    Assert.assertEquals(64, mem_pool.getTransactionsForAddress(new AddressSpecHash(in_double.getSpecHash())).size());
+  }
+
+  public static ChainHash applyToUtxo(HashedTrie utxo_trie, ChainHash utxo_root, Block blk)
+    throws Exception
+  {
+    NetworkParams params = new NetworkParamsRegtest();
+    UtxoUpdateBuffer utxo_buffer = new UtxoUpdateBuffer(utxo_trie, utxo_root);
+    int version = 1;
+    if (params.getActivationHeightShards() <= 101) version = 2;
+    BlockHeader header = BlockHeader.newBuilder().setBlockHeight(101).setVersion(version).build();
+    for(Transaction tx : blk.getTransactionsList())
+    {
+      Validation.deepTransactionCheck(tx, utxo_buffer, header, params,
+        ImmutableSet.of(0), new TreeMap<Integer, UtxoUpdateBuffer>());
+    }
+    return utxo_buffer.commit();
+  }
+
   public class InputInfo
   {
     TransactionInput in;
@@ -412,7 +545,7 @@ public class MemPoolTest
     return new HashedTrie(new TrieDBMem(), true, false);
   }
 
-  public class DummyChainState implements ChainStateSource
+  public static class DummyChainState implements ChainStateSource
   {
     private int height;
     public DummyChainState(int height)
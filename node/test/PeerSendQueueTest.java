@@ -0,0 +1,272 @@
+package node.test;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.node.PeerLink;
+import snowblossom.node.PeerSendQueue;
+import snowblossom.proto.*;
+
+public class PeerSendQueueTest
+{
+  private Random rnd = new Random(50L);
+
+  @Test
+  public void testOrdering()
+  {
+    FakeStream stream = new FakeStream();
+    PeerSendQueue queue = newQueue(stream);
+
+    PeerMessage tx_a = txMessage(100);
+    PeerMessage block_req = PeerMessage.newBuilder()
+      .setReqBlock(RequestBlock.newBuilder().setBlockHash(randomBytes(32)).build())
+      .build();
+    PeerMessage tip_0_old = tipMessage(0, 10);
+    PeerMessage inv = PeerMessage.newBuilder()
+      .setTxInv(TransactionInventory.newBuilder().addTxHashes(randomBytes(32)).build())
+      .build();
+    PeerMessage header = PeerMessage.newBuilder()
+      .setHeader(BlockHeader.newBuilder().setBlockHeight(5).setSnowHash(randomBytes(32)).build())
+      .setReqHeaderShardId(0)
+      .build();
+    PeerMessage tip_1 = tipMessage(1, 7);
+    PeerMessage tip_0_new = tipMessage(0, 11);
+    PeerMessage tx_b = txMessage(100);
+
+    for(PeerMessage msg : new PeerMessage[]{tx_a, block_req, tip_0_old, inv, header, tip_1, tip_0_new, tx_b})
+    {
+      Assert.assertTrue(queue.add(msg));
+    }
+
+    // Not ready, so nothing goes out
+    Assert.assertEquals(0, stream.getSent().size());
+    Assert.assertEquals(7, queue.getQueueDepth());
+
+    stream.allow(100);
+
+    // Tips by shard with only the newest for each, then the rest in order within their class
+    List<PeerMessage> expected = new ArrayList<>();
+    expected.add(tip_0_new);
+    expected.add(tip_1);
+    expected.add(block_req);
+    expected.add(header);
+    expected.add(tx_a);
+    expected.add(inv);
+    expected.add(tx_b);
+    Assert.assertEquals(expected, stream.getSent());
+    Assert.assertEquals(0, queue.getQueueDepth());
+    Assert.assertEquals(0L, queue.getQueuedBytes());
+    Assert.assertFalse(stream.sent_when_not_ready);
+  }
+
+  @Test
+  public void testBackpressure()
+  {
+    FakeStream stream = new FakeStream();
+    PeerSendQueue queue = newQueue(stream);
+
+    stream.allow(3);
+    long bytes = 0L;
+    for(int i=0; i<10; i++)
+    {
+      PeerMessage msg = txMessage(1000);
+      Assert.assertTrue(queue.add(msg));
+      if (i >= 3) bytes += msg.getSerializedSize();
+    }
+
+    // Only what the stream would take, the rest waits here
+    Assert.assertEquals(3, stream.getSent().size());
+    Assert.assertEquals(7, queue.getQueueDepth());
+    Assert.assertEquals(bytes, queue.getQueuedBytes());
+
+    // A tip added while backed up still goes out ahead of the waiting transactions
+    PeerMessage tip = tipMessage(0, 3);
+    Assert.assertTrue(queue.add(tip));
+    Assert.assertEquals(3, stream.getSent().size());
+
+    stream.allow(2);
+    Assert.assertEquals(5, stream.getSent().size());
+    Assert.assertEquals(tip, stream.getSent().get(3));
+    Assert.assertEquals(6, queue.getQueueDepth());
+
+    stream.allow(100);
+    Assert.assertEquals(11, stream.getSent().size());
+    Assert.assertEquals(0, queue.getQueueDepth());
+    Assert.assertEquals(0L, queue.getQueuedBytes());
+    Assert.assertFalse(stream.sent_when_not_ready);
+  }
+
+  @Test
+  public void testOverflow()
+  {
+    FakeStream stream = new FakeStream();
+    PeerSendQueue queue = newQueue(stream);
+
+    int size = 1048576;
+    long count = PeerSendQueue.MAX_QUEUE_BYTES / size;
+    for(int i=0; i<count - 1; i++)
+    {
+      Assert.assertTrue(queue.add(txMessage(size)));
+    }
+    // Past the limit
+    Assert.assertFalse(queue.add(txMessage(size)));
+    Assert.assertFalse(queue.add(txMessage(size)));
+    Assert.assertEquals(0, stream.getSent().size());
+
+    queue.close();
+    Assert.assertTrue(stream.completed);
+    Assert.assertEquals(0, queue.getQueueDepth());
+    Assert.assertEquals(0L, queue.getQueuedBytes());
+
+    // Closed, so it just goes nowhere
+    stream.allow(10);
+    Assert.assertTrue(queue.add(txMessage(10)));
+    Assert.assertEquals(0, stream.getSent().size());
+  }
+
+  /**
+   * The server side PeerLink hooks the queue to the stream's onReady, and drops a peer that backs up too far
+   */
+  @Test
+  public void testPeerLink()
+  {
+    FakeStream stream = new FakeStream();
+    PeerLink link = new PeerLink(null, stream);
+    Assert.assertNotNull(stream.on_ready);
+
+    link.writeMessage(txMessage(100));
+    link.writeMessage(tipMessage(0, 1));
+    Assert.assertEquals(0, stream.getSent().size());
+    Assert.assertEquals(2, link.getSendQueue().getQueueDepth());
+
+    stream.allow(10);
+    Assert.assertEquals(2, stream.getSent().size());
+    Assert.assertTrue(stream.getSent().get(0).hasTip());
+    Assert.assertTrue(link.isOpen());
+
+    // Peer stops reading
+    stream.allow(-10);
+    int size = 1048576;
+    for(int i=0; i<=PeerSendQueue.MAX_QUEUE_BYTES / size; i++)
+    {
+      link.writeMessage(txMessage(size));
+    }
+    Assert.assertFalse(link.isOpen());
+    Assert.assertTrue(stream.completed);
+  }
+
+  private static PeerSendQueue newQueue(FakeStream stream)
+  {
+    PeerSendQueue queue = new PeerSendQueue();
+    stream.setOnReadyHandler(queue::drain);
+    queue.setSink(stream);
+    return queue;
+  }
+
+  private PeerMessage txMessage(int size)
+  {
+    return PeerMessage.newBuilder()
+      .setTx(Transaction.newBuilder()
+        .setTxHash(randomBytes(32))
+        .setInnerData(randomBytes(size)))
+      .build();
+  }
+
+  private PeerMessage tipMessage(int shard, int height)
+  {
+    return PeerMessage.newBuilder()
+      .setTip(PeerChainTip.newBuilder()
+        .setNetworkName("test")
+        .setHeader(BlockHeader.newBuilder()
+          .setShardId(shard)
+          .setBlockHeight(height)
+          .setSnowHash(randomBytes(32))))
+      .build();
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  /**
+   * Ready for a set number of messages, like a gRPC stream with that much room in its buffer.
+   * When given more room, calls the onReady handler the way gRPC would.
+   */
+  public static class FakeStream extends ServerCallStreamObserver<PeerMessage>
+  {
+    private final ArrayList<PeerMessage> sent = new ArrayList<>();
+    private int room;
+    volatile Runnable on_ready;
+    volatile boolean completed;
+    volatile boolean sent_when_not_ready;
+
+    public void allow(int n)
+    {
+      synchronized(this)
+      {
+        room += n;
+      }
+      if ((n > 0) && (on_ready != null)) on_ready.run();
+    }
+
+    public synchronized List<PeerMessage> getSent()
+    {
+      return new ArrayList<PeerMessage>(sent);
+    }
+
+    @Override
+    public synchronized void onNext(PeerMessage msg)
+    {
+      if (room <= 0) sent_when_not_ready = true;
+      room--;
+      sent.add(msg);
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted()
+    {
+      completed = true;
+    }
+
+    @Override
+    public synchronized boolean isReady()
+    {
+      return room > 0;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable r)
+    {
+      on_ready = r;
+    }
+
+    @Override
+    public boolean isCancelled() { return false; }
+
+    @Override
+    public void setOnCancelHandler(Runnable r) {}
+
+    @Override
+    public void setCompression(String compression) {}
+
+    @Override
+    public void disableAutoInboundFlowControl() {}
+
+    @Override
+    public void request(int count) {}
+
+    @Override
+    public void setMessageCompression(boolean enable) {}
+  }
+
+}
@@ -0,0 +1,210 @@
+package node.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.node.PeerLink;
+import snowblossom.node.TxBroadcaster;
+import snowblossom.proto.PeerMessage;
+import snowblossom.proto.Transaction;
+
+public class TxBroadcasterTest
+{
+  private static final long PULL_TIMEOUT_MS = 300L;
+
+  private Random rnd = new Random(40L);
+
+  @Test
+  public void testReservation() throws Exception
+  {
+    TxBroadcaster txb = new TxBroadcaster(null, PULL_TIMEOUT_MS);
+    PeerLink a = newLink(new RecordSink());
+    PeerLink b = newLink(new RecordSink());
+    PeerLink c = newLink(new RecordSink());
+
+    ChainHash hash = randomHash();
+    Assert.assertTrue(txb.reserveTx(hash, a));
+    Assert.assertFalse(txb.reserveTx(hash, b));
+    Assert.assertFalse(txb.reserveTx(hash, a));
+
+    // Nothing from a in time, so whoever announces next gets asked
+    Thread.sleep(PULL_TIMEOUT_MS + 100L);
+    Assert.assertTrue(txb.reserveTx(hash, c));
+    Assert.assertFalse(txb.reserveTx(hash, b));
+
+    // Once we have it, a new announcement starts over
+    txb.markReceived(hash);
+    Assert.assertTrue(txb.reserveTx(hash, b));
+
+    // Other transactions are not held up by this one
+    Assert.assertTrue(txb.reserveTx(randomHash(), b));
+  }
+
+  @Test
+  public void testRetrySecondPeer() throws Exception
+  {
+    TxBroadcaster txb = new TxBroadcaster(null, PULL_TIMEOUT_MS);
+    txb.start();
+
+    RecordSink sink_a = new RecordSink();
+    RecordSink sink_b = new RecordSink();
+    RecordSink sink_c = new RecordSink();
+    RecordSink sink_d = new RecordSink();
+    PeerLink a = newLink(sink_a);
+    PeerLink b = newLink(sink_b);
+    PeerLink c = newLink(sink_c);
+    PeerLink d = newLink(sink_d);
+
+    ChainHash hash = randomHash();
+    ChainHash got_hash = randomHash();
+
+    Assert.assertTrue(txb.reserveTx(hash, a));
+    Assert.assertFalse(txb.reserveTx(hash, b));
+    Assert.assertFalse(txb.reserveTx(hash, c));
+    Assert.assertFalse(txb.reserveTx(hash, d));
+
+    // This one comes in from a before the timeout, so no one else gets asked
+    Assert.assertTrue(txb.reserveTx(got_hash, a));
+    Assert.assertFalse(txb.reserveTx(got_hash, b));
+    txb.markReceived(got_hash);
+
+    // b went away, so c is next in line
+    b.close();
+
+    waitForRequest(sink_c, hash);
+    Assert.assertEquals(0, sink_b.getRequested().size());
+    Assert.assertFalse(sink_d.getRequested().contains(hash));
+
+    // Then d after c times out too
+    waitForRequest(sink_d, hash);
+    Assert.assertEquals(ImmutableList.of(hash), sink_c.getRequested());
+    Assert.assertEquals(ImmutableList.of(hash), sink_d.getRequested());
+
+    // Not asked of anyone again
+    Thread.sleep(PULL_TIMEOUT_MS * 4);
+    Assert.assertEquals(0, sink_a.getRequested().size());
+    Assert.assertEquals(0, sink_b.getRequested().size());
+    Assert.assertEquals(ImmutableList.of(hash), sink_c.getRequested());
+    Assert.assertEquals(ImmutableList.of(hash), sink_d.getRequested());
+  }
+
+  @Test
+  public void testFullRelayOldPeer() throws Exception
+  {
+    RecordSink old_sink = new RecordSink();
+    RecordSink new_sink = new RecordSink();
+
+    // Hasn't sent a tip with tx_inv_ok
+    PeerLink old_peer = newLink(old_sink);
+    PeerLink new_peer = newLink(new_sink);
+    new_peer.setPeerTxInvOk(true);
+
+    List<Transaction> tx_list = ImmutableList.of(randomTx(), randomTx(), randomTx());
+    old_peer.sendTxInventory(tx_list);
+    new_peer.sendTxInventory(tx_list);
+
+    Assert.assertEquals(3, old_sink.getMessages().size());
+    for(int i=0; i<3; i++)
+    {
+      PeerMessage msg = old_sink.getMessages().get(i);
+      Assert.assertTrue(msg.hasTx());
+      Assert.assertEquals(tx_list.get(i), msg.getTx());
+    }
+
+    Assert.assertEquals(1, new_sink.getMessages().size());
+    PeerMessage inv_msg = new_sink.getMessages().get(0);
+    Assert.assertTrue(inv_msg.hasTxInv());
+    Assert.assertEquals(3, inv_msg.getTxInv().getTxHashesCount());
+    for(int i=0; i<3; i++)
+    {
+      Assert.assertEquals(tx_list.get(i).getTxHash(), inv_msg.getTxInv().getTxHashes(i));
+    }
+
+    // Only what each peer hasn't already been given
+    Transaction tx_new = randomTx();
+    old_peer.sendTxInventory(ImmutableList.of(tx_list.get(1), tx_new));
+    new_peer.sendTxInventory(ImmutableList.of(tx_list.get(1), tx_new));
+
+    Assert.assertEquals(4, old_sink.getMessages().size());
+    Assert.assertEquals(tx_new, old_sink.getMessages().get(3).getTx());
+
+    Assert.assertEquals(2, new_sink.getMessages().size());
+    Assert.assertEquals(ImmutableList.of(tx_new.getTxHash()), new_sink.getMessages().get(1).getTxInv().getTxHashesList());
+  }
+
+  private static PeerLink newLink(RecordSink sink)
+  {
+    return new PeerLink(null, sink);
+  }
+
+  private static void waitForRequest(RecordSink sink, ChainHash hash) throws Exception
+  {
+    for(int i=0; i<100; i++)
+    {
+      if (sink.getRequested().contains(hash)) return;
+      Thread.sleep(50);
+    }
+    Assert.fail("Tx never requested");
+  }
+
+  private ChainHash randomHash()
+  {
+    return new ChainHash(randomBytes(32));
+  }
+
+  private Transaction randomTx()
+  {
+    return Transaction.newBuilder()
+      .setTxHash(randomBytes(32))
+      .setInnerData(randomBytes(100))
+      .build();
+  }
+
+  private ByteString randomBytes(int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+  public static class RecordSink implements StreamObserver<PeerMessage>
+  {
+    private final ArrayList<PeerMessage> messages = new ArrayList<>();
+
+    public synchronized void onNext(PeerMessage msg)
+    {
+      messages.add(msg);
+    }
+    public void onError(Throwable t) {}
+    public void onCompleted() {}
+
+    public synchronized List<PeerMessage> getMessages()
+    {
+      return new ArrayList<PeerMessage>(messages);
+    }
+
+    /**
+     * Tx hashes asked for in any req_txs
+     */
+    public synchronized List<ChainHash> getRequested()
+    {
+      ArrayList<ChainHash> lst = new ArrayList<>();
+      for(PeerMessage msg : messages)
+      {
+        if (!msg.hasReqTxs()) continue;
+        for(ByteString h : msg.getReqTxs().getTxHashesList())
+        {
+          lst.add(new ChainHash(h));
+        }
+      }
+      return lst;
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+package systemtests.test;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.AddressSpecHash;
+import snowblossom.lib.AddressUtil;
+import snowblossom.lib.KeyUtil;
+import snowblossom.lib.SignatureUtil;
+import snowblossom.miner.SnowBlossomMiner;
+import snowblossom.node.SnowBlossomNode;
+import snowblossom.proto.*;
+
+public class SpoonTestHeadersFirst extends SpoonTest
+{
+  public static final int CHAIN_HEIGHT = 40;
+
+  @Test
+  public void headersFirstSyncTest() throws Exception
+  {
+    File snow_path = setupSnow();
+
+    Random rnd = new Random();
+    int port = 20000 + rnd.nextInt(30000);
+    SnowBlossomNode node1 = startNode(port);
+    Thread.sleep(100);
+
+    KeyPair key_pair = KeyUtil.generateECCompressedKey();
+    AddressSpec claim = AddressUtil.getSimpleSpecForKey(key_pair.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    AddressSpecHash to_addr = AddressUtil.getHashForSpec(claim);
+
+    SnowBlossomMiner miner = startMiner(port, to_addr, snow_path);
+    waitForHeight(node1, 0, CHAIN_HEIGHT, 300);
+    miner.stop();
+    Thread.sleep(500);
+
+    int target = node1.getBlockIngestor().getHead().getHeader().getBlockHeight();
+
+    Map<String, String> hfs_config = new TreeMap<>();
+    hfs_config.put("headers_first_sync", "true");
+    hfs_config.put("headers_first_min_gap", "8");
+
+    SnowBlossomNode node2 = startNode(port + 1, "spoon", hfs_config);
+    SnowBlossomNode node3 = startNode(port + 2);
+    Assert.assertNotNull(node2.getHeadersFirstSync());
+    Assert.assertNull(node3.getHeadersFirstSync());
+
+    long t2 = timeSync(node2, port, target);
+    long t3 = timeSync(node3, port, target);
+
+    System.out.println(node2.getHeadersFirstSync().getStatusReport());
+    System.out.println(String.format("Headers first sync: %d blocks in %d ms (%.1f blocks/sec)",
+      target, t2, target * 1000.0 / t2));
+    System.out.println(String.format("Normal sync: %d blocks in %d ms (%.1f blocks/sec)",
+      target, t3, target * 1000.0 / t3));
+
+    // Same chain either way
+    Assert.assertEquals(node1.getDB().getBlockHashAtHeight(target), node2.getDB().getBlockHashAtHeight(target));
+    Assert.assertEquals(node1.getDB().getBlockHashAtHeight(target), node3.getDB().getBlockHashAtHeight(target));
+
+    node1.stop();
+    node2.stop();
+    node3.stop();
+  }
+
+  /**
+   * The node doing headers first already has a short chain of its own,
+   * so the headers it gets don't link to its head
+   */
+  @Test
+  public void headersFirstForkTest() throws Exception
+  {
+    File snow_path = setupSnow();
+
+    Random rnd = new Random();
+    int port = 20000 + rnd.nextInt(30000);
+    SnowBlossomNode node1 = startNode(port);
+
+    Map<String, String> hfs_config = new TreeMap<>();
+    hfs_config.put("headers_first_sync", "true");
+    hfs_config.put("headers_first_min_gap", "8");
+    SnowBlossomNode node2 = startNode(port + 1, "spoon", hfs_config);
+    Thread.sleep(100);
+
+    KeyPair key_pair = KeyUtil.generateECCompressedKey();
+    AddressSpec claim = AddressUtil.getSimpleSpecForKey(key_pair.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    AddressSpecHash to_addr = AddressUtil.getHashForSpec(claim);
+
+    SnowBlossomMiner miner2 = startMiner(port + 1, to_addr, snow_path);
+    waitForHeight(node2, 0, 3, 300);
+    miner2.stop();
+
+    SnowBlossomMiner miner1 = startMiner(port, to_addr, snow_path);
+    waitForHeight(node1, 0, CHAIN_HEIGHT, 300);
+    miner1.stop();
+    Thread.sleep(500);
+
+    int target = node1.getBlockIngestor().getHead().getHeader().getBlockHeight();
+    Assert.assertNotEquals(node1.getDB().getBlockHashAtHeight(1), node2.getDB().getBlockHashAtHeight(1));
+
+    timeSync(node2, port, target);
+
+    Assert.assertEquals(node1.getDB().getBlockHashAtHeight(target), node2.getDB().getBlockHashAtHeight(target));
+    // Normal sync racing to the same place can beat the fork check to it, so just report it
+    System.out.println("Headers first forks: " + node2.getHeadersFirstSync().getForkCount());
+    System.out.println(node2.getHeadersFirstSync().getStatusReport());
+
+    node1.stop();
+    node2.stop();
+  }
+
+  private long timeSync(SnowBlossomNode node, int port, int target) throws Exception
+  {
+    long t1 = System.currentTimeMillis();
+    node.getPeerage().connectPeer("localhost", port);
+
+    for(int i=0; i<1200; i++)
+    {
+      BlockSummary head = node.getBlockIngestor().getHead();
+      if ((head != null) && (head.getHeader().getBlockHeight() >= target))
+      {
+        return System.currentTimeMillis() - t1;
+      }
+      Thread.sleep(100);
+    }
+    preFailReport();
+    Assert.fail("Sync did not reach " + target);
+    return 0L;
+  }
+
+}
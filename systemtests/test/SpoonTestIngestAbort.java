@@ -0,0 +1,102 @@
+package systemtests.test;
+
+import com.google.protobuf.ByteString;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.ChainHash;
+import snowblossom.lib.Globals;
+import snowblossom.lib.ValidationException;
+import snowblossom.lib.db.DB;
+import snowblossom.node.SnowBlossomNode;
+import snowblossom.proto.*;
+
+/**
+ * Feeds blocks straight to the BlockIngestor of a running node, skipping the
+ * PoW check, to see that a block failing validation part way through ingest
+ * leaves nothing behind in the DB or its trie caches.
+ */
+public class SpoonTestIngestAbort extends SpoonTest
+{
+  @Test
+  public void ingestAbortTest() throws Exception
+  {
+    Random rnd = new Random();
+    int port = 20000 + rnd.nextInt(30000);
+    SnowBlossomNode node = startNode(port);
+    Thread.sleep(100);
+
+    DB db = node.getDB();
+    Assert.assertNotNull(db.getUtxoTrieCache());
+    Assert.assertNull(node.getBlockIngestor().getHead());
+
+    Block template = getTemplate(node, rnd);
+    ByteString utxo_root = template.getHeader().getUtxoRootHash();
+
+    // Good all the way to the utxo root check at the end of deepBlockValidation
+    Block bad = template.toBuilder()
+      .setHeader(template.getHeader().toBuilder()
+        .setSnowHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .setUtxoRootHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .build())
+      .build();
+    ByteString bad_hash = bad.getHeader().getSnowHash();
+
+    try
+    {
+      node.getBlockIngestor().ingestBlock(bad, true);
+      Assert.fail();
+    }
+    catch(ValidationException e){}
+
+    // All through the live DB, so the trie caches are in the way
+    Assert.assertNull(db.getBlockSummaryMap().get(bad_hash));
+    Assert.assertNull(db.getBlockMap().get(bad_hash));
+    Assert.assertEquals(0, db.getChildBlockMapSet().getSet(bad.getHeader().getPrevBlockHash(), 10).size());
+    Assert.assertNull(db.getUtxoTrieCache().load(bad.getHeader().getUtxoRootHash()));
+    Assert.assertNull(db.getUtxoTrieCache().load(utxo_root));
+    Assert.assertNull(node.getBlockIngestor().getHead());
+
+    // The same block with the right root goes in fine after
+    Block good = template.toBuilder()
+      .setHeader(template.getHeader().toBuilder()
+        .setSnowHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN))
+        .build())
+      .build();
+    ByteString good_hash = good.getHeader().getSnowHash();
+
+    Assert.assertTrue(node.getBlockIngestor().ingestBlock(good, true));
+
+    Assert.assertNotNull(db.getBlockSummaryMap().get(good_hash));
+    Assert.assertNotNull(db.getBlockMap().get(good_hash));
+    Assert.assertNotNull(db.getUtxoTrieCache().load(utxo_root));
+    Assert.assertEquals(new ChainHash(good_hash), new ChainHash(node.getBlockIngestor().getHead().getHeader().getSnowHash()));
+    Assert.assertEquals(1, db.getChildBlockMapSet().getSet(good.getHeader().getPrevBlockHash(), 10).size());
+
+    node.stop();
+  }
+
+  private Block getTemplate(SnowBlossomNode node, Random rnd) throws Exception
+  {
+    SubscribeBlockTemplateRequest req = SubscribeBlockTemplateRequest.newBuilder()
+      .setPayRewardToSpecHash(randomBytes(rnd, Globals.ADDRESS_SPEC_HASH_LEN))
+      .build();
+
+    for(int i=0; i<100; i++)
+    {
+      BlockTemplate bt = node.getBlockForge().getBlockTemplate(req);
+      if (bt != null) return bt.getBlock();
+      Thread.sleep(100);
+    }
+    Assert.fail("No block template");
+    return null;
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}
@@ -0,0 +1,187 @@
+package systemtests.test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import snowblossom.lib.*;
+import snowblossom.node.ShardBlockForge;
+import snowblossom.node.SnowBlossomNode;
+import snowblossom.proto.*;
+
+/**
+ * Builds block templates from the shared skeleton and the old direct way
+ * for the same concept and checks they come out as the same block.
+ */
+public class SpoonTestTemplateSkeleton extends SpoonTest
+{
+  @Test
+  public void templateSkeletonTest() throws Exception
+  {
+    Random rnd = new Random();
+    int port = 20000 + rnd.nextInt(30000);
+    SnowBlossomNode node = startNode(port);
+    Thread.sleep(100);
+
+    KeyPair key_pair = KeyUtil.generateECCompressedKey();
+    AddressSpec claim = AddressUtil.getSimpleSpecForKey(key_pair.getPublic(), SignatureUtil.SIG_TYPE_ECDSA_COMPRESSED);
+    AddressSpecHash addr = AddressUtil.getHashForSpec(claim);
+
+    SubscribeBlockTemplateRequest req = SubscribeBlockTemplateRequest.newBuilder()
+      .setPayRewardToSpecHash(addr.getBytes())
+      .build();
+
+    // Some coinbase outputs to spend, blocks put in without PoW
+    ArrayList<Transaction> coinbase_list = new ArrayList<>();
+    for(int i=0; i<5; i++)
+    {
+      Block blk = addBlock(node, req, rnd);
+      coinbase_list.add(blk.getTransactions(0));
+    }
+
+    // Spends with different fees so the mempool has something to order
+    long fee_sum = 0L;
+    for(int i=0; i<coinbase_list.size(); i++)
+    {
+      long fee = 5000L + 1000L * i;
+      Transaction tx = spendCoinbase(coinbase_list.get(i), claim, addr, key_pair, fee, rnd);
+      Assert.assertTrue(node.getMemPool().addTransaction(tx, false));
+      fee_sum += fee;
+    }
+
+    ShardBlockForge forge = node.getBlockForge();
+    BlockSummary head = node.getBlockIngestor().getHead();
+    List<ShardBlockForge.BlockConcept> concepts = forge.initiateBlockConcepts(head);
+    Assert.assertEquals(1, concepts.size());
+    ShardBlockForge.BlockConcept concept = concepts.get(0);
+
+    SubscribeBlockTemplateRequest req_other = SubscribeBlockTemplateRequest.newBuilder()
+      .setPayRewardToSpecHash(randomBytes(rnd, Globals.ADDRESS_SPEC_HASH_LEN))
+      .build();
+
+    // First builds the skeleton, second reuses it for another subscriber
+    for(SubscribeBlockTemplateRequest r : ImmutableList.of(req, req_other, req))
+    {
+      Block skel_blk = forge.fleshOut(concept, r);
+      Block full_blk = forge.fleshOutFull(concept, r);
+
+      Assert.assertEquals(1 + coinbase_list.size(), skel_blk.getTransactionsCount());
+      Assert.assertEquals(full_blk.getTransactionsList(), skel_blk.getTransactionsList());
+      Assert.assertEquals(full_blk.getImportedBlocksList(), skel_blk.getImportedBlocksList());
+      Assert.assertEquals(full_blk.getHeader().getMerkleRootHash(), skel_blk.getHeader().getMerkleRootHash());
+      Assert.assertEquals(full_blk.getHeader().getUtxoRootHash(), skel_blk.getHeader().getUtxoRootHash());
+
+      // Only the time and the target from it can differ
+      Assert.assertEquals(normalize(full_blk.getHeader()), normalize(skel_blk.getHeader()));
+
+      long reward = ShardUtil.getBlockReward(node.getParams(), skel_blk.getHeader());
+      Assert.assertEquals(reward + fee_sum, getOutputSum(skel_blk.getTransactions(0)));
+      Assert.assertEquals(reward + fee_sum, getOutputSum(full_blk.getTransactions(0)));
+    }
+
+    // And the skeleton one is a block the node takes
+    Block blk = forge.fleshOut(concept, req);
+    blk = blk.toBuilder()
+      .setHeader(blk.getHeader().toBuilder().setSnowHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN)).build())
+      .build();
+    Assert.assertTrue(node.getBlockIngestor().ingestBlock(blk, true));
+
+    node.stop();
+  }
+
+  private static BlockHeader normalize(BlockHeader h)
+  {
+    return h.toBuilder().clearTimestamp().clearTarget().build();
+  }
+
+  private static long getOutputSum(Transaction tx) throws Exception
+  {
+    long sum = 0L;
+    for(TransactionOutput out : TransactionUtil.getInner(tx).getOutputsList())
+    {
+      sum += out.getValue();
+    }
+    return sum;
+  }
+
+  /**
+   * Get a template on the current head and put it in, skipping PoW
+   */
+  private Block addBlock(SnowBlossomNode node, SubscribeBlockTemplateRequest req, Random rnd) throws Exception
+  {
+    BlockSummary head = node.getBlockIngestor().getHead();
+    for(int i=0; i<100; i++)
+    {
+      BlockTemplate bt = node.getBlockForge().getBlockTemplate(req);
+      if (bt != null)
+      {
+        Block blk = bt.getBlock();
+        boolean on_head = (head == null) ?
+          (blk.getHeader().getBlockHeight() == 0) :
+          blk.getHeader().getPrevBlockHash().equals(head.getHeader().getSnowHash());
+        if (on_head)
+        {
+          blk = blk.toBuilder()
+            .setHeader(blk.getHeader().toBuilder().setSnowHash(randomBytes(rnd, Globals.BLOCKCHAIN_HASH_LEN)).build())
+            .build();
+          Assert.assertTrue(node.getBlockIngestor().ingestBlock(blk, true));
+          return blk;
+        }
+      }
+      Thread.sleep(100);
+    }
+    Assert.fail("No block template on head");
+    return null;
+  }
+
+  private static Transaction spendCoinbase(Transaction coinbase, AddressSpec claim, AddressSpecHash addr,
+    KeyPair key_pair, long fee, Random rnd) throws Exception
+  {
+    TransactionOutput src = TransactionUtil.getInner(coinbase).getOutputs(0);
+    Assert.assertEquals(addr.getBytes(), src.getRecipientSpecHash());
+
+    TransactionInner.Builder inner = TransactionInner.newBuilder();
+    inner.setVersion(1);
+    inner.setFee(fee);
+    inner.addInputs(TransactionInput.newBuilder()
+      .setSpecHash(addr.getBytes())
+      .setSrcTxId(coinbase.getTxHash())
+      .setSrcTxOutIdx(0)
+      .build());
+    inner.addOutputs(TransactionOutput.newBuilder()
+      .setRecipientSpecHash(randomBytes(rnd, Globals.ADDRESS_SPEC_HASH_LEN))
+      .setValue(src.getValue() - fee)
+      .build());
+    inner.addClaims(claim);
+
+    Transaction.Builder tx = Transaction.newBuilder();
+    ByteString inner_data = inner.build().toByteString();
+    tx.setInnerData(inner_data);
+    tx.setTxHash(ByteString.copyFrom(DigestUtil.getMD().digest(inner_data.toByteArray())));
+
+    Signature sig_engine = Signature.getInstance("ECDSA", Globals.getCryptoProviderName());
+    sig_engine.initSign(key_pair.getPrivate());
+    sig_engine.update(tx.getTxHash().toByteArray());
+
+    tx.addSignatures(SignatureEntry.newBuilder()
+      .setClaimIdx(0)
+      .setKeyIdx(0)
+      .setSignature(ByteString.copyFrom(sig_engine.sign()))
+      .build());
+
+    return tx.build();
+  }
+
+  private static ByteString randomBytes(Random rnd, int len)
+  {
+    byte[] b = new byte[len];
+    rnd.nextBytes(b);
+    return ByteString.copyFrom(b);
+  }
+
+}